@@ -3,6 +3,8 @@ package net.yadan.banana.experimental.set;
 import net.yadan.banana.DebugLevel;
 import net.yadan.banana.DefaultFormatter;
 import net.yadan.banana.Formatter;
+import net.yadan.banana.map.BufferHashStrategy;
+import net.yadan.banana.map.hash.MurmurHashStrategy;
 import net.yadan.banana.memory.Buffer;
 import net.yadan.banana.memory.IBuffer;
 import net.yadan.banana.memory.IMemAllocator;
@@ -33,6 +35,11 @@ public class HashSet implements ISet {
    */
   private int m_table[];
 
+  private BufferHashStrategy m_hashStrategy;
+
+  // if true the capacity is a power of two and buckets are picked by masking
+  private boolean m_powerOfTwo;
+
   private Formatter m_formatter;
 
   private DebugLevel m_debugLevel = DebugLevel.NONE;
@@ -53,6 +60,7 @@ public class HashSet implements ISet {
     }
 
     m_formatter = new DefaultFormatter();
+    m_hashStrategy = new MurmurHashStrategy();
     m_memory = memory;
   }
 
@@ -98,9 +106,10 @@ public class HashSet implements ISet {
 
     if (pointer == -1) {
       int size = element.size();
-      int ptr = m_memory.malloc(size + KEY_DATA_OFFSET);
-      m_memory.setInt(ptr, KEY_SIZE_OFFSET, size);
-      m_memory.setInts(ptr, KEY_DATA_OFFSET, element.array(), 0, size);
+      pointer = m_memory.malloc(size + KEY_DATA_OFFSET);
+      m_memory.setInt(pointer, KEY_SIZE_OFFSET, size);
+      m_memory.setInts(pointer, KEY_DATA_OFFSET, element.array(), 0, size);
+      m_memory.setInt(pointer, NEXT_OFFSET, m_table[listNum]);
       m_table[listNum] = pointer;
       m_size++;
     }
@@ -113,6 +122,18 @@ public class HashSet implements ISet {
     IBuffer buffer = new Buffer(10, 2);
     int capacity = getCapacity();
     long newCapacity = Math.max(capacity + 1, (long) (capacity * m_growthFactor));
+    if (m_powerOfTwo) {
+      newCapacity = powerOfTwo(newCapacity);
+      if (newCapacity > Integer.MAX_VALUE) {
+        // rounding up went past the largest table, round down instead
+        newCapacity = Integer.highestOneBit(Integer.MAX_VALUE);
+        if (newCapacity <= capacity) {
+          // keep the current table and let the chains grow
+          m_threshold = Integer.MAX_VALUE;
+          return;
+        }
+      }
+    }
     if (newCapacity > Integer.MAX_VALUE) {
       throw new IllegalStateException("Attempted to resize table to " + newCapacity
           + " which is greated than Integer.MAX_VALUE");
@@ -231,6 +252,55 @@ public class HashSet implements ISet {
     m_growthFactor = d;
   }
 
+  /**
+   * Sets the function hashing elements into buckets. Can only be changed while
+   * the set is empty.
+   */
+  public void setHashStrategy(BufferHashStrategy strategy) {
+    if (strategy == null)
+      throw new IllegalArgumentException("null hash strategy");
+    checkEmpty();
+    m_hashStrategy = strategy;
+  }
+
+  public BufferHashStrategy getHashStrategy() {
+    return m_hashStrategy;
+  }
+
+  /**
+   * Keeps the capacity a power of two, so that buckets are picked by masking
+   * the hash instead of a division. Can only be changed while the set is empty.
+   */
+  public void setPowerOfTwoCapacity(boolean powerOfTwo) {
+    checkEmpty();
+    m_powerOfTwo = powerOfTwo;
+    int capacity = (int) powerOfTwo(getCapacity());
+    if (capacity != m_table.length) {
+      m_table = new int[capacity];
+      for (int i = 0; i < m_table.length; i++) {
+        m_table[i] = -1;
+      }
+      m_threshold = (int) Math.min(getCapacity() * getLoadFactor(), Integer.MAX_VALUE);
+    }
+  }
+
+  public boolean isPowerOfTwoCapacity() {
+    return m_powerOfTwo;
+  }
+
+  private void checkEmpty() {
+    if (size() != 0)
+      throw new IllegalStateException("Can only be changed while the set is empty (size "
+          + size() + ")");
+  }
+
+  private long powerOfTwo(long capacity) {
+    if (!m_powerOfTwo || capacity <= 1) {
+      return capacity;
+    }
+    return Long.highestOneBit(capacity - 1) << 1;
+  }
+
   @Override
   public long computeMemoryUsage() {
     return 4 * m_table.length + m_memory.computeMemoryUsage();
@@ -247,9 +317,8 @@ public class HashSet implements ISet {
   }
 
   private int hashCode(IBuffer key, int listSize) {
-    int h = key.hashCode();
-    int r = h % listSize;
-    return r < 0 ? r + listSize : r;
+    int h = m_hashStrategy.hash(key);
+    return m_powerOfTwo ? h & (listSize - 1) : (h & Integer.MAX_VALUE) % listSize;
   }
 
   @Override
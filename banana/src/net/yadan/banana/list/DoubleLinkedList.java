@@ -10,6 +10,7 @@ import net.yadan.banana.DebugLevel;
 import net.yadan.banana.Formatter;
 import net.yadan.banana.memory.IBuffer;
 import net.yadan.banana.memory.IMemAllocator;
+import net.yadan.banana.memory.Relocation;
 import net.yadan.banana.memory.block.BlockAllocator;
 import net.yadan.banana.memory.malloc.ChainedAllocator;
 import net.yadan.banana.memory.malloc.MultiSizeAllocator;
@@ -248,6 +249,30 @@ public class DoubleLinkedList implements ILinkedList {
     m_size = 0;
   }
 
+  @Override
+  public void compact() {
+    Relocation relocation = new Relocation();
+    m_memory.compact(relocation);
+    if (relocation.size() == 0 || m_head == -1) {
+      return;
+    }
+
+    int prev = -1;
+    int n = m_memory.relocate(m_head, relocation);
+    m_head = n;
+    while (n != -1) {
+      setPrev(n, prev);
+      int next = getNext(n);
+      if (next != -1) {
+        next = m_memory.relocate(next, relocation);
+        setNext(n, next);
+      }
+      prev = n;
+      n = next;
+    }
+    m_tail = prev;
+  }
+
 
   @Override
   public IMemAllocator getAllocator() {
@@ -355,5 +380,25 @@ public class DoubleLinkedList implements ILinkedList {
     m_memory.getChars(pointer, src_offset + DATA_OFFSET, dst_data, dst_pos, num_chars);
   }
 
+  @Override
+  public byte getByte(int pointer, int byte_offset) {
+    return m_memory.getByte(pointer, byte_offset + (DATA_OFFSET << 2));
+  }
+
+  @Override
+  public void setByte(int pointer, int byte_offset, int b) {
+    m_memory.setByte(pointer, byte_offset + (DATA_OFFSET << 2), b);
+  }
+
+  @Override
+  public void setBytes(int pointer, int dst_offset, byte[] src_data, int src_pos, int num_bytes) {
+    m_memory.setBytes(pointer, dst_offset + DATA_OFFSET, src_data, src_pos, num_bytes);
+  }
+
+  @Override
+  public void getBytes(int pointer, int src_offset, byte[] dst_data, int dst_pos, int num_bytes) {
+    m_memory.getBytes(pointer, src_offset + DATA_OFFSET, dst_data, dst_pos, num_bytes);
+  }
+
 }
 
@@ -117,4 +117,11 @@ public interface ILinkedList extends ICollection, IPrimitiveAccess {
    * @return the memory allocator used by this linked list
    */
   public IMemAllocator getAllocator();
+
+  /**
+   * Compacts the list memory, moving all the links to the beginning of the
+   * allocator. Link pointers obtained before this call are invalid after it.
+   * The allocator must not be shared with other data structures.
+   */
+  public void compact();
 }
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.list;
+
+import net.yadan.banana.memory.ILongMemAllocator;
+import net.yadan.banana.memory.ILongPrimitiveAccess;
+import net.yadan.banana.memory.malloc.LongChainedAllocator;
+
+/**
+ * A singly linked list with 64 bit links, the long pointer counterpart of
+ * {@link LinkedList}. Links are pointers into an {@link ILongMemAllocator} and
+ * the next link is stored as a long in front of the user data.
+ */
+public class LongLinkedList implements ILongPrimitiveAccess {
+
+  public static final int NEXT_OFFSET = 0;
+  public static final int DATA_OFFSET = 2;
+  public static final int RESERVED_SIZE = DATA_OFFSET;
+
+  private ILongMemAllocator m_memory;
+
+  private long m_head;
+  private long m_tail;
+  private long m_size;
+
+  public LongLinkedList(long maxBlocks, int blockSize, double growthFactor) {
+    this(new LongChainedAllocator(maxBlocks, blockSize + RESERVED_SIZE, growthFactor));
+  }
+
+  public LongLinkedList(ILongMemAllocator memory) {
+    m_memory = memory;
+    m_head = -1;
+    m_tail = -1;
+    m_size = 0;
+  }
+
+  public long insertHead(int size) {
+    long link = m_memory.malloc(size + RESERVED_SIZE);
+    m_memory.setLong(link, NEXT_OFFSET, m_head);
+    m_head = link;
+    if (m_tail == -1) {
+      m_tail = link;
+    }
+    m_size++;
+    return link;
+  }
+
+  /**
+   * Inserts a new link after anchor. if the list is empty anchor should be -1
+   */
+  public long insert(int size, long anchor) {
+    long link = m_memory.malloc(size + RESERVED_SIZE);
+    if (m_head == -1 && anchor == m_head) {
+      m_head = link;
+      m_tail = link;
+      m_memory.setLong(link, NEXT_OFFSET, -1);
+    } else {
+      long next = m_memory.getLong(anchor, NEXT_OFFSET);
+      m_memory.setLong(link, NEXT_OFFSET, next);
+      m_memory.setLong(anchor, NEXT_OFFSET, link);
+      if (anchor == m_tail) {
+        m_tail = link;
+      }
+    }
+    m_size++;
+    return link;
+  }
+
+  public void removeHead() {
+    if (m_head != -1) {
+      long head = m_head;
+      m_head = m_memory.getLong(m_head, NEXT_OFFSET);
+      m_memory.free(head);
+      m_size--;
+    }
+
+    if (m_head == -1) {
+      m_tail = -1;
+    }
+  }
+
+  public long appendTail(int size) {
+    long link = m_memory.malloc(size + RESERVED_SIZE);
+    if (m_tail != -1) {
+      m_memory.setLong(m_tail, NEXT_OFFSET, link);
+    }
+
+    if (m_head == -1) {
+      m_head = link;
+    }
+
+    m_memory.setLong(link, NEXT_OFFSET, -1);
+    m_tail = link;
+    m_size++;
+    return link;
+  }
+
+  public void remove(long link) {
+    if (link == m_head) {
+      m_head = m_memory.getLong(link, NEXT_OFFSET);
+      if (m_head == -1) {
+        m_tail = -1;
+      }
+    } else {
+      long n = m_head;
+      while (n != -1) {
+        long next = m_memory.getLong(n, NEXT_OFFSET);
+
+        if (next == link) {
+          if (next == m_tail) {
+            m_tail = n;
+          }
+
+          long nextnext = m_memory.getLong(next, NEXT_OFFSET);
+          m_memory.setLong(n, NEXT_OFFSET, nextnext);
+          break;
+        }
+        n = next;
+      }
+    }
+    m_size--;
+
+    m_memory.free(link);
+  }
+
+  public long getHead() {
+    return m_head;
+  }
+
+  public long getTail() {
+    return m_tail;
+  }
+
+  public long getNext(long link) {
+    return m_memory.getLong(link, NEXT_OFFSET);
+  }
+
+  public long size() {
+    return m_size;
+  }
+
+  public boolean isEmpty() {
+    return m_size == 0;
+  }
+
+  public void clear() {
+    long n = m_head;
+    while (n != -1) {
+      long next = m_memory.getLong(n, NEXT_OFFSET);
+      m_memory.free(n);
+      n = next;
+    }
+
+    m_head = m_tail = -1;
+    m_size = 0;
+  }
+
+  public ILongMemAllocator getAllocator() {
+    return m_memory;
+  }
+
+  public long computeMemoryUsage() {
+    return m_memory.computeMemoryUsage();
+  }
+
+  @Override
+  public int getInt(long link, int offset_in_data) {
+    return m_memory.getInt(link, offset_in_data + DATA_OFFSET);
+  }
+
+  @Override
+  public void setInt(long link, int offset_in_data, int data) {
+    m_memory.setInt(link, offset_in_data + DATA_OFFSET, data);
+  }
+
+  @Override
+  public long getLong(long link, int offset_in_data) {
+    return m_memory.getLong(link, offset_in_data + DATA_OFFSET);
+  }
+
+  @Override
+  public void setLong(long link, int offset_in_data, long data) {
+    m_memory.setLong(link, offset_in_data + DATA_OFFSET, data);
+  }
+
+  @Override
+  public float getFloat(long link, int offset) {
+    return m_memory.getFloat(link, offset + DATA_OFFSET);
+  }
+
+  @Override
+  public void setFloat(long link, int offset, float f) {
+    m_memory.setFloat(link, offset + DATA_OFFSET, f);
+  }
+
+  @Override
+  public double getDouble(long link, int offset_in_data) {
+    return m_memory.getDouble(link, offset_in_data + DATA_OFFSET);
+  }
+
+  @Override
+  public void setDouble(long link, int offset_in_data, double data) {
+    m_memory.setDouble(link, offset_in_data + DATA_OFFSET, data);
+  }
+
+  @Override
+  public void setInts(long link, int dst_offset_in_record, int[] src_data, int src_pos, int length) {
+    m_memory.setInts(link, dst_offset_in_record + DATA_OFFSET, src_data, src_pos, length);
+  }
+
+  @Override
+  public void getInts(long link, int src_offset_in_record, int[] dst_data, int dst_pos, int length) {
+    m_memory.getInts(link, src_offset_in_record + DATA_OFFSET, dst_data, dst_pos, length);
+  }
+
+  @Override
+  public int maximumCapacityFor(long link) {
+    return m_memory.maximumCapacityFor(link) - RESERVED_SIZE;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder s = new StringBuilder();
+    s.append(LongLinkedList.class.getName()).append(" ").append(size()).append(" links : ");
+    long n = m_head;
+    while (n != -1) {
+      s.append('#').append(n);
+      n = getNext(n);
+      if (n != -1) {
+        s.append(" -> ");
+      }
+    }
+    return s.toString();
+  }
+}
@@ -0,0 +1,20 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.map;
+
+import net.yadan.banana.memory.IBuffer;
+
+/**
+ * Hashes variable length keys into table buckets.
+ *
+ * The hash may only depend on the used ints of the buffer, so that buffers
+ * that are equal hash to the same value.
+ */
+public interface BufferHashStrategy {
+
+  public int hash(IBuffer key);
+}
@@ -6,12 +6,18 @@
  */
 package net.yadan.banana.map;
 
+import java.util.Arrays;
+
 import net.yadan.banana.DebugLevel;
 import net.yadan.banana.DefaultFormatter;
 import net.yadan.banana.Formatter;
+import net.yadan.banana.map.hash.MurmurHashStrategy;
+import net.yadan.banana.memory.GrowthPolicy;
 import net.yadan.banana.memory.IBlockAllocator;
 import net.yadan.banana.memory.IBuffer;
 import net.yadan.banana.memory.IMemAllocator;
+import net.yadan.banana.memory.OutOfMemoryException;
+import net.yadan.banana.memory.Relocation;
 import net.yadan.banana.memory.block.BigBlockAllocator;
 import net.yadan.banana.memory.block.BlockAllocator;
 import net.yadan.banana.memory.malloc.TreeAllocator;
@@ -30,14 +36,45 @@ public class HashMap implements IHashMap {
   private static final int USER_DATA_OFFSET = 3;
   public static final int RESERVED_SIZE = USER_DATA_OFFSET;
 
+  // layout of the record written by store()
+  private static final int STATE_SIZE_OFFSET = 0;
+  private static final int STATE_CAPACITY_OFFSET = 1;
+  private static final int STATE_POWER_OF_TWO_OFFSET = 2;
+  private static final int STATE_HASH_PROBE_OFFSET = 3;
+  private static final int STATE_LOAD_FACTOR_OFFSET = 4;
+  private static final int STATE_TABLE_OFFSET = 6;
+
+  // hashed into the stored state to detect a different hash strategy
+  private static final long HASH_PROBE = 0x9e3779b97f4a7c15L;
+
   private double m_loadFactor;
   private double m_growthFactor;
 
+  // overrides m_growthFactor if set
+  private GrowthPolicy m_growthPolicy;
+
   /**
    * Holds an array of pointers into m_memory
    */
   private int m_table[];
 
+  /**
+   * While the map is resized incrementally, the table the records are moved
+   * from. null otherwise
+   */
+  private int m_oldTable[];
+
+  // buckets of m_oldTable below this one were moved to m_table
+  private int m_migrated;
+
+  // number of old buckets moved by each update, 0 to rehash in one go
+  private int m_resizeStep;
+
+  private LongHashStrategy m_hashStrategy;
+
+  // if true the capacity is a power of two and buckets are picked by masking
+  private boolean m_powerOfTwo;
+
   private int m_size;
 
   /**
@@ -66,12 +103,47 @@ public class HashMap implements IHashMap {
     init(memory, initialCapacity, loadFactor);
   }
 
+  /**
+   * Re-opens a map saved with {@link #store()}, typically after re-mapping the
+   * file of a {@link net.yadan.banana.memory.block.MappedBlockAllocator}. The
+   * records are used where they are, only the bucket table is read back.
+   *
+   * @param memory the allocator the map was stored in
+   * @param state_pointer pointer returned by store(), freed by this constructor
+   */
+  public HashMap(IMemAllocator memory, int state_pointer) {
+    this(memory, state_pointer, new MurmurHashStrategy());
+  }
+
+  /**
+   * Re-opens a map saved with {@link #store()} that used a custom hash strategy
+   *
+   * @param memory the allocator the map was stored in
+   * @param state_pointer pointer returned by store(), freed by this constructor
+   * @param hashStrategy the hash strategy the map was stored with
+   * @throws IllegalArgumentException if the map was stored with a different
+   *           hash strategy
+   */
+  public HashMap(IMemAllocator memory, int state_pointer, LongHashStrategy hashStrategy) {
+    this(memory, memory.getInt(state_pointer, STATE_CAPACITY_OFFSET), memory.getDouble(
+        state_pointer, STATE_LOAD_FACTOR_OFFSET));
+    if (memory.getInt(state_pointer, STATE_HASH_PROBE_OFFSET) != hashStrategy.hash(HASH_PROBE))
+      throw new IllegalArgumentException("The map was stored with a different hash strategy than "
+          + hashStrategy);
+    m_hashStrategy = hashStrategy;
+    m_powerOfTwo = memory.getInt(state_pointer, STATE_POWER_OF_TWO_OFFSET) != 0;
+    memory.getInts(state_pointer, STATE_TABLE_OFFSET, m_table, 0, m_table.length);
+    m_size = memory.getInt(state_pointer, STATE_SIZE_OFFSET);
+    memory.free(state_pointer);
+  }
+
   protected void init(IMemAllocator memory, int initialCapacity, double loadFactor) {
     m_size = 0;
     m_loadFactor = loadFactor;
     m_growthFactor = DEFAULT_GROWTH_FACTOR;
     m_memory = memory;
     m_formatter = new DefaultFormatter();
+    m_hashStrategy = new MurmurHashStrategy();
     m_table = new int[initialCapacity];
     m_threshold = (int) Math.min(getCapacity() * getLoadFactor(), Integer.MAX_VALUE);
     m_size = 0;
@@ -102,9 +174,10 @@ public class HashMap implements IHashMap {
 
   @Override
   public int createRecord(long key, int size) {
-    if (size() >= m_threshold && m_growthFactor > 0) {
+    if (size() >= m_threshold && (m_growthFactor > 0 || m_growthPolicy != null)) {
       increaseCapacity();
     }
+    resizeStep(key);
 
     int listNum = hashCode(key, m_table.length);
     int pointer = m_table[listNum];
@@ -115,7 +188,7 @@ public class HashMap implements IHashMap {
       // list already contain this key, reuse the space - resizing as needed
       if (m_memory.getLong(pointer, KEY_OFFSET) == key) {
         int pNext = m_memory.getInt(pointer, NEXT_OFFSET);
-        pointer = m_memory.realloc(pointer, size + RESERVED_SIZE);
+        pointer = reallocMemory(pointer, size + RESERVED_SIZE);
         if (prev == -1) {
           m_table[listNum] = pointer;
         } else {
@@ -150,12 +223,13 @@ public class HashMap implements IHashMap {
 
   @Override
   public int reallocRecord(long key, int newSize) {
+    resizeStep(key);
     int listNum = hashCode(key, m_table.length);
     int n = m_table[listNum];
     int prev = -1;
     while (n != -1) {
       if (m_memory.getLong(n, KEY_OFFSET) == key) {
-        int ptr = m_memory.realloc(n, newSize + RESERVED_SIZE);
+        int ptr = reallocMemory(n, newSize + RESERVED_SIZE);
         if (n == m_table[listNum]) {
           m_table[listNum] = ptr;
         } else {
@@ -172,14 +246,37 @@ public class HashMap implements IHashMap {
 
   @Override
   public int findRecord(long key) {
-    int listNum = hashCode(key, m_table.length);
+    return findRecord(key, Integer.MAX_VALUE);
+  }
 
-    int n = m_table[listNum];
+  /**
+   * Looks up key visiting at most maxLinks records of each chain, so a reader
+   * racing with updates can not loop forever on a chain that is being relinked.
+   *
+   * @throws IllegalStateException if a chain has more than maxLinks records
+   */
+  protected int findRecord(long key, int maxLinks) {
+    int n = findRecord(m_table, key, maxLinks);
+    if (n == -1 && m_oldTable != null) {
+      n = findRecord(m_oldTable, key, maxLinks);
+    }
+    return n;
+  }
+
+  private int findRecord(int table[], long key, int maxLinks) {
+    int listNum = hashCode(key, table.length);
+
+    int n = table[listNum];
+    int links = 0;
     while (n != -1) {
       if (m_memory.getLong(n, KEY_OFFSET) == key) {
         break;
       }
       n = m_memory.getInt(n, NEXT_OFFSET);
+      if (++links == maxLinks && n != -1) {
+        throw new IllegalStateException("Chain " + listNum + " has more than " + maxLinks
+            + " records");
+      }
     }
 
     return n;
@@ -272,8 +369,29 @@ public class HashMap implements IHashMap {
     m_memory.getChars(record_id, src_offset + USER_DATA_OFFSET, dst_data, dst_pos, num_chars);
   }
 
+  @Override
+  public byte getByte(int record_id, int byte_offset) {
+    return m_memory.getByte(record_id, byte_offset + (USER_DATA_OFFSET << 2));
+  }
+
+  @Override
+  public void setByte(int record_id, int byte_offset, int b) {
+    m_memory.setByte(record_id, byte_offset + (USER_DATA_OFFSET << 2), b);
+  }
+
+  @Override
+  public void setBytes(int record_id, int dst_offset, byte[] src_data, int src_pos, int num_bytes) {
+    m_memory.setBytes(record_id, dst_offset + USER_DATA_OFFSET, src_data, src_pos, num_bytes);
+  }
+
+  @Override
+  public void getBytes(int record_id, int src_offset, byte[] dst_data, int dst_pos, int num_bytes) {
+    m_memory.getBytes(record_id, src_offset + USER_DATA_OFFSET, dst_data, dst_pos, num_bytes);
+  }
+
   @Override
   public boolean remove(long key) {
+    resizeStep(key);
 
     int listNum = hashCode(key, m_table.length);
 
@@ -289,7 +407,7 @@ public class HashMap implements IHashMap {
           m_memory.setInt(prev, NEXT_OFFSET, next);
         }
         m_size--;
-        m_memory.free(n);
+        freeMemory(n);
         return true;
       }
       prev = n;
@@ -306,12 +424,48 @@ public class HashMap implements IHashMap {
     visitRecords(new HashMapVisitorAdapter() {
       @Override
       public void visit(IHashMap map, long key, int record_id, long num, long total) {
-        m_memory.free(record_id);
+        freeMemory(record_id);
       }
     });
     for (int i = 0; i < m_table.length; i++) {
       m_table[i] = -1;
     }
+    m_oldTable = null;
+  }
+
+  @Override
+  public void reset() {
+    m_size = 0;
+    Arrays.fill(m_table, -1);
+    m_oldTable = null;
+  }
+
+  @Override
+  public void compact() {
+    if (m_oldTable != null) {
+      migrate(m_oldTable.length);
+    }
+    Relocation relocation = new Relocation();
+    m_memory.compact(relocation);
+    if (relocation.size() == 0) {
+      return;
+    }
+
+    for (int i = 0; i < m_table.length; i++) {
+      int n = m_table[i];
+      if (n == -1) {
+        continue;
+      }
+      n = m_memory.relocate(n, relocation);
+      m_table[i] = n;
+      int next = m_memory.getInt(n, NEXT_OFFSET);
+      while (next != -1) {
+        next = m_memory.relocate(next, relocation);
+        m_memory.setInt(n, NEXT_OFFSET, next);
+        n = next;
+        next = m_memory.getInt(n, NEXT_OFFSET);
+      }
+    }
   }
 
   @Override
@@ -326,28 +480,188 @@ public class HashMap implements IHashMap {
     m_growthFactor = d;
   }
 
+  /**
+   * Sets the policy deciding by how much to grow the table. A policy enables
+   * growth even if the growth factor is 0. If the policy refuses to grow, the
+   * table keeps its capacity and records are chained in the existing buckets.
+   *
+   * @param policy growth policy, null to grow by the growth factor
+   */
+  public void setGrowthPolicy(GrowthPolicy policy) {
+    m_growthPolicy = policy;
+  }
+
+  public GrowthPolicy getGrowthPolicy() {
+    return m_growthPolicy;
+  }
+
+  /**
+   * Enables incremental resizing. When the map grows, the old table is kept
+   * and each update (create, realloc or remove) moves step buckets from it to
+   * the new table, instead of rehashing all the records in the update that
+   * crossed the threshold. Lookups search both tables until all the buckets
+   * were moved.
+   *
+   * @param step number of buckets moved by each update, 0 to rehash the whole
+   *          table at once (default)
+   */
+  public void setIncrementalResize(int step) {
+    if (step < 0)
+      throw new IllegalArgumentException("step " + step + " < 0");
+    m_resizeStep = step;
+  }
+
+  /**
+   * @return true if an incremental resize is in progress
+   */
+  public boolean isResizing() {
+    return m_oldTable != null;
+  }
+
+  /**
+   * Sets the function hashing keys into buckets. Can only be changed while the
+   * map is empty.
+   */
+  public void setHashStrategy(LongHashStrategy strategy) {
+    if (strategy == null)
+      throw new IllegalArgumentException("null hash strategy");
+    checkEmpty();
+    m_hashStrategy = strategy;
+  }
+
+  public LongHashStrategy getHashStrategy() {
+    return m_hashStrategy;
+  }
+
+  /**
+   * Keeps the capacity a power of two, so that buckets are picked by masking
+   * the hash instead of a division. Enabling it rounds the current capacity up.
+   * Requires a hash strategy that mixes the low bits well, like the default
+   * one. Can only be changed while the map is empty.
+   */
+  public void setPowerOfTwoCapacity(boolean powerOfTwo) {
+    checkEmpty();
+    m_powerOfTwo = powerOfTwo;
+    m_oldTable = null;
+    int capacity = (int) powerOfTwo(getCapacity());
+    if (capacity != m_table.length) {
+      m_table = new int[capacity];
+      Arrays.fill(m_table, -1);
+      m_threshold = (int) Math.min(getCapacity() * getLoadFactor(), Integer.MAX_VALUE);
+    }
+  }
+
+  public boolean isPowerOfTwoCapacity() {
+    return m_powerOfTwo;
+  }
+
+  /**
+   * Saves the size, settings and bucket table of the map in a record of its
+   * allocator. With a persistent allocator like
+   * {@link net.yadan.banana.memory.block.MappedBlockAllocator} the map can then
+   * be re-opened with {@link #HashMap(IMemAllocator, int)} after a restart,
+   * without rebuilding it. The saved state does not follow later updates, so
+   * store the map right before closing its allocator.
+   *
+   * @return pointer to the saved state
+   */
+  public int store() {
+    if (m_oldTable != null) {
+      migrate(m_oldTable.length);
+    }
+    int pointer = m_memory.malloc(STATE_TABLE_OFFSET + m_table.length);
+    m_memory.setInt(pointer, STATE_SIZE_OFFSET, m_size);
+    m_memory.setInt(pointer, STATE_CAPACITY_OFFSET, m_table.length);
+    m_memory.setInt(pointer, STATE_POWER_OF_TWO_OFFSET, m_powerOfTwo ? 1 : 0);
+    m_memory.setInt(pointer, STATE_HASH_PROBE_OFFSET, m_hashStrategy.hash(HASH_PROBE));
+    m_memory.setDouble(pointer, STATE_LOAD_FACTOR_OFFSET, m_loadFactor);
+    m_memory.setInts(pointer, STATE_TABLE_OFFSET, m_table, 0, m_table.length);
+    return pointer;
+  }
+
+  private void checkEmpty() {
+    if (size() != 0)
+      throw new IllegalStateException("Can only be changed while the map is empty (size "
+          + size() + ")");
+  }
+
+  /**
+   * @return capacity, rounded up to a power of two if power of two capacities
+   *         are enabled
+   */
+  private long powerOfTwo(long capacity) {
+    if (!m_powerOfTwo || capacity <= 1) {
+      return capacity;
+    }
+    return Long.highestOneBit(capacity - 1) << 1;
+  }
+
   @Override
   public void visitRecords(HashMapVisitor visitor) {
     visitor.begin(this);
 
     int num = 0;
     long total = size();
-    for (int i = 0; i < m_table.length; i++) {
-      int n = m_table[i];
-      while (n != -1) {
-        long key = m_memory.getLong(n, KEY_OFFSET);
-        int next = m_memory.getInt(n, NEXT_OFFSET);
-        visitor.visit(this, key, n, num++, total);
-        n = next;
+    for (int table[] = m_table; table != null; table = table == m_table ? m_oldTable : null) {
+      for (int i = 0; i < table.length; i++) {
+        int n = table[i];
+        while (n != -1) {
+          long key = m_memory.getLong(n, KEY_OFFSET);
+          int next = m_memory.getInt(n, NEXT_OFFSET);
+          visitor.visit(this, key, n, num++, total);
+          n = next;
+        }
       }
     }
     visitor.end(this);
   }
 
+  /**
+   * Releases the memory of a removed record
+   */
+  protected void freeMemory(int pointer) {
+    m_memory.free(pointer);
+  }
+
+  /**
+   * Resizes the memory of a record, keeping its content
+   *
+   * @return the new record pointer
+   */
+  protected int reallocMemory(int pointer, int size) {
+    return m_memory.realloc(pointer, size);
+  }
+
   private void increaseCapacity() {
+    if (m_oldTable != null) {
+      // the previous resize is not done yet
+      migrate(m_oldTable.length);
+    }
     // long t = Sysftem.currentTimeMillis();
     int capacity = getCapacity();
-    long newCapacity = Math.max(capacity + 1, (long) (capacity * m_growthFactor));
+    long newCapacity;
+    if (m_growthPolicy == null) {
+      newCapacity = powerOfTwo(Math.max(capacity + 1, (long) (capacity * m_growthFactor)));
+    } else {
+      try {
+        newCapacity = Math.min(m_growthPolicy.grow(capacity, capacity + 1L, 4), Integer.MAX_VALUE);
+        if (m_powerOfTwo) {
+          // rounding up could exceed the limits of the policy, round down
+          newCapacity = Long.highestOneBit(newCapacity);
+          if (newCapacity <= capacity) {
+            throw new OutOfMemoryException("No power of two capacity above " + capacity
+                + " is allowed by " + m_growthPolicy);
+          }
+          m_growthPolicy.grow(capacity, newCapacity, 4);
+        }
+        m_growthPolicy.checkAllocation(4L * newCapacity);
+      } catch (OutOfMemoryException e) {
+        // keep the current table and let the chains grow, try again once the
+        // map has twice as many records
+        m_threshold = (int) Math.min(2L * m_threshold + 1, Integer.MAX_VALUE);
+        return;
+      }
+    }
     if (newCapacity > Integer.MAX_VALUE) {
       throw new IllegalStateException("Attempted to resize map to " + newCapacity
           + " which is greated than Integer.MAX_VALUE");
@@ -358,28 +672,59 @@ public class HashMap implements IHashMap {
       newTable[i] = -1;
     }
 
-    for (int tableNum = 0; tableNum < m_table.length; tableNum++) {
-      int n = m_table[tableNum];
-      while (n != -1) {
-        long key = m_memory.getLong(n, KEY_OFFSET);
-        int newTableNum = hashCode(key, intCap);
-
-        int next = m_memory.getInt(n, NEXT_OFFSET);
-        m_memory.setInt(n, NEXT_OFFSET, newTable[newTableNum]);
-        newTable[newTableNum] = n;
-        n = next;
-      }
-    }
-
+    m_oldTable = m_table;
+    m_migrated = 0;
     m_table = newTable;
     m_threshold = (int) Math.min(getCapacity() * getLoadFactor(), Integer.MAX_VALUE);
+    if (m_resizeStep == 0) {
+      migrate(m_oldTable.length);
+    }
 //    System.out.println(String.format("Increased map capacity from %d to %d took %d ms", capacity,
 //        getCapacity(), (System.currentTimeMillis() - t)));
   }
 
+  /**
+   * Moves the old bucket of key and the next step buckets to the new table, so
+   * that updates only need to look at m_table
+   */
+  private void resizeStep(long key) {
+    if (m_oldTable != null) {
+      migrateBucket(hashCode(key, m_oldTable.length));
+      migrate(m_resizeStep);
+    }
+  }
+
+  /**
+   * Moves the next buckets of the old table to the new table
+   */
+  private void migrate(int buckets) {
+    int end = (int) Math.min(m_oldTable.length, (long) m_migrated + buckets);
+    for (; m_migrated < end; m_migrated++) {
+      migrateBucket(m_migrated);
+    }
+    if (m_migrated == m_oldTable.length) {
+      m_oldTable = null;
+      m_migrated = 0;
+    }
+  }
+
+  private void migrateBucket(int bucket) {
+    int n = m_oldTable[bucket];
+    while (n != -1) {
+      long key = m_memory.getLong(n, KEY_OFFSET);
+      int newTableNum = hashCode(key, m_table.length);
+
+      int next = m_memory.getInt(n, NEXT_OFFSET);
+      m_memory.setInt(n, NEXT_OFFSET, m_table[newTableNum]);
+      m_table[newTableNum] = n;
+      n = next;
+    }
+    m_oldTable[bucket] = -1;
+  }
+
   private int hashCode(long value, int listSize) {
-    value = Math.abs(value); // negative values here messes us up.
-    return (int) ((value ^ (value >>> 32)) % listSize);
+    int h = m_hashStrategy.hash(value);
+    return m_powerOfTwo ? h & (listSize - 1) : (h & Integer.MAX_VALUE) % listSize;
   }
 
   public static int getIntArraySize(int maxCapacity, int recordSize) {
@@ -388,7 +733,8 @@ public class HashMap implements IHashMap {
 
   @Override
   public long computeMemoryUsage() {
-    return 4 * m_table.length + m_memory.computeMemoryUsage();
+    long tables = m_table.length + (m_oldTable != null ? m_oldTable.length : 0);
+    return 4 * tables + m_memory.computeMemoryUsage();
   }
 
   @Override
@@ -419,26 +765,34 @@ public class HashMap implements IHashMap {
       });
     } else if (m_debugLevel == DebugLevel.DEBUG_STRUCTURE) {
       s.append("\n");
-      for (int tableNum = 0; tableNum < m_table.length; tableNum++) {
-        int n = m_table[tableNum];
-        while (n != -1) {
-          long key = m_memory.getLong(n, KEY_OFFSET);
-          int next = m_memory.getInt(n, NEXT_OFFSET);
+      appendStructure(s, m_table);
+      if (m_oldTable != null) {
+        s.append("Resizing, old table:\n");
+        appendStructure(s, m_oldTable);
+      }
+    }
+
+    return s.toString();
+  }
 
-          s.append("(#").append(n).append(",K=");
-          s.append(key);
-          s.append(",N=").append(next);
-          s.append(")=").append(m_formatter.format(this, n));
+  private void appendStructure(StringBuilder s, int table[]) {
+    for (int tableNum = 0; tableNum < table.length; tableNum++) {
+      int n = table[tableNum];
+      while (n != -1) {
+        long key = m_memory.getLong(n, KEY_OFFSET);
+        int next = m_memory.getInt(n, NEXT_OFFSET);
 
-          n = next;
-          s.append(" -> ");
-        }
+        s.append("(#").append(n).append(",K=");
+        s.append(key);
+        s.append(",N=").append(next);
+        s.append(")=").append(m_formatter.format(this, n));
 
-        s.append("END\n");
+        n = next;
+        s.append(" -> ");
       }
-    }
 
-    return s.toString();
+      s.append("END\n");
+    }
   }
 
   @Override
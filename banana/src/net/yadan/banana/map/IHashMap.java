@@ -40,6 +40,14 @@ public interface IHashMap extends ICollection, IPrimitiveAccess {
   @Override
   public void clear();
 
+  /**
+   * Removes all the records without freeing their memory. This takes time
+   * proportional to the table capacity instead of the number of records, but
+   * the records memory is leaked unless it is reclaimed in bulk together with
+   * the map, for example by {@link net.yadan.banana.memory.malloc.ArenaAllocator#reset()}.
+   */
+  public void reset();
+
   public int getCapacity();
 
   @Override
@@ -68,4 +76,13 @@ public interface IHashMap extends ICollection, IPrimitiveAccess {
   public void setDebug(DebugLevel level);
 
   public IMemAllocator getAllocator();
+
+  /**
+   * Compacts the map memory, moving all the records to the beginning of the
+   * allocator and releasing the rest if the allocator growth is enabled.
+   *
+   * Record ids obtained before this call are invalid after it. The allocator
+   * must not be shared with other data structures.
+   */
+  public void compact();
 }
@@ -41,6 +41,14 @@ public interface IVarKeyHashMap extends ICollection, IPrimitiveAccess {
   @Override
   public void clear();
 
+  /**
+   * Removes all the records without freeing their memory. This takes time
+   * proportional to the table capacity instead of the number of records, but
+   * the records memory is leaked unless it is reclaimed in bulk together with
+   * the map, for example by {@link net.yadan.banana.memory.malloc.ArenaAllocator#reset()}.
+   */
+  public void reset();
+
   public int getCapacity();
 
   /**
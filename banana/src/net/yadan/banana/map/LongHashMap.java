@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.map;
+
+import java.util.Arrays;
+
+import net.yadan.banana.memory.ILongMemAllocator;
+import net.yadan.banana.memory.ILongPrimitiveAccess;
+import net.yadan.banana.memory.malloc.LongChainedAllocator;
+
+/**
+ * A chained hash map from long keys to records addressed by 64 bit pointers,
+ * the long pointer counterpart of {@link HashMap}.
+ *
+ * The number of records is a long and is only limited by the allocator. The
+ * table itself is a long[] and is limited to Integer.MAX_VALUE buckets, so
+ * past that point chains grow longer instead of the table growing.
+ */
+public class LongHashMap implements ILongPrimitiveAccess {
+
+  private static final double DEFAULT_GROWTH_FACTOR = 2.0;
+
+  private static final int NEXT_OFFSET = 0;
+  private static final int KEY_OFFSET = 2;
+  private static final int USER_DATA_OFFSET = 4;
+  public static final int RESERVED_SIZE = USER_DATA_OFFSET;
+
+  private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+  private double m_loadFactor;
+  private double m_growthFactor;
+
+  /**
+   * Holds an array of pointers into m_memory
+   */
+  private long m_table[];
+
+  private long m_size;
+
+  /**
+   * The table is rehashed when its size exceeds this threshold. (The value of
+   * this field is (long)(capacity * loadFactor).)
+   */
+  private long m_threshold;
+
+  private ILongMemAllocator m_memory;
+
+  public LongHashMap(long maxBlocks, int blockSize, double growthFactor, int initialCapacity,
+      double loadFactor) {
+    this(new LongChainedAllocator(maxBlocks, RESERVED_SIZE + blockSize, growthFactor),
+        initialCapacity, loadFactor);
+  }
+
+  public LongHashMap(ILongMemAllocator memory, int initialCapacity, double loadFactor) {
+    if (initialCapacity < 1)
+      throw new IllegalArgumentException("initialCapacity " + initialCapacity + " < 1");
+    m_size = 0;
+    m_loadFactor = loadFactor;
+    m_growthFactor = DEFAULT_GROWTH_FACTOR;
+    m_memory = memory;
+    m_table = new long[initialCapacity];
+    m_threshold = (long) (getCapacity() * getLoadFactor());
+    Arrays.fill(m_table, -1);
+  }
+
+  public long size() {
+    return m_size;
+  }
+
+  public int getCapacity() {
+    return m_table.length;
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  public boolean containsKey(long key) {
+    return findRecord(key) != -1;
+  }
+
+  /**
+   * Creates a record for key with size ints of user data. if the key already
+   * exists its record is reused, resized as needed.
+   *
+   * @return the record pointer
+   */
+  public long createRecord(long key, int size) {
+    if (size() >= m_threshold && m_growthFactor > 0 && getCapacity() < MAX_CAPACITY) {
+      increaseCapacity();
+    }
+
+    int listNum = hashCode(key, m_table.length);
+    long pointer = m_table[listNum];
+
+    // find if this key is already in the chain
+    long prev = -1;
+    while (pointer != -1) {
+      // list already contain this key, reuse the space - resizing as needed
+      if (m_memory.getLong(pointer, KEY_OFFSET) == key) {
+        long pNext = m_memory.getLong(pointer, NEXT_OFFSET);
+        pointer = m_memory.realloc(pointer, size + RESERVED_SIZE);
+        if (prev == -1) {
+          m_table[listNum] = pointer;
+        } else {
+          m_memory.setLong(prev, NEXT_OFFSET, pointer);
+        }
+        m_memory.memSet(pointer, 0, m_memory.maximumCapacityFor(pointer), 0);
+        m_memory.setLong(pointer, KEY_OFFSET, key);
+        m_memory.setLong(pointer, NEXT_OFFSET, pNext);
+        break;
+      }
+      prev = pointer;
+      pointer = m_memory.getLong(pointer, NEXT_OFFSET);
+    }
+
+    if (pointer == -1) {
+      pointer = m_memory.malloc(size + RESERVED_SIZE);
+      m_memory.setLong(pointer, KEY_OFFSET, key);
+      m_memory.setLong(pointer, NEXT_OFFSET, m_table[listNum]);
+      m_table[listNum] = pointer;
+      m_size++;
+    }
+
+    return pointer;
+  }
+
+  /**
+   * Resizes the record of key, keeping its data
+   *
+   * @return the new record pointer, or -1 if the key was not found
+   */
+  public long reallocRecord(long key, int newSize) {
+    int listNum = hashCode(key, m_table.length);
+    long n = m_table[listNum];
+    long prev = -1;
+    while (n != -1) {
+      if (m_memory.getLong(n, KEY_OFFSET) == key) {
+        long ptr = m_memory.realloc(n, newSize + RESERVED_SIZE);
+        if (prev == -1) {
+          m_table[listNum] = ptr;
+        } else {
+          m_memory.setLong(prev, NEXT_OFFSET, ptr);
+        }
+        return ptr;
+      }
+      prev = n;
+      n = m_memory.getLong(n, NEXT_OFFSET);
+    }
+
+    return -1;
+  }
+
+  /**
+   * @return the record pointer of key, or -1 if not found
+   */
+  public long findRecord(long key) {
+    int listNum = hashCode(key, m_table.length);
+
+    long n = m_table[listNum];
+    while (n != -1) {
+      if (m_memory.getLong(n, KEY_OFFSET) == key) {
+        break;
+      }
+      n = m_memory.getLong(n, NEXT_OFFSET);
+    }
+
+    return n;
+  }
+
+  public boolean remove(long key) {
+    int listNum = hashCode(key, m_table.length);
+
+    long n = m_table[listNum];
+    long prev = -1;
+    while (n != -1) {
+      if (m_memory.getLong(n, KEY_OFFSET) == key) {
+        long next = m_memory.getLong(n, NEXT_OFFSET);
+        if (prev == -1) {
+          m_table[listNum] = next;
+        } else {
+          m_memory.setLong(prev, NEXT_OFFSET, next);
+        }
+        m_size--;
+        m_memory.free(n);
+        return true;
+      }
+      prev = n;
+      n = m_memory.getLong(n, NEXT_OFFSET);
+    }
+
+    return false;
+  }
+
+  public void clear() {
+    for (int i = 0; i < m_table.length; i++) {
+      long n = m_table[i];
+      while (n != -1) {
+        long next = m_memory.getLong(n, NEXT_OFFSET);
+        m_memory.free(n);
+        n = next;
+      }
+      m_table[i] = -1;
+    }
+    m_size = 0;
+  }
+
+  public double getLoadFactor() {
+    return m_loadFactor;
+  }
+
+  public void setGrowthFactor(double d) {
+    if (!(d == 0 || d > 1))
+      throw new IllegalArgumentException("Growth factor " + d + " should be > 1 or 0 to disable");
+    m_growthFactor = d;
+  }
+
+  public void visitRecords(LongHashMapVisitor visitor) {
+    visitor.begin(this);
+
+    long num = 0;
+    long total = size();
+    for (int i = 0; i < m_table.length; i++) {
+      long n = m_table[i];
+      while (n != -1) {
+        long key = m_memory.getLong(n, KEY_OFFSET);
+        long next = m_memory.getLong(n, NEXT_OFFSET);
+        visitor.visit(this, key, n, num++, total);
+        n = next;
+      }
+    }
+    visitor.end(this);
+  }
+
+  private void increaseCapacity() {
+    int capacity = getCapacity();
+    long newCapacity = Math.max(capacity + 1, (long) (capacity * m_growthFactor));
+    int intCap = (int) Math.min(newCapacity, MAX_CAPACITY);
+    long newTable[] = new long[intCap];
+    Arrays.fill(newTable, -1);
+
+    for (int tableNum = 0; tableNum < m_table.length; tableNum++) {
+      long n = m_table[tableNum];
+      while (n != -1) {
+        long key = m_memory.getLong(n, KEY_OFFSET);
+        int newTableNum = hashCode(key, intCap);
+
+        long next = m_memory.getLong(n, NEXT_OFFSET);
+        m_memory.setLong(n, NEXT_OFFSET, newTable[newTableNum]);
+        newTable[newTableNum] = n;
+        n = next;
+      }
+    }
+
+    m_table = newTable;
+    m_threshold = (long) (getCapacity() * getLoadFactor());
+  }
+
+  private int hashCode(long value, int listSize) {
+    value = Math.abs(value); // negative values here messes us up.
+    return (int) ((value ^ (value >>> 32)) % listSize);
+  }
+
+  public long computeMemoryUsage() {
+    return 8L * m_table.length + m_memory.computeMemoryUsage();
+  }
+
+  public ILongMemAllocator getAllocator() {
+    return m_memory;
+  }
+
+  @Override
+  public int getInt(long record_id, int offset_in_data) {
+    return m_memory.getInt(record_id, offset_in_data + USER_DATA_OFFSET);
+  }
+
+  @Override
+  public void setInt(long record_id, int offset_in_data, int data) {
+    m_memory.setInt(record_id, offset_in_data + USER_DATA_OFFSET, data);
+  }
+
+  @Override
+  public long getLong(long record_id, int offset_in_data) {
+    return m_memory.getLong(record_id, offset_in_data + USER_DATA_OFFSET);
+  }
+
+  @Override
+  public void setLong(long record_id, int offset_in_data, long data) {
+    m_memory.setLong(record_id, offset_in_data + USER_DATA_OFFSET, data);
+  }
+
+  @Override
+  public float getFloat(long record_id, int offset) {
+    return m_memory.getFloat(record_id, offset + USER_DATA_OFFSET);
+  }
+
+  @Override
+  public void setFloat(long record_id, int offset, float f) {
+    m_memory.setFloat(record_id, offset + USER_DATA_OFFSET, f);
+  }
+
+  @Override
+  public double getDouble(long record_id, int offset_in_data) {
+    return m_memory.getDouble(record_id, offset_in_data + USER_DATA_OFFSET);
+  }
+
+  @Override
+  public void setDouble(long record_id, int offset_in_data, double data) {
+    m_memory.setDouble(record_id, offset_in_data + USER_DATA_OFFSET, data);
+  }
+
+  @Override
+  public void setInts(long record_id, int dst_offset_in_record, int[] src_data, int src_pos,
+      int length) {
+    m_memory.setInts(record_id, dst_offset_in_record + USER_DATA_OFFSET, src_data, src_pos, length);
+  }
+
+  @Override
+  public void getInts(long record_id, int src_offset_in_record, int[] dst_data, int dst_pos,
+      int length) {
+    m_memory.getInts(record_id, src_offset_in_record + USER_DATA_OFFSET, dst_data, dst_pos, length);
+  }
+
+  @Override
+  public int maximumCapacityFor(long record_id) {
+    return m_memory.maximumCapacityFor(record_id) - RESERVED_SIZE;
+  }
+
+  @Override
+  public String toString() {
+    return LongHashMap.class.getName() + " " + size() + " / " + getCapacity();
+  }
+}
@@ -0,0 +1,16 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.map;
+
+public interface LongHashMapVisitor {
+
+  public void begin(LongHashMap map);
+
+  public void visit(LongHashMap map, long key, long record_id, long num, long total);
+
+  public void end(LongHashMap map);
+}
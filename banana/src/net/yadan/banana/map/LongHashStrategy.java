@@ -0,0 +1,18 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.map;
+
+/**
+ * Hashes long keys into table buckets.
+ *
+ * Maps with power of two capacities index their table with the low bits of the
+ * hash, so a strategy should spread every bit of the key into them.
+ */
+public interface LongHashStrategy {
+
+  public int hash(long key);
+}
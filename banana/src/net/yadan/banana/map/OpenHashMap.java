@@ -0,0 +1,534 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.map;
+
+import java.util.Arrays;
+
+import net.yadan.banana.DebugLevel;
+import net.yadan.banana.DefaultFormatter;
+import net.yadan.banana.Formatter;
+import net.yadan.banana.memory.GrowthPolicy;
+import net.yadan.banana.memory.IBlockAllocator;
+import net.yadan.banana.memory.IBuffer;
+import net.yadan.banana.memory.IMemAllocator;
+import net.yadan.banana.memory.OutOfMemoryException;
+import net.yadan.banana.memory.Relocation;
+import net.yadan.banana.memory.block.BigBlockAllocator;
+import net.yadan.banana.memory.block.BlockAllocator;
+import net.yadan.banana.memory.malloc.TreeAllocator;
+
+/**
+ * An open addressing {@link IHashMap}. Keys are kept inline in a flat long
+ * table probed linearly, next to a parallel table of record pointers into the
+ * allocator. A lookup scans adjacent table slots instead of following a chain
+ * of records, and records only hold the user data (no next pointer or key).
+ *
+ * Removal shifts the following entries of the probe sequence back, so there are
+ * no tombstones and lookups do not degrade after many removals.
+ *
+ * Record ids are allocator pointers, they stay valid when the table grows.
+ * Unlike {@link HashMap} the table must keep at least one slot empty: with
+ * growth disabled a full map throws {@link OutOfMemoryException}.
+ */
+public class OpenHashMap implements IHashMap {
+
+  private static final double DEFAULT_GROWTH_FACTOR = 2.0;
+
+  // bytes per table slot, a key and a record pointer
+  private static final int SLOT_SIZE = 12;
+
+  private double m_loadFactor;
+  private double m_growthFactor;
+
+  // overrides m_growthFactor if set
+  private GrowthPolicy m_growthPolicy;
+
+  private long m_keys[];
+
+  /**
+   * Record pointers into m_memory, -1 for empty slots
+   */
+  private int m_records[];
+
+  private int m_size;
+
+  /**
+   * The table is grown when its size reaches this threshold, always less than
+   * the capacity.
+   */
+  private int m_threshold;
+
+  private IMemAllocator m_memory;
+
+  private DebugLevel m_debugLevel = DebugLevel.NONE;
+
+  private Formatter m_formatter;
+
+  public OpenHashMap(int maxBlocks, int blockSize, double growthFactor, double loadFactor) {
+    IBlockAllocator blocks;
+    if ((long) maxBlocks * blockSize > Integer.MAX_VALUE) {
+      blocks = new BigBlockAllocator(maxBlocks, blockSize, growthFactor);
+    } else {
+      blocks = new BlockAllocator(maxBlocks, blockSize, growthFactor);
+    }
+    init(new TreeAllocator(blocks), (int) Math.min(Integer.MAX_VALUE, maxBlocks / loadFactor + 1),
+        loadFactor);
+  }
+
+  public OpenHashMap(IMemAllocator memory, int initialCapacity, double loadFactor) {
+    init(memory, initialCapacity, loadFactor);
+  }
+
+  protected void init(IMemAllocator memory, int initialCapacity, double loadFactor) {
+    if (initialCapacity < 1)
+      throw new IllegalArgumentException("initialCapacity " + initialCapacity + " < 1");
+    if (!(loadFactor > 0))
+      throw new IllegalArgumentException("loadFactor " + loadFactor + " <= 0");
+    m_size = 0;
+    m_loadFactor = loadFactor;
+    m_growthFactor = DEFAULT_GROWTH_FACTOR;
+    m_memory = memory;
+    m_formatter = new DefaultFormatter();
+    m_keys = new long[initialCapacity];
+    m_records = new int[initialCapacity];
+    Arrays.fill(m_records, -1);
+    m_threshold = threshold(initialCapacity);
+  }
+
+  @Override
+  public int size() {
+    return m_size;
+  }
+
+  @Override
+  public int getCapacity() {
+    return m_keys.length;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  @Override
+  public boolean containsKey(long key) {
+    return findRecord(key) != -1;
+  }
+
+  @Override
+  public int createRecord(long key, int size) {
+    int slot = slot(key);
+    if (slot >= 0) {
+      // key already exists, reuse the space - resizing as needed
+      int pointer = m_memory.realloc(m_records[slot], recordSize(size));
+      m_memory.initialize(pointer);
+      m_records[slot] = pointer;
+      return pointer;
+    }
+
+    if (size() >= m_threshold) {
+      increaseCapacity();
+      slot = slot(key);
+    }
+
+    int pointer = m_memory.malloc(recordSize(size));
+    slot = -slot - 1;
+    m_keys[slot] = key;
+    m_records[slot] = pointer;
+    m_size++;
+    return pointer;
+  }
+
+  @Override
+  public int createRecord(long key, IBuffer value) {
+    int ret = createRecord(key, value.size());
+    setInts(ret, 0, value.array(), 0, value.size());
+    return ret;
+  }
+
+  @Override
+  public int reallocRecord(long key, int newSize) {
+    int slot = slot(key);
+    if (slot < 0) {
+      return -1;
+    }
+    int pointer = m_memory.realloc(m_records[slot], recordSize(newSize));
+    m_records[slot] = pointer;
+    return pointer;
+  }
+
+  @Override
+  public int findRecord(long key) {
+    int slot = slot(key);
+    return slot >= 0 ? m_records[slot] : -1;
+  }
+
+  @Override
+  public boolean remove(long key) {
+    int slot = slot(key);
+    if (slot < 0) {
+      return false;
+    }
+    m_memory.free(m_records[slot]);
+    deleteSlot(slot);
+    m_size--;
+    return true;
+  }
+
+  @Override
+  public void clear() {
+    for (int i = 0; i < m_records.length; i++) {
+      if (m_records[i] != -1) {
+        m_memory.free(m_records[i]);
+        m_records[i] = -1;
+      }
+    }
+    m_size = 0;
+  }
+
+  @Override
+  public void reset() {
+    m_size = 0;
+    Arrays.fill(m_records, -1);
+  }
+
+  @Override
+  public void compact() {
+    Relocation relocation = new Relocation();
+    m_memory.compact(relocation);
+    if (relocation.size() == 0) {
+      return;
+    }
+
+    for (int i = 0; i < m_records.length; i++) {
+      if (m_records[i] != -1) {
+        m_records[i] = m_memory.relocate(m_records[i], relocation);
+      }
+    }
+  }
+
+  @Override
+  public double getLoadFactor() {
+    return m_loadFactor;
+  }
+
+  @Override
+  public void setGrowthFactor(double d) {
+    if (!(d == 0 || d > 1))
+      throw new IllegalArgumentException("Growth factor " + d + " should be > 1 or 0 to disable");
+    m_growthFactor = d;
+  }
+
+  /**
+   * Sets the policy deciding by how much to grow the table. A policy enables
+   * growth even if the growth factor is 0. If the policy refuses to grow, the
+   * table fills up to its last free slot and then throws
+   * {@link OutOfMemoryException}.
+   *
+   * @param policy growth policy, null to grow by the growth factor
+   */
+  public void setGrowthPolicy(GrowthPolicy policy) {
+    m_growthPolicy = policy;
+  }
+
+  public GrowthPolicy getGrowthPolicy() {
+    return m_growthPolicy;
+  }
+
+  @Override
+  public void visitRecords(HashMapVisitor visitor) {
+    visitor.begin(this);
+
+    int num = 0;
+    long total = size();
+    for (int i = 0; i < m_records.length; i++) {
+      if (m_records[i] != -1) {
+        visitor.visit(this, m_keys[i], m_records[i], num++, total);
+      }
+    }
+    visitor.end(this);
+  }
+
+  /**
+   * @return the slot of key, or -(the empty slot where it would be
+   *         inserted) - 1 if it is not in the map
+   */
+  private int slot(long key) {
+    int capacity = m_keys.length;
+    int i = hashCode(key, capacity);
+    while (m_records[i] != -1) {
+      if (m_keys[i] == key) {
+        return i;
+      }
+      if (++i == capacity) {
+        i = 0;
+      }
+    }
+    return -i - 1;
+  }
+
+  /**
+   * Empties the slot, moving back entries that probed past it so that every
+   * key stays reachable from its home slot
+   */
+  private void deleteSlot(int slot) {
+    int capacity = m_keys.length;
+    int j = slot;
+    while (true) {
+      if (++j == capacity) {
+        j = 0;
+      }
+      if (m_records[j] == -1) {
+        break;
+      }
+      int home = hashCode(m_keys[j], capacity);
+      // the entry at j can move to slot unless its home is cyclically in
+      // (slot, j]
+      boolean stays = slot <= j ? (slot < home && home <= j) : (slot < home || home <= j);
+      if (!stays) {
+        m_keys[slot] = m_keys[j];
+        m_records[slot] = m_records[j];
+        slot = j;
+      }
+    }
+    m_records[slot] = -1;
+  }
+
+  private void increaseCapacity() {
+    int capacity = getCapacity();
+    long newCapacity = -1;
+    if (m_growthPolicy != null) {
+      try {
+        newCapacity = Math.min(m_growthPolicy.grow(capacity, capacity + 1L, SLOT_SIZE),
+            Integer.MAX_VALUE);
+        m_growthPolicy.checkAllocation((long) SLOT_SIZE * newCapacity);
+      } catch (OutOfMemoryException e) {
+        newCapacity = -1;
+      }
+    } else if (m_growthFactor > 0) {
+      newCapacity = Math.min(Math.max(capacity + 1, (long) (capacity * m_growthFactor)),
+          Integer.MAX_VALUE);
+    }
+
+    if (newCapacity <= capacity) {
+      // fill the table, leaving one slot empty to terminate probes
+      if (size() >= capacity - 1) {
+        throw new OutOfMemoryException("Map is full (" + size() + "/" + capacity + ")");
+      }
+      m_threshold = capacity - 1;
+      return;
+    }
+
+    int intCap = (int) newCapacity;
+    long oldKeys[] = m_keys;
+    int oldRecords[] = m_records;
+    m_keys = new long[intCap];
+    m_records = new int[intCap];
+    Arrays.fill(m_records, -1);
+    for (int i = 0; i < oldRecords.length; i++) {
+      if (oldRecords[i] != -1) {
+        int slot = -slot(oldKeys[i]) - 1;
+        m_keys[slot] = oldKeys[i];
+        m_records[slot] = oldRecords[i];
+      }
+    }
+    m_threshold = threshold(intCap);
+  }
+
+  private int threshold(int capacity) {
+    return (int) Math.max(0, Math.min(capacity * m_loadFactor, capacity - 1));
+  }
+
+  // records hold at least one int so that every key has a distinct record id
+  private static int recordSize(int size) {
+    return Math.max(1, size);
+  }
+
+  private static int hashCode(long value, int capacity) {
+    // sequential keys would otherwise form long probe runs
+    value ^= value >>> 33;
+    value *= 0xff51afd7ed558ccdL;
+    value ^= value >>> 33;
+    return (int) ((value & Long.MAX_VALUE) % capacity);
+  }
+
+  @Override
+  public long computeMemoryUsage() {
+    return (long) SLOT_SIZE * m_keys.length + m_memory.computeMemoryUsage();
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder s = new StringBuilder();
+    s.append(OpenHashMap.class.getName()).append(" ").append(size()).append(" / ")
+        .append(getCapacity());
+
+    if (m_debugLevel == DebugLevel.DEBUG_CONTENT) {
+      s.append("\n");
+      visitRecords(new HashMapVisitorAdapter() {
+        @Override
+        public void visit(IHashMap map, long key, int valuePtr, long num, long total) {
+          s.append(key).append("=").append(m_formatter.format(map, valuePtr));
+          if (num + 1 < total) {
+            s.append("\n");
+          }
+        }
+      });
+    } else if (m_debugLevel == DebugLevel.DEBUG_STRUCTURE) {
+      s.append("\n");
+      for (int i = 0; i < m_records.length; i++) {
+        int n = m_records[i];
+        if (n == -1) {
+          s.append("EMPTY\n");
+        } else {
+          s.append("(#").append(n).append(",K=").append(m_keys[i]);
+          s.append(",H=").append(hashCode(m_keys[i], m_keys.length));
+          s.append(")=").append(m_formatter.format(this, n)).append("\n");
+        }
+      }
+    }
+
+    return s.toString();
+  }
+
+  @Override
+  public void setDebug(DebugLevel level) {
+    m_debugLevel = level;
+  }
+
+  @Override
+  public DebugLevel getDebug() {
+    return m_debugLevel;
+  }
+
+  @Override
+  public IMemAllocator getAllocator() {
+    return m_memory;
+  }
+
+  @Override
+  public void setFormatter(Formatter formatter) {
+    m_formatter = formatter;
+  }
+
+  @Override
+  public Formatter getFormatter() {
+    return m_formatter;
+  }
+
+  @Override
+  public short getUpperShort(int record_id, int offset) {
+    return m_memory.getUpperShort(record_id, offset);
+  }
+
+  @Override
+  public short getLowerShort(int record_id, int offset) {
+    return m_memory.getLowerShort(record_id, offset);
+  }
+
+  @Override
+  public void setUpperShort(int record_id, int offset, int s) {
+    m_memory.setUpperShort(record_id, offset, s);
+  }
+
+  @Override
+  public void setLowerShort(int record_id, int offset, int s) {
+    m_memory.setLowerShort(record_id, offset, s);
+  }
+
+  @Override
+  public float getFloat(int record_id, int offset) {
+    return m_memory.getFloat(record_id, offset);
+  }
+
+  @Override
+  public void setFloat(int record_id, int offset, float f) {
+    m_memory.setFloat(record_id, offset, f);
+  }
+
+  @Override
+  public int getInt(int record_id, int offset_in_data) {
+    return m_memory.getInt(record_id, offset_in_data);
+  }
+
+  @Override
+  public void setInt(int record_id, int offset_in_data, int data) {
+    m_memory.setInt(record_id, offset_in_data, data);
+  }
+
+  @Override
+  public long getLong(int record_id, int offset_in_data) {
+    return m_memory.getLong(record_id, offset_in_data);
+  }
+
+  @Override
+  public void setLong(int record_id, int offset_in_data, long data) {
+    m_memory.setLong(record_id, offset_in_data, data);
+  }
+
+  @Override
+  public double getDouble(int record_id, int offset_in_data) {
+    return m_memory.getDouble(record_id, offset_in_data);
+  }
+
+  @Override
+  public void setDouble(int record_id, int offset_in_data, double data) {
+    m_memory.setDouble(record_id, offset_in_data, data);
+  }
+
+  @Override
+  public void setInts(int record_id, int dst_offset_in_record, int[] src_data, int src_pos,
+      int length) {
+    m_memory.setInts(record_id, dst_offset_in_record, src_data, src_pos, length);
+  }
+
+  @Override
+  public void getInts(int record_id, int src_offset_in_record, int[] dst_data, int dst_pos,
+      int length) {
+    m_memory.getInts(record_id, src_offset_in_record, dst_data, dst_pos, length);
+  }
+
+  @Override
+  public void setChars(int record_id, int dst_offset, char[] src_data, int src_pos, int num_chars) {
+    m_memory.setChars(record_id, dst_offset, src_data, src_pos, num_chars);
+  }
+
+  @Override
+  public void getChars(int record_id, int src_offset, char[] dst_data, int dst_pos, int num_chars) {
+    m_memory.getChars(record_id, src_offset, dst_data, dst_pos, num_chars);
+  }
+
+  @Override
+  public byte getByte(int record_id, int byte_offset) {
+    return m_memory.getByte(record_id, byte_offset);
+  }
+
+  @Override
+  public void setByte(int record_id, int byte_offset, int b) {
+    m_memory.setByte(record_id, byte_offset, b);
+  }
+
+  @Override
+  public void setBytes(int record_id, int dst_offset, byte[] src_data, int src_pos, int num_bytes) {
+    m_memory.setBytes(record_id, dst_offset, src_data, src_pos, num_bytes);
+  }
+
+  @Override
+  public void getBytes(int record_id, int src_offset, byte[] dst_data, int dst_pos, int num_bytes) {
+    m_memory.getBytes(record_id, src_offset, dst_data, dst_pos, num_bytes);
+  }
+
+  @Override
+  public void getBuffer(int record_id, int src_offset_in_record, IBuffer dst, int length) {
+    m_memory.getBuffer(record_id, src_offset_in_record, dst, length);
+  }
+
+  @Override
+  public int maximumCapacityFor(int record_id) {
+    return m_memory.maximumCapacityFor(record_id);
+  }
+}
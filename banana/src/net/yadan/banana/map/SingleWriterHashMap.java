@@ -0,0 +1,622 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.map;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.yadan.banana.memory.IBuffer;
+import net.yadan.banana.memory.IMemAllocator;
+
+/**
+ * A {@link HashMap} updated by a single writer thread and read by any number
+ * of reader threads without locks.
+ *
+ * Every update runs inside a write section of a sequence lock: the version is
+ * odd while the writer modifies the map. Lookups and record getters read the
+ * version, run unsynchronized and retry if the version changed meanwhile, so
+ * they never observe a partial update. Since the version is atomic, a reader
+ * that starts after an update sees everything the update published, including
+ * a resized table. Torn reads that follow a stale pointer are retried too, and
+ * lookups give up on chains longer than the map, which only a torn read sees.
+ *
+ * Removed records, and the old copies of reallocated records, are not freed
+ * right away. They are retired with the current epoch and freed once no
+ * reader could still hold their record ids. Every thread other than the
+ * writer registers once with {@link #registerReader()} and must bracket each
+ * lookup, together with the getters on the record ids it found, with
+ * {@link #beginRead(int)} and {@link #endRead(int)}: a record removed while
+ * no reader is reading is freed right away and its block reused, so a getter
+ * on an unprotected record id could return the data of another key without
+ * noticing. findRecord() throws an IllegalStateException when called by such a
+ * thread outside of a read. containsKey() and size() need no read.
+ *
+ * Only the writer thread may call the update methods, compact(), clear(),
+ * reset(), visitRecords() and toString().
+ */
+public class SingleWriterHashMap extends HashMap {
+
+  public static final int DEFAULT_MAX_READERS = 64;
+
+  private static final long IDLE = Long.MAX_VALUE;
+
+  // reader pins are spread over separate cache lines
+  private static final int PIN_STRIDE = 8;
+
+  // odd while the writer updates the map
+  private final AtomicLong m_version = new AtomicLong();
+
+  // nesting of write sections, only used by the writer
+  private int m_writeDepth;
+
+  private volatile long m_epoch;
+
+  // 1 for each reader slot in use
+  private final AtomicIntegerArray m_readers;
+
+  // epoch each reader started reading at, IDLE if not reading
+  private final AtomicLongArray m_pins;
+
+  // the thread doing the updates, reads by other threads must be pinned
+  private volatile Thread m_writer;
+
+  // reader slot registered by the calling thread
+  private final ThreadLocal<Integer> m_reader = new ThreadLocal<Integer>();
+
+  private int m_retired[];
+  private long m_retiredEpochs[];
+  private int m_numRetired;
+
+  public SingleWriterHashMap(int maxBlocks, int blockSize, double growthFactor, double loadFactor) {
+    this(maxBlocks, blockSize, growthFactor, loadFactor, DEFAULT_MAX_READERS);
+  }
+
+  public SingleWriterHashMap(int maxBlocks, int blockSize, double growthFactor,
+      double loadFactor, int maxReaders) {
+    super(maxBlocks, blockSize, growthFactor, loadFactor);
+    m_readers = new AtomicIntegerArray(maxReaders);
+    m_pins = createPins(maxReaders);
+    m_retired = new int[16];
+    m_retiredEpochs = new long[16];
+  }
+
+  public SingleWriterHashMap(IMemAllocator memory, int initialCapacity, double loadFactor) {
+    this(memory, initialCapacity, loadFactor, DEFAULT_MAX_READERS);
+  }
+
+  public SingleWriterHashMap(IMemAllocator memory, int initialCapacity, double loadFactor,
+      int maxReaders) {
+    super(memory, initialCapacity, loadFactor);
+    m_readers = new AtomicIntegerArray(maxReaders);
+    m_pins = createPins(maxReaders);
+    m_retired = new int[16];
+    m_retiredEpochs = new long[16];
+  }
+
+  private static AtomicLongArray createPins(int maxReaders) {
+    AtomicLongArray pins = new AtomicLongArray(maxReaders * PIN_STRIDE);
+    for (int i = 0; i < maxReaders; i++) {
+      pins.set(i * PIN_STRIDE, IDLE);
+    }
+    return pins;
+  }
+
+  /**
+   * @return a reader slot for {@link #beginRead(int)} and
+   *         {@link #endRead(int)}, owned by the calling thread until
+   *         {@link #unregisterReader(int)}
+   * @throws IllegalStateException if all the reader slots are in use
+   */
+  public int registerReader() {
+    for (int i = 0; i < m_readers.length(); i++) {
+      if (m_readers.compareAndSet(i, 0, 1)) {
+        m_reader.set(i);
+        return i;
+      }
+    }
+    throw new IllegalStateException("All " + m_readers.length() + " reader slots are in use");
+  }
+
+  public void unregisterReader(int reader) {
+    m_pins.set(reader * PIN_STRIDE, IDLE);
+    m_readers.set(reader, 0);
+    m_reader.remove();
+  }
+
+  /**
+   * Starts a read. Records found until the matching {@link #endRead(int)} are
+   * not freed even if the writer removes them.
+   */
+  public void beginRead(int reader) {
+    m_pins.set(reader * PIN_STRIDE, m_epoch);
+  }
+
+  public void endRead(int reader) {
+    m_pins.set(reader * PIN_STRIDE, IDLE);
+  }
+
+  /**
+   * Frees the retired records no reader can hold anymore. Called by the writer
+   * after each update, and can be called explicitly once readers finished.
+   */
+  public void reclaim() {
+    beginWrite();
+    endWrite();
+  }
+
+  /**
+   * @return number of removed records waiting to be freed
+   */
+  public int retiredRecords() {
+    return m_numRetired;
+  }
+
+  private void beginWrite() {
+    if (m_writeDepth++ == 0) {
+      Thread current = Thread.currentThread();
+      if (m_writer != current) {
+        m_writer = current;
+      }
+      // the atomic increment keeps the updates from moving before it
+      m_version.incrementAndGet();
+    }
+  }
+
+  private void endWrite() {
+    if (--m_writeDepth == 0) {
+      if (m_numRetired > 0) {
+        freeRetired();
+      }
+      m_version.set(m_version.get() + 1);
+    }
+  }
+
+  private void freeRetired() {
+    long oldest = IDLE;
+    for (int i = 0; i < m_readers.length(); i++) {
+      oldest = Math.min(oldest, m_pins.get(i * PIN_STRIDE));
+    }
+    IMemAllocator memory = getAllocator();
+    int n = 0;
+    while (n < m_numRetired && m_retiredEpochs[n] < oldest) {
+      memory.free(m_retired[n]);
+      n++;
+    }
+    if (n > 0) {
+      m_numRetired -= n;
+      System.arraycopy(m_retired, n, m_retired, 0, m_numRetired);
+      System.arraycopy(m_retiredEpochs, n, m_retiredEpochs, 0, m_numRetired);
+    }
+  }
+
+  private void retire(int pointer) {
+    if (m_numRetired == m_retired.length) {
+      int retired[] = new int[m_retired.length * 2];
+      long epochs[] = new long[retired.length];
+      System.arraycopy(m_retired, 0, retired, 0, m_numRetired);
+      System.arraycopy(m_retiredEpochs, 0, epochs, 0, m_numRetired);
+      m_retired = retired;
+      m_retiredEpochs = epochs;
+    }
+    m_retired[m_numRetired] = pointer;
+    m_retiredEpochs[m_numRetired] = m_epoch;
+    m_numRetired++;
+    // readers starting from now on can not reach the retired record
+    m_epoch = m_epoch + 1;
+  }
+
+  @Override
+  protected void freeMemory(int pointer) {
+    retire(pointer);
+  }
+
+  @Override
+  protected int reallocMemory(int pointer, int size) {
+    IMemAllocator memory = getAllocator();
+    int capacity = memory.maximumCapacityFor(pointer);
+    if (size == capacity) {
+      return pointer;
+    }
+    // readers may still read the old copy
+    int newPointer = memory.malloc(size);
+    memory.memCopy(pointer, 0, newPointer, 0, Math.min(size, capacity));
+    retire(pointer);
+    return newPointer;
+  }
+
+  /**
+   * @return the current version, once the writer is out of its write section
+   */
+  private long readBegin() {
+    long version = m_version.get();
+    while ((version & 1) != 0) {
+      Thread.yield();
+      version = m_version.get();
+    }
+    return version;
+  }
+
+  /**
+   * @return true if the map was not updated since readBegin() returned version
+   */
+  private boolean readValidate(long version) {
+    // compareAndSet is a volatile write as well as a read, so the unsynchronized
+    // reads before it can not be reordered after it. A volatile read would only
+    // order the reads that follow it.
+    return m_version.compareAndSet(version, version);
+  }
+
+  @Override
+  public int createRecord(long key, int size) {
+    beginWrite();
+    try {
+      return super.createRecord(key, size);
+    } finally {
+      endWrite();
+    }
+  }
+
+  @Override
+  public int createRecord(long key, IBuffer value) {
+    beginWrite();
+    try {
+      return super.createRecord(key, value);
+    } finally {
+      endWrite();
+    }
+  }
+
+  @Override
+  public int reallocRecord(long key, int newSize) {
+    beginWrite();
+    try {
+      return super.reallocRecord(key, newSize);
+    } finally {
+      endWrite();
+    }
+  }
+
+  @Override
+  public boolean remove(long key) {
+    beginWrite();
+    try {
+      return super.remove(key);
+    } finally {
+      endWrite();
+    }
+  }
+
+  @Override
+  public void clear() {
+    beginWrite();
+    try {
+      super.clear();
+    } finally {
+      endWrite();
+    }
+  }
+
+  /**
+   * Drops the retired records together with the map records.
+   */
+  @Override
+  public void reset() {
+    beginWrite();
+    try {
+      m_numRetired = 0;
+      super.reset();
+    } finally {
+      endWrite();
+    }
+  }
+
+  /**
+   * Frees the retired records and compacts the map. Record ids are invalid
+   * after compaction, so no reader may be reading.
+   */
+  @Override
+  public void compact() {
+    beginWrite();
+    try {
+      IMemAllocator memory = getAllocator();
+      for (int i = 0; i < m_numRetired; i++) {
+        memory.free(m_retired[i]);
+      }
+      m_numRetired = 0;
+      super.compact();
+    } finally {
+      endWrite();
+    }
+  }
+
+  /**
+   * @throws IllegalStateException if a thread other than the writer looks up
+   *           a record outside of {@link #beginRead(int)} and
+   *           {@link #endRead(int)}
+   */
+  @Override
+  public int findRecord(long key) {
+    Thread writer = m_writer;
+    if (writer != null && writer != Thread.currentThread()) {
+      Integer reader = m_reader.get();
+      if (reader == null || m_pins.get(reader * PIN_STRIDE) == IDLE) {
+        throw new IllegalStateException("Records can only be looked up between beginRead()"
+            + " and endRead() by threads other than the writer");
+      }
+    }
+    return lookup(key);
+  }
+
+  @Override
+  public boolean containsKey(long key) {
+    return lookup(key) != -1;
+  }
+
+  private int lookup(long key) {
+    while (true) {
+      long version = readBegin();
+      try {
+        // a torn chain may form a cycle, no consistent chain is longer than
+        // the map
+        int record = super.findRecord(key, super.size() + 1);
+        if (readValidate(version)) {
+          return record;
+        }
+      } catch (RuntimeException e) {
+        if (readValidate(version)) {
+          throw e;
+        }
+      } catch (AssertionError e) {
+        if (readValidate(version)) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  /**
+   * Makes the updates completed so far visible to the calling thread. Unlike
+   * readBegin() it does not wait for the writer, which calls size() inside its
+   * write sections.
+   */
+  private long readSync() {
+    return m_version.get();
+  }
+
+  @Override
+  public int size() {
+    readSync();
+    return super.size();
+  }
+
+  @Override
+  public short getLowerShort(int record_id, int offset) {
+    long version;
+    short value;
+    do {
+      version = readBegin();
+      value = super.getLowerShort(record_id, offset);
+    } while (!readValidate(version));
+    return value;
+  }
+
+  @Override
+  public short getUpperShort(int record_id, int offset) {
+    long version;
+    short value;
+    do {
+      version = readBegin();
+      value = super.getUpperShort(record_id, offset);
+    } while (!readValidate(version));
+    return value;
+  }
+
+  @Override
+  public float getFloat(int record_id, int offset) {
+    long version;
+    float value;
+    do {
+      version = readBegin();
+      value = super.getFloat(record_id, offset);
+    } while (!readValidate(version));
+    return value;
+  }
+
+  @Override
+  public int getInt(int record_id, int offset_in_data) {
+    long version;
+    int value;
+    do {
+      version = readBegin();
+      value = super.getInt(record_id, offset_in_data);
+    } while (!readValidate(version));
+    return value;
+  }
+
+  @Override
+  public long getLong(int record_id, int offset_in_data) {
+    long version;
+    long value;
+    do {
+      version = readBegin();
+      value = super.getLong(record_id, offset_in_data);
+    } while (!readValidate(version));
+    return value;
+  }
+
+  @Override
+  public double getDouble(int record_id, int offset_in_data) {
+    long version;
+    double value;
+    do {
+      version = readBegin();
+      value = super.getDouble(record_id, offset_in_data);
+    } while (!readValidate(version));
+    return value;
+  }
+
+  @Override
+  public byte getByte(int record_id, int byte_offset) {
+    long version;
+    byte value;
+    do {
+      version = readBegin();
+      value = super.getByte(record_id, byte_offset);
+    } while (!readValidate(version));
+    return value;
+  }
+
+  @Override
+  public void getInts(int record_id, int src_offset_in_record, int[] dst_data, int dst_pos,
+      int length) {
+    long version;
+    do {
+      version = readBegin();
+      super.getInts(record_id, src_offset_in_record, dst_data, dst_pos, length);
+    } while (!readValidate(version));
+  }
+
+  @Override
+  public void getChars(int record_id, int src_offset, char[] dst_data, int dst_pos, int num_chars) {
+    long version;
+    do {
+      version = readBegin();
+      super.getChars(record_id, src_offset, dst_data, dst_pos, num_chars);
+    } while (!readValidate(version));
+  }
+
+  @Override
+  public void getBytes(int record_id, int src_offset, byte[] dst_data, int dst_pos, int num_bytes) {
+    long version;
+    do {
+      version = readBegin();
+      super.getBytes(record_id, src_offset, dst_data, dst_pos, num_bytes);
+    } while (!readValidate(version));
+  }
+
+  @Override
+  public void getBuffer(int record_id, int src_offset_in_record, IBuffer dst, int length) {
+    long version;
+    do {
+      version = readBegin();
+      super.getBuffer(record_id, src_offset_in_record, dst, length);
+    } while (!readValidate(version));
+  }
+
+  @Override
+  public int maximumCapacityFor(int record_id) {
+    long version;
+    int value;
+    do {
+      version = readBegin();
+      value = super.maximumCapacityFor(record_id);
+    } while (!readValidate(version));
+    return value;
+  }
+
+  @Override
+  public void setLowerShort(int record_id, int offset, int s) {
+    beginWrite();
+    try {
+      super.setLowerShort(record_id, offset, s);
+    } finally {
+      endWrite();
+    }
+  }
+
+  @Override
+  public void setUpperShort(int record_id, int offset, int s) {
+    beginWrite();
+    try {
+      super.setUpperShort(record_id, offset, s);
+    } finally {
+      endWrite();
+    }
+  }
+
+  @Override
+  public void setFloat(int record_id, int offset, float f) {
+    beginWrite();
+    try {
+      super.setFloat(record_id, offset, f);
+    } finally {
+      endWrite();
+    }
+  }
+
+  @Override
+  public void setInt(int record_id, int offset_in_data, int data) {
+    beginWrite();
+    try {
+      super.setInt(record_id, offset_in_data, data);
+    } finally {
+      endWrite();
+    }
+  }
+
+  @Override
+  public void setLong(int record_id, int offset_in_data, long data) {
+    beginWrite();
+    try {
+      super.setLong(record_id, offset_in_data, data);
+    } finally {
+      endWrite();
+    }
+  }
+
+  @Override
+  public void setDouble(int record_id, int offset_in_data, double data) {
+    beginWrite();
+    try {
+      super.setDouble(record_id, offset_in_data, data);
+    } finally {
+      endWrite();
+    }
+  }
+
+  @Override
+  public void setByte(int record_id, int byte_offset, int b) {
+    beginWrite();
+    try {
+      super.setByte(record_id, byte_offset, b);
+    } finally {
+      endWrite();
+    }
+  }
+
+  @Override
+  public void setInts(int record_id, int dst_offset_in_record, int[] src_data, int src_pos,
+      int length) {
+    beginWrite();
+    try {
+      super.setInts(record_id, dst_offset_in_record, src_data, src_pos, length);
+    } finally {
+      endWrite();
+    }
+  }
+
+  @Override
+  public void setChars(int record_id, int dst_offset, char[] src_data, int src_pos, int num_chars) {
+    beginWrite();
+    try {
+      super.setChars(record_id, dst_offset, src_data, src_pos, num_chars);
+    } finally {
+      endWrite();
+    }
+  }
+
+  @Override
+  public void setBytes(int record_id, int dst_offset, byte[] src_data, int src_pos, int num_bytes) {
+    beginWrite();
+    try {
+      super.setBytes(record_id, dst_offset, src_data, src_pos, num_bytes);
+    } finally {
+      endWrite();
+    }
+  }
+}
@@ -0,0 +1,671 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.map;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import net.yadan.banana.DebugLevel;
+import net.yadan.banana.DefaultFormatter;
+import net.yadan.banana.Formatter;
+import net.yadan.banana.map.hash.MurmurHashStrategy;
+import net.yadan.banana.memory.IBuffer;
+import net.yadan.banana.memory.IMemAllocator;
+import net.yadan.banana.memory.OutOfMemoryException;
+
+/**
+ * A thread safe long keyed map, split into a power of two number of stripes.
+ *
+ * Each stripe is an independent map with its own allocator, table and read
+ * write lock, and grows on its own. Keys are assigned to stripes by the high
+ * bits of their hash, so updates of keys in different stripes run in parallel.
+ *
+ * Record ids hold the stripe in their low bits and the (signed) record pointer
+ * of the stripe in the rest. Every record accessor takes the read lock of the
+ * stripe, so records can be read and written while other threads update the
+ * map. This relies on the accessors of the stripe allocators not modifying
+ * shared state, which holds for the allocators in this library. Writing the
+ * same record from multiple threads still requires external
+ * synchronization, and a record id is only valid until its key is removed or
+ * reallocated. For a sequence of operations on one key, hold the lock returned
+ * by {@link #getLock(long)}.
+ */
+public class StripedHashMap implements IHashMap {
+
+  private final IHashMap m_stripes[];
+
+  private final ReadWriteLock m_locks[];
+
+  private final int m_stripeBits;
+
+  private final int m_stripeMask;
+
+  private final LongHashStrategy m_hash;
+
+  private DebugLevel m_debugLevel = DebugLevel.NONE;
+
+  private Formatter m_formatter;
+
+  /**
+   * @param numStripes number of stripes, rounded up to a power of two
+   * @param maxBlocks initial number of blocks, split between the stripes
+   * @param blockSize record size in ints
+   * @param growthFactor growth factor of the stripes
+   * @param loadFactor load factor of the stripes
+   */
+  public StripedHashMap(int numStripes, int maxBlocks, int blockSize, double growthFactor,
+      double loadFactor) {
+    this(createStripes(numStripes, maxBlocks, blockSize, growthFactor, loadFactor));
+  }
+
+  /**
+   * @param stripes maps holding the stripes, a power of two of them. They must
+   *          not share allocators and must not be used directly afterwards
+   */
+  public StripedHashMap(IHashMap stripes[]) {
+    if (stripes.length == 0 || Integer.bitCount(stripes.length) != 1)
+      throw new IllegalArgumentException("Number of stripes " + stripes.length
+          + " is not a power of two");
+    m_stripes = stripes;
+    m_locks = new ReadWriteLock[stripes.length];
+    for (int i = 0; i < m_locks.length; i++) {
+      m_locks[i] = new ReentrantReadWriteLock();
+    }
+    m_stripeBits = Integer.numberOfTrailingZeros(stripes.length);
+    m_stripeMask = stripes.length - 1;
+    m_hash = new MurmurHashStrategy();
+    m_formatter = new DefaultFormatter();
+  }
+
+  private static IHashMap[] createStripes(int numStripes, int maxBlocks, int blockSize,
+      double growthFactor, double loadFactor) {
+    if (numStripes <= 0)
+      throw new IllegalArgumentException("numStripes " + numStripes + " <= 0");
+    int num = numStripes == 1 ? 1 : Integer.highestOneBit(numStripes - 1) << 1;
+    IHashMap stripes[] = new IHashMap[num];
+    for (int i = 0; i < num; i++) {
+      stripes[i] = new HashMap(Math.max(1, maxBlocks / num), blockSize, growthFactor, loadFactor);
+    }
+    return stripes;
+  }
+
+  public int getNumStripes() {
+    return m_stripes.length;
+  }
+
+  /**
+   * @return the stripe holding key
+   */
+  public int getStripe(long key) {
+    return m_stripeBits == 0 ? 0 : m_hash.hash(key) >>> (32 - m_stripeBits);
+  }
+
+  /**
+   * @return the lock of the stripe holding key. the read lock allows finding
+   *         and accessing the records of the stripe, the write lock also
+   *         allows creating and removing them
+   */
+  public ReadWriteLock getLock(long key) {
+    return m_locks[getStripe(key)];
+  }
+
+  /**
+   * @return the allocator of a stripe
+   */
+  public IMemAllocator getAllocator(int stripe) {
+    return m_stripes[stripe].getAllocator();
+  }
+
+  /**
+   * Not supported, each stripe has its own allocator.
+   *
+   * @see #getAllocator(int)
+   */
+  @Override
+  public IMemAllocator getAllocator() {
+    throw new UnsupportedOperationException("StripedHashMap has an allocator per stripe");
+  }
+
+  private int recordId(int stripe, int pointer) {
+    if (pointer == -1) {
+      return -1;
+    }
+    int record_id = (pointer << m_stripeBits) | stripe;
+    if (pointerOf(record_id) != pointer) {
+      throw new OutOfMemoryException("Record pointer " + pointer + " of stripe " + stripe
+          + " does not fit in a record id, use fewer stripes");
+    }
+    return record_id;
+  }
+
+  private int stripeOf(int record_id) {
+    return record_id & m_stripeMask;
+  }
+
+  private int pointerOf(int record_id) {
+    return record_id >> m_stripeBits;
+  }
+
+  @Override
+  public int createRecord(long key, int size) {
+    int stripe = getStripe(key);
+    Lock lock = m_locks[stripe].writeLock();
+    lock.lock();
+    try {
+      return recordId(stripe, m_stripes[stripe].createRecord(key, size));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int createRecord(long key, IBuffer value) {
+    int stripe = getStripe(key);
+    Lock lock = m_locks[stripe].writeLock();
+    lock.lock();
+    try {
+      return recordId(stripe, m_stripes[stripe].createRecord(key, value));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int reallocRecord(long key, int newSize) {
+    int stripe = getStripe(key);
+    Lock lock = m_locks[stripe].writeLock();
+    lock.lock();
+    try {
+      return recordId(stripe, m_stripes[stripe].reallocRecord(key, newSize));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean containsKey(long key) {
+    return findRecord(key) != -1;
+  }
+
+  @Override
+  public int findRecord(long key) {
+    int stripe = getStripe(key);
+    Lock lock = m_locks[stripe].readLock();
+    lock.lock();
+    try {
+      return recordId(stripe, m_stripes[stripe].findRecord(key));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean remove(long key) {
+    int stripe = getStripe(key);
+    Lock lock = m_locks[stripe].writeLock();
+    lock.lock();
+    try {
+      return m_stripes[stripe].remove(key);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  @Override
+  public int size() {
+    long size = 0;
+    for (int i = 0; i < m_stripes.length; i++) {
+      Lock lock = m_locks[i].readLock();
+      lock.lock();
+      try {
+        size += m_stripes[i].size();
+      } finally {
+        lock.unlock();
+      }
+    }
+    return (int) Math.min(size, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public int getCapacity() {
+    long capacity = 0;
+    for (int i = 0; i < m_stripes.length; i++) {
+      Lock lock = m_locks[i].readLock();
+      lock.lock();
+      try {
+        capacity += m_stripes[i].getCapacity();
+      } finally {
+        lock.unlock();
+      }
+    }
+    return (int) Math.min(capacity, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public double getLoadFactor() {
+    return m_stripes[0].getLoadFactor();
+  }
+
+  @Override
+  public void setGrowthFactor(double d) {
+    for (int i = 0; i < m_stripes.length; i++) {
+      Lock lock = m_locks[i].writeLock();
+      lock.lock();
+      try {
+        m_stripes[i].setGrowthFactor(d);
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Clears the stripes one at a time, records created concurrently in stripes
+   * that were already cleared are kept.
+   */
+  @Override
+  public void clear() {
+    for (int i = 0; i < m_stripes.length; i++) {
+      Lock lock = m_locks[i].writeLock();
+      lock.lock();
+      try {
+        m_stripes[i].clear();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  @Override
+  public void reset() {
+    for (int i = 0; i < m_stripes.length; i++) {
+      Lock lock = m_locks[i].writeLock();
+      lock.lock();
+      try {
+        m_stripes[i].reset();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  @Override
+  public void compact() {
+    for (int i = 0; i < m_stripes.length; i++) {
+      Lock lock = m_locks[i].writeLock();
+      lock.lock();
+      try {
+        m_stripes[i].compact();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  @Override
+  public long computeMemoryUsage() {
+    long usage = 0;
+    for (int i = 0; i < m_stripes.length; i++) {
+      Lock lock = m_locks[i].readLock();
+      lock.lock();
+      try {
+        usage += m_stripes[i].computeMemoryUsage();
+      } finally {
+        lock.unlock();
+      }
+    }
+    return usage;
+  }
+
+  /**
+   * Visits the stripes one at a time, holding the read lock of the visited
+   * stripe. The visitor must not update the map.
+   */
+  @Override
+  public void visitRecords(final HashMapVisitor visitor) {
+    visitor.begin(this);
+    final long total = size();
+    final long num[] = new long[1];
+    for (int i = 0; i < m_stripes.length; i++) {
+      final int stripe = i;
+      Lock lock = m_locks[i].readLock();
+      lock.lock();
+      try {
+        m_stripes[i].visitRecords(new HashMapVisitorAdapter() {
+          @Override
+          public void visit(IHashMap map, long key, int record_id, long n, long t) {
+            visitor.visit(StripedHashMap.this, key, recordId(stripe, record_id), num[0]++, total);
+          }
+        });
+      } finally {
+        lock.unlock();
+      }
+    }
+    visitor.end(this);
+  }
+
+  @Override
+  public short getLowerShort(int record_id, int offset) {
+    int stripe = stripeOf(record_id);
+    Lock lock = m_locks[stripe].readLock();
+    lock.lock();
+    try {
+      return m_stripes[stripe].getLowerShort(pointerOf(record_id), offset);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void setLowerShort(int record_id, int offset, int s) {
+    int stripe = stripeOf(record_id);
+    Lock lock = m_locks[stripe].readLock();
+    lock.lock();
+    try {
+      m_stripes[stripe].setLowerShort(pointerOf(record_id), offset, s);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public short getUpperShort(int record_id, int offset) {
+    int stripe = stripeOf(record_id);
+    Lock lock = m_locks[stripe].readLock();
+    lock.lock();
+    try {
+      return m_stripes[stripe].getUpperShort(pointerOf(record_id), offset);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void setUpperShort(int record_id, int offset, int s) {
+    int stripe = stripeOf(record_id);
+    Lock lock = m_locks[stripe].readLock();
+    lock.lock();
+    try {
+      m_stripes[stripe].setUpperShort(pointerOf(record_id), offset, s);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public float getFloat(int record_id, int offset) {
+    int stripe = stripeOf(record_id);
+    Lock lock = m_locks[stripe].readLock();
+    lock.lock();
+    try {
+      return m_stripes[stripe].getFloat(pointerOf(record_id), offset);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void setFloat(int record_id, int offset, float f) {
+    int stripe = stripeOf(record_id);
+    Lock lock = m_locks[stripe].readLock();
+    lock.lock();
+    try {
+      m_stripes[stripe].setFloat(pointerOf(record_id), offset, f);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int getInt(int record_id, int offset_in_data) {
+    int stripe = stripeOf(record_id);
+    Lock lock = m_locks[stripe].readLock();
+    lock.lock();
+    try {
+      return m_stripes[stripe].getInt(pointerOf(record_id), offset_in_data);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void setInt(int record_id, int offset_in_data, int data) {
+    int stripe = stripeOf(record_id);
+    Lock lock = m_locks[stripe].readLock();
+    lock.lock();
+    try {
+      m_stripes[stripe].setInt(pointerOf(record_id), offset_in_data, data);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public long getLong(int record_id, int offset_in_data) {
+    int stripe = stripeOf(record_id);
+    Lock lock = m_locks[stripe].readLock();
+    lock.lock();
+    try {
+      return m_stripes[stripe].getLong(pointerOf(record_id), offset_in_data);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void setLong(int record_id, int offset_in_data, long data) {
+    int stripe = stripeOf(record_id);
+    Lock lock = m_locks[stripe].readLock();
+    lock.lock();
+    try {
+      m_stripes[stripe].setLong(pointerOf(record_id), offset_in_data, data);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public double getDouble(int record_id, int offset_in_data) {
+    int stripe = stripeOf(record_id);
+    Lock lock = m_locks[stripe].readLock();
+    lock.lock();
+    try {
+      return m_stripes[stripe].getDouble(pointerOf(record_id), offset_in_data);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void setDouble(int record_id, int offset_in_data, double data) {
+    int stripe = stripeOf(record_id);
+    Lock lock = m_locks[stripe].readLock();
+    lock.lock();
+    try {
+      m_stripes[stripe].setDouble(pointerOf(record_id), offset_in_data, data);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void setInts(int record_id, int dst_offset_in_record, int[] src_data, int src_pos,
+      int length) {
+    int stripe = stripeOf(record_id);
+    Lock lock = m_locks[stripe].readLock();
+    lock.lock();
+    try {
+      m_stripes[stripe].setInts(pointerOf(record_id), dst_offset_in_record, src_data, src_pos,
+          length);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void getInts(int record_id, int src_offset_in_record, int[] dst_data, int dst_pos,
+      int length) {
+    int stripe = stripeOf(record_id);
+    Lock lock = m_locks[stripe].readLock();
+    lock.lock();
+    try {
+      m_stripes[stripe].getInts(pointerOf(record_id), src_offset_in_record, dst_data, dst_pos,
+          length);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void setChars(int record_id, int dst_offset, char[] src_data, int src_pos, int num_chars) {
+    int stripe = stripeOf(record_id);
+    Lock lock = m_locks[stripe].readLock();
+    lock.lock();
+    try {
+      m_stripes[stripe].setChars(pointerOf(record_id), dst_offset, src_data, src_pos, num_chars);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void getChars(int record_id, int src_offset, char[] dst_data, int dst_pos, int num_chars) {
+    int stripe = stripeOf(record_id);
+    Lock lock = m_locks[stripe].readLock();
+    lock.lock();
+    try {
+      m_stripes[stripe].getChars(pointerOf(record_id), src_offset, dst_data, dst_pos, num_chars);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public byte getByte(int record_id, int byte_offset) {
+    int stripe = stripeOf(record_id);
+    Lock lock = m_locks[stripe].readLock();
+    lock.lock();
+    try {
+      return m_stripes[stripe].getByte(pointerOf(record_id), byte_offset);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void setByte(int record_id, int byte_offset, int b) {
+    int stripe = stripeOf(record_id);
+    Lock lock = m_locks[stripe].readLock();
+    lock.lock();
+    try {
+      m_stripes[stripe].setByte(pointerOf(record_id), byte_offset, b);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void setBytes(int record_id, int dst_offset, byte[] src_data, int src_pos, int num_bytes) {
+    int stripe = stripeOf(record_id);
+    Lock lock = m_locks[stripe].readLock();
+    lock.lock();
+    try {
+      m_stripes[stripe].setBytes(pointerOf(record_id), dst_offset, src_data, src_pos, num_bytes);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void getBytes(int record_id, int src_offset, byte[] dst_data, int dst_pos, int num_bytes) {
+    int stripe = stripeOf(record_id);
+    Lock lock = m_locks[stripe].readLock();
+    lock.lock();
+    try {
+      m_stripes[stripe].getBytes(pointerOf(record_id), src_offset, dst_data, dst_pos, num_bytes);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void getBuffer(int record_id, int src_offset_in_record, IBuffer dst, int length) {
+    int stripe = stripeOf(record_id);
+    Lock lock = m_locks[stripe].readLock();
+    lock.lock();
+    try {
+      m_stripes[stripe].getBuffer(pointerOf(record_id), src_offset_in_record, dst, length);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int maximumCapacityFor(int record_id) {
+    int stripe = stripeOf(record_id);
+    Lock lock = m_locks[stripe].readLock();
+    lock.lock();
+    try {
+      return m_stripes[stripe].maximumCapacityFor(pointerOf(record_id));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void setDebug(DebugLevel level) {
+    m_debugLevel = level;
+    for (int i = 0; i < m_stripes.length; i++) {
+      m_stripes[i].setDebug(level);
+    }
+  }
+
+  @Override
+  public DebugLevel getDebug() {
+    return m_debugLevel;
+  }
+
+  @Override
+  public void setFormatter(Formatter formatter) {
+    m_formatter = formatter;
+    for (int i = 0; i < m_stripes.length; i++) {
+      m_stripes[i].setFormatter(formatter);
+    }
+  }
+
+  @Override
+  public Formatter getFormatter() {
+    return m_formatter;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder s = new StringBuilder();
+    s.append(StripedHashMap.class.getName()).append(" ").append(size()).append(" / ")
+        .append(getCapacity()).append(", ").append(m_stripes.length).append(" stripes");
+
+    if (m_debugLevel != DebugLevel.NONE) {
+      for (int i = 0; i < m_stripes.length; i++) {
+        Lock lock = m_locks[i].readLock();
+        lock.lock();
+        try {
+          s.append("\nStripe ").append(i).append(": ").append(m_stripes[i]);
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+
+    return s.toString();
+  }
+}
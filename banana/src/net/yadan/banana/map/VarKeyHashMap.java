@@ -6,10 +6,14 @@
  */
 package net.yadan.banana.map;
 
+import java.util.Arrays;
+
 import net.yadan.banana.DebugLevel;
 import net.yadan.banana.DefaultFormatter;
 import net.yadan.banana.Formatter;
+import net.yadan.banana.map.hash.MurmurHashStrategy;
 import net.yadan.banana.memory.Buffer;
+import net.yadan.banana.memory.GrowthPolicy;
 import net.yadan.banana.memory.IBuffer;
 import net.yadan.banana.memory.IMemAllocator;
 import net.yadan.banana.memory.OutOfMemoryException;
@@ -34,14 +38,48 @@ public class VarKeyHashMap implements IVarKeyHashMap {
   private static final int KEY_SIZE_OFFSET = 0;
   private static final int KEY_DATA_OFFSET = 1;
 
+  // layout of the record written by store()
+  private static final int STATE_SIZE_OFFSET = 0;
+  private static final int STATE_CAPACITY_OFFSET = 1;
+  private static final int STATE_POWER_OF_TWO_OFFSET = 2;
+  private static final int STATE_HASH_PROBE_OFFSET = 3;
+  private static final int STATE_LOAD_FACTOR_OFFSET = 4;
+  private static final int STATE_TABLE_OFFSET = 6;
+
+  // hashed into the stored state to detect a different hash strategy
+  private static final long HASH_PROBE = 0x9e3779b97f4a7c15L;
+
   private final double m_loadFactor;
   private double m_growthFactor;
 
+  // overrides m_growthFactor if set
+  private GrowthPolicy m_growthPolicy;
+
   /**
    * Holds an array of pointers into m_memory
    */
   private int m_table[];
 
+  /**
+   * While the map is resized incrementally, the table the records are moved
+   * from. null otherwise
+   */
+  private int m_oldTable[];
+
+  // buckets of m_oldTable below this one were moved to m_table
+  private int m_migrated;
+
+  // number of old buckets moved by each update, 0 to rehash in one go
+  private int m_resizeStep;
+
+  // holds the keys read back while rehashing
+  private IBuffer m_rehashBuffer = new Buffer(10, 2);
+
+  private BufferHashStrategy m_hashStrategy;
+
+  // if true the capacity is a power of two and buckets are picked by masking
+  private boolean m_powerOfTwo;
+
   private int m_size;
 
   /**
@@ -80,6 +118,51 @@ public class VarKeyHashMap implements IVarKeyHashMap {
     }
 
     m_formatter = new DefaultFormatter();
+    m_hashStrategy = new MurmurHashStrategy();
+  }
+
+  /**
+   * Re-opens a map saved with {@link #store()}, typically after re-mapping the
+   * files of {@link net.yadan.banana.memory.block.MappedBlockAllocator}s. The
+   * records and keys are used where they are, only the bucket table is read
+   * back.
+   *
+   * @param memory the allocator the map records were stored in
+   * @param keysMemory the allocator the keys were stored in
+   * @param state_pointer pointer returned by store(), freed by this constructor
+   */
+  public VarKeyHashMap(IMemAllocator memory, IMemAllocator keysMemory, int state_pointer) {
+    this(memory, keysMemory, state_pointer, new MurmurHashStrategy());
+  }
+
+  /**
+   * Re-opens a map saved with {@link #store()} that used a custom hash strategy
+   *
+   * @param memory the allocator the map records were stored in
+   * @param keysMemory the allocator the keys were stored in
+   * @param state_pointer pointer returned by store(), freed by this constructor
+   * @param hashStrategy the hash strategy the map was stored with
+   * @throws IllegalArgumentException if the map was stored with a different
+   *           hash strategy
+   */
+  public VarKeyHashMap(IMemAllocator memory, IMemAllocator keysMemory, int state_pointer,
+      BufferHashStrategy hashStrategy) {
+    this(memory, keysMemory, memory.getInt(state_pointer, STATE_CAPACITY_OFFSET), memory
+        .getDouble(state_pointer, STATE_LOAD_FACTOR_OFFSET));
+    if (memory.getInt(state_pointer, STATE_HASH_PROBE_OFFSET) != hashProbe(hashStrategy))
+      throw new IllegalArgumentException("The map was stored with a different hash strategy than "
+          + hashStrategy);
+    m_hashStrategy = hashStrategy;
+    m_powerOfTwo = memory.getInt(state_pointer, STATE_POWER_OF_TWO_OFFSET) != 0;
+    memory.getInts(state_pointer, STATE_TABLE_OFFSET, m_table, 0, m_table.length);
+    m_size = memory.getInt(state_pointer, STATE_SIZE_OFFSET);
+    memory.free(state_pointer);
+  }
+
+  private static int hashProbe(BufferHashStrategy strategy) {
+    IBuffer probe = new Buffer(2);
+    probe.appendLong(HASH_PROBE);
+    return strategy.hash(probe);
   }
 
   @Override
@@ -104,9 +187,10 @@ public class VarKeyHashMap implements IVarKeyHashMap {
 
   @Override
   public int createRecord(IBuffer key, int size) {
-    if (size() >= m_threshold && m_growthFactor > 0) {
+    if (size() >= m_threshold && (m_growthFactor > 0 || m_growthPolicy != null)) {
       increaseCapacity();
     }
+    resizeStep(key);
 
     int listNum = hashCode(key, m_table.length);
     int pointer = m_table[listNum];
@@ -164,9 +248,17 @@ public class VarKeyHashMap implements IVarKeyHashMap {
 
   @Override
   public int findRecord(IBuffer key) {
-    int listNum = hashCode(key, m_table.length);
+    int n = findRecord(m_table, key);
+    if (n == -1 && m_oldTable != null) {
+      n = findRecord(m_oldTable, key);
+    }
+    return n;
+  }
 
-    int n = m_table[listNum];
+  private int findRecord(int table[], IBuffer key) {
+    int listNum = hashCode(key, table.length);
+
+    int n = table[listNum];
     while (n != -1) {
       int keyPtr = m_valuesMemory.getInt(n, KEY_OFFSET);
       int keySize = m_keysMemory.getInt(keyPtr, KEY_SIZE_OFFSET);
@@ -181,6 +273,7 @@ public class VarKeyHashMap implements IVarKeyHashMap {
 
   @Override
   public int reallocRecord(IBuffer key, int newSize) {
+    resizeStep(key);
     int listNum = hashCode(key, m_table.length);
     int n = m_table[listNum];
     int prev = -1;
@@ -263,6 +356,26 @@ public class VarKeyHashMap implements IVarKeyHashMap {
     m_valuesMemory.getChars(record_id, src_offset + USER_DATA_OFFSET, dst_data, dst_pos, num_chars);
   }
 
+  @Override
+  public byte getByte(int record_id, int byte_offset) {
+    return m_valuesMemory.getByte(record_id, byte_offset + (USER_DATA_OFFSET << 2));
+  }
+
+  @Override
+  public void setByte(int record_id, int byte_offset, int b) {
+    m_valuesMemory.setByte(record_id, byte_offset + (USER_DATA_OFFSET << 2), b);
+  }
+
+  @Override
+  public void setBytes(int record_id, int dst_offset, byte[] src_data, int src_pos, int num_bytes) {
+    m_valuesMemory.setBytes(record_id, dst_offset + USER_DATA_OFFSET, src_data, src_pos, num_bytes);
+  }
+
+  @Override
+  public void getBytes(int record_id, int src_offset, byte[] dst_data, int dst_pos, int num_bytes) {
+    m_valuesMemory.getBytes(record_id, src_offset + USER_DATA_OFFSET, dst_data, dst_pos, num_bytes);
+  }
+
   @Override
   public long getLong(int record_id, int offset_in_data) {
     return m_valuesMemory.getLong(record_id, offset_in_data + USER_DATA_OFFSET);
@@ -295,6 +408,7 @@ public class VarKeyHashMap implements IVarKeyHashMap {
 
   @Override
   public boolean remove(IBuffer key) {
+    resizeStep(key);
 
     int listNum = hashCode(key, m_table.length);
 
@@ -337,6 +451,14 @@ public class VarKeyHashMap implements IVarKeyHashMap {
     for (int i = 0; i < m_table.length; i++) {
       m_table[i] = -1;
     }
+    m_oldTable = null;
+  }
+
+  @Override
+  public void reset() {
+    m_size = 0;
+    Arrays.fill(m_table, -1);
+    m_oldTable = null;
   }
 
   @Override
@@ -351,29 +473,164 @@ public class VarKeyHashMap implements IVarKeyHashMap {
     m_growthFactor = d;
   }
 
+  /**
+   * Sets the policy deciding by how much to grow the table. A policy enables
+   * growth even if the growth factor is 0. If the policy refuses to grow, the
+   * table keeps its capacity and records are chained in the existing buckets.
+   *
+   * @param policy growth policy, null to grow by the growth factor
+   */
+  public void setGrowthPolicy(GrowthPolicy policy) {
+    m_growthPolicy = policy;
+  }
+
+  public GrowthPolicy getGrowthPolicy() {
+    return m_growthPolicy;
+  }
+
+  /**
+   * Enables incremental resizing, see {@link HashMap#setIncrementalResize(int)}
+   *
+   * @param step number of buckets moved by each update, 0 to rehash the whole
+   *          table at once (default)
+   */
+  public void setIncrementalResize(int step) {
+    if (step < 0)
+      throw new IllegalArgumentException("step " + step + " < 0");
+    m_resizeStep = step;
+  }
+
+  /**
+   * @return true if an incremental resize is in progress
+   */
+  public boolean isResizing() {
+    return m_oldTable != null;
+  }
+
+  /**
+   * Sets the function hashing keys into buckets. Can only be changed while the
+   * map is empty.
+   */
+  public void setHashStrategy(BufferHashStrategy strategy) {
+    if (strategy == null)
+      throw new IllegalArgumentException("null hash strategy");
+    checkEmpty();
+    m_hashStrategy = strategy;
+  }
+
+  public BufferHashStrategy getHashStrategy() {
+    return m_hashStrategy;
+  }
+
+  /**
+   * Keeps the capacity a power of two, see
+   * {@link HashMap#setPowerOfTwoCapacity(boolean)}. Can only be changed while
+   * the map is empty.
+   */
+  public void setPowerOfTwoCapacity(boolean powerOfTwo) {
+    checkEmpty();
+    m_powerOfTwo = powerOfTwo;
+    m_oldTable = null;
+    int capacity = (int) powerOfTwo(getCapacity());
+    if (capacity != m_table.length) {
+      m_table = new int[capacity];
+      Arrays.fill(m_table, -1);
+      m_threshold = (int) Math.min(getCapacity() * getLoadFactor(), Integer.MAX_VALUE);
+    }
+  }
+
+  public boolean isPowerOfTwoCapacity() {
+    return m_powerOfTwo;
+  }
+
+  /**
+   * Saves the size, settings and bucket table of the map in a record of its
+   * values allocator. With persistent allocators like
+   * {@link net.yadan.banana.memory.block.MappedBlockAllocator} for both the
+   * values and the keys, the map can then be re-opened with
+   * {@link #VarKeyHashMap(IMemAllocator, IMemAllocator, int)} after a restart,
+   * without rebuilding it. The saved state does not follow later updates, so
+   * store the map right before closing its allocators.
+   *
+   * @return pointer to the saved state
+   */
+  public int store() {
+    if (m_oldTable != null) {
+      migrate(m_oldTable.length);
+    }
+    int pointer = m_valuesMemory.malloc(STATE_TABLE_OFFSET + m_table.length);
+    m_valuesMemory.setInt(pointer, STATE_SIZE_OFFSET, m_size);
+    m_valuesMemory.setInt(pointer, STATE_CAPACITY_OFFSET, m_table.length);
+    m_valuesMemory.setInt(pointer, STATE_POWER_OF_TWO_OFFSET, m_powerOfTwo ? 1 : 0);
+    m_valuesMemory.setInt(pointer, STATE_HASH_PROBE_OFFSET, hashProbe(m_hashStrategy));
+    m_valuesMemory.setDouble(pointer, STATE_LOAD_FACTOR_OFFSET, m_loadFactor);
+    m_valuesMemory.setInts(pointer, STATE_TABLE_OFFSET, m_table, 0, m_table.length);
+    return pointer;
+  }
+
+  private void checkEmpty() {
+    if (size() != 0)
+      throw new IllegalStateException("Can only be changed while the map is empty (size "
+          + size() + ")");
+  }
+
+  private long powerOfTwo(long capacity) {
+    if (!m_powerOfTwo || capacity <= 1) {
+      return capacity;
+    }
+    return Long.highestOneBit(capacity - 1) << 1;
+  }
+
   @Override
   public void visitRecords(VarKeyHashMapVisitor visitor) {
     visitor.begin(this);
 
     int num = 0;
     long total = size();
-    for (int i = 0; i < m_table.length; i++) {
-      int n = m_table[i];
-      while (n != -1) {
-        int keyPtr = m_valuesMemory.getInt(n, KEY_OFFSET);
-        int next = m_valuesMemory.getInt(n, NEXT_OFFSET);
-        visitor.visit(this, keyPtr, n, num, total);
-        n = next;
+    for (int table[] = m_table; table != null; table = table == m_table ? m_oldTable : null) {
+      for (int i = 0; i < table.length; i++) {
+        int n = table[i];
+        while (n != -1) {
+          int keyPtr = m_valuesMemory.getInt(n, KEY_OFFSET);
+          int next = m_valuesMemory.getInt(n, NEXT_OFFSET);
+          visitor.visit(this, keyPtr, n, num, total);
+          n = next;
+        }
       }
     }
     visitor.end(this);
   }
 
   private void increaseCapacity() {
+    if (m_oldTable != null) {
+      // the previous resize is not done yet
+      migrate(m_oldTable.length);
+    }
     // long t = Sysftem.currentTimeMillis();
-    IBuffer buffer = new Buffer(10, 2);
     int capacity = getCapacity();
-    long newCapacity = Math.max(capacity + 1, (long) (capacity * m_growthFactor));
+    long newCapacity;
+    if (m_growthPolicy == null) {
+      newCapacity = powerOfTwo(Math.max(capacity + 1, (long) (capacity * m_growthFactor)));
+    } else {
+      try {
+        newCapacity = Math.min(m_growthPolicy.grow(capacity, capacity + 1L, 4), Integer.MAX_VALUE);
+        if (m_powerOfTwo) {
+          // rounding up could exceed the limits of the policy, round down
+          newCapacity = Long.highestOneBit(newCapacity);
+          if (newCapacity <= capacity) {
+            throw new OutOfMemoryException("No power of two capacity above " + capacity
+                + " is allowed by " + m_growthPolicy);
+          }
+          m_growthPolicy.grow(capacity, newCapacity, 4);
+        }
+        m_growthPolicy.checkAllocation(4L * newCapacity);
+      } catch (OutOfMemoryException e) {
+        // keep the current table and let the chains grow, try again once the
+        // map has twice as many records
+        m_threshold = (int) Math.min(2L * m_threshold + 1, Integer.MAX_VALUE);
+        return;
+      }
+    }
     if (newCapacity > Integer.MAX_VALUE) {
       throw new IllegalStateException("Attempted to resize table to " + newCapacity
           + " which is greated than Integer.MAX_VALUE");
@@ -384,35 +641,66 @@ public class VarKeyHashMap implements IVarKeyHashMap {
       newTable[i] = -1;
     }
 
-    for (int tableNum = 0; tableNum < m_table.length; tableNum++) {
-      int n = m_table[tableNum];
-      while (n != -1) {
-        int keyPtr = m_valuesMemory.getInt(n, KEY_OFFSET);
-        int keySize = m_keysMemory.getInt(keyPtr, KEY_SIZE_OFFSET);
-        buffer.ensureCapacity(keySize);
-        m_keysMemory.getInts(keyPtr, KEY_DATA_OFFSET, buffer.array(), 0, keySize);
-        buffer.setUsed(keySize);
-        int newTableNum = hashCode(buffer, intCap);
-        buffer.reset();
-
-        int next = m_valuesMemory.getInt(n, NEXT_OFFSET);
-        m_valuesMemory.setInt(n, NEXT_OFFSET, newTable[newTableNum]);
-        newTable[newTableNum] = n;
-        n = next;
-      }
-    }
-
+    m_oldTable = m_table;
+    m_migrated = 0;
     m_table = newTable;
     m_threshold = (int) Math.min(getCapacity() * getLoadFactor(), Integer.MAX_VALUE);
+    if (m_resizeStep == 0) {
+      migrate(m_oldTable.length);
+    }
     // System.out.println(String.format("Increased map capacity from %d to %d took %d ms",
     // capacity,
     // intCap, (System.currentTimeMillis() - t)));
   }
 
+  /**
+   * Moves the old bucket of key and the next step buckets to the new table, so
+   * that updates only need to look at m_table
+   */
+  private void resizeStep(IBuffer key) {
+    if (m_oldTable != null) {
+      migrateBucket(hashCode(key, m_oldTable.length));
+      migrate(m_resizeStep);
+    }
+  }
+
+  /**
+   * Moves the next buckets of the old table to the new table
+   */
+  private void migrate(int buckets) {
+    int end = (int) Math.min(m_oldTable.length, (long) m_migrated + buckets);
+    for (; m_migrated < end; m_migrated++) {
+      migrateBucket(m_migrated);
+    }
+    if (m_migrated == m_oldTable.length) {
+      m_oldTable = null;
+      m_migrated = 0;
+    }
+  }
+
+  private void migrateBucket(int bucket) {
+    IBuffer buffer = m_rehashBuffer;
+    int n = m_oldTable[bucket];
+    while (n != -1) {
+      int keyPtr = m_valuesMemory.getInt(n, KEY_OFFSET);
+      int keySize = m_keysMemory.getInt(keyPtr, KEY_SIZE_OFFSET);
+      buffer.ensureCapacity(keySize);
+      m_keysMemory.getInts(keyPtr, KEY_DATA_OFFSET, buffer.array(), 0, keySize);
+      buffer.setUsed(keySize);
+      int newTableNum = hashCode(buffer, m_table.length);
+      buffer.reset();
+
+      int next = m_valuesMemory.getInt(n, NEXT_OFFSET);
+      m_valuesMemory.setInt(n, NEXT_OFFSET, m_table[newTableNum]);
+      m_table[newTableNum] = n;
+      n = next;
+    }
+    m_oldTable[bucket] = -1;
+  }
+
   private int hashCode(IBuffer key, int listSize) {
-    int h = key.hashCode();
-    int r = h % listSize;
-    return r < 0 ? r + listSize : r;
+    int h = m_hashStrategy.hash(key);
+    return m_powerOfTwo ? h & (listSize - 1) : (h & Integer.MAX_VALUE) % listSize;
   }
 
   public static int getIntArraySize(int maxCapacity, int recordSize) {
@@ -421,7 +709,8 @@ public class VarKeyHashMap implements IVarKeyHashMap {
 
   @Override
   public long computeMemoryUsage() {
-    return 4 * m_table.length + m_keysMemory.computeMemoryUsage()
+    long tables = m_table.length + (m_oldTable != null ? m_oldTable.length : 0);
+    return 4 * tables + m_keysMemory.computeMemoryUsage()
         + m_valuesMemory.computeMemoryUsage();
   }
 
@@ -462,41 +751,49 @@ public class VarKeyHashMap implements IVarKeyHashMap {
       });
     } else if (m_debugLevel == DebugLevel.DEBUG_STRUCTURE) {
       s.append("\n");
-      for (int tableNum = 0; tableNum < m_table.length; tableNum++) {
-        int n = m_table[tableNum];
-        s.append(tableNum).append(" : ");
-        while (n != -1) {
-          IMemAllocator keys = keysMemory();
+      appendStructure(s, m_table);
+      if (m_oldTable != null) {
+        s.append("Resizing, old table:\n");
+        appendStructure(s, m_oldTable);
+      }
+    }
 
-          int keyPtr = m_valuesMemory.getInt(n, KEY_OFFSET);
-          int keySize = keys.getInt(keyPtr, 0);
+    return s.toString();
+  }
 
-          int next = m_valuesMemory.getInt(n, NEXT_OFFSET);
+  private void appendStructure(StringBuilder s, int table[]) {
+    for (int tableNum = 0; tableNum < table.length; tableNum++) {
+      int n = table[tableNum];
+      s.append(tableNum).append(" : ");
+      while (n != -1) {
+        IMemAllocator keys = keysMemory();
 
-          s.append("(#").append(n).append(",K=");
-          for (int i = 0; i < keySize; i++) {
-            int ii = keys.getInt(keyPtr, i + 1);
+        int keyPtr = m_valuesMemory.getInt(n, KEY_OFFSET);
+        int keySize = keys.getInt(keyPtr, 0);
 
-            char c1 = (char) (ii >> 16);
-            char c2 = (char) (0x00FF & ii);
-            if (c1 != 0) {
-              s.append(c1);
-            }
-            if (c2 != 0) {
-              s.append(c2);
-            }
+        int next = m_valuesMemory.getInt(n, NEXT_OFFSET);
+
+        s.append("(#").append(n).append(",K=");
+        for (int i = 0; i < keySize; i++) {
+          int ii = keys.getInt(keyPtr, i + 1);
+
+          char c1 = (char) (ii >> 16);
+          char c2 = (char) (0x00FF & ii);
+          if (c1 != 0) {
+            s.append(c1);
+          }
+          if (c2 != 0) {
+            s.append(c2);
           }
-          s.append(",N=").append(m_valuesMemory.getInt(n, NEXT_OFFSET));
-          s.append(")=").append(m_formatter.format(this, n));
-          n = next;
-          s.append(" -> ");
         }
-
-        s.append("END\n");
+        s.append(",N=").append(m_valuesMemory.getInt(n, NEXT_OFFSET));
+        s.append(")=").append(m_formatter.format(this, n));
+        n = next;
+        s.append(" -> ");
       }
-    }
 
-    return s.toString();
+      s.append("END\n");
+    }
   }
   
   @Override
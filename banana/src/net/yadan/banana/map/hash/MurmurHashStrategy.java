@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.map.hash;
+
+import net.yadan.banana.map.BufferHashStrategy;
+import net.yadan.banana.map.LongHashStrategy;
+import net.yadan.banana.memory.IBuffer;
+
+/**
+ * The default hash strategy, based on MurmurHash3.
+ *
+ * Long keys go through the 64 bit finalizer, which spreads sequential and
+ * strided ids evenly over the low bits. Buffers are hashed one int at a time
+ * with the 32 bit body and finalizer.
+ */
+public class MurmurHashStrategy implements LongHashStrategy, BufferHashStrategy {
+
+  private static final int C1 = 0xcc9e2d51;
+  private static final int C2 = 0x1b873593;
+
+  @Override
+  public int hash(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb9fe1a85ec53L;
+    key ^= key >>> 33;
+    return (int) key;
+  }
+
+  @Override
+  public int hash(IBuffer key) {
+    int data[] = key.array();
+    int size = key.size();
+    int h = 0;
+    for (int i = 0; i < size; i++) {
+      int k = data[i] * C1;
+      k = Integer.rotateLeft(k, 15) * C2;
+      h ^= k;
+      h = Integer.rotateLeft(h, 13) * 5 + 0xe6546b64;
+    }
+    h ^= size << 2;
+
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.map.hash;
+
+import net.yadan.banana.map.BufferHashStrategy;
+import net.yadan.banana.map.LongHashStrategy;
+import net.yadan.banana.memory.IBuffer;
+
+/**
+ * The hashing used before hash strategies were pluggable: long keys fold their
+ * two halves and buffers use {@link IBuffer#hashCode()}.
+ *
+ * Cheap, but sequential and strided keys cluster in power of two tables. Only
+ * use it with tables whose capacity is not a power of two.
+ */
+public class SimpleHashStrategy implements LongHashStrategy, BufferHashStrategy {
+
+  @Override
+  public int hash(long key) {
+    return (int) (key ^ (key >>> 32));
+  }
+
+  @Override
+  public int hash(IBuffer key) {
+    return key.hashCode();
+  }
+}
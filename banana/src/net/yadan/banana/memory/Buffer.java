@@ -6,6 +6,8 @@
  */
 package net.yadan.banana.memory;
 
+import java.util.Arrays;
+
 public class Buffer implements IBuffer {
   // TODO: Use BlockAllocator as an underlying storage
   private int m_buffer[];
@@ -200,14 +202,7 @@ public class Buffer implements IBuffer {
       return false;
     }
 
-    for (int i = start_offset; i < start_offset + length; i++) {
-      int v1 = mem.getInt(pointer, i);
-      int v2 = getInt(i - start_offset);
-      if (v1 != v2) {
-        return false;
-      }
-    }
-    return true;
+    return mem.memEquals(pointer, start_offset, m_buffer, 0, length);
   }
 
   @Override
@@ -264,6 +259,106 @@ public class Buffer implements IBuffer {
     setChars(m_usedSize, src_data, src_pos, length);
   }
 
+  @Override
+  public void setBytes(int dst_offset, byte[] src_data, int src_pos, int length) {
+    int numInts = (length + 3) >> 2;
+    ensureCapacity(dst_offset + numInts);
+    for (int i = 0; i < length; i++) {
+      int offset = dst_offset + (i >> 2);
+      int shift = (3 - (i & 3)) << 3;
+      int v = m_buffer[offset] & ~(0xff << shift);
+      m_buffer[offset] = v | (src_data[src_pos + i] & 0xff) << shift;
+    }
+    m_usedSize = Math.max(m_usedSize, dst_offset + numInts);
+  }
+
+  @Override
+  public void getBytes(int src_offset, byte[] dst_data, int dst_pos, int length) {
+    for (int i = 0; i < length; i++) {
+      dst_data[dst_pos + i] = (byte) (m_buffer[src_offset + (i >> 2)] >>> ((3 - (i & 3)) << 3));
+    }
+  }
+
+  @Override
+  public void appendBytes(byte[] src_data, int src_pos, int length) {
+    int start = m_usedSize;
+    ensureCapacity(start + ((length + 3) >> 2));
+    Arrays.fill(m_buffer, start, start + ((length + 3) >> 2), 0);
+    setBytes(start, src_data, src_pos, length);
+  }
+
+  @Override
+  public int appendUtf8(char[] src_data, int src_pos, int length) {
+    int start = m_usedSize;
+    // at most 3 bytes per char, a surrogate pair takes 4 bytes for 2 chars
+    int maxInts = (3 * length + 3) >> 2;
+    ensureCapacity(start + maxInts);
+    Arrays.fill(m_buffer, start, start + maxInts, 0);
+
+    int pos = start << 2;
+    int end = src_pos + length;
+    for (int i = src_pos; i < end; i++) {
+      char c = src_data[i];
+      if (c != 0 && c < 0x80) {
+        pos = putByte(pos, c);
+      } else if (c < 0x800) {
+        pos = putByte(pos, 0xc0 | c >> 6);
+        pos = putByte(pos, 0x80 | c & 0x3f);
+      } else if (Character.isHighSurrogate(c) && i + 1 < end
+          && Character.isLowSurrogate(src_data[i + 1])) {
+        int cp = Character.toCodePoint(c, src_data[++i]);
+        pos = putByte(pos, 0xf0 | cp >> 18);
+        pos = putByte(pos, 0x80 | cp >> 12 & 0x3f);
+        pos = putByte(pos, 0x80 | cp >> 6 & 0x3f);
+        pos = putByte(pos, 0x80 | cp & 0x3f);
+      } else {
+        pos = putByte(pos, 0xe0 | c >> 12);
+        pos = putByte(pos, 0x80 | c >> 6 & 0x3f);
+        pos = putByte(pos, 0x80 | c & 0x3f);
+      }
+    }
+    m_usedSize = (pos + 3) >> 2;
+    return pos - (start << 2);
+  }
+
+  // ORs a byte into a zeroed int, returns the next byte position
+  private int putByte(int pos, int b) {
+    m_buffer[pos >> 2] |= (b & 0xff) << ((3 - (pos & 3)) << 3);
+    return pos + 1;
+  }
+
+  private int byteAt(int pos) {
+    return m_buffer[pos >> 2] >>> ((3 - (pos & 3)) << 3) & 0xff;
+  }
+
+  @Override
+  public int getUtf8(char[] dst_data, int dst_pos) {
+    int end = m_usedSize << 2;
+    while (end > 0 && end > (m_usedSize - 1) << 2 && byteAt(end - 1) == 0) {
+      end--;
+    }
+
+    int d = dst_pos;
+    int pos = 0;
+    while (pos < end) {
+      int b = byteAt(pos++);
+      if (b < 0x80) {
+        dst_data[d++] = (char) b;
+      } else if (b < 0xe0) {
+        dst_data[d++] = (char) ((b & 0x1f) << 6 | byteAt(pos++) & 0x3f);
+      } else if (b < 0xf0) {
+        int c = (b & 0x0f) << 12 | (byteAt(pos++) & 0x3f) << 6;
+        dst_data[d++] = (char) (c | byteAt(pos++) & 0x3f);
+      } else {
+        int cp = (b & 0x07) << 18 | (byteAt(pos++) & 0x3f) << 12;
+        cp |= (byteAt(pos++) & 0x3f) << 6;
+        cp |= byteAt(pos++) & 0x3f;
+        d += Character.toChars(cp, dst_data, d);
+      }
+    }
+    return d - dst_pos;
+  }
+
   @Override
   public void setUsed(int used) {
     assert used <= capacity();
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.memory;
+
+/**
+ * A {@link MemInitializer} that can also initialize a run of consecutive
+ * blocks directly in the underlying array.
+ *
+ * Block allocators backed by int arrays use it for runs of blocks taken from
+ * the watermark. If the initializer only produces zeros, blocks that were never
+ * handed out since their memory was allocated are already initialized and are
+ * not initialized again.
+ */
+public interface BulkMemInitializer extends MemInitializer {
+
+  /**
+   * Initializes the blocks stored in array[from, to)
+   *
+   * @param array array holding the blocks
+   * @param from index of the first int of the first block
+   * @param to index after the last int of the last block, to - from is a
+   *          multiple of blockSize
+   * @param blockSize block size in ints
+   */
+  public void initialize(int array[], int from, int to, int blockSize);
+
+  /**
+   * @return true if every initialized int is 0
+   */
+  public boolean isZero();
+}
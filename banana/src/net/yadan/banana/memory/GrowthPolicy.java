@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.memory;
+
+/**
+ * Decides by how much a structure grows when it runs out of capacity, and
+ * whether the memory for the growth may be allocated at all.
+ *
+ * Capacities are in units of the structure being grown (blocks for an
+ * allocator, buckets for a hash table), unitSize is the number of bytes per
+ * unit.
+ */
+public interface GrowthPolicy {
+
+  /**
+   * @param capacity current capacity in units
+   * @param minCapacity smallest capacity that satisfies the current request
+   * @param unitSize bytes per unit
+   * @return the new capacity, at least minCapacity
+   * @throws OutOfMemoryException if the policy does not allow growing to
+   *           minCapacity
+   */
+  public long grow(long capacity, long minCapacity, long unitSize) throws OutOfMemoryException;
+
+  /**
+   * Called once the new capacity is known and before any memory is allocated
+   * or copied, so that a growth that can not succeed fails without side
+   * effects.
+   *
+   * @param bytes number of bytes about to be allocated
+   * @throws OutOfMemoryException if the allocation should not be attempted
+   */
+  public void checkAllocation(long bytes) throws OutOfMemoryException;
+}
@@ -22,6 +22,18 @@ public interface IAllocator extends IPrimitiveAccess {
    */
   public void free(int pointer);
 
+  /**
+   * Frees length pointers from the specified array, starting at offset. This
+   * is equivalent to calling {@link #free(int)} for each of them, but allows
+   * the allocator to link all the pointers back into its free list in a
+   * single pass.
+   *
+   * @param pointers array holding the pointers to free
+   * @param offset index of the first pointer to free
+   * @param length number of pointers to free
+   */
+  public void free(int pointers[], int offset, int length);
+
   /**
    * Sets the memory pointed to by a specific pointer
    * @param pointer pointer pointing to memory we want to set
@@ -31,6 +43,22 @@ public interface IAllocator extends IPrimitiveAccess {
    */
   public void memSet(int pointer, int srcPos, int length, int value);
 
+  /**
+   * Compares memory of a pointer with an array, stopping at the first
+   * difference. The allocator compares directly against its backing storage
+   * and does not modify any state, so hash lookups comparing keys can run on
+   * several threads at once.
+   *
+   * @param pointer pointer to compare
+   * @param srcPos position in the pointer memory
+   * @param data array to compare with
+   * @param data_pos position in data
+   * @param length number of ints to compare
+   * @return true if the length ints at pointer from srcPos are equal to
+   *         data[data_pos .. data_pos + length)
+   */
+  public boolean memEquals(int pointer, int srcPos, int data[], int data_pos, int length);
+
   /**
    * @return the underlying block size of this allocator
    */
@@ -19,6 +19,21 @@ public interface IBlockAllocator extends IAllocator {
    */
   public int malloc();
 
+  /**
+   * Allocates count blocks and stores the pointers in out[0..count). This is
+   * equivalent to calling {@link #malloc()} count times, but the growth check
+   * is done once for the whole batch and blocks that were never allocated
+   * before are taken from the watermark as a single contiguous run.
+   *
+   * If growth is disabled and fewer than count blocks are free, nothing is
+   * allocated.
+   *
+   * @param count number of blocks to allocate
+   * @param out array receiving the pointers, at least count long
+   * @throws OutOfMemoryException if the blocks could not be allocated
+   */
+  public void malloc(int count, int out[]) throws OutOfMemoryException;
+
   /**
    * Copies memory from point pointer to another within this allocator
    * 
@@ -35,4 +50,25 @@ public interface IBlockAllocator extends IAllocator {
    */
   public void memCopy(int srcPtr, int srcPos, int dstPtr, int dstPos, int length);
 
+  /**
+   * Compares memory of two pointers within this allocator
+   *
+   * @return true if the length ints at ptr1 from pos1 are equal to the length
+   *         ints at ptr2 from pos2
+   */
+  public boolean memEquals(int ptr1, int pos1, int ptr2, int pos2, int length);
+
+  /**
+   * Moves all the used blocks to the beginning of the allocator, so that they
+   * occupy the blocks 1..usedBlocks(). If growth is enabled, memory beyond the
+   * used blocks is released. The allocator grows again as needed.
+   *
+   * Blocks are moved at most once, and each move is reported to the listener.
+   * Pointers to moved blocks are no longer valid after this call.
+   *
+   * @param listener notified for each moved block, may be null
+   * @throws UnsupportedOperationException if the allocator does not support
+   *           compaction
+   */
+  public void compact(RelocationListener listener);
 }
@@ -80,5 +80,38 @@ public interface IBuffer {
 
   public void appendChars(char[] src_data, int src_pos, int length);
 
+  /**
+   * Copies bytes into the buffer, four bytes per int, most significant byte
+   * first.
+   */
+  public void setBytes(int dst_offset, byte src_data[], int src_pos, int length);
+
+  public void getBytes(int src_offset, byte dst_data[], int dst_pos, int length);
+
+  public void appendBytes(byte src_data[], int src_pos, int length);
+
+  /**
+   * Appends chars encoded as UTF-8, packed four bytes per int. The last int is
+   * padded with zero bytes. U+0000 is encoded as the two bytes 0xC0 0x80
+   * (modified UTF-8), so the encoded text never contains a zero byte and can
+   * not be confused with the padding. Mostly ASCII text takes about half the
+   * space of {@link #appendChars(char[], int, int)}.
+   *
+   * @return number of bytes appended
+   */
+  public int appendUtf8(char src_data[], int src_pos, int length);
+
+  /**
+   * Decodes the content of the buffer, as written by
+   * {@link #appendUtf8(char[], int, int)}, ignoring the zero padding of the
+   * last int.
+   *
+   * @param dst_data array receiving the chars, should have room for up to
+   *          size() * 4 chars
+   * @param dst_pos position in dst_data to write to
+   * @return number of chars decoded
+   */
+  public int getUtf8(char dst_data[], int dst_pos);
+
   public void setUsed(int used);
 }
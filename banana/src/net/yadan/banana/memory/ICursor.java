@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.memory;
+
+/**
+ * Sequential reader of allocations.
+ *
+ * A cursor remembers its position inside the allocation structure, so reading
+ * an allocation from start to end does not locate each offset from scratch
+ * like {@link IPrimitiveAccess#getInt(int, int)} does for multi block
+ * allocations. A cursor does not allocate memory and can be reused for any
+ * number of allocations by calling {@link #open(int)}.
+ *
+ * Values are read with the same layout used by {@link IPrimitiveAccess}: a
+ * long or a double takes two ints, upper int first, and two chars are packed
+ * in each int.
+ *
+ * A cursor is not valid after the allocation it reads is freed, reallocated or
+ * moved by compaction.
+ */
+public interface ICursor {
+
+  /**
+   * Starts reading the allocation pointed to by pointer, from offset 0.
+   *
+   * @param pointer allocation pointer
+   */
+  public void open(int pointer);
+
+  /**
+   * @return the pointer this cursor reads
+   */
+  public int pointer();
+
+  /**
+   * Moves the cursor to the specified offset.
+   *
+   * @param offset offset in ints from the start of the allocation
+   */
+  public void seek(int offset);
+
+  /**
+   * @return the offset in ints of the next value to read
+   */
+  public int position();
+
+  /**
+   * Reads an int and advances the position by 1.
+   */
+  public int nextInt();
+
+  /**
+   * Reads a long and advances the position by 2.
+   */
+  public long nextLong();
+
+  /**
+   * Reads a float and advances the position by 1.
+   */
+  public float nextFloat();
+
+  /**
+   * Reads a double and advances the position by 2.
+   */
+  public double nextDouble();
+
+  /**
+   * Reads length ints into dst_data and advances the position by length.
+   */
+  public void nextInts(int dst_data[], int dst_pos, int length);
+
+  /**
+   * Reads num_chars chars into dst_data and advances the position by
+   * ceil(num_chars / 2).
+   */
+  public void nextChars(char dst_data[], int dst_pos, int num_chars);
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.memory;
+
+/**
+ * Functions shared by allocators with 64 bit pointers, see {@link IAllocator}.
+ *
+ * Block counts are longs, so a single allocator can hold more than
+ * Integer.MAX_VALUE blocks.
+ */
+public interface ILongAllocator extends ILongPrimitiveAccess {
+
+  /**
+   * Frees the specified pointer
+   */
+  public void free(long pointer);
+
+  /**
+   * Sets length ints starting at srcPos of the specified pointer to value
+   */
+  public void memSet(long pointer, int srcPos, int length, int value);
+
+  /**
+   * @return block size in ints
+   */
+  public int blockSize();
+
+  boolean isDebug();
+
+  void setDebug(boolean debug);
+
+  /**
+   * @return number of used blocks
+   */
+  public long usedBlocks();
+
+  /**
+   * @return maximum number of blocks this allocator can currently hold before
+   *         growing
+   */
+  public long maxBlocks();
+
+  /**
+   * @return number of free blocks
+   */
+  public long freeBlocks();
+
+  /**
+   * Frees all allocated memory
+   */
+  public void clear();
+
+  /**
+   * @return memory usage in bytes
+   */
+  public long computeMemoryUsage();
+
+  /**
+   * Sets the allocator growth factor
+   *
+   * @param d new growth factor, 0 to disable growth (default)
+   */
+  public void setGrowthFactor(double d);
+
+  /**
+   * @return the current growth factor
+   */
+  public double getGrowthFactor();
+}
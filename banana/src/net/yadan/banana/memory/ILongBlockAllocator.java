@@ -0,0 +1,25 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.memory;
+
+/**
+ * Block allocator with 64 bit pointers, see {@link IBlockAllocator}
+ */
+public interface ILongBlockAllocator extends ILongAllocator {
+
+  /**
+   * @return a single block of fixed size (based on the allocator block size)
+   */
+  public long malloc();
+
+  /**
+   * Copies memory from one pointer to another within this allocator
+   *
+   * @param length number of ints to copy
+   */
+  public void memCopy(long srcPtr, int srcPos, long dstPtr, int dstPos, int length);
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.memory;
+
+/**
+ * Memory allocator with 64 bit pointers, see {@link IMemAllocator}
+ */
+public interface ILongMemAllocator extends ILongAllocator {
+
+  /**
+   * returns a pointer to a memory buffer large enough to hold size ints.
+   */
+  public long malloc(int size);
+
+  /**
+   * Changes the memory of the specified pointer to the new size and return a
+   * new pointer
+   *
+   * @param pointer existing pointer, this pointer becomes invalid after this
+   *          call and should no longer be used or freed
+   * @param size new size, can be smaller or larger than original size
+   * @return new pointer
+   */
+  public long realloc(long pointer, int size);
+
+  /**
+   * @return the underlying block allocator
+   */
+  public ILongBlockAllocator getBlocks();
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.memory;
+
+/**
+ * Primitive access to memory addressed by 64 bit pointers. This is the long
+ * pointer counterpart of {@link IPrimitiveAccess}, offsets inside a pointer
+ * are still ints.
+ *
+ * -1 is the null pointer.
+ */
+public interface ILongPrimitiveAccess {
+
+  /**
+   * @param pointer
+   *          pointer to read int from
+   * @param offset_in_data
+   *          offset in data to read from
+   */
+  public int getInt(long pointer, int offset_in_data);
+
+  /**
+   * @param pointer
+   *          pointer to write int to
+   * @param offset_in_data
+   *          offset in data to write to
+   * @param data
+   *          the int to write
+   */
+  public void setInt(long pointer, int offset_in_data, int data);
+
+  /**
+   * Gets long (64bit) from the 2 ints starting at the specified offset
+   */
+  public long getLong(long pointer, int offset_in_data);
+
+  /**
+   * Sets long (64bit) onto the 2 ints starting at the specified offset
+   */
+  public void setLong(long pointer, int offset_in_data, long data);
+
+  /**
+   * Gets float (32bit) from the int at the specified offset
+   */
+  public float getFloat(long pointer, int offset);
+
+  /**
+   * Sets float (32bit) on the int at the specified offset
+   */
+  public void setFloat(long pointer, int offset, float f);
+
+  /**
+   * Gets double (64bit) from the 2 ints starting at the specified offset
+   */
+  public double getDouble(long pointer, int offset_in_data);
+
+  /**
+   * Sets double (64bit) onto the 2 ints starting at the specified offset
+   */
+  public void setDouble(long pointer, int offset_in_data, double data);
+
+  /**
+   * Copy an int[] array into the buffer
+   *
+   * @param pointer pointer to a previously allocated block
+   * @param dst_offset_in_record target offset inside block
+   * @param src_data source data
+   * @param src_pos source position
+   * @param length number of ints to copy
+   */
+  public void setInts(long pointer, int dst_offset_in_record,
+      int src_data[], int src_pos, int length);
+
+  /**
+   * Copy an int[] array from the buffer
+   *
+   * @param pointer pointer to a previously allocated block
+   * @param src_offset_in_record source offset in specified block
+   * @param dst_data destination array
+   * @param dst_pos destination offset
+   * @param length number of ints to copy
+   */
+  public void getInts(long pointer, int src_offset_in_record,
+      int dst_data[], int dst_pos, int length);
+
+  /**
+   * @return the maximum number of ints that can be stored in the specified
+   *         pointer
+   */
+  public int maximumCapacityFor(long pointer);
+}
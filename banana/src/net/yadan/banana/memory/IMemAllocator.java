@@ -19,6 +19,18 @@ public interface IMemAllocator extends IAllocator {
    */
   public int malloc(int size);
 
+  /**
+   * Allocates count memory buffers, each large enough to hold size ints, and
+   * stores the pointers in out[0..count). Allocations that fit in a single
+   * block are taken from the underlying block allocator in one batch, see
+   * {@link IBlockAllocator#malloc(int, int[])}.
+   *
+   * @param size size in ints of each allocation
+   * @param count number of allocations
+   * @param out array receiving the pointers, at least count long
+   */
+  public void malloc(int size, int count, int out[]);
+
   /**
    * Changes the memory of the specified pointer to the new size and return a
    * new pointer
@@ -38,6 +50,54 @@ public interface IMemAllocator extends IAllocator {
 
   public IBlockAllocator getBlocks();
 
+  /**
+   * Copies length ints from one allocation to another within this allocator.
+   * The data is copied directly between the underlying blocks, a run at a
+   * time. If both ranges are in the same allocation they must not overlap,
+   * use {@link #memMove(int, int, int, int, int)} for that.
+   *
+   * @param srcPtr source pointer
+   * @param srcPos source position
+   * @param dstPtr destination pointer
+   * @param dstPos destination position
+   * @param length number of ints to copy
+   */
+  public void memCopy(int srcPtr, int srcPos, int dstPtr, int dstPos, int length);
+
+  /**
+   * Same as {@link #memCopy(int, int, int, int, int)}, but the source and
+   * destination ranges may overlap.
+   */
+  public void memMove(int srcPtr, int srcPos, int dstPtr, int dstPos, int length);
+
+  /**
+   * Copies length ints from an allocation in this allocator to an allocation
+   * in the dst allocator.
+   *
+   * @param srcPtr source pointer
+   * @param srcPos source position
+   * @param dst destination allocator, may be this allocator
+   * @param dstPtr destination pointer in dst
+   * @param dstPos destination position
+   * @param length number of ints to copy
+   */
+  public void memCopy(int srcPtr, int srcPos, IMemAllocator dst, int dstPtr, int dstPos,
+      int length);
+
+  /**
+   * Compares two ranges of memory within this allocator
+   *
+   * @return true if the length ints at ptr1 from pos1 are equal to the length
+   *         ints at ptr2 from pos2
+   */
+  public boolean memEquals(int ptr1, int pos1, int ptr2, int pos2, int length);
+
+  /**
+   * Creates a cursor for sequential reading of allocations from this
+   * allocator. The cursor can be reused for any number of allocations.
+   */
+  public ICursor createCursor();
+
   /**
    * will describe the pointer data structure, and optionally the data itself.
    * two pointers with identical allocation size should have the same pointer
@@ -47,4 +107,27 @@ public interface IMemAllocator extends IAllocator {
    * @return string debug representation of pointer data structure
    */
   public String pointerDebugString(int pointer);
+
+  /**
+   * Compacts the underlying block allocator, see
+   * {@link IBlockAllocator#compact(RelocationListener)}.
+   *
+   * The allocator does not know which pointers are alive, so after compaction
+   * the owner of each allocation must call
+   * {@link #relocate(int, Relocation)} with the recorded relocation to get the
+   * new pointer.
+   *
+   * @param listener notified for each moved block, may be null
+   */
+  public void compact(RelocationListener listener);
+
+  /**
+   * Fixes an allocation after compaction, updating any internal links between
+   * its blocks.
+   *
+   * @param pointer the allocation pointer before the compaction
+   * @param relocation the blocks moved by the compaction
+   * @return the allocation pointer after the compaction
+   */
+  public int relocate(int pointer, Relocation relocation);
 }
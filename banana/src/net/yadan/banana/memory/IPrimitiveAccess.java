@@ -202,6 +202,64 @@ public interface IPrimitiveAccess {
    */
   public void getChars(int pointer, int src_offset, char dst_data[], int dst_pos, int num_chars);
 
+  /**
+   * Gets a single byte. Bytes are packed four per int, byte_offset 4 * i is
+   * the most significant byte of the int at offset i.
+   *
+   * @param pointer
+   *          pointer to read from
+   * @param byte_offset
+   *          offset in bytes
+   */
+  public byte getByte(int pointer, int byte_offset);
+
+  /**
+   * Sets a single byte, leaving the other bytes of the same int unchanged.
+   *
+   * @param pointer
+   *          pointer to write into
+   * @param byte_offset
+   *          offset in bytes
+   * @param b
+   *          byte to write, only the lower 8 bits are used
+   */
+  public void setByte(int pointer, int byte_offset, int b);
+
+  /**
+   * Copy a byte[] array into the buffer, each four bytes will be copied into a
+   * single int in the underlying array, most significant byte first. The
+   * unused bytes of a partially filled last int are left unchanged.
+   *
+   * @param pointer
+   *          destination pointer
+   * @param dst_offset
+   *          offset in dest pointer (in ints)
+   * @param src_data
+   *          source byte[] data
+   * @param src_pos
+   *          source position to start copy from (in bytes)
+   * @param num_bytes
+   *          number of bytes to copy
+   */
+  public void setBytes(int pointer, int dst_offset, byte src_data[], int src_pos, int num_bytes);
+
+  /**
+   * Copy a byte[] array from the buffer, each four bytes will be copied from a
+   * single int in the underlying array.
+   *
+   * @param pointer
+   *          source pointer
+   * @param src_offset
+   *          offset in source pointer (in ints)
+   * @param dst_data
+   *          dest byte[] data
+   * @param dst_pos
+   *          dest position to copy to (in bytes)
+   * @param num_bytes
+   *          number of bytes to copy
+   */
+  public void getBytes(int pointer, int src_offset, byte dst_data[], int dst_pos, int num_bytes);
+
   /**
    * @param pointer
    *          pointer to a previously allocated block
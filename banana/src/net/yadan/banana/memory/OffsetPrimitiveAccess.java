@@ -96,6 +96,26 @@ public class OffsetPrimitiveAccess implements IPrimitiveAccess {
     m_parent.getChars(pointer, m_baseOffset + src_offset, dst_data, dst_pos, num_chars);
   }
 
+  @Override
+  public byte getByte(int pointer, int byte_offset) {
+    return m_parent.getByte(pointer, byte_offset + (m_baseOffset << 2));
+  }
+
+  @Override
+  public void setByte(int pointer, int byte_offset, int b) {
+    m_parent.setByte(pointer, byte_offset + (m_baseOffset << 2), b);
+  }
+
+  @Override
+  public void setBytes(int pointer, int dst_offset, byte[] src_data, int src_pos, int num_bytes) {
+    m_parent.setBytes(pointer, dst_offset + m_baseOffset, src_data, src_pos, num_bytes);
+  }
+
+  @Override
+  public void getBytes(int pointer, int src_offset, byte[] dst_data, int dst_pos, int num_bytes) {
+    m_parent.getBytes(pointer, src_offset + m_baseOffset, dst_data, dst_pos, num_bytes);
+  }
+
   @Override
   public void getBuffer(int pointer, int src_offset_in_record, IBuffer dst, int length) {
     m_parent.getBuffer(pointer, m_baseOffset + src_offset_in_record, dst, length);
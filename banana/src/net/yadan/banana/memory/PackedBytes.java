@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.memory;
+
+/**
+ * Byte accessors implemented on top of the int accessors of an
+ * {@link IPrimitiveAccess}. Allocators delegate to these, so bytes are packed
+ * the same way everywhere: four per int, most significant byte first.
+ *
+ * As in IPrimitiveAccess, getByte() and setByte() take an offset in bytes
+ * while getBytes() and setBytes() take an offset in ints.
+ */
+public final class PackedBytes {
+
+  private PackedBytes() {
+  }
+
+  public static byte getByte(IPrimitiveAccess access, int pointer, int byte_offset) {
+    return (byte) (access.getInt(pointer, byte_offset >> 2) >>> ((3 - (byte_offset & 3)) << 3));
+  }
+
+  public static void setByte(IPrimitiveAccess access, int pointer, int byte_offset, int b) {
+    int offset = byte_offset >> 2;
+    int shift = (3 - (byte_offset & 3)) << 3;
+    int v = access.getInt(pointer, offset) & ~(0xff << shift);
+    access.setInt(pointer, offset, v | (b & 0xff) << shift);
+  }
+
+  public static void setBytes(IPrimitiveAccess access, int pointer, int dst_offset,
+      byte src_data[], int src_pos, int num_bytes) {
+    int numInts = num_bytes >> 2;
+    for (int i = 0, s = src_pos; i < numInts; i++, s += 4) {
+      access.setInt(pointer, dst_offset + i, src_data[s] << 24 | (src_data[s + 1] & 0xff) << 16
+          | (src_data[s + 2] & 0xff) << 8 | (src_data[s + 3] & 0xff));
+    }
+    for (int i = numInts << 2; i < num_bytes; i++) {
+      setByte(access, pointer, (dst_offset << 2) + i, src_data[src_pos + i]);
+    }
+  }
+
+  public static void getBytes(IPrimitiveAccess access, int pointer, int src_offset,
+      byte dst_data[], int dst_pos, int num_bytes) {
+    int numInts = num_bytes >> 2;
+    for (int i = 0, d = dst_pos; i < numInts; i++, d += 4) {
+      int v = access.getInt(pointer, src_offset + i);
+      dst_data[d] = (byte) (v >>> 24);
+      dst_data[d + 1] = (byte) (v >>> 16);
+      dst_data[d + 2] = (byte) (v >>> 8);
+      dst_data[d + 3] = (byte) v;
+    }
+    for (int i = numInts << 2; i < num_bytes; i++) {
+      dst_data[dst_pos + i] = getByte(access, pointer, (src_offset << 2) + i);
+    }
+  }
+}
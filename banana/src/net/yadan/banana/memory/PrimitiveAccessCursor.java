@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.memory;
+
+/**
+ * A cursor reading through the {@link IPrimitiveAccess} methods. Suitable for
+ * allocators where an allocation is a single contiguous range, so locating an
+ * offset is cheap.
+ */
+public class PrimitiveAccessCursor implements ICursor {
+
+  private final IPrimitiveAccess m_memory;
+  private int m_pointer;
+  private int m_position;
+
+  public PrimitiveAccessCursor(IPrimitiveAccess memory) {
+    m_memory = memory;
+    m_pointer = -1;
+  }
+
+  @Override
+  public void open(int pointer) {
+    assert pointer != 0 : "Invalid pointer " + pointer;
+    assert pointer != -1 : "Invalid pointer " + pointer;
+    m_pointer = pointer;
+    m_position = 0;
+  }
+
+  @Override
+  public int pointer() {
+    return m_pointer;
+  }
+
+  @Override
+  public void seek(int offset) {
+    assert offset >= 0 : "Negative offset " + offset;
+    m_position = offset;
+  }
+
+  @Override
+  public int position() {
+    return m_position;
+  }
+
+  @Override
+  public int nextInt() {
+    return m_memory.getInt(m_pointer, m_position++);
+  }
+
+  @Override
+  public long nextLong() {
+    long ret = m_memory.getLong(m_pointer, m_position);
+    m_position += 2;
+    return ret;
+  }
+
+  @Override
+  public float nextFloat() {
+    return Float.intBitsToFloat(nextInt());
+  }
+
+  @Override
+  public double nextDouble() {
+    return Double.longBitsToDouble(nextLong());
+  }
+
+  @Override
+  public void nextInts(int dst_data[], int dst_pos, int length) {
+    m_memory.getInts(m_pointer, m_position, dst_data, dst_pos, length);
+    m_position += length;
+  }
+
+  @Override
+  public void nextChars(char dst_data[], int dst_pos, int num_chars) {
+    if (num_chars == 0) {
+      return;
+    }
+    m_memory.getChars(m_pointer, m_position, dst_data, dst_pos, num_chars);
+    m_position += 1 + (num_chars - 1) / 2; // ceil(num_chars/2)
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.memory;
+
+import java.util.Arrays;
+
+/**
+ * Records the blocks moved by a compaction, and translates old pointers to
+ * their new location.
+ */
+public class Relocation implements RelocationListener {
+
+  // old pointer in the upper 32 bits, new pointer in the lower 32 bits
+  private long m_moves[];
+  private int m_size;
+  private boolean m_sorted;
+
+  public Relocation() {
+    m_moves = new long[16];
+    m_size = 0;
+    m_sorted = true;
+  }
+
+  @Override
+  public void relocated(int oldPointer, int newPointer) {
+    if (m_size == m_moves.length) {
+      m_moves = Arrays.copyOf(m_moves, m_size * 2);
+    }
+    long move = ((long) oldPointer << 32) | (newPointer & 0xFFFFFFFFL);
+    if (m_size > 0 && m_moves[m_size - 1] > move) {
+      m_sorted = false;
+    }
+    m_moves[m_size++] = move;
+  }
+
+  /**
+   * @param pointer a pointer from before the compaction
+   * @return the new location of pointer, or pointer itself if it was not moved
+   */
+  public int translate(int pointer) {
+    if (m_size == 0) {
+      return pointer;
+    }
+    if (!m_sorted) {
+      Arrays.sort(m_moves, 0, m_size);
+      m_sorted = true;
+    }
+    long key = (long) pointer << 32;
+    int index = Arrays.binarySearch(m_moves, 0, m_size, key);
+    if (index < 0) {
+      index = -index - 1;
+    }
+    if (index < m_size && (int) (m_moves[index] >>> 32) == pointer) {
+      return (int) m_moves[index];
+    }
+    return pointer;
+  }
+
+  /**
+   * @return number of moved blocks
+   */
+  public int size() {
+    return m_size;
+  }
+
+  public void clear() {
+    m_size = 0;
+    m_sorted = true;
+  }
+}
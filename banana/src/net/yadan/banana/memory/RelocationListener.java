@@ -0,0 +1,22 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.memory;
+
+/**
+ * Notified by an allocator when a block is moved during compaction.
+ */
+public interface RelocationListener {
+
+  /**
+   * Called after the content of a block was moved to a new location. the old
+   * pointer is free after the compaction.
+   *
+   * @param oldPointer old block pointer
+   * @param newPointer new block pointer
+   */
+  public void relocated(int oldPointer, int newPointer);
+}
@@ -6,14 +6,28 @@
  */
 package net.yadan.banana.memory.block;
 
+import java.util.Arrays;
+
+import net.yadan.banana.memory.BulkMemInitializer;
+import net.yadan.banana.memory.GrowthPolicy;
 import net.yadan.banana.memory.IBlockAllocator;
 import net.yadan.banana.memory.IBuffer;
 import net.yadan.banana.memory.MemInitializer;
 import net.yadan.banana.memory.OutOfMemoryException;
+import net.yadan.banana.memory.PackedBytes;
+import net.yadan.banana.memory.RelocationListener;
 import net.yadan.banana.memory.initializers.PrototypeInitializer;
 
 
 /**
+ * A fixed size block allocator that spreads its blocks over multiple int[]
+ * arrays, allowing it to hold more than 2GB of data.
+ *
+ * By default each array holds as many blocks as fit in MAX_INTS_PER_ARRAY,
+ * which costs a division and a modulo per access to locate a block. When
+ * constructed with powerOfTwoArrays, the number of blocks per array is rounded
+ * down to a power of two and blocks are located with a shift and a mask.
+ *
  * @author omry
  * created 20/5/2013
  */
@@ -38,12 +52,30 @@ public class BigBlockAllocator implements IBlockAllocator {
 
   private MemInitializer m_initializer;
 
+  // m_initializer if it can initialize runs of blocks, null otherwise
+  private BulkMemInitializer m_bulkInitializer;
+
+  // true if m_bulkInitializer only produces zeros
+  private boolean m_zeroOnGrow;
+
+  // blocks at or above this mark were never handed out since their memory was
+  // allocated, so they are still zero
+  private int m_zeroMark;
+
   private boolean m_debug;
 
   private double m_growthFactor;
 
+  // overrides m_growthFactor if set
+  private GrowthPolicy m_growthPolicy;
+
   private int m_maxBlocksPerArray;
 
+  // shift and mask used to locate blocks when m_maxBlocksPerArray is a power
+  // of two, m_arrayShift is -1 otherwise
+  private final int m_arrayShift;
+  private final int m_arrayMask;
+
   private int m_reservedBlocks;
 
   /**
@@ -82,7 +114,23 @@ public class BigBlockAllocator implements IBlockAllocator {
    */
   public BigBlockAllocator(int maxBlocks, int blockSize, double growthFactor,
       MemInitializer initializer) {
+    this(maxBlocks, blockSize, growthFactor, initializer, false);
+  }
+
+  /**
+   * @param maxBlocks number of records to reserve space for
+   * @param blockSize record size in ints.
+   * @param growthFactor determines by how much to grow buffer when it runs out
+   *          of memory. 0 to disable growth
+   * @param initializer a callback to initialize newly allocated records
+   * @param powerOfTwoArrays true to round the number of blocks per array down
+   *          to a power of two, replacing the division and modulo on every
+   *          access with a shift and a mask
+   */
+  public BigBlockAllocator(int maxBlocks, int blockSize, double growthFactor,
+      MemInitializer initializer, boolean powerOfTwoArrays) {
     m_reservedBlocks = 1;
+    m_zeroMark = m_reservedBlocks;
     m_head = -1;
     m_maxCapacity = maxBlocks + m_reservedBlocks;
     m_blockSize = blockSize;
@@ -92,6 +140,7 @@ public class BigBlockAllocator implements IBlockAllocator {
     }
     m_debug = false;
     m_initializer = initializer;
+    updateBulkInitializer();
 
     if (maxBlocks < 1)
       throw new IllegalArgumentException("maxBlocks " + maxBlocks + " < 1");
@@ -99,33 +148,34 @@ public class BigBlockAllocator implements IBlockAllocator {
     // block 0 is reserved
     long size = (m_reservedBlocks + (long) maxBlocks) * m_blockSize;
     m_maxBlocksPerArray = MAX_INTS_PER_ARRAY / m_blockSize;
-    int maxArrayUsage = m_maxBlocksPerArray * m_blockSize;
-    long long_num_arrays = 1 + (size - 1) / maxArrayUsage;
-    if (long_num_arrays > Integer.MAX_VALUE) {
-      throw new IllegalArgumentException("Attempted to allocate " + long_num_arrays
-          + " arrays of int[] , which is greated than Integer.MAX_VALUE (" + Integer.MAX_VALUE
-          + ")");
+    if (m_maxBlocksPerArray < 1) {
+      throw new IllegalArgumentException("Block size " + m_blockSize
+          + " is larger than the maximum array size (" + MAX_INTS_PER_ARRAY + " ints)");
     }
-
-    long remains = size;
-    int num_arrays = (int) long_num_arrays;
+    if (powerOfTwoArrays) {
+      m_maxBlocksPerArray = Integer.highestOneBit(m_maxBlocksPerArray);
+      m_arrayShift = Integer.numberOfTrailingZeros(m_maxBlocksPerArray);
+      m_arrayMask = m_maxBlocksPerArray - 1;
+    } else {
+      m_arrayShift = -1;
+      m_arrayMask = -1;
+    }
+    final int sizes[] = Chunks.sizes(m_reservedBlocks + (long) maxBlocks, m_maxBlocksPerArray,
+        m_blockSize, "arrays of int[]");
+    int num_arrays = sizes.length;
     m_buffer = new int[num_arrays][];
     m_head = -1;
     m_free = 0;
     m_watermark = 0;
 
-    for (int i = 0; i < num_arrays; i++) {
-
-      long allocate = Math.min(m_maxBlocksPerArray * m_blockSize, remains);
-      if (allocate > Integer.MAX_VALUE) {
-        throw new IllegalArgumentException("Attempted to allocate " + allocate
-            + " ints, which is greated than Integer.MAX_VALUE (" + Integer.MAX_VALUE + ")");
+    // arrays are zeroed by the thread allocating them
+    final int buffer[][] = m_buffer;
+    Parallel.forEach(num_arrays, Parallel.threadsFor(size), new Parallel.Task() {
+      @Override
+      public void run(int i) {
+        buffer[i] = new int[sizes[i]];
       }
-      m_buffer[i] = new int[(int) allocate];
-      remains -= allocate;
-    }
-
-    assert remains == 0;
+    });
 
     clear();
   }
@@ -141,7 +191,7 @@ public class BigBlockAllocator implements IBlockAllocator {
   public int malloc() throws OutOfMemoryException {
     if (m_head == -1) {
       if (m_watermark == m_maxCapacity) {
-        if (m_growthFactor == 0) {
+        if (!canGrow()) {
           throw new OutOfMemoryException("Out of memory (" + maxBlocks() + "/" + usedBlocks()
               + " blocks used)");
         } else {
@@ -158,11 +208,49 @@ public class BigBlockAllocator implements IBlockAllocator {
     }
     int oldHead = m_head;
     m_head = next(oldHead);
-    set_next(oldHead, -1);
-    m_initializer.initialize(this, oldHead, m_blockSize);
+    initializeBlock(oldHead);
     return oldHead;
   }
 
+  /**
+   * Allocates count blocks. free blocks are reused first, the rest are taken
+   * from the watermark as a single run.
+   *
+   * @throws OutOfMemoryException : if growth is disabled and there are less
+   *           than count free blocks
+   */
+  @Override
+  public void malloc(int count, int out[]) throws OutOfMemoryException {
+    assert count >= 0 : "Negative count " + count;
+    assert count <= out.length : "count > out.length : " + count + " > " + out.length;
+    if (count > freeBlocks()) {
+      if (!canGrow()) {
+        throw new OutOfMemoryException("Out of memory, requested " + count + " blocks ("
+            + maxBlocks() + "/" + usedBlocks() + " blocks used)");
+      }
+      while (count > freeBlocks()) {
+        increaseSize();
+      }
+    }
+
+    int n = 0;
+    while (n < count && m_head != -1) {
+      out[n++] = m_head;
+      m_head = next(m_head);
+    }
+    m_free -= n;
+    int reused = n;
+    int first = m_watermark;
+    while (n < count) {
+      out[n++] = m_watermark++;
+    }
+
+    for (int i = 0; i < reused; i++) {
+      initializeBlock(out[i]);
+    }
+    initializeRun(first, m_watermark);
+  }
+
   @Override
   public void memCopy(int srcPtr, int srcPos, int dstPtr, int dstPos, int length) {
     assert srcPtr >= 0 : "Negative pointer : " + srcPtr;
@@ -171,15 +259,49 @@ public class BigBlockAllocator implements IBlockAllocator {
     assert srcPos + length <= m_blockSize : "src overflow";
     assert dstPos + length <= m_blockSize : "dst overflow";
 
-    int srcArray = srcPtr / m_maxBlocksPerArray;
-    srcPtr = srcPtr % m_maxBlocksPerArray;
-    int dstArray = dstPtr / m_maxBlocksPerArray;
-    dstPtr = dstPtr % m_maxBlocksPerArray;
+    int srcArray = arrayNum(srcPtr);
+    srcPtr = arrayIndex(srcPtr);
+    int dstArray = arrayNum(dstPtr);
+    dstPtr = arrayIndex(dstPtr);
 
     System.arraycopy(m_buffer[srcArray], srcPtr * m_blockSize + srcPos, m_buffer[dstArray], dstPtr
         * m_blockSize + dstPos, length);
   }
 
+  @Override
+  public boolean memEquals(int ptr1, int pos1, int ptr2, int pos2, int length) {
+    assert ptr1 >= 0 : "Negative pointer : " + ptr1;
+    assert ptr2 >= 0 : "Negative pointer : " + ptr2;
+    assert pos1 + length <= m_blockSize : "overflow";
+    assert pos2 + length <= m_blockSize : "overflow";
+
+    int a1[] = m_buffer[arrayNum(ptr1)];
+    int a2[] = m_buffer[arrayNum(ptr2)];
+    int o1 = arrayIndex(ptr1) * m_blockSize + pos1;
+    int o2 = arrayIndex(ptr2) * m_blockSize + pos2;
+    for (int i = 0; i < length; i++) {
+      if (a1[o1 + i] != a2[o2 + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean memEquals(int pointer, int srcPos, int data[], int data_pos, int length) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert srcPos + length <= m_blockSize : "overflow";
+
+    int array[] = m_buffer[arrayNum(pointer)];
+    int p = arrayIndex(pointer) * m_blockSize + srcPos;
+    for (int i = 0; i < length; i++) {
+      if (array[p + i] != data[data_pos + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
 
   @Override
   public void memSet(int pointer, int srcPos, int length, int value) {
@@ -187,8 +309,8 @@ public class BigBlockAllocator implements IBlockAllocator {
     assert length <= m_blockSize : "length > m_blockSize";
     assert srcPos + length <= m_blockSize : "overflow";
 
-    int arr = pointer / m_maxBlocksPerArray;
-    pointer = pointer % m_maxBlocksPerArray;
+    int arr = arrayNum(pointer);
+    pointer = arrayIndex(pointer);
 
     int p = pointer * m_blockSize;
     for (int i = srcPos; i < srcPos + length; i++) {
@@ -197,45 +319,66 @@ public class BigBlockAllocator implements IBlockAllocator {
   }
 
 
-  private void increaseSize() {
-    int currentMaxBlocks = maxBlocks();
-    int new_max_capacity = m_reservedBlocks
-        + Math.max(currentMaxBlocks + 1, (int) (currentMaxBlocks * m_growthFactor));
-    int used_blocks = usedBlocks() + m_reservedBlocks;
-    int array_num = used_blocks / m_maxBlocksPerArray;
-    int last_array_blocks_used = used_blocks % m_maxBlocksPerArray;
-    int increase = new_max_capacity - used_blocks;
-    if (last_array_blocks_used != 0) {
-      int alloc = Math.min(increase + last_array_blocks_used, m_maxBlocksPerArray);
-      int new_buffer[] = new int[alloc * m_blockSize];
-      System.arraycopy(m_buffer[array_num], 0, new_buffer, 0, m_buffer[array_num].length);
-      int old_size = m_buffer[array_num].length;
-      m_buffer[array_num] = new_buffer;
-      increase -= (alloc - old_size);
+  private static final Chunks.Factory<int[]> ARRAYS = new Chunks.Factory<int[]>() {
+    @Override
+    public int[] allocate(int numInts) {
+      return new int[numInts];
     }
 
-    if (increase > 0) {
-      int additional_required_arrays = 1 + (increase - 1) / m_maxBlocksPerArray;
-      if (additional_required_arrays > 0) {
-        int num_new_arrays = m_buffer.length + additional_required_arrays;
-        int new_bufer[][] = new int[num_new_arrays][];
-        System.arraycopy(m_buffer, 0, new_bufer, 0, m_buffer.length);
-        for (int i = m_buffer.length; i < num_new_arrays; i++) {
-          int alloc = increase;
-          if (increase > m_maxBlocksPerArray) {
-            alloc = m_maxBlocksPerArray;
-          }
-          new_bufer[i] = new int[alloc * m_blockSize];
-          increase -= alloc;
-        }
+    @Override
+    public int size(int[] array) {
+      return array.length;
+    }
+
+    @Override
+    public int[] resize(int[] array, int numInts) {
+      return Arrays.copyOf(array, numInts);
+    }
+  };
 
-        m_buffer = new_bufer;
+  private void increaseSize() {
+    int currentMaxBlocks = maxBlocks();
+    int last_array_blocks_used = m_maxCapacity % m_maxBlocksPerArray;
+    int new_max_capacity;
+    if (m_growthPolicy == null) {
+      new_max_capacity = m_reservedBlocks
+          + Math.max(currentMaxBlocks + 1, (int) (currentMaxBlocks * m_growthFactor));
+    } else {
+      long capacity = m_growthPolicy.grow(m_maxCapacity, m_maxCapacity + 1L, 4L * m_blockSize);
+      capacity = Math.min(capacity, Integer.MAX_VALUE);
+      if (capacity <= m_maxCapacity) {
+        throw new OutOfMemoryException("Out of memory, can not grow beyond Integer.MAX_VALUE blocks ("
+            + maxBlocks() + "/" + usedBlocks() + " blocks used)");
       }
+      new_max_capacity = (int) capacity;
+      // the last array is copied into a larger one, the rest are new
+      long new_blocks = new_max_capacity - m_maxCapacity + last_array_blocks_used;
+      m_growthPolicy.checkAllocation(4L * new_blocks * m_blockSize);
     }
+    m_buffer = Chunks.resize(m_buffer, new_max_capacity, m_maxBlocksPerArray, m_blockSize,
+        ARRAYS);
+    m_maxCapacity = new_max_capacity;
+  }
 
-    assert increase == 0;
+  private int arrayNum(int pointer) {
+    if (m_arrayShift != -1) {
+      return pointer >>> m_arrayShift;
+    }
+    return pointer / m_maxBlocksPerArray;
+  }
 
-    m_maxCapacity = new_max_capacity;
+  private int arrayIndex(int pointer) {
+    if (m_arrayShift != -1) {
+      return pointer & m_arrayMask;
+    }
+    return pointer % m_maxBlocksPerArray;
+  }
+
+  /**
+   * @return true if blocks are located with shift and mask
+   */
+  public boolean isPowerOfTwoArrays() {
+    return m_arrayShift != -1;
   }
 
   @Override
@@ -247,14 +390,53 @@ public class BigBlockAllocator implements IBlockAllocator {
     m_free++;
   }
 
+  @Override
+  public void free(int pointers[], int offset, int length) {
+    if (length == 0) {
+      return;
+    }
+    int last = offset + length - 1;
+    for (int i = offset; i < last; i++) {
+      assert pointers[i] != 0 : "pointer 0 should not be freed";
+      assert pointers[i] != -1 : "pointer -1 should not be freed";
+      set_next(pointers[i], pointers[i + 1]);
+    }
+    assert pointers[last] != 0 : "pointer 0 should not be freed";
+    assert pointers[last] != -1 : "pointer -1 should not be freed";
+    set_next(pointers[last], m_head);
+    m_head = pointers[offset];
+    m_free += length;
+  }
+
+  /**
+   * Moves the used blocks below the watermark. if growth is enabled arrays
+   * beyond the used blocks are released and the last array is trimmed.
+   */
+  @Override
+  public void compact(RelocationListener listener) {
+    m_watermark = BlockCompactor.compact(this, m_head, m_watermark, m_reservedBlocks, listener);
+    m_head = -1;
+    m_free = 0;
+
+    if (canGrow()) {
+      int newMaxCapacity = Math.max(m_watermark, m_reservedBlocks + 1);
+      if (newMaxCapacity < m_maxCapacity) {
+        m_buffer = Chunks.resize(m_buffer, newMaxCapacity, m_maxBlocksPerArray, m_blockSize,
+            ARRAYS);
+        m_maxCapacity = newMaxCapacity;
+        m_zeroMark = Math.min(m_zeroMark, m_maxCapacity);
+      }
+    }
+  }
+
   @Override
   public short getUpperShort(int pointer, int offset) {
     assert pointer >= 0 : "Negative pointer : " + pointer;
     assert offset >= 0 : "Negative offset_in_data " + offset;
     assert offset < m_blockSize : String.format("offset >= m_blockSize : %d >= %d", offset, m_blockSize);
 
-    int array_num = pointer / m_maxBlocksPerArray;
-    int array_pointer = pointer % m_maxBlocksPerArray;
+    int array_num = arrayNum(pointer);
+    int array_pointer = arrayIndex(pointer);
     return (short) (m_buffer[array_num][array_pointer * m_blockSize + offset] >>> 16);
 
   }
@@ -265,8 +447,8 @@ public class BigBlockAllocator implements IBlockAllocator {
     assert offset >= 0 : "Negative offset_in_data " + offset;
     assert offset < m_blockSize : String.format("offset >= m_blockSize : %d >= %d", offset, m_blockSize);
 
-    int array_num = pointer / m_maxBlocksPerArray;
-    int array_pointer = pointer % m_maxBlocksPerArray;
+    int array_num = arrayNum(pointer);
+    int array_pointer = arrayIndex(pointer);
     return (short) (m_buffer[array_num][array_pointer * m_blockSize + offset]);
   }
 
@@ -276,8 +458,8 @@ public class BigBlockAllocator implements IBlockAllocator {
     assert offset >= 0 : "Negative offset " + offset;
     assert offset < m_blockSize : String.format("offset >= m_blockSize : %d >= %d", offset, m_blockSize);
 
-    int array_num = pointer / m_maxBlocksPerArray;
-    int array_pointer = pointer % m_maxBlocksPerArray;
+    int array_num = arrayNum(pointer);
+    int array_pointer = arrayIndex(pointer);
     int off = array_pointer * m_blockSize + offset;
 
     int lower = m_buffer[array_num][off] & 0x0000ffff;
@@ -290,8 +472,8 @@ public class BigBlockAllocator implements IBlockAllocator {
     assert offset >= 0 : "Negative offset " + offset;
     assert offset < m_blockSize : String.format("offset >= m_blockSize : %d >= %d", offset, m_blockSize);
 
-    int array_num = pointer / m_maxBlocksPerArray;
-    int array_pointer = pointer % m_maxBlocksPerArray;
+    int array_num = arrayNum(pointer);
+    int array_pointer = arrayIndex(pointer);
     int off = array_pointer * m_blockSize + offset;
 
     int upper = m_buffer[array_num][off] & 0xffff0000;
@@ -304,16 +486,16 @@ public class BigBlockAllocator implements IBlockAllocator {
     assert offset_in_data >= 0 : "Negative offset_in_data " + offset_in_data;
     assert offset_in_data < m_blockSize : String.format("offset_in_data >= m_blockSize : %d >= %d",
         offset_in_data, m_blockSize);
-    int array_num = pointer / m_maxBlocksPerArray;
-    int array_pointer = pointer % m_maxBlocksPerArray;
+    int array_num = arrayNum(pointer);
+    int array_pointer = arrayIndex(pointer);
     return m_buffer[array_num][array_pointer * m_blockSize + offset_in_data];
   }
 
   @Override
   public void setInt(int pointer, int offset_in_data, int data) {
     assert pointer >= 0 : "Negative pointer : " + pointer;
-    int buffer[] = m_buffer[pointer / m_maxBlocksPerArray];
-    pointer = pointer % m_maxBlocksPerArray;
+    int buffer[] = m_buffer[arrayNum(pointer)];
+    pointer = arrayIndex(pointer);
 
     assert offset_in_data >= 0 : "Negative offset_in_data " + offset_in_data;
     assert offset_in_data < m_blockSize : String.format("offset_in_data >= m_blockSize : %d >= %d",
@@ -327,8 +509,8 @@ public class BigBlockAllocator implements IBlockAllocator {
       int src_data[], int src_pos, int length) {
 
     assert pointer >= 0 : "Negative pointer : " + pointer;
-    int buffer[] = m_buffer[pointer / m_maxBlocksPerArray];
-    pointer = pointer % m_maxBlocksPerArray;
+    int buffer[] = m_buffer[arrayNum(pointer)];
+    pointer = arrayIndex(pointer);
 
     assert src_pos >= 0 : "Negative src_pos";
     assert src_pos + length <= src_data.length : String.format(
@@ -349,9 +531,9 @@ public class BigBlockAllocator implements IBlockAllocator {
       int dst_data[], int dst_pos, int length) {
 
     assert pointer >= 0 : "Negative pointer : " + pointer;
-    int array_num = pointer / m_maxBlocksPerArray;
+    int array_num = arrayNum(pointer);
     int buffer[] = m_buffer[array_num];
-    int array_pointer = pointer % m_maxBlocksPerArray;
+    int array_pointer = arrayIndex(pointer);
 
     assert array_pointer * m_blockSize < buffer.length : String.format(
         "pointer >= m_buffer.length : %d < %d", array_pointer, buffer.length);
@@ -461,6 +643,60 @@ public class BigBlockAllocator implements IBlockAllocator {
     setInt(pointer, 0, next);
   }
 
+  /**
+   * Initializes a block taken by malloc. blocks that were never handed out are
+   * left alone if the initializer only produces zeros.
+   */
+  private void initializeBlock(int pointer) {
+    if (pointer >= m_zeroMark) {
+      m_zeroMark = pointer + 1;
+      if (m_zeroOnGrow) {
+        set_next(pointer, 0);
+        return;
+      }
+    }
+    set_next(pointer, -1);
+    m_initializer.initialize(this, pointer, m_blockSize);
+  }
+
+  /**
+   * Initializes the run of blocks [from, to) taken from the watermark, in bulk
+   * if the initializer supports it.
+   */
+  private void initializeRun(int from, int to) {
+    int dirty = to;
+    if (m_zeroOnGrow) {
+      dirty = Math.min(to, Math.max(from, m_zeroMark));
+      for (int p = dirty; p < to; p++) {
+        set_next(p, 0);
+      }
+    }
+    if (m_bulkInitializer != null) {
+      for (int p = from; p < dirty;) {
+        int index = arrayIndex(p);
+        int n = Math.min(dirty - p, m_maxBlocksPerArray - index);
+        m_bulkInitializer.initialize(m_buffer[arrayNum(p)], index * m_blockSize, (index + n)
+            * m_blockSize, m_blockSize);
+        p += n;
+      }
+    } else {
+      for (int p = from; p < dirty; p++) {
+        set_next(p, -1);
+        m_initializer.initialize(this, p, m_blockSize);
+      }
+    }
+    m_zeroMark = Math.max(m_zeroMark, to);
+  }
+
+  private void updateBulkInitializer() {
+    if (m_initializer instanceof BulkMemInitializer) {
+      m_bulkInitializer = (BulkMemInitializer) m_initializer;
+    } else {
+      m_bulkInitializer = null;
+    }
+    m_zeroOnGrow = m_bulkInitializer != null && m_bulkInitializer.isZero();
+  }
+
   @Override
   public void clear() {
     m_head = -1;
@@ -469,6 +705,21 @@ public class BigBlockAllocator implements IBlockAllocator {
     set_next(0, -1);
   }
 
+  /**
+   * Clears the allocator and sets every int of its memory to value, splitting
+   * the work over numThreads threads. This touches all the memory up front,
+   * and with a NullInitializer it replaces the per malloc initialization as
+   * long as freed blocks are not reused.
+   *
+   * @param value value to set
+   * @param numThreads number of threads to use
+   */
+  public void clear(int value, int numThreads) {
+    m_zeroMark = value == 0 ? m_reservedBlocks : m_maxCapacity;
+    Parallel.fill(m_buffer, value, numThreads);
+    clear();
+  }
+
   public String debugString() {
     StringBuilder sb = new StringBuilder();
     for (int buffer[] : m_buffer) {
@@ -501,6 +752,25 @@ public class BigBlockAllocator implements IBlockAllocator {
     return m_growthFactor;
   }
 
+  /**
+   * Sets the policy deciding by how much to grow. A policy enables growth even
+   * if the growth factor is 0, and replaces the growth factor when computing
+   * the new size.
+   *
+   * @param policy growth policy, null to grow by the growth factor
+   */
+  public void setGrowthPolicy(GrowthPolicy policy) {
+    m_growthPolicy = policy;
+  }
+
+  public GrowthPolicy getGrowthPolicy() {
+    return m_growthPolicy;
+  }
+
+  private boolean canGrow() {
+    return m_growthFactor != 0 || m_growthPolicy != null;
+  }
+
   @Override
   public boolean isDebug() {
     return m_debug;
@@ -518,6 +788,7 @@ public class BigBlockAllocator implements IBlockAllocator {
   @Override
   public void setInitializer(MemInitializer initializer) {
     m_initializer = initializer;
+    updateBulkInitializer();
   }
 
   @Override
@@ -591,4 +862,24 @@ public class BigBlockAllocator implements IBlockAllocator {
       }
     }
   }
+
+  @Override
+  public byte getByte(int pointer, int byte_offset) {
+    return PackedBytes.getByte(this, pointer, byte_offset);
+  }
+
+  @Override
+  public void setByte(int pointer, int byte_offset, int b) {
+    PackedBytes.setByte(this, pointer, byte_offset, b);
+  }
+
+  @Override
+  public void setBytes(int pointer, int dst_offset, byte[] src_data, int src_pos, int num_bytes) {
+    PackedBytes.setBytes(this, pointer, dst_offset, src_data, src_pos, num_bytes);
+  }
+
+  @Override
+  public void getBytes(int pointer, int src_offset, byte[] dst_data, int dst_pos, int num_bytes) {
+    PackedBytes.getBytes(this, pointer, src_offset, dst_data, dst_pos, num_bytes);
+  }
 }
@@ -6,10 +6,14 @@
  */
 package net.yadan.banana.memory.block;
 
+import net.yadan.banana.memory.BulkMemInitializer;
+import net.yadan.banana.memory.GrowthPolicy;
 import net.yadan.banana.memory.IBlockAllocator;
 import net.yadan.banana.memory.IBuffer;
 import net.yadan.banana.memory.MemInitializer;
 import net.yadan.banana.memory.OutOfMemoryException;
+import net.yadan.banana.memory.PackedBytes;
+import net.yadan.banana.memory.RelocationListener;
 import net.yadan.banana.memory.initializers.PrototypeInitializer;
 
 
@@ -40,10 +44,23 @@ public class BlockAllocator implements IBlockAllocator {
 
   private MemInitializer m_initializer;
 
+  // m_initializer if it can initialize runs of blocks, null otherwise
+  private BulkMemInitializer m_bulkInitializer;
+
+  // true if m_bulkInitializer only produces zeros
+  private boolean m_zeroOnGrow;
+
+  // blocks at or above this mark were never handed out since their memory was
+  // allocated, so they are still zero
+  private int m_zeroMark;
+
   private boolean m_debug;
 
   private double m_growthFactor;
 
+  // overrides m_growthFactor if set
+  private GrowthPolicy m_growthPolicy;
+
   private int m_reservedBlocks;
 
 
@@ -84,6 +101,7 @@ public class BlockAllocator implements IBlockAllocator {
   public BlockAllocator(int maxBlocks, int blockSize, double growthFactor,
       MemInitializer initializer) {
     m_reservedBlocks = 1;
+    m_zeroMark = m_reservedBlocks;
     m_head = -1;
     m_blockSize = blockSize;
     m_maxCapacity = maxBlocks + m_reservedBlocks;
@@ -93,6 +111,7 @@ public class BlockAllocator implements IBlockAllocator {
     }
     m_debug = false;
     m_initializer = initializer;
+    updateBulkInitializer();
 
     if (maxBlocks < 1)
       throw new IllegalArgumentException("maxBlocks " + maxBlocks + " < 1");
@@ -119,7 +138,7 @@ public class BlockAllocator implements IBlockAllocator {
   public int malloc() throws OutOfMemoryException {
     if (m_head == -1) {
       if (m_watermark == m_maxCapacity) {
-        if (m_growthFactor == 0) {
+        if (!canGrow()) {
           throw new OutOfMemoryException("Out of memory (" + maxBlocks() + "/" + usedBlocks()
               + " blocks used)");
         } else {
@@ -136,13 +155,63 @@ public class BlockAllocator implements IBlockAllocator {
     }
     int oldHead = m_head;
     m_head = next(oldHead);
-    set_next(oldHead, -1);
-    m_initializer.initialize(this, oldHead, m_blockSize);
+    initializeBlock(oldHead);
     return oldHead;
   }
 
+  /**
+   * Allocates count blocks. free blocks are reused first, the rest are taken
+   * from the watermark as a single run.
+   *
+   * @throws OutOfMemoryException : if growth is disabled and there are less
+   *           than count free blocks
+   */
+  @Override
+  public void malloc(int count, int out[]) throws OutOfMemoryException {
+    assert count >= 0 : "Negative count " + count;
+    assert count <= out.length : "count > out.length : " + count + " > " + out.length;
+    if (count > freeBlocks()) {
+      if (!canGrow()) {
+        throw new OutOfMemoryException("Out of memory, requested " + count + " blocks ("
+            + maxBlocks() + "/" + usedBlocks() + " blocks used)");
+      }
+      while (count > freeBlocks()) {
+        increaseSize();
+      }
+    }
+
+    int n = 0;
+    while (n < count && m_head != -1) {
+      out[n++] = m_head;
+      m_head = next(m_head);
+    }
+    m_free -= n;
+    int reused = n;
+    int first = m_watermark;
+    while (n < count) {
+      out[n++] = m_watermark++;
+    }
+
+    for (int i = 0; i < reused; i++) {
+      initializeBlock(out[i]);
+    }
+    initializeRun(first, m_watermark);
+  }
+
   private void increaseSize() {
-    int newMaxCapacity = m_reservedBlocks + Math.max(maxBlocks() + 1, (int) (maxBlocks() * m_growthFactor));
+    int newMaxCapacity;
+    if (m_growthPolicy == null) {
+      newMaxCapacity = m_reservedBlocks + Math.max(maxBlocks() + 1, (int) (maxBlocks() * m_growthFactor));
+    } else {
+      long capacity = m_growthPolicy.grow(m_maxCapacity, m_maxCapacity + 1L, 4L * m_blockSize);
+      capacity = Math.min(capacity, Integer.MAX_VALUE / m_blockSize);
+      if (capacity <= m_maxCapacity) {
+        throw new OutOfMemoryException("Out of memory, can not grow beyond Integer.MAX_VALUE ints ("
+            + maxBlocks() + "/" + usedBlocks() + " blocks used)");
+      }
+      newMaxCapacity = (int) capacity;
+      m_growthPolicy.checkAllocation(4L * newMaxCapacity * m_blockSize);
+    }
     int new_buffer[] = new int[newMaxCapacity * blockSize()];
     System.arraycopy(m_buffer, 0, new_buffer, 0, m_buffer.length);
     m_maxCapacity = newMaxCapacity;
@@ -158,6 +227,46 @@ public class BlockAllocator implements IBlockAllocator {
     m_free++;
   }
 
+  @Override
+  public void free(int pointers[], int offset, int length) {
+    if (length == 0) {
+      return;
+    }
+    int last = offset + length - 1;
+    for (int i = offset; i < last; i++) {
+      assert pointers[i] != 0 : "pointer 0 should not be freed";
+      assert pointers[i] != -1 : "pointer -1 should not be freed";
+      set_next(pointers[i], pointers[i + 1]);
+    }
+    assert pointers[last] != 0 : "pointer 0 should not be freed";
+    assert pointers[last] != -1 : "pointer -1 should not be freed";
+    set_next(pointers[last], m_head);
+    m_head = pointers[offset];
+    m_free += length;
+  }
+
+  /**
+   * Moves the used blocks below the watermark. if growth is enabled the buffer
+   * is then shrunk to the used blocks.
+   */
+  @Override
+  public void compact(RelocationListener listener) {
+    m_watermark = BlockCompactor.compact(this, m_head, m_watermark, m_reservedBlocks, listener);
+    m_head = -1;
+    m_free = 0;
+
+    if (canGrow()) {
+      int newMaxCapacity = Math.max(m_watermark, m_reservedBlocks + 1);
+      if (newMaxCapacity < m_maxCapacity) {
+        int new_buffer[] = new int[newMaxCapacity * m_blockSize];
+        System.arraycopy(m_buffer, 0, new_buffer, 0, new_buffer.length);
+        m_maxCapacity = newMaxCapacity;
+        m_buffer = new_buffer;
+        m_zeroMark = Math.min(m_zeroMark, m_maxCapacity);
+      }
+    }
+  }
+
   @Override
   public void memCopy(int srcPtr, int srcPos, int dstPtr, int dstPos, int length) {
     assert srcPtr >= 0 : "Negative pointer : " + srcPtr;
@@ -168,6 +277,38 @@ public class BlockAllocator implements IBlockAllocator {
     System.arraycopy(m_buffer, srcPtr * m_blockSize + srcPos, m_buffer, dstPtr * m_blockSize + dstPos, length);
   }
 
+  @Override
+  public boolean memEquals(int ptr1, int pos1, int ptr2, int pos2, int length) {
+    assert ptr1 >= 0 : "Negative pointer : " + ptr1;
+    assert ptr2 >= 0 : "Negative pointer : " + ptr2;
+    assert pos1 + length <= m_blockSize : "overflow";
+    assert pos2 + length <= m_blockSize : "overflow";
+
+    int o1 = ptr1 * m_blockSize + pos1;
+    int o2 = ptr2 * m_blockSize + pos2;
+    for (int i = 0; i < length; i++) {
+      if (m_buffer[o1 + i] != m_buffer[o2 + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean memEquals(int pointer, int srcPos, int data[], int data_pos, int length) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert srcPos + length <= m_blockSize : "overflow";
+
+    int array[] = m_buffer;
+    int p = pointer * m_blockSize + srcPos;
+    for (int i = 0; i < length; i++) {
+      if (array[p + i] != data[data_pos + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   @Override
   public void memSet(int pointer, int srcPos, int length, int value) {
     assert pointer >= 0 : "Negative pointer : " + pointer;
@@ -308,6 +449,26 @@ public class BlockAllocator implements IBlockAllocator {
     }
   }
 
+  @Override
+  public byte getByte(int pointer, int byte_offset) {
+    return PackedBytes.getByte(this, pointer, byte_offset);
+  }
+
+  @Override
+  public void setByte(int pointer, int byte_offset, int b) {
+    PackedBytes.setByte(this, pointer, byte_offset, b);
+  }
+
+  @Override
+  public void setBytes(int pointer, int dst_offset, byte[] src_data, int src_pos, int num_bytes) {
+    PackedBytes.setBytes(this, pointer, dst_offset, src_data, src_pos, num_bytes);
+  }
+
+  @Override
+  public void getBytes(int pointer, int src_offset, byte[] dst_data, int dst_pos, int num_bytes) {
+    PackedBytes.getBytes(this, pointer, src_offset, dst_data, dst_pos, num_bytes);
+  }
+
   @Override
   public void getBuffer(int pointer, int src_offset_in_record, IBuffer dst, int num_chars) {
     getInts(pointer, src_offset_in_record, dst.array(), 0, num_chars);
@@ -400,6 +561,54 @@ public class BlockAllocator implements IBlockAllocator {
     m_buffer[node * m_blockSize] = next;
   }
 
+  /**
+   * Initializes a block taken by malloc. blocks that were never handed out are
+   * left alone if the initializer only produces zeros.
+   */
+  private void initializeBlock(int pointer) {
+    if (pointer >= m_zeroMark) {
+      m_zeroMark = pointer + 1;
+      if (m_zeroOnGrow) {
+        set_next(pointer, 0);
+        return;
+      }
+    }
+    set_next(pointer, -1);
+    m_initializer.initialize(this, pointer, m_blockSize);
+  }
+
+  /**
+   * Initializes the run of blocks [from, to) taken from the watermark, in bulk
+   * if the initializer supports it.
+   */
+  private void initializeRun(int from, int to) {
+    int dirty = to;
+    if (m_zeroOnGrow) {
+      dirty = Math.min(to, Math.max(from, m_zeroMark));
+      for (int p = dirty; p < to; p++) {
+        set_next(p, 0);
+      }
+    }
+    if (m_bulkInitializer != null) {
+      m_bulkInitializer.initialize(m_buffer, from * m_blockSize, dirty * m_blockSize, m_blockSize);
+    } else {
+      for (int p = from; p < dirty; p++) {
+        set_next(p, -1);
+        m_initializer.initialize(this, p, m_blockSize);
+      }
+    }
+    m_zeroMark = Math.max(m_zeroMark, to);
+  }
+
+  private void updateBulkInitializer() {
+    if (m_initializer instanceof BulkMemInitializer) {
+      m_bulkInitializer = (BulkMemInitializer) m_initializer;
+    } else {
+      m_bulkInitializer = null;
+    }
+    m_zeroOnGrow = m_bulkInitializer != null && m_bulkInitializer.isZero();
+  }
+
   @Override
   public void clear() {
     m_head = -1;
@@ -408,6 +617,21 @@ public class BlockAllocator implements IBlockAllocator {
     set_next(1, -1);
   }
 
+  /**
+   * Clears the allocator and sets every int of its memory to value, splitting
+   * the work over numThreads threads. This touches all the memory up front,
+   * and with a NullInitializer it replaces the per malloc initialization as
+   * long as freed blocks are not reused.
+   *
+   * @param value value to set
+   * @param numThreads number of threads to use
+   */
+  public void clear(int value, int numThreads) {
+    m_zeroMark = value == 0 ? m_reservedBlocks : m_maxCapacity;
+    Parallel.fill(new int[][] { m_buffer }, value, numThreads);
+    clear();
+  }
+
   public String debugString() {
     StringBuilder sb = new StringBuilder();
     for (int d : m_buffer) {
@@ -438,6 +662,25 @@ public class BlockAllocator implements IBlockAllocator {
     return m_growthFactor;
   }
 
+  /**
+   * Sets the policy deciding by how much to grow. A policy enables growth even
+   * if the growth factor is 0, and replaces the growth factor when computing
+   * the new size.
+   *
+   * @param policy growth policy, null to grow by the growth factor
+   */
+  public void setGrowthPolicy(GrowthPolicy policy) {
+    m_growthPolicy = policy;
+  }
+
+  public GrowthPolicy getGrowthPolicy() {
+    return m_growthPolicy;
+  }
+
+  private boolean canGrow() {
+    return m_growthFactor != 0 || m_growthPolicy != null;
+  }
+
   @Override
   public boolean isDebug() {
     return m_debug;
@@ -455,6 +698,7 @@ public class BlockAllocator implements IBlockAllocator {
   @Override
   public void setInitializer(MemInitializer initializer) {
     m_initializer = initializer;
+    updateBulkInitializer();
   }
 
   @Override
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.memory.block;
+
+import java.util.BitSet;
+
+import net.yadan.banana.memory.IBlockAllocator;
+import net.yadan.banana.memory.RelocationListener;
+
+/**
+ * Moves the live blocks of a free-list based block allocator below a new
+ * watermark. Free blocks are filled from the bottom with live blocks taken
+ * from the top, so each block is moved at most once.
+ */
+class BlockCompactor {
+
+  /**
+   * @param blocks the allocator to compact, the first int of every free block
+   *          holds the next pointer in the free list
+   * @param head head of the free list
+   * @param watermark first block that was never allocated
+   * @param reservedBlocks number of reserved blocks at the beginning
+   * @param listener notified for each moved block, may be null
+   * @return the new watermark, all blocks below it are in use. the caller
+   *         should reset its free list.
+   */
+  static int compact(IBlockAllocator blocks, int head, int watermark, int reservedBlocks,
+      RelocationListener listener) {
+    BitSet free = new BitSet(watermark);
+    for (int p = head; p != -1; p = blocks.getInt(p, 0)) {
+      free.set(p);
+    }
+
+    int numFree = free.cardinality();
+    int blockSize = blocks.blockSize();
+    int lo = reservedBlocks;
+    int hi = watermark - 1;
+    while (true) {
+      lo = free.nextSetBit(lo);
+      while (hi > lo && free.get(hi)) {
+        hi--;
+      }
+      if (lo == -1 || lo >= hi) {
+        break;
+      }
+      blocks.memCopy(hi, 0, lo, 0, blockSize);
+      if (listener != null) {
+        listener.relocated(hi, lo);
+      }
+      lo++;
+      hi--;
+    }
+
+    return watermark - numFree;
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.memory.block;
+
+import java.util.Arrays;
+
+/**
+ * Splits the blocks of an allocator over several chunks (arrays or buffers),
+ * for allocators that need more memory than a single chunk can hold.
+ *
+ * Every chunk holds maxBlocksPerChunk blocks except the last, which holds the
+ * rest, so the layout only depends on the capacity. Growing and trimming keep
+ * the full chunks and only replace the last one.
+ */
+final class Chunks {
+
+  /**
+   * Allocates and copies chunks of some type
+   */
+  interface Factory<T> {
+    public T allocate(int numInts);
+
+    public int size(T chunk);
+
+    /**
+     * @return a new chunk of numInts ints, with the content of chunk up to the
+     *         smaller of the sizes
+     */
+    public T resize(T chunk, int numInts);
+  }
+
+  private Chunks() {
+  }
+
+  /**
+   * @param capacity number of blocks
+   * @param maxBlocksPerChunk number of blocks in a full chunk
+   * @param blockSize block size in ints
+   * @param description what the chunks are, for the error message
+   * @return size in ints of each chunk
+   * @throws IllegalArgumentException if more than Integer.MAX_VALUE chunks are
+   *           needed
+   */
+  static int[] sizes(long capacity, int maxBlocksPerChunk, int blockSize, String description) {
+    long numChunks = 1 + (capacity - 1) / maxBlocksPerChunk;
+    if (numChunks > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Attempted to allocate " + numChunks + " "
+          + description + ", which is greated than Integer.MAX_VALUE (" + Integer.MAX_VALUE + ")");
+    }
+    int sizes[] = new int[(int) numChunks];
+    for (int i = 0; i < sizes.length; i++) {
+      sizes[i] = (int) Math.min(maxBlocksPerChunk, capacity - (long) i * maxBlocksPerChunk)
+          * blockSize;
+    }
+    return sizes;
+  }
+
+  /**
+   * @return chunks laid out for capacity blocks. full chunks are kept, the
+   *         last chunk is resized and missing chunks are allocated
+   */
+  static <T> T[] resize(T chunks[], int capacity, int maxBlocksPerChunk, int blockSize,
+      Factory<T> factory) {
+    int sizes[] = sizes(capacity, maxBlocksPerChunk, blockSize, "chunks");
+    T resized[] = Arrays.copyOf(chunks, sizes.length);
+    for (int i = 0; i < sizes.length; i++) {
+      if (i >= chunks.length) {
+        resized[i] = factory.allocate(sizes[i]);
+      } else if (factory.size(resized[i]) != sizes[i]) {
+        resized[i] = factory.resize(resized[i], sizes[i]);
+      }
+    }
+    return resized;
+  }
+}
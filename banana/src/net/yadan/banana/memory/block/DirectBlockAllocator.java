@@ -0,0 +1,688 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.memory.block;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import net.yadan.banana.memory.IBlockAllocator;
+import net.yadan.banana.memory.IBuffer;
+import net.yadan.banana.memory.MemInitializer;
+import net.yadan.banana.memory.OutOfMemoryException;
+import net.yadan.banana.memory.PackedBytes;
+import net.yadan.banana.memory.RelocationListener;
+import net.yadan.banana.memory.initializers.PrototypeInitializer;
+
+
+/**
+ * A fixed size block allocator that keeps its blocks in direct (off-heap)
+ * memory instead of int arrays.
+ *
+ * The memory is split into multiple direct buffers, each up to 2GB in size, so
+ * like {@link BigBlockAllocator} this allocator can access up to 2B blocks
+ * regardless of the block size. Since the data is not on the java heap it is
+ * not scanned or copied by the garbage collector and does not count against the
+ * maximum heap size (it is limited by -XX:MaxDirectMemorySize instead).
+ */
+public class DirectBlockAllocator implements IBlockAllocator {
+
+  private static final int MAX_INTS_PER_BUFFER;
+  static {
+    String max = System.getProperty("DirectBlockAllocator.MAX_INTS_PER_BUFFER",
+        String.valueOf(Integer.MAX_VALUE / 4));
+    MAX_INTS_PER_BUFFER = Integer.parseInt(max);
+  }
+
+  protected final int m_blockSize;
+
+  private int m_watermark;
+  private int m_free;
+  private int m_head;
+
+  IntBuffer m_buffer[];
+
+  private int m_maxCapacity;
+
+  private MemInitializer m_initializer;
+
+  private boolean m_debug;
+
+  private double m_growthFactor;
+
+  private int m_maxBlocksPerBuffer;
+
+  private int m_reservedBlocks;
+
+  // m_fillValue repeated, bulk copied by memSet()
+  private int m_fill[] = new int[0];
+  private int m_fillValue;
+
+  /**
+   * @param maxBlocks number of blocks to reserve space for
+   * @param blockSize record size in ints.
+   */
+  public DirectBlockAllocator(int maxBlocks, int blockSize) {
+    this(maxBlocks, blockSize, null);
+  }
+
+  /**
+   * @param maxBlocks number of records to reserve space for
+   * @param blockSize record size in ints.
+   * @param initializer a callback to initialize newly allocated records
+   */
+  public DirectBlockAllocator(int maxBlocks, int blockSize, MemInitializer initializer) {
+    this(maxBlocks, blockSize, 0, initializer);
+  }
+
+  /**
+   * @param maxBlocks number of records to reserve space for
+   * @param blockSize record size in ints.
+   * @param growthFactor determines by how much to grow buffer when it runs out
+   *          of memory. 0 to disable growth
+   */
+  public DirectBlockAllocator(int maxBlocks, int blockSize, double growthFactor) {
+    this(maxBlocks, blockSize, growthFactor, null);
+  }
+
+  /**
+   * @param maxBlocks number of records to reserve space for
+   * @param blockSize record size in ints.
+   * @param growthFactor determines by how much to grow buffer when it runs out
+   *          of memory. 0 to disable growth
+   * @param initializer a callback to initialize newly allocated records
+   */
+  public DirectBlockAllocator(int maxBlocks, int blockSize, double growthFactor,
+      MemInitializer initializer) {
+    m_reservedBlocks = 1;
+    m_head = -1;
+    m_maxCapacity = maxBlocks + m_reservedBlocks;
+    m_blockSize = blockSize;
+    m_growthFactor = growthFactor;
+    if (initializer == null) {
+      initializer = new PrototypeInitializer(blockSize);
+    }
+    m_debug = false;
+    m_initializer = initializer;
+
+    if (maxBlocks < 1)
+      throw new IllegalArgumentException("maxBlocks " + maxBlocks + " < 1");
+
+    // block 0 is reserved
+    long size = (m_reservedBlocks + (long) maxBlocks) * m_blockSize;
+    m_maxBlocksPerBuffer = MAX_INTS_PER_BUFFER / m_blockSize;
+    if (m_maxBlocksPerBuffer < 1) {
+      throw new IllegalArgumentException("Block size " + m_blockSize
+          + " is larger than the maximum buffer size (" + MAX_INTS_PER_BUFFER + " ints)");
+    }
+    final int sizes[] = Chunks.sizes(m_reservedBlocks + (long) maxBlocks, m_maxBlocksPerBuffer,
+        m_blockSize, "direct buffers");
+    int num_buffers = sizes.length;
+    m_buffer = new IntBuffer[num_buffers];
+
+    // buffers are zeroed by the thread allocating them
+    final IntBuffer buffer[] = m_buffer;
+    Parallel.forEach(num_buffers, Parallel.threadsFor(size), new Parallel.Task() {
+      @Override
+      public void run(int i) {
+        buffer[i] = allocateBuffer(sizes[i]);
+      }
+    });
+
+    clear();
+  }
+
+  private static final Chunks.Factory<IntBuffer> BUFFERS = new Chunks.Factory<IntBuffer>() {
+    @Override
+    public IntBuffer allocate(int numInts) {
+      return allocateBuffer(numInts);
+    }
+
+    @Override
+    public int size(IntBuffer buffer) {
+      return buffer.capacity();
+    }
+
+    @Override
+    public IntBuffer resize(IntBuffer buffer, int numInts) {
+      IntBuffer resized = allocateBuffer(numInts);
+      IntBuffers.copy(buffer, 0, resized, 0, Math.min(buffer.capacity(), numInts));
+      return resized;
+    }
+  };
+
+  private static IntBuffer allocateBuffer(int numInts) {
+    try {
+      return ByteBuffer.allocateDirect(numInts * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+    } catch (OutOfMemoryError e) {
+      throw new OutOfMemoryException("Failed to allocate " + (numInts * 4L)
+          + " bytes of direct memory", e);
+    }
+  }
+
+  /**
+   * Allocates a single block and returns a pointer to that block
+   *
+   * @return pointer to newly allocated block
+   *
+   * @throws OutOfMemoryException : if there are 0 free blocks
+   */
+  @Override
+  public int malloc() throws OutOfMemoryException {
+    if (m_head == -1) {
+      if (m_watermark == m_maxCapacity) {
+        if (m_growthFactor == 0) {
+          throw new OutOfMemoryException("Out of memory (" + maxBlocks() + "/" + usedBlocks()
+              + " blocks used)");
+        } else {
+          increaseSize();
+          return malloc();
+        }
+      } else {
+        m_head = m_watermark;
+        set_next(m_head, -1);
+        m_watermark++;
+      }
+    } else {
+      m_free--;
+    }
+    int oldHead = m_head;
+    m_head = next(oldHead);
+    set_next(oldHead, -1);
+    m_initializer.initialize(this, oldHead, m_blockSize);
+    return oldHead;
+  }
+
+  /**
+   * Allocates count blocks. free blocks are reused first, the rest are taken
+   * from the watermark as a single run.
+   *
+   * @throws OutOfMemoryException : if growth is disabled and there are less
+   *           than count free blocks
+   */
+  @Override
+  public void malloc(int count, int out[]) throws OutOfMemoryException {
+    assert count >= 0 : "Negative count " + count;
+    assert count <= out.length : "count > out.length : " + count + " > " + out.length;
+    if (count > freeBlocks()) {
+      if (m_growthFactor == 0) {
+        throw new OutOfMemoryException("Out of memory, requested " + count + " blocks ("
+            + maxBlocks() + "/" + usedBlocks() + " blocks used)");
+      }
+      while (count > freeBlocks()) {
+        increaseSize();
+      }
+    }
+
+    int n = 0;
+    while (n < count && m_head != -1) {
+      out[n++] = m_head;
+      m_head = next(m_head);
+    }
+    m_free -= n;
+    while (n < count) {
+      out[n++] = m_watermark++;
+    }
+
+    for (int i = 0; i < count; i++) {
+      set_next(out[i], -1);
+      m_initializer.initialize(this, out[i], m_blockSize);
+    }
+  }
+
+  private void increaseSize() {
+    int currentMaxBlocks = maxBlocks();
+    int new_max_capacity = m_reservedBlocks
+        + Math.max(currentMaxBlocks + 1, (int) (currentMaxBlocks * m_growthFactor));
+    m_buffer = Chunks.resize(m_buffer, new_max_capacity, m_maxBlocksPerBuffer, m_blockSize,
+        BUFFERS);
+    m_maxCapacity = new_max_capacity;
+  }
+
+  @Override
+  public void free(int pointer) {
+    assert pointer != 0 : "pointer 0 should not be freed";
+    assert pointer != -1 : "pointer -1 should not be freed";
+    set_next(pointer, m_head);
+    m_head = pointer;
+    m_free++;
+  }
+
+  @Override
+  public void free(int pointers[], int offset, int length) {
+    if (length == 0) {
+      return;
+    }
+    int last = offset + length - 1;
+    for (int i = offset; i < last; i++) {
+      assert pointers[i] != 0 : "pointer 0 should not be freed";
+      assert pointers[i] != -1 : "pointer -1 should not be freed";
+      set_next(pointers[i], pointers[i + 1]);
+    }
+    assert pointers[last] != 0 : "pointer 0 should not be freed";
+    assert pointers[last] != -1 : "pointer -1 should not be freed";
+    set_next(pointers[last], m_head);
+    m_head = pointers[offset];
+    m_free += length;
+  }
+
+  /**
+   * Moves the used blocks below the watermark. if growth is enabled buffers
+   * beyond the used blocks are released and the last buffer is trimmed.
+   */
+  @Override
+  public void compact(RelocationListener listener) {
+    m_watermark = BlockCompactor.compact(this, m_head, m_watermark, m_reservedBlocks, listener);
+    m_head = -1;
+    m_free = 0;
+
+    if (m_growthFactor != 0) {
+      int newMaxCapacity = Math.max(m_watermark, m_reservedBlocks + 1);
+      if (newMaxCapacity < m_maxCapacity) {
+        m_buffer = Chunks.resize(m_buffer, newMaxCapacity, m_maxBlocksPerBuffer, m_blockSize,
+            BUFFERS);
+        m_maxCapacity = newMaxCapacity;
+      }
+    }
+  }
+
+  @Override
+  public void memCopy(int srcPtr, int srcPos, int dstPtr, int dstPos, int length) {
+    assert srcPtr >= 0 : "Negative pointer : " + srcPtr;
+    assert dstPtr >= 0 : "Negative pointer : " + srcPtr;
+    assert length <= m_blockSize : "length > m_blockSize";
+    assert srcPos + length <= m_blockSize : "src overflow";
+    assert dstPos + length <= m_blockSize : "dst overflow";
+
+    IntBuffer src = m_buffer[srcPtr / m_maxBlocksPerBuffer];
+    int srcOffset = (srcPtr % m_maxBlocksPerBuffer) * m_blockSize + srcPos;
+    IntBuffer dst = m_buffer[dstPtr / m_maxBlocksPerBuffer];
+    int dstOffset = (dstPtr % m_maxBlocksPerBuffer) * m_blockSize + dstPos;
+
+    IntBuffers.copy(src, srcOffset, dst, dstOffset, length);
+  }
+
+  @Override
+  public boolean memEquals(int ptr1, int pos1, int ptr2, int pos2, int length) {
+    assert ptr1 >= 0 : "Negative pointer : " + ptr1;
+    assert ptr2 >= 0 : "Negative pointer : " + ptr2;
+    assert pos1 + length <= m_blockSize : "overflow";
+    assert pos2 + length <= m_blockSize : "overflow";
+
+    IntBuffer b1 = m_buffer[ptr1 / m_maxBlocksPerBuffer];
+    int o1 = (ptr1 % m_maxBlocksPerBuffer) * m_blockSize + pos1;
+    IntBuffer b2 = m_buffer[ptr2 / m_maxBlocksPerBuffer];
+    int o2 = (ptr2 % m_maxBlocksPerBuffer) * m_blockSize + pos2;
+    return IntBuffers.range(b1, o1, length).equals(IntBuffers.range(b2, o2, length));
+  }
+
+  @Override
+  public boolean memEquals(int pointer, int srcPos, int data[], int data_pos, int length) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert srcPos + length <= m_blockSize : "overflow";
+
+    IntBuffer buffer = m_buffer[pointer / m_maxBlocksPerBuffer];
+    int p = (pointer % m_maxBlocksPerBuffer) * m_blockSize + srcPos;
+    return IntBuffers.range(buffer, p, length).equals(IntBuffer.wrap(data, data_pos, length));
+  }
+
+  @Override
+  public void memSet(int pointer, int srcPos, int length, int value) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert length <= m_blockSize : "length > m_blockSize";
+    assert srcPos + length <= m_blockSize : "overflow";
+
+    IntBuffer buffer = m_buffer[pointer / m_maxBlocksPerBuffer];
+    if (m_fill.length < length) {
+      m_fill = new int[Math.max(length, 2 * m_fill.length)];
+      m_fillValue = 0;
+    }
+    if (m_fillValue != value) {
+      Arrays.fill(m_fill, value);
+      m_fillValue = value;
+    }
+    IntBuffers.put(buffer, (pointer % m_maxBlocksPerBuffer) * m_blockSize + srcPos, m_fill, 0,
+        length);
+  }
+
+  @Override
+  public short getUpperShort(int pointer, int offset) {
+    return (short) (getInt(pointer, offset) >>> 16);
+  }
+
+  @Override
+  public short getLowerShort(int pointer, int offset) {
+    return (short) (getInt(pointer, offset));
+  }
+
+  @Override
+  public void setUpperShort(int pointer, int offset, int s) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert offset >= 0 : "Negative offset " + offset;
+    assert offset < m_blockSize : String.format("offset >= m_blockSize : %d >= %d", offset, m_blockSize);
+
+    IntBuffer buffer = m_buffer[pointer / m_maxBlocksPerBuffer];
+    int off = (pointer % m_maxBlocksPerBuffer) * m_blockSize + offset;
+    int lower = buffer.get(off) & 0x0000ffff;
+    buffer.put(off, (s << 16) | lower);
+  }
+
+  @Override
+  public void setLowerShort(int pointer, int offset, int s) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert offset >= 0 : "Negative offset " + offset;
+    assert offset < m_blockSize : String.format("offset >= m_blockSize : %d >= %d", offset, m_blockSize);
+
+    IntBuffer buffer = m_buffer[pointer / m_maxBlocksPerBuffer];
+    int off = (pointer % m_maxBlocksPerBuffer) * m_blockSize + offset;
+    int upper = buffer.get(off) & 0xffff0000;
+    buffer.put(off, upper | (s & 0x0000ffff));
+  }
+
+  @Override
+  public int getInt(int pointer, int offset_in_data) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert offset_in_data >= 0 : "Negative offset_in_data " + offset_in_data;
+    assert offset_in_data < m_blockSize : String.format("offset_in_data >= m_blockSize : %d >= %d",
+        offset_in_data, m_blockSize);
+    int buffer_num = pointer / m_maxBlocksPerBuffer;
+    int buffer_pointer = pointer % m_maxBlocksPerBuffer;
+    return m_buffer[buffer_num].get(buffer_pointer * m_blockSize + offset_in_data);
+  }
+
+  @Override
+  public void setInt(int pointer, int offset_in_data, int data) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert offset_in_data >= 0 : "Negative offset_in_data " + offset_in_data;
+    assert offset_in_data < m_blockSize : String.format("offset_in_data >= m_blockSize : %d >= %d",
+        offset_in_data, m_blockSize);
+    int buffer_num = pointer / m_maxBlocksPerBuffer;
+    int buffer_pointer = pointer % m_maxBlocksPerBuffer;
+    m_buffer[buffer_num].put(buffer_pointer * m_blockSize + offset_in_data, data);
+  }
+
+  @Override
+  public void setInts(int pointer, int dst_offset_in_record,
+      int src_data[], int src_pos, int length) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert src_pos >= 0 : "Negative src_pos";
+    assert src_pos + length <= src_data.length : String.format(
+        "src_pos + length > src_data.length : %d + %d > %d", src_pos, length, src_data.length);
+    assert dst_offset_in_record + length <= m_blockSize : String.format(
+        "dst_offset_in_record + length > m_blockSize   : %d + %d >= %d", dst_offset_in_record,
+        length, m_blockSize);
+
+    IntBuffer buffer = m_buffer[pointer / m_maxBlocksPerBuffer];
+    int off = (pointer % m_maxBlocksPerBuffer) * m_blockSize + dst_offset_in_record;
+    IntBuffers.put(buffer, off, src_data, src_pos, length);
+  }
+
+  @Override
+  public void getInts(int pointer, int src_offset_in_record,
+      int dst_data[], int dst_pos, int length) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert src_offset_in_record >= 0 : String.format("src_offset_in_record < 0 : %d < 0",
+        src_offset_in_record);
+    assert src_offset_in_record < m_blockSize : String.format(
+        "src_offset_in_record >= m_blockSize : %d >= %d", src_offset_in_record, m_blockSize);
+    assert dst_pos >= 0 : String.format("dst_pos < 0 : %d", dst_pos);
+    assert dst_pos + length <= dst_data.length : String.format(
+        "dst_pos + length > dst_data.length : %d + %d >= %d", dst_pos, length, dst_data.length);
+
+    IntBuffer buffer = m_buffer[pointer / m_maxBlocksPerBuffer];
+    int off = (pointer % m_maxBlocksPerBuffer) * m_blockSize + src_offset_in_record;
+    IntBuffers.get(buffer, off, dst_data, dst_pos, length);
+  }
+
+  @Override
+  public void getBuffer(int pointer, int src_offset_in_record, IBuffer dst, int length) {
+    getInts(pointer, src_offset_in_record, dst.array(), 0, length);
+    dst.setUsed(length);
+  }
+
+  @Override
+  public long getLong(int pointer, int offset_in_data) {
+    int ilower = getInt(pointer, offset_in_data + 1);
+    int iupper = getInt(pointer, offset_in_data);
+    long lower = 0x00000000FFFFFFFFL & ilower;
+    long upper = ((long) iupper) << 32;
+    long ret = upper | lower;
+    return ret;
+  }
+
+  @Override
+  public void setLong(int pointer, int offset_in_data, long data) {
+    // upper int
+    setInt(pointer, offset_in_data, (int) (data >> 32));
+    // lower int
+    setInt(pointer, offset_in_data + 1, (int) (data));
+  }
+
+  /**
+   * @return the number of free blocks
+   */
+  @Override
+  public int freeBlocks() {
+    return m_free + m_maxCapacity - m_watermark;
+  }
+
+  /**
+   * @return the total block capacity for this allocator
+   */
+  @Override
+  public int maxBlocks() {
+    return m_maxCapacity - m_reservedBlocks; // block 0 is reserved
+  }
+
+  /**
+   * @return number of used blocks
+   */
+  @Override
+  public int usedBlocks() {
+    return maxBlocks() - freeBlocks();
+  }
+
+  /**
+   * @return the fixed block size for this allocator
+   */
+  @Override
+  public int blockSize() {
+    return m_blockSize;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder s = new StringBuilder();
+    try {
+      s.append(String.format(
+          "DirectBlockAllocator %s/%s records of %d ints used, total ints allocated %d",
+          usedBlocks(), maxBlocks(), m_blockSize, (long) m_maxCapacity * m_blockSize));
+      if (m_debug) {
+        s.append('\n');
+        for (int i = m_reservedBlocks; i < m_maxCapacity; i++) {
+          s.append('(');
+          for (int j = 0; j < m_blockSize; j++) {
+            s.append(getInt(i, j));
+            if (j != m_blockSize - 1) {
+              s.append(',');
+            }
+          }
+          s.append(')');
+          if (i != m_maxCapacity - 1) {
+            s.append(',');
+          }
+        }
+      }
+    } catch (RuntimeException e) {
+      s.append(" :: Exception inToString() " + e.getClass().getName() + " : " + e.getMessage());
+    }
+    return s.toString();
+  }
+
+  private int next(int pointer) {
+    return getInt(pointer, 0);
+  }
+
+  private void set_next(int pointer, int next) {
+    setInt(pointer, 0, next);
+  }
+
+  @Override
+  public void clear() {
+    m_head = -1;
+    m_watermark = m_reservedBlocks;
+    m_free = 0;
+  }
+
+  /**
+   * Clears the allocator and sets every int of its memory to value, splitting
+   * the work over numThreads threads. This touches all the memory up front,
+   * and with a NullInitializer it replaces the per malloc initialization as
+   * long as freed blocks are not reused.
+   *
+   * @param value value to set
+   * @param numThreads number of threads to use
+   */
+  public void clear(int value, int numThreads) {
+    Parallel.fill(m_buffer, value, numThreads);
+    clear();
+  }
+
+  /**
+   * Sets the allocator growth factor.
+   *
+   * @param d new growth factor, 0 to disable growth (default)
+   */
+  @Override
+  public void setGrowthFactor(double d) {
+    m_growthFactor = d;
+  }
+
+  /**
+   * @return the current list growth factor
+   */
+  @Override
+  public double getGrowthFactor() {
+    return m_growthFactor;
+  }
+
+  @Override
+  public boolean isDebug() {
+    return m_debug;
+  }
+
+  @Override
+  public void setDebug(boolean debug) {
+    m_debug = debug;
+  }
+
+  public MemInitializer getInitializer() {
+    return m_initializer;
+  }
+
+  @Override
+  public void setInitializer(MemInitializer initializer) {
+    m_initializer = initializer;
+  }
+
+  @Override
+  public void initialize(int pointer) {
+    m_initializer.initialize(this, pointer, m_blockSize);
+  }
+
+  /**
+   * @return the number of bytes of direct memory used by this allocator. Note
+   *         that this memory is not part of the java heap.
+   */
+  @Override
+  public long computeMemoryUsage() {
+    long mem = 0;
+    for (IntBuffer buffer : m_buffer) {
+      mem += buffer.capacity();
+    }
+    return mem * 4;
+  }
+
+  @Override
+  public int maximumCapacityFor(int pointer) {
+    return m_blockSize;
+  }
+
+  @Override
+  public float getFloat(int pointer, int offset) {
+    return Float.intBitsToFloat(getInt(pointer, offset));
+  }
+
+  @Override
+  public void setFloat(int pointer, int offset, float f) {
+    setInt(pointer, offset, Float.floatToIntBits(f));
+  }
+
+  @Override
+  public double getDouble(int pointer, int offset_in_data) {
+    return Double.longBitsToDouble(getLong(pointer, offset_in_data));
+  }
+
+  @Override
+  public void setDouble(int pointer, int offset_in_data, double data) {
+    setLong(pointer, offset_in_data, Double.doubleToLongBits(data));
+  }
+
+  @Override
+  public void setChars(int pointer, int dst_offset, char[] src_data, int src_pos, int num_chars) {
+    if (num_chars == 0) {
+      return;
+    }
+    int numInts = 1 + (num_chars - 1) / 2; // ceil(num_chars/2)
+    for (int i = dst_offset, src_index = src_pos, num_copied = 0; i < dst_offset + numInts; i++, src_index += 2) {
+      setUpperShort(pointer, i, src_data[src_index]);
+      num_copied++;
+      if (num_copied < num_chars) {
+        setLowerShort(pointer, i, src_data[src_index + 1]);
+        num_copied++;
+      }
+    }
+  }
+
+  @Override
+  public void getChars(int pointer, int src_offset, char[] dst_data, int dst_pos, int num_chars) {
+    if (num_chars == 0) {
+      return;
+    }
+
+    int numInts = 1 + (num_chars - 1) / 2; // ceil(length/2)
+    for (int i = src_offset, dst_index = dst_pos, num_copied = 0; i < src_offset + numInts; i++, dst_index += 2) {
+      dst_data[dst_index] = (char) getUpperShort(pointer, i);
+      num_copied++;
+      if (num_copied < num_chars) {
+        dst_data[dst_index + 1] = (char) getLowerShort(pointer, i);
+        num_copied++;
+      }
+    }
+  }
+
+  @Override
+  public byte getByte(int pointer, int byte_offset) {
+    return PackedBytes.getByte(this, pointer, byte_offset);
+  }
+
+  @Override
+  public void setByte(int pointer, int byte_offset, int b) {
+    PackedBytes.setByte(this, pointer, byte_offset, b);
+  }
+
+  @Override
+  public void setBytes(int pointer, int dst_offset, byte[] src_data, int src_pos, int num_bytes) {
+    PackedBytes.setBytes(this, pointer, dst_offset, src_data, src_pos, num_bytes);
+  }
+
+  @Override
+  public void getBytes(int pointer, int src_offset, byte[] dst_data, int dst_pos, int num_bytes) {
+    PackedBytes.getBytes(this, pointer, src_offset, dst_data, dst_pos, num_bytes);
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.memory.block;
+
+import java.nio.IntBuffer;
+
+/**
+ * Bulk transfers for the allocators that keep their blocks in IntBuffers.
+ *
+ * All transfers go through duplicated views, so the position and limit of the
+ * shared buffers are never modified and concurrent readers do not interfere.
+ */
+final class IntBuffers {
+
+  private IntBuffers() {
+  }
+
+  /**
+   * Copies length ints from src to dst. the ranges may overlap.
+   */
+  static void copy(IntBuffer src, int srcOffset, IntBuffer dst, int dstOffset, int length) {
+    if (src != dst || srcOffset + length <= dstOffset || dstOffset + length <= srcOffset) {
+      IntBuffer to = dst.duplicate();
+      to.position(dstOffset);
+      to.put(range(src, srcOffset, length));
+    } else {
+      // overlapping, go through a copy of the source range
+      int tmp[] = new int[length];
+      get(src, srcOffset, tmp, 0, length);
+      put(dst, dstOffset, tmp, 0, length);
+    }
+  }
+
+  /**
+   * @return a view of length ints from offset
+   */
+  static IntBuffer range(IntBuffer buffer, int offset, int length) {
+    IntBuffer view = buffer.duplicate();
+    view.limit(offset + length);
+    view.position(offset);
+    return view;
+  }
+
+  static void put(IntBuffer buffer, int offset, int src[], int src_pos, int length) {
+    IntBuffer view = buffer.duplicate();
+    view.position(offset);
+    view.put(src, src_pos, length);
+  }
+
+  static void get(IntBuffer buffer, int offset, int dst[], int dst_pos, int length) {
+    IntBuffer view = buffer.duplicate();
+    view.position(offset);
+    view.get(dst, dst_pos, length);
+  }
+}
@@ -0,0 +1,442 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.memory.block;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+import net.yadan.banana.memory.ILongBlockAllocator;
+import net.yadan.banana.memory.OutOfMemoryException;
+
+/**
+ * A fixed size block allocator with 64 bit pointers.
+ *
+ * Blocks are stored in segments of a power of two number of blocks, like
+ * {@link SegmentedBlockAllocator}, and a pointer is split into a segment
+ * number and a block index with a shift and a mask. Since pointers are longs
+ * the number of blocks is only limited by the number of segments, so a single
+ * allocator can span far more than Integer.MAX_VALUE blocks.
+ *
+ * Segments are either heap int buffers or direct (off heap) buffers, and are
+ * allocated lazily as the watermark reaches them. Growing never copies data.
+ *
+ * The free list stores the next pointer as a long in the first two ints of a
+ * free block, so the minimum block size is 2. Blocks are zeroed when
+ * allocated.
+ */
+public class LongBlockAllocator implements ILongBlockAllocator {
+
+  private static final int DEFAULT_BLOCKS_PER_SEGMENT;
+  static {
+    String blocks = System.getProperty("LongBlockAllocator.BLOCKS_PER_SEGMENT",
+        String.valueOf(1 << 16));
+    DEFAULT_BLOCKS_PER_SEGMENT = Integer.parseInt(blocks);
+  }
+
+  // direct buffers are limited to Integer.MAX_VALUE bytes
+  private static final int MAX_INTS_PER_SEGMENT = Integer.MAX_VALUE / 4;
+
+  private static final int MAX_SEGMENTS = Integer.MAX_VALUE - 8;
+
+  private final int m_blockSize;
+
+  private final boolean m_direct;
+
+  private long m_watermark;
+  private long m_free;
+  private long m_head;
+
+  private IntBuffer m_segments[];
+
+  private long m_maxCapacity;
+
+  private boolean m_debug;
+
+  private double m_growthFactor;
+
+  private final int m_segmentShift;
+
+  private final long m_segmentMask;
+
+  private final int m_reservedBlocks;
+
+  /**
+   * @param maxBlocks number of blocks to reserve space for
+   * @param blockSize block size in ints, at least 2
+   */
+  public LongBlockAllocator(long maxBlocks, int blockSize) {
+    this(maxBlocks, blockSize, 0);
+  }
+
+  /**
+   * @param maxBlocks number of blocks to reserve space for
+   * @param blockSize block size in ints, at least 2
+   * @param growthFactor determines by how much to grow buffer when it runs out
+   *          of memory. 0 to disable growth
+   */
+  public LongBlockAllocator(long maxBlocks, int blockSize, double growthFactor) {
+    this(maxBlocks, blockSize, DEFAULT_BLOCKS_PER_SEGMENT, growthFactor, false);
+  }
+
+  /**
+   * @param maxBlocks number of blocks to reserve space for
+   * @param blockSize block size in ints, at least 2
+   * @param blocksPerSegment number of blocks in each segment, rounded up to the
+   *          next power of two
+   * @param growthFactor determines by how much to grow buffer when it runs out
+   *          of memory. 0 to disable growth
+   * @param direct true to store the segments in direct (off heap) buffers
+   */
+  public LongBlockAllocator(long maxBlocks, int blockSize, int blocksPerSegment,
+      double growthFactor, boolean direct) {
+    if (maxBlocks < 1)
+      throw new IllegalArgumentException("maxBlocks " + maxBlocks + " < 1");
+    if (blockSize < 2)
+      throw new IllegalArgumentException("Minimum block size is 2");
+    if (blockSize > MAX_INTS_PER_SEGMENT)
+      throw new IllegalArgumentException("blockSize " + blockSize + " > " + MAX_INTS_PER_SEGMENT);
+    if (blocksPerSegment < 1)
+      throw new IllegalArgumentException("blocksPerSegment " + blocksPerSegment + " < 1");
+
+    m_reservedBlocks = 1;
+    m_blockSize = blockSize;
+    m_growthFactor = growthFactor;
+    m_direct = direct;
+    m_debug = false;
+
+    int shift = 32 - Integer.numberOfLeadingZeros(blocksPerSegment - 1);
+    while (shift > 0 && ((long) m_blockSize << shift) > MAX_INTS_PER_SEGMENT) {
+      shift--;
+    }
+    m_segmentShift = shift;
+    m_segmentMask = (1L << shift) - 1;
+
+    // block 0 is reserved
+    m_maxCapacity = m_reservedBlocks + maxBlocks;
+    m_segments = new IntBuffer[numSegments(m_maxCapacity)];
+    // the first segment holds the reserved block
+    m_segments[0] = allocateSegment();
+
+    clear();
+  }
+
+  private int numSegments(long capacity) {
+    long num_segments = 1 + ((capacity - 1) >>> m_segmentShift);
+    if (num_segments > MAX_SEGMENTS) {
+      throw new OutOfMemoryException("Attempted to allocate " + capacity + " blocks, which needs "
+          + num_segments + " segments (maximum is " + MAX_SEGMENTS + ")");
+    }
+    return (int) num_segments;
+  }
+
+  private IntBuffer allocateSegment() {
+    int numInts = m_blockSize << m_segmentShift;
+    if (m_direct) {
+      return ByteBuffer.allocateDirect(numInts * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+    } else {
+      return IntBuffer.allocate(numInts);
+    }
+  }
+
+  @Override
+  public long malloc() throws OutOfMemoryException {
+    if (m_head == -1) {
+      if (m_watermark == m_maxCapacity) {
+        if (m_growthFactor == 0) {
+          throw new OutOfMemoryException("Out of memory (" + maxBlocks() + "/" + usedBlocks()
+              + " blocks used)");
+        } else {
+          increaseSize();
+          return malloc();
+        }
+      } else {
+        int segment = (int) (m_watermark >>> m_segmentShift);
+        if (m_segments[segment] == null) {
+          m_segments[segment] = allocateSegment();
+        }
+        m_head = m_watermark;
+        set_next(m_head, -1);
+        m_watermark++;
+      }
+    } else {
+      m_free--;
+    }
+    long oldHead = m_head;
+    m_head = next(oldHead);
+    memSet(oldHead, 0, m_blockSize, 0);
+    return oldHead;
+  }
+
+  /**
+   * Raises the capacity limit. only the segment directory is copied, segments
+   * themselves are allocated by malloc() when the watermark reaches them.
+   */
+  private void increaseSize() {
+    long currentMaxBlocks = maxBlocks();
+    long new_max_capacity = m_reservedBlocks
+        + Math.max(currentMaxBlocks + 1, (long) (currentMaxBlocks * m_growthFactor));
+    int num_segments = numSegments(new_max_capacity);
+    if (num_segments > m_segments.length) {
+      IntBuffer segments[] = new IntBuffer[num_segments];
+      System.arraycopy(m_segments, 0, segments, 0, m_segments.length);
+      m_segments = segments;
+    }
+    m_maxCapacity = new_max_capacity;
+  }
+
+  @Override
+  public void free(long pointer) {
+    assert pointer != 0 : "pointer 0 should not be freed";
+    assert pointer != -1 : "pointer -1 should not be freed";
+    set_next(pointer, m_head);
+    m_head = pointer;
+    m_free++;
+  }
+
+  private IntBuffer segment(long pointer) {
+    return m_segments[(int) (pointer >>> m_segmentShift)];
+  }
+
+  private int index(long pointer, int offset) {
+    return (int) (pointer & m_segmentMask) * m_blockSize + offset;
+  }
+
+  @Override
+  public int getInt(long pointer, int offset_in_data) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert offset_in_data >= 0 : "Negative offset_in_data " + offset_in_data;
+    assert offset_in_data < m_blockSize : String.format("offset_in_data >= m_blockSize : %d >= %d",
+        offset_in_data, m_blockSize);
+    return segment(pointer).get(index(pointer, offset_in_data));
+  }
+
+  @Override
+  public void setInt(long pointer, int offset_in_data, int data) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert offset_in_data >= 0 : "Negative offset_in_data " + offset_in_data;
+    assert offset_in_data < m_blockSize : String.format("offset_in_data >= m_blockSize : %d >= %d",
+        offset_in_data, m_blockSize);
+    segment(pointer).put(index(pointer, offset_in_data), data);
+  }
+
+  @Override
+  public long getLong(long pointer, int offset_in_data) {
+    int ilower = getInt(pointer, offset_in_data + 1);
+    int iupper = getInt(pointer, offset_in_data);
+    long lower = 0x00000000FFFFFFFFL & ilower;
+    long upper = ((long) iupper) << 32;
+    return upper | lower;
+  }
+
+  @Override
+  public void setLong(long pointer, int offset_in_data, long data) {
+    // upper int
+    setInt(pointer, offset_in_data, (int) (data >> 32));
+    // lower int
+    setInt(pointer, offset_in_data + 1, (int) (data));
+  }
+
+  @Override
+  public float getFloat(long pointer, int offset) {
+    return Float.intBitsToFloat(getInt(pointer, offset));
+  }
+
+  @Override
+  public void setFloat(long pointer, int offset, float f) {
+    setInt(pointer, offset, Float.floatToIntBits(f));
+  }
+
+  @Override
+  public double getDouble(long pointer, int offset_in_data) {
+    return Double.longBitsToDouble(getLong(pointer, offset_in_data));
+  }
+
+  @Override
+  public void setDouble(long pointer, int offset_in_data, double data) {
+    setLong(pointer, offset_in_data, Double.doubleToLongBits(data));
+  }
+
+  @Override
+  public void setInts(long pointer, int dst_offset_in_record, int src_data[], int src_pos,
+      int length) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert src_pos >= 0 : "Negative src_pos";
+    assert src_pos + length <= src_data.length : String.format(
+        "src_pos + length > src_data.length : %d + %d > %d", src_pos, length, src_data.length);
+    assert dst_offset_in_record + length <= m_blockSize : String.format(
+        "dst_offset_in_record + length > m_blockSize   : %d + %d >= %d", dst_offset_in_record,
+        length, m_blockSize);
+
+    IntBuffer segment = segment(pointer).duplicate();
+    segment.position(index(pointer, dst_offset_in_record));
+    segment.put(src_data, src_pos, length);
+  }
+
+  @Override
+  public void getInts(long pointer, int src_offset_in_record, int dst_data[], int dst_pos,
+      int length) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert src_offset_in_record >= 0 : String.format("src_offset_in_record < 0 : %d < 0",
+        src_offset_in_record);
+    assert src_offset_in_record + length <= m_blockSize : String.format(
+        "src_offset_in_record + length > m_blockSize : %d + %d > %d", src_offset_in_record,
+        length, m_blockSize);
+    assert dst_pos >= 0 : String.format("dst_pos < 0 : %d", dst_pos);
+    assert dst_pos + length <= dst_data.length : String.format(
+        "dst_pos + length > dst_data.length : %d + %d >= %d", dst_pos, length, dst_data.length);
+
+    IntBuffer segment = segment(pointer).duplicate();
+    segment.position(index(pointer, src_offset_in_record));
+    segment.get(dst_data, dst_pos, length);
+  }
+
+  @Override
+  public void memCopy(long srcPtr, int srcPos, long dstPtr, int dstPos, int length) {
+    assert srcPtr >= 0 : "Negative pointer : " + srcPtr;
+    assert dstPtr >= 0 : "Negative pointer : " + dstPtr;
+    assert srcPos + length <= m_blockSize : "src overflow";
+    assert dstPos + length <= m_blockSize : "dst overflow";
+
+    IntBuffer src = segment(srcPtr);
+    IntBuffer dst = segment(dstPtr);
+    int s = index(srcPtr, srcPos);
+    int d = index(dstPtr, dstPos);
+    if (src == dst && s < d) {
+      for (int i = length - 1; i >= 0; i--) {
+        dst.put(d + i, src.get(s + i));
+      }
+    } else {
+      for (int i = 0; i < length; i++) {
+        dst.put(d + i, src.get(s + i));
+      }
+    }
+  }
+
+  @Override
+  public void memSet(long pointer, int srcPos, int length, int value) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert srcPos + length <= m_blockSize : "overflow";
+
+    IntBuffer segment = segment(pointer);
+    int p = index(pointer, srcPos);
+    for (int i = 0; i < length; i++) {
+      segment.put(p + i, value);
+    }
+  }
+
+  @Override
+  public int maximumCapacityFor(long pointer) {
+    return m_blockSize;
+  }
+
+  private long next(long pointer) {
+    return getLong(pointer, 0);
+  }
+
+  private void set_next(long pointer, long next) {
+    setLong(pointer, 0, next);
+  }
+
+  @Override
+  public void clear() {
+    m_head = -1;
+    m_watermark = m_reservedBlocks;
+    m_free = 0;
+    set_next(0, -1);
+  }
+
+  @Override
+  public long freeBlocks() {
+    return m_free + m_maxCapacity - m_watermark;
+  }
+
+  @Override
+  public long maxBlocks() {
+    return m_maxCapacity - m_reservedBlocks; // block 0 is reserved
+  }
+
+  @Override
+  public long usedBlocks() {
+    return maxBlocks() - freeBlocks();
+  }
+
+  @Override
+  public int blockSize() {
+    return m_blockSize;
+  }
+
+  /**
+   * @return the number of blocks in each segment, always a power of two
+   */
+  public int getBlocksPerSegment() {
+    return (int) (m_segmentMask + 1);
+  }
+
+  /**
+   * @return true if the segments are direct (off heap) buffers
+   */
+  public boolean isDirect() {
+    return m_direct;
+  }
+
+  @Override
+  public void setGrowthFactor(double d) {
+    m_growthFactor = d;
+  }
+
+  @Override
+  public double getGrowthFactor() {
+    return m_growthFactor;
+  }
+
+  @Override
+  public boolean isDebug() {
+    return m_debug;
+  }
+
+  @Override
+  public void setDebug(boolean debug) {
+    m_debug = debug;
+  }
+
+  @Override
+  public long computeMemoryUsage() {
+    long mem = 0;
+    for (IntBuffer segment : m_segments) {
+      if (segment != null) {
+        mem += segment.capacity();
+      }
+    }
+    return mem * 4;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder s = new StringBuilder();
+    s.append(String.format("LongBlockAllocator %s/%s records of %d ints used%s", usedBlocks(),
+        maxBlocks(), m_blockSize, m_direct ? " (direct)" : ""));
+    if (m_debug) {
+      s.append('\n');
+      // segments above the watermark may not be allocated yet
+      for (long i = m_reservedBlocks; i < m_watermark; i++) {
+        s.append('(');
+        for (int j = 0; j < m_blockSize; j++) {
+          s.append(getInt(i, j));
+          if (j != m_blockSize - 1) {
+            s.append(',');
+          }
+        }
+        s.append(')');
+        if (i != m_watermark - 1) {
+          s.append(',');
+        }
+      }
+    }
+    return s.toString();
+  }
+}
@@ -0,0 +1,664 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.memory.block;
+
+import java.util.Arrays;
+
+import net.yadan.banana.memory.IBlockAllocator;
+import net.yadan.banana.memory.IBuffer;
+import net.yadan.banana.memory.MemInitializer;
+import net.yadan.banana.memory.OutOfMemoryException;
+import net.yadan.banana.memory.PackedBytes;
+import net.yadan.banana.memory.RelocationListener;
+import net.yadan.banana.memory.initializers.PrototypeInitializer;
+
+/**
+ * A fixed size block allocator backed by a single long array, for records that
+ * are mostly longs and doubles.
+ *
+ * Offsets and sizes are in ints like in every other allocator, and the int
+ * layout is the same as {@link BlockAllocator}: int 2 * i is the upper half of
+ * the i'th long word of the block and int 2 * i + 1 is its lower half. A long
+ * or a double at an even offset is read and written with a single array
+ * access, at an odd offset it is assembled from two words. ints, shorts, chars
+ * and bytes are views into the words.
+ *
+ * Blocks are padded to a whole number of long words, so an odd block size
+ * wastes an int per block.
+ */
+public class LongWordBlockAllocator implements IBlockAllocator {
+
+  private static final long LOWER_MASK = 0x00000000FFFFFFFFL;
+  private static final long UPPER_MASK = 0xFFFFFFFF00000000L;
+
+  protected final int m_blockSize;
+
+  // number of long words per block
+  private final int m_wordsPerBlock;
+
+  private int m_watermark;
+  private int m_free;
+  private int m_head;
+
+  long m_buffer[];
+
+  private int m_maxCapacity;
+
+  private MemInitializer m_initializer;
+
+  private boolean m_debug;
+
+  private double m_growthFactor;
+
+  private int m_reservedBlocks;
+
+  /**
+   * @param maxBlocks number of blocks to reserve space for
+   * @param blockSize record size in ints.
+   */
+  public LongWordBlockAllocator(int maxBlocks, int blockSize) {
+    this(maxBlocks, blockSize, 0, null);
+  }
+
+  /**
+   * @param maxBlocks number of records to reserve space for
+   * @param blockSize record size in ints.
+   * @param growthFactor determines by how much to grow buffer when it runs out
+   *          of memory. 0 to disable growth
+   */
+  public LongWordBlockAllocator(int maxBlocks, int blockSize, double growthFactor) {
+    this(maxBlocks, blockSize, growthFactor, null);
+  }
+
+  /**
+   * @param maxBlocks number of records to reserve space for
+   * @param blockSize record size in ints.
+   * @param growthFactor determines by how much to grow buffer when it runs out
+   *          of memory. 0 to disable growth
+   * @param initializer a callback to initialize newly allocated records
+   */
+  public LongWordBlockAllocator(int maxBlocks, int blockSize, double growthFactor,
+      MemInitializer initializer) {
+    m_reservedBlocks = 1;
+    m_head = -1;
+    m_blockSize = blockSize;
+    m_wordsPerBlock = (blockSize + 1) >> 1;
+    m_maxCapacity = maxBlocks + m_reservedBlocks;
+    m_growthFactor = growthFactor;
+    if (initializer == null) {
+      initializer = new PrototypeInitializer(blockSize);
+    }
+    m_debug = false;
+    m_initializer = initializer;
+
+    if (maxBlocks < 1)
+      throw new IllegalArgumentException("maxBlocks " + maxBlocks + " < 1");
+
+    // block 0 is reserved
+    long size = (m_reservedBlocks + (long) maxBlocks) * m_wordsPerBlock;
+    if (size > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Attempted to allocate " + size
+          + " longs, which is greated than Integer.MAX_VALUE (" + Integer.MAX_VALUE + ")");
+    }
+
+    m_buffer = new long[(int) size];
+    clear();
+  }
+
+  /**
+   * Allocates a single block and returns a pointer to that block
+   *
+   * @return pointer to newly allocated block
+   *
+   * @throws OutOfMemoryException : if there are 0 free blocks
+   */
+  @Override
+  public int malloc() throws OutOfMemoryException {
+    if (m_head == -1) {
+      if (m_watermark == m_maxCapacity) {
+        if (m_growthFactor == 0) {
+          throw new OutOfMemoryException("Out of memory (" + maxBlocks() + "/" + usedBlocks()
+              + " blocks used)");
+        } else {
+          increaseSize();
+          return malloc();
+        }
+      } else {
+        m_head = m_watermark;
+        set_next(m_head, -1);
+        m_watermark++;
+      }
+    } else {
+      m_free--;
+    }
+    int oldHead = m_head;
+    m_head = next(oldHead);
+    set_next(oldHead, -1);
+    m_initializer.initialize(this, oldHead, m_blockSize);
+    return oldHead;
+  }
+
+  /**
+   * Allocates count blocks. free blocks are reused first, the rest are taken
+   * from the watermark as a single run.
+   *
+   * @throws OutOfMemoryException : if growth is disabled and there are less
+   *           than count free blocks
+   */
+  @Override
+  public void malloc(int count, int out[]) throws OutOfMemoryException {
+    assert count >= 0 : "Negative count " + count;
+    assert count <= out.length : "count > out.length : " + count + " > " + out.length;
+    if (count > freeBlocks()) {
+      if (m_growthFactor == 0) {
+        throw new OutOfMemoryException("Out of memory, requested " + count + " blocks ("
+            + maxBlocks() + "/" + usedBlocks() + " blocks used)");
+      }
+      while (count > freeBlocks()) {
+        increaseSize();
+      }
+    }
+
+    int n = 0;
+    while (n < count && m_head != -1) {
+      out[n++] = m_head;
+      m_head = next(m_head);
+    }
+    m_free -= n;
+    while (n < count) {
+      out[n++] = m_watermark++;
+    }
+
+    for (int i = 0; i < count; i++) {
+      set_next(out[i], -1);
+      m_initializer.initialize(this, out[i], m_blockSize);
+    }
+  }
+
+  private void increaseSize() {
+    int newMaxCapacity = m_reservedBlocks
+        + Math.max(maxBlocks() + 1, (int) (maxBlocks() * m_growthFactor));
+    long new_buffer[] = new long[newMaxCapacity * m_wordsPerBlock];
+    System.arraycopy(m_buffer, 0, new_buffer, 0, m_buffer.length);
+    m_maxCapacity = newMaxCapacity;
+    m_buffer = new_buffer;
+  }
+
+  @Override
+  public void free(int pointer) {
+    assert pointer != 0 : "pointer 0 should not be freed";
+    assert pointer != -1 : "pointer -1 should not be freed";
+    set_next(pointer, m_head);
+    m_head = pointer;
+    m_free++;
+  }
+
+  @Override
+  public void free(int pointers[], int offset, int length) {
+    if (length == 0) {
+      return;
+    }
+    int last = offset + length - 1;
+    for (int i = offset; i < last; i++) {
+      assert pointers[i] != 0 : "pointer 0 should not be freed";
+      assert pointers[i] != -1 : "pointer -1 should not be freed";
+      set_next(pointers[i], pointers[i + 1]);
+    }
+    assert pointers[last] != 0 : "pointer 0 should not be freed";
+    assert pointers[last] != -1 : "pointer -1 should not be freed";
+    set_next(pointers[last], m_head);
+    m_head = pointers[offset];
+    m_free += length;
+  }
+
+  /**
+   * Moves the used blocks below the watermark. if growth is enabled the buffer
+   * is then shrunk to the used blocks.
+   */
+  @Override
+  public void compact(RelocationListener listener) {
+    m_watermark = BlockCompactor.compact(this, m_head, m_watermark, m_reservedBlocks, listener);
+    m_head = -1;
+    m_free = 0;
+
+    if (m_growthFactor != 0) {
+      int newMaxCapacity = Math.max(m_watermark, m_reservedBlocks + 1);
+      if (newMaxCapacity < m_maxCapacity) {
+        long new_buffer[] = new long[newMaxCapacity * m_wordsPerBlock];
+        System.arraycopy(m_buffer, 0, new_buffer, 0, new_buffer.length);
+        m_maxCapacity = newMaxCapacity;
+        m_buffer = new_buffer;
+      }
+    }
+  }
+
+  @Override
+  public void memCopy(int srcPtr, int srcPos, int dstPtr, int dstPos, int length) {
+    assert srcPtr >= 0 : "Negative pointer : " + srcPtr;
+    assert dstPtr >= 0 : "Negative pointer : " + dstPtr;
+    assert length <= m_blockSize : "length > m_blockSize";
+    assert srcPos + length <= m_blockSize : "src overflow";
+    assert dstPos + length <= m_blockSize : "dst overflow";
+
+    if (((srcPos | dstPos | length) & 1) == 0) {
+      System.arraycopy(m_buffer, srcPtr * m_wordsPerBlock + (srcPos >> 1), m_buffer, dstPtr
+          * m_wordsPerBlock + (dstPos >> 1), length >> 1);
+    } else if (srcPtr == dstPtr && srcPos < dstPos) {
+      // overlapping, copy from the end
+      for (int i = length - 1; i >= 0; i--) {
+        setInt(dstPtr, dstPos + i, getInt(srcPtr, srcPos + i));
+      }
+    } else {
+      for (int i = 0; i < length; i++) {
+        setInt(dstPtr, dstPos + i, getInt(srcPtr, srcPos + i));
+      }
+    }
+  }
+
+  @Override
+  public boolean memEquals(int ptr1, int pos1, int ptr2, int pos2, int length) {
+    assert ptr1 >= 0 : "Negative pointer : " + ptr1;
+    assert ptr2 >= 0 : "Negative pointer : " + ptr2;
+    assert pos1 + length <= m_blockSize : "overflow";
+    assert pos2 + length <= m_blockSize : "overflow";
+
+    if (((pos1 | pos2 | length) & 1) == 0) {
+      int o1 = ptr1 * m_wordsPerBlock + (pos1 >> 1);
+      int o2 = ptr2 * m_wordsPerBlock + (pos2 >> 1);
+      for (int i = 0; i < length >> 1; i++) {
+        if (m_buffer[o1 + i] != m_buffer[o2 + i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    for (int i = 0; i < length; i++) {
+      if (getInt(ptr1, pos1 + i) != getInt(ptr2, pos2 + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean memEquals(int pointer, int srcPos, int data[], int data_pos, int length) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert srcPos + length <= m_blockSize : "overflow";
+
+    for (int i = 0; i < length; i++) {
+      if (getInt(pointer, srcPos + i) != data[data_pos + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void memSet(int pointer, int srcPos, int length, int value) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert length <= m_blockSize : "length > m_blockSize";
+    assert srcPos + length <= m_blockSize : "overflow";
+
+    int from = srcPos;
+    int to = srcPos + length;
+    if (from < to && (from & 1) != 0) {
+      setInt(pointer, from++, value);
+    }
+    if (from < to && (to & 1) != 0) {
+      setInt(pointer, --to, value);
+    }
+    if (from < to) {
+      int base = pointer * m_wordsPerBlock;
+      long word = ((long) value << 32) | (value & LOWER_MASK);
+      Arrays.fill(m_buffer, base + (from >> 1), base + (to >> 1), word);
+    }
+  }
+
+  @Override
+  public short getUpperShort(int pointer, int offset) {
+    return (short) (getInt(pointer, offset) >>> 16);
+  }
+
+  @Override
+  public short getLowerShort(int pointer, int offset) {
+    return (short) getInt(pointer, offset);
+  }
+
+  @Override
+  public void setUpperShort(int pointer, int offset, int s) {
+    int lower = getInt(pointer, offset) & 0x0000ffff;
+    setInt(pointer, offset, (s << 16) | lower);
+  }
+
+  @Override
+  public void setLowerShort(int pointer, int offset, int s) {
+    int upper = getInt(pointer, offset) & 0xffff0000;
+    setInt(pointer, offset, upper | (s & 0x0000ffff));
+  }
+
+  @Override
+  public int getInt(int pointer, int offset_in_data) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert offset_in_data >= 0 : "Negative offset_in_data " + offset_in_data;
+    assert offset_in_data < m_blockSize : String.format("offset_in_data >= m_blockSize : %d >= %d",
+        offset_in_data, m_blockSize);
+    long word = m_buffer[pointer * m_wordsPerBlock + (offset_in_data >> 1)];
+    return (offset_in_data & 1) == 0 ? (int) (word >>> 32) : (int) word;
+  }
+
+  @Override
+  public void setInt(int pointer, int offset_in_data, int data) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert offset_in_data >= 0 : "Negative offset_in_data " + offset_in_data;
+    assert offset_in_data < m_blockSize : String.format("offset_in_data >= m_blockSize : %d >= %d",
+        offset_in_data, m_blockSize);
+    int index = pointer * m_wordsPerBlock + (offset_in_data >> 1);
+    long word = m_buffer[index];
+    if ((offset_in_data & 1) == 0) {
+      m_buffer[index] = ((long) data << 32) | (word & LOWER_MASK);
+    } else {
+      m_buffer[index] = (word & UPPER_MASK) | (data & LOWER_MASK);
+    }
+  }
+
+  @Override
+  public void setInts(int pointer, int dst_offset_in_record, int src_data[], int src_pos,
+      int length) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert src_pos >= 0 : "Negative src_pos";
+    assert src_pos + length <= src_data.length : String.format(
+        "src_pos + length > src_data.length : %d + %d > %d", src_pos, length, src_data.length);
+    assert dst_offset_in_record + length <= m_blockSize : String.format(
+        "dst_offset_in_record + length > m_blockSize   : %d + %d >= %d", dst_offset_in_record,
+        length, m_blockSize);
+
+    int i = 0;
+    if (length > 0 && (dst_offset_in_record & 1) != 0) {
+      setInt(pointer, dst_offset_in_record, src_data[src_pos]);
+      i++;
+    }
+    int index = pointer * m_wordsPerBlock + ((dst_offset_in_record + i) >> 1);
+    for (; i + 1 < length; i += 2) {
+      m_buffer[index++] = ((long) src_data[src_pos + i] << 32)
+          | (src_data[src_pos + i + 1] & LOWER_MASK);
+    }
+    if (i < length) {
+      setInt(pointer, dst_offset_in_record + i, src_data[src_pos + i]);
+    }
+  }
+
+  @Override
+  public void getInts(int pointer, int src_offset_in_record, int dst_data[], int dst_pos,
+      int length) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert src_offset_in_record >= 0 : String.format("src_offset_in_record < 0 : %d < 0",
+        src_offset_in_record);
+    assert src_offset_in_record + length <= m_blockSize : String.format(
+        "src_offset_in_record + length > m_blockSize : %d + %d > %d", src_offset_in_record,
+        length, m_blockSize);
+    assert dst_pos >= 0 : String.format("dst_pos < 0 : %d", dst_pos);
+    assert dst_pos + length <= dst_data.length : String.format(
+        "dst_pos + length > dst_data.length : %d + %d >= %d", dst_pos, length, dst_data.length);
+
+    int i = 0;
+    if (length > 0 && (src_offset_in_record & 1) != 0) {
+      dst_data[dst_pos] = getInt(pointer, src_offset_in_record);
+      i++;
+    }
+    int index = pointer * m_wordsPerBlock + ((src_offset_in_record + i) >> 1);
+    for (; i + 1 < length; i += 2) {
+      long word = m_buffer[index++];
+      dst_data[dst_pos + i] = (int) (word >>> 32);
+      dst_data[dst_pos + i + 1] = (int) word;
+    }
+    if (i < length) {
+      dst_data[dst_pos + i] = getInt(pointer, src_offset_in_record + i);
+    }
+  }
+
+  @Override
+  public void setChars(int pointer, int dst_offset, char[] src_data, int src_pos, int num_chars) {
+    if (num_chars == 0) {
+      return;
+    }
+    int numInts = 1 + (num_chars - 1) / 2; // ceil(num_chars/2)
+    for (int i = dst_offset, src_index = src_pos, num_copied = 0; i < dst_offset + numInts; i++, src_index += 2) {
+      char c1 = src_data[src_index];
+      setUpperShort(pointer, i, c1);
+      num_copied++;
+      if (num_copied < num_chars) {
+        char c2 = src_data[src_index + 1];
+        setLowerShort(pointer, i, c2);
+        num_copied++;
+      }
+    }
+  }
+
+  @Override
+  public void getChars(int pointer, int src_offset, char[] dst_data, int dst_pos, int num_chars) {
+    if (num_chars == 0) {
+      return;
+    }
+
+    int numInts = 1 + (num_chars - 1) / 2; // ceil(length/2)
+    for (int i = src_offset, dst_index = dst_pos, num_copied = 0; i < src_offset + numInts; i++, dst_index += 2) {
+      dst_data[dst_index] = (char) getUpperShort(pointer, i);
+      num_copied++;
+      if (num_copied < num_chars) {
+        dst_data[dst_index + 1] = (char) getLowerShort(pointer, i);
+        num_copied++;
+      }
+    }
+  }
+
+  @Override
+  public byte getByte(int pointer, int byte_offset) {
+    return PackedBytes.getByte(this, pointer, byte_offset);
+  }
+
+  @Override
+  public void setByte(int pointer, int byte_offset, int b) {
+    PackedBytes.setByte(this, pointer, byte_offset, b);
+  }
+
+  @Override
+  public void setBytes(int pointer, int dst_offset, byte[] src_data, int src_pos, int num_bytes) {
+    PackedBytes.setBytes(this, pointer, dst_offset, src_data, src_pos, num_bytes);
+  }
+
+  @Override
+  public void getBytes(int pointer, int src_offset, byte[] dst_data, int dst_pos, int num_bytes) {
+    PackedBytes.getBytes(this, pointer, src_offset, dst_data, dst_pos, num_bytes);
+  }
+
+  @Override
+  public void getBuffer(int pointer, int src_offset_in_record, IBuffer dst, int num_chars) {
+    getInts(pointer, src_offset_in_record, dst.array(), 0, num_chars);
+    dst.setUsed(num_chars);
+  }
+
+  @Override
+  public long getLong(int pointer, int offset_in_data) {
+    if ((offset_in_data & 1) == 0) {
+      assert pointer >= 0 : "Negative pointer : " + pointer;
+      assert offset_in_data >= 0 : "Negative offset_in_data " + offset_in_data;
+      assert offset_in_data + 1 < m_blockSize : String.format(
+          "offset_in_data + 1 >= m_blockSize : %d >= %d", offset_in_data + 1, m_blockSize);
+      return m_buffer[pointer * m_wordsPerBlock + (offset_in_data >> 1)];
+    }
+    long upper = ((long) getInt(pointer, offset_in_data)) << 32;
+    long lower = LOWER_MASK & getInt(pointer, offset_in_data + 1);
+    return upper | lower;
+  }
+
+  @Override
+  public void setLong(int pointer, int offset_in_data, long data) {
+    if ((offset_in_data & 1) == 0) {
+      assert pointer >= 0 : "Negative pointer : " + pointer;
+      assert offset_in_data >= 0 : "Negative offset_in_data " + offset_in_data;
+      assert offset_in_data + 1 < m_blockSize : String.format(
+          "offset_in_data + 1 >= m_blockSize : %d >= %d", offset_in_data + 1, m_blockSize);
+      m_buffer[pointer * m_wordsPerBlock + (offset_in_data >> 1)] = data;
+    } else {
+      // upper int
+      setInt(pointer, offset_in_data, (int) (data >> 32));
+      // lower int
+      setInt(pointer, offset_in_data + 1, (int) (data));
+    }
+  }
+
+  /**
+   * @return the number of free blocks
+   */
+  @Override
+  public int freeBlocks() {
+    return m_free + m_maxCapacity - m_watermark;
+  }
+
+  /**
+   * @return the total block capacity for this allocator
+   */
+  @Override
+  public int maxBlocks() {
+    return m_maxCapacity - m_reservedBlocks; // block 0 is reserved
+  }
+
+  /**
+   * @return number of used blocks
+   */
+  @Override
+  public int usedBlocks() {
+    return maxBlocks() - freeBlocks();
+  }
+
+  /**
+   * @return the fixed block size for this allocator
+   */
+  @Override
+  public int blockSize() {
+    return m_blockSize;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder s = new StringBuilder();
+    try {
+      s.append(String.format(
+          "LongWordBlockAllocator %s/%s records of %d ints used, total longs allocated %d",
+          maxBlocks() - freeBlocks(), maxBlocks(), m_blockSize, m_buffer.length));
+      if (m_debug) {
+        s.append('\n');
+        for (int i = m_reservedBlocks; i < m_maxCapacity; i++) {
+          s.append('(');
+          for (int j = 0; j < m_blockSize; j++) {
+            s.append(getInt(i, j));
+            if (j != m_blockSize - 1) {
+              s.append(',');
+            }
+          }
+          s.append(')');
+          if (i != m_maxCapacity - 1) {
+            s.append(',');
+          }
+        }
+      }
+    } catch (RuntimeException e) {
+      s.append(" :: Exception inToString() " + e.getClass().getName() + " : " + e.getMessage());
+    }
+    return s.toString();
+  }
+
+  // the next pointer of a free block is its int 0, the upper half of word 0
+  private int next(int node) {
+    return (int) (m_buffer[node * m_wordsPerBlock] >>> 32);
+  }
+
+  private void set_next(int node, int next) {
+    m_buffer[node * m_wordsPerBlock] = (long) next << 32;
+  }
+
+  @Override
+  public void clear() {
+    m_head = -1;
+    m_watermark = m_reservedBlocks;
+    m_free = 0;
+    set_next(1, -1);
+  }
+
+  /**
+   * Sets the allocator growth factor.
+   *
+   * @param d new growth factor, 0 to disable growth (default)
+   */
+  @Override
+  public void setGrowthFactor(double d) {
+    m_growthFactor = d;
+  }
+
+  /**
+   * @return the current list growth factor
+   */
+  @Override
+  public double getGrowthFactor() {
+    return m_growthFactor;
+  }
+
+  @Override
+  public boolean isDebug() {
+    return m_debug;
+  }
+
+  @Override
+  public void setDebug(boolean debug) {
+    m_debug = debug;
+  }
+
+  public MemInitializer getInitializer() {
+    return m_initializer;
+  }
+
+  @Override
+  public void setInitializer(MemInitializer initializer) {
+    m_initializer = initializer;
+  }
+
+  @Override
+  public void initialize(int pointer) {
+    m_initializer.initialize(this, pointer, m_blockSize);
+  }
+
+  @Override
+  public long computeMemoryUsage() {
+    return 8 * (long) m_buffer.length;
+  }
+
+  @Override
+  public int maximumCapacityFor(int pointer) {
+    return m_blockSize;
+  }
+
+  @Override
+  public float getFloat(int pointer, int offset) {
+    return Float.intBitsToFloat(getInt(pointer, offset));
+  }
+
+  @Override
+  public void setFloat(int pointer, int offset, float f) {
+    setInt(pointer, offset, Float.floatToIntBits(f));
+  }
+
+  @Override
+  public double getDouble(int pointer, int offset_in_data) {
+    return Double.longBitsToDouble(getLong(pointer, offset_in_data));
+  }
+
+  @Override
+  public void setDouble(int pointer, int offset_in_data, double data) {
+    setLong(pointer, offset_in_data, Double.doubleToLongBits(data));
+  }
+}
@@ -0,0 +1,785 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.memory.block;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import net.yadan.banana.memory.IBlockAllocator;
+import net.yadan.banana.memory.IBuffer;
+import net.yadan.banana.memory.MemInitializer;
+import net.yadan.banana.memory.OutOfMemoryException;
+import net.yadan.banana.memory.PackedBytes;
+import net.yadan.banana.memory.RelocationListener;
+import net.yadan.banana.memory.initializers.PrototypeInitializer;
+
+
+/**
+ * A fixed size block allocator which stores its blocks in a memory mapped file.
+ *
+ * In addition to the blocks, the allocator state (free list head, watermark,
+ * free count, capacity and growth factor) is kept in a header at the beginning
+ * of the file, so re-opening an existing file brings back all the blocks that
+ * were allocated in it, with the same pointers. The header also holds a root
+ * pointer (see {@link #setRoot(int)}) for finding a structure stored in the
+ * blocks, such as the state saved by {@link net.yadan.banana.map.HashMap#store()}.
+ *
+ * The file is mapped in regions of up to 2GB, so this allocator can access up
+ * to 2B blocks regardless of the block size. Growth extends the file and maps
+ * the new region, existing data is never copied.
+ *
+ * Data written to the allocator reaches the file when the operating system
+ * writes back the dirty pages, call {@link #flush()} to force it. The file is
+ * only guaranteed to be consistent after a flush() with no concurrent
+ * modifications.
+ */
+public class MappedBlockAllocator implements IBlockAllocator {
+
+  private static final int MAX_INTS_PER_BUFFER;
+  static {
+    String max = System.getProperty("MappedBlockAllocator.MAX_INTS_PER_BUFFER",
+        String.valueOf(Integer.MAX_VALUE / 4));
+    MAX_INTS_PER_BUFFER = Integer.parseInt(max);
+  }
+
+  private static final int MAGIC = 0x42414e41; // BANA
+  private static final int VERSION = 2;
+
+  private static final int HEADER_MAGIC_OFFSET = 0;
+  private static final int HEADER_VERSION_OFFSET = 1;
+  private static final int HEADER_BLOCK_SIZE_OFFSET = 2;
+  private static final int HEADER_MAX_CAPACITY_OFFSET = 3;
+  private static final int HEADER_WATERMARK_OFFSET = 4;
+  private static final int HEADER_HEAD_OFFSET = 5;
+  private static final int HEADER_FREE_OFFSET = 6;
+  private static final int HEADER_ROOT_OFFSET = 7;
+  // two ints, the bits of the growth factor
+  private static final int HEADER_GROWTH_FACTOR_OFFSET = 8;
+  private static final int HEADER_INTS = 16;
+  private static final int HEADER_BYTES = HEADER_INTS * 4;
+
+  protected final int m_blockSize;
+
+  private final File m_file;
+  private RandomAccessFile m_raf;
+  private FileChannel m_channel;
+
+  private MappedByteBuffer m_headerMapping;
+  private IntBuffer m_header;
+
+  private MappedByteBuffer m_mappings[];
+  IntBuffer m_buffer[];
+
+  private MemInitializer m_initializer;
+
+  private boolean m_debug;
+
+  private double m_growthFactor;
+
+  private int m_maxBlocksPerBuffer;
+
+  private int m_reservedBlocks;
+
+  /**
+   * Creates a new allocator in the specified file, or re-opens the allocator
+   * previously stored in it
+   *
+   * @param file file to map
+   * @param maxBlocks number of blocks to reserve space for, ignored if the
+   *          file already contains an allocator
+   * @param blockSize record size in ints.
+   */
+  public MappedBlockAllocator(File file, int maxBlocks, int blockSize) throws IOException {
+    this(file, maxBlocks, blockSize, 0, null);
+  }
+
+  /**
+   * Creates a new allocator in the specified file, or re-opens the allocator
+   * previously stored in it
+   *
+   * @param file file to map
+   * @param maxBlocks number of blocks to reserve space for, ignored if the
+   *          file already contains an allocator
+   * @param blockSize record size in ints.
+   * @param growthFactor determines by how much to grow buffer when it runs out
+   *          of memory. 0 to disable growth. ignored if the file already
+   *          contains an allocator, which keeps the growth factor stored in it
+   * @param initializer a callback to initialize newly allocated records
+   */
+  public MappedBlockAllocator(File file, int maxBlocks, int blockSize, double growthFactor,
+      MemInitializer initializer) throws IOException {
+    m_file = file;
+    m_reservedBlocks = 1;
+    m_blockSize = blockSize;
+    m_growthFactor = growthFactor;
+    if (initializer == null) {
+      initializer = new PrototypeInitializer(blockSize);
+    }
+    m_debug = false;
+    m_initializer = initializer;
+
+    if (maxBlocks < 1)
+      throw new IllegalArgumentException("maxBlocks " + maxBlocks + " < 1");
+
+    m_maxBlocksPerBuffer = MAX_INTS_PER_BUFFER / m_blockSize;
+    if (m_maxBlocksPerBuffer < 1) {
+      throw new IllegalArgumentException("Block size " + m_blockSize
+          + " is larger than the maximum buffer size (" + MAX_INTS_PER_BUFFER + " ints)");
+    }
+
+    m_raf = new RandomAccessFile(file, "rw");
+    m_channel = m_raf.getChannel();
+    m_mappings = new MappedByteBuffer[0];
+    m_buffer = new IntBuffer[0];
+    boolean existing = m_channel.size() > 0;
+    if (existing && m_channel.size() < HEADER_BYTES) {
+      close();
+      throw new IOException(file + " does not contain a " + getClass().getSimpleName());
+    }
+    m_headerMapping = m_channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+    m_header = m_headerMapping.order(ByteOrder.nativeOrder()).asIntBuffer();
+
+    int maxCapacity;
+    if (existing) {
+      if (m_header.get(HEADER_MAGIC_OFFSET) != MAGIC) {
+        close();
+        throw new IOException(file + " does not contain a " + getClass().getSimpleName());
+      }
+      if (m_header.get(HEADER_VERSION_OFFSET) != VERSION) {
+        close();
+        throw new IOException("Unsupported version " + m_header.get(HEADER_VERSION_OFFSET)
+            + " in " + file);
+      }
+      if (m_header.get(HEADER_BLOCK_SIZE_OFFSET) != blockSize) {
+        close();
+        throw new IOException("Block size mismatch, " + file + " contains blocks of "
+            + m_header.get(HEADER_BLOCK_SIZE_OFFSET) + " ints, requested " + blockSize);
+      }
+      maxCapacity = m_header.get(HEADER_MAX_CAPACITY_OFFSET);
+      long bits = ((long) m_header.get(HEADER_GROWTH_FACTOR_OFFSET) << 32)
+          | (0x00000000FFFFFFFFL & m_header.get(HEADER_GROWTH_FACTOR_OFFSET + 1));
+      m_growthFactor = Double.longBitsToDouble(bits);
+    } else {
+      // block 0 is reserved
+      long size = (m_reservedBlocks + (long) maxBlocks);
+      if (size > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Attempted to allocate " + size
+            + " blocks, which is greated than Integer.MAX_VALUE (" + Integer.MAX_VALUE + ")");
+      }
+      maxCapacity = (int) size;
+    }
+
+    mapCapacity(maxCapacity);
+
+    if (!existing) {
+      m_header.put(HEADER_BLOCK_SIZE_OFFSET, blockSize);
+      m_header.put(HEADER_MAX_CAPACITY_OFFSET, maxCapacity);
+      setGrowthFactor(growthFactor);
+      clear();
+      m_header.put(HEADER_VERSION_OFFSET, VERSION);
+      m_header.put(HEADER_MAGIC_OFFSET, MAGIC);
+    }
+  }
+
+  /**
+   * Maps the file regions required to hold capacity blocks. regions that are
+   * already mapped are preserved, and the last region is re-mapped if it needs
+   * to grow.
+   */
+  private void mapCapacity(int capacity) throws IOException {
+    int num_buffers = 1 + (capacity - 1) / m_maxBlocksPerBuffer;
+    MappedByteBuffer mappings[] = new MappedByteBuffer[num_buffers];
+    IntBuffer buffers[] = new IntBuffer[num_buffers];
+    // full buffers never change, copy them over
+    int keep = Math.max(0, Math.min(m_buffer.length - 1, num_buffers - 1));
+    System.arraycopy(m_mappings, 0, mappings, 0, keep);
+    System.arraycopy(m_buffer, 0, buffers, 0, keep);
+
+    long bufferBytes = (long) m_maxBlocksPerBuffer * m_blockSize * 4;
+    int remains = capacity - keep * m_maxBlocksPerBuffer;
+    for (int i = keep; i < num_buffers; i++) {
+      int blocks = Math.min(remains, m_maxBlocksPerBuffer);
+      long position = HEADER_BYTES + i * bufferBytes;
+      mappings[i] = m_channel.map(FileChannel.MapMode.READ_WRITE, position, (long) blocks
+          * m_blockSize * 4);
+      buffers[i] = mappings[i].order(ByteOrder.nativeOrder()).asIntBuffer();
+      remains -= blocks;
+    }
+
+    assert remains == 0;
+
+    m_mappings = mappings;
+    m_buffer = buffers;
+  }
+
+  /**
+   * Allocates a single block and returns a pointer to that block
+   *
+   * @return pointer to newly allocated block
+   *
+   * @throws OutOfMemoryException : if there are 0 free blocks
+   */
+  @Override
+  public int malloc() throws OutOfMemoryException {
+    int head = m_header.get(HEADER_HEAD_OFFSET);
+    if (head == -1) {
+      int watermark = m_header.get(HEADER_WATERMARK_OFFSET);
+      if (watermark == m_header.get(HEADER_MAX_CAPACITY_OFFSET)) {
+        if (m_growthFactor == 0) {
+          throw new OutOfMemoryException("Out of memory (" + maxBlocks() + "/" + usedBlocks()
+              + " blocks used)");
+        } else {
+          increaseSize();
+          return malloc();
+        }
+      } else {
+        head = watermark;
+        set_next(head, -1);
+        m_header.put(HEADER_WATERMARK_OFFSET, watermark + 1);
+      }
+    } else {
+      m_header.put(HEADER_FREE_OFFSET, m_header.get(HEADER_FREE_OFFSET) - 1);
+    }
+    m_header.put(HEADER_HEAD_OFFSET, next(head));
+    set_next(head, -1);
+    m_initializer.initialize(this, head, m_blockSize);
+    return head;
+  }
+
+  /**
+   * Allocates count blocks. free blocks are reused first, the rest are taken
+   * from the watermark as a single run. the header is updated once for the
+   * whole batch.
+   *
+   * @throws OutOfMemoryException : if growth is disabled and there are less
+   *           than count free blocks
+   */
+  @Override
+  public void malloc(int count, int out[]) throws OutOfMemoryException {
+    assert count >= 0 : "Negative count " + count;
+    assert count <= out.length : "count > out.length : " + count + " > " + out.length;
+    if (count > freeBlocks()) {
+      if (m_growthFactor == 0) {
+        throw new OutOfMemoryException("Out of memory, requested " + count + " blocks ("
+            + maxBlocks() + "/" + usedBlocks() + " blocks used)");
+      }
+      while (count > freeBlocks()) {
+        increaseSize();
+      }
+    }
+
+    int head = m_header.get(HEADER_HEAD_OFFSET);
+    int n = 0;
+    while (n < count && head != -1) {
+      out[n++] = head;
+      head = next(head);
+    }
+    m_header.put(HEADER_HEAD_OFFSET, head);
+    m_header.put(HEADER_FREE_OFFSET, m_header.get(HEADER_FREE_OFFSET) - n);
+    int watermark = m_header.get(HEADER_WATERMARK_OFFSET);
+    while (n < count) {
+      out[n++] = watermark++;
+    }
+    m_header.put(HEADER_WATERMARK_OFFSET, watermark);
+
+    for (int i = 0; i < count; i++) {
+      set_next(out[i], -1);
+      m_initializer.initialize(this, out[i], m_blockSize);
+    }
+  }
+
+  private void increaseSize() {
+    int currentMaxBlocks = maxBlocks();
+    long new_max_capacity = m_reservedBlocks
+        + Math.max(currentMaxBlocks + 1, (long) (currentMaxBlocks * m_growthFactor));
+    if (new_max_capacity > Integer.MAX_VALUE) {
+      throw new OutOfMemoryException("Attempted to grow to " + new_max_capacity
+          + " blocks, which is greated than Integer.MAX_VALUE (" + Integer.MAX_VALUE + ")");
+    }
+    try {
+      mapCapacity((int) new_max_capacity);
+    } catch (IOException e) {
+      throw new OutOfMemoryException("Failed to grow " + m_file + " to " + new_max_capacity
+          + " blocks", e);
+    }
+    m_header.put(HEADER_MAX_CAPACITY_OFFSET, (int) new_max_capacity);
+  }
+
+  @Override
+  public void free(int pointer) {
+    assert pointer != 0 : "pointer 0 should not be freed";
+    assert pointer != -1 : "pointer -1 should not be freed";
+    set_next(pointer, m_header.get(HEADER_HEAD_OFFSET));
+    m_header.put(HEADER_HEAD_OFFSET, pointer);
+    m_header.put(HEADER_FREE_OFFSET, m_header.get(HEADER_FREE_OFFSET) + 1);
+  }
+
+  @Override
+  public void free(int pointers[], int offset, int length) {
+    if (length == 0) {
+      return;
+    }
+    int last = offset + length - 1;
+    for (int i = offset; i < last; i++) {
+      assert pointers[i] != 0 : "pointer 0 should not be freed";
+      assert pointers[i] != -1 : "pointer -1 should not be freed";
+      set_next(pointers[i], pointers[i + 1]);
+    }
+    assert pointers[last] != 0 : "pointer 0 should not be freed";
+    assert pointers[last] != -1 : "pointer -1 should not be freed";
+    set_next(pointers[last], m_header.get(HEADER_HEAD_OFFSET));
+    m_header.put(HEADER_HEAD_OFFSET, pointers[offset]);
+    m_header.put(HEADER_FREE_OFFSET, m_header.get(HEADER_FREE_OFFSET) + length);
+  }
+
+  /**
+   * Moves the used blocks below the watermark. The file is not truncated since
+   * its regions remain mapped, but the space is reused by future allocations.
+   */
+  @Override
+  public void compact(RelocationListener listener) {
+    int watermark = BlockCompactor.compact(this, m_header.get(HEADER_HEAD_OFFSET),
+        m_header.get(HEADER_WATERMARK_OFFSET), m_reservedBlocks, listener);
+    m_header.put(HEADER_HEAD_OFFSET, -1);
+    m_header.put(HEADER_WATERMARK_OFFSET, watermark);
+    m_header.put(HEADER_FREE_OFFSET, 0);
+  }
+
+  /**
+   * Sets the root pointer kept in the file header, so that it can be found
+   * again after the file is re-opened
+   *
+   * @param pointer a pointer into this allocator or an allocator built on top
+   *          of it, -1 for none
+   */
+  public void setRoot(int pointer) {
+    m_header.put(HEADER_ROOT_OFFSET, pointer);
+  }
+
+  /**
+   * @return the root pointer set with {@link #setRoot(int)}, -1 if not set
+   */
+  public int getRoot() {
+    return m_header.get(HEADER_ROOT_OFFSET);
+  }
+
+  /**
+   * Forces all changes to the underlying file
+   */
+  public void flush() {
+    for (MappedByteBuffer mapping : m_mappings) {
+      mapping.force();
+    }
+    if (m_headerMapping != null) {
+      m_headerMapping.force();
+    }
+  }
+
+  /**
+   * Flushes and closes the underlying file. the allocator should no longer be
+   * used after it was closed.
+   */
+  public void close() throws IOException {
+    flush();
+    m_channel.close();
+    m_raf.close();
+  }
+
+  /**
+   * @return the file backing this allocator
+   */
+  public File getFile() {
+    return m_file;
+  }
+
+  @Override
+  public void memCopy(int srcPtr, int srcPos, int dstPtr, int dstPos, int length) {
+    assert srcPtr >= 0 : "Negative pointer : " + srcPtr;
+    assert dstPtr >= 0 : "Negative pointer : " + srcPtr;
+    assert length <= m_blockSize : "length > m_blockSize";
+    assert srcPos + length <= m_blockSize : "src overflow";
+    assert dstPos + length <= m_blockSize : "dst overflow";
+
+    IntBuffer src = m_buffer[srcPtr / m_maxBlocksPerBuffer];
+    int srcOffset = (srcPtr % m_maxBlocksPerBuffer) * m_blockSize + srcPos;
+    IntBuffer dst = m_buffer[dstPtr / m_maxBlocksPerBuffer];
+    int dstOffset = (dstPtr % m_maxBlocksPerBuffer) * m_blockSize + dstPos;
+
+    IntBuffers.copy(src, srcOffset, dst, dstOffset, length);
+  }
+
+  @Override
+  public boolean memEquals(int ptr1, int pos1, int ptr2, int pos2, int length) {
+    assert ptr1 >= 0 : "Negative pointer : " + ptr1;
+    assert ptr2 >= 0 : "Negative pointer : " + ptr2;
+    assert pos1 + length <= m_blockSize : "overflow";
+    assert pos2 + length <= m_blockSize : "overflow";
+
+    IntBuffer b1 = m_buffer[ptr1 / m_maxBlocksPerBuffer];
+    int o1 = (ptr1 % m_maxBlocksPerBuffer) * m_blockSize + pos1;
+    IntBuffer b2 = m_buffer[ptr2 / m_maxBlocksPerBuffer];
+    int o2 = (ptr2 % m_maxBlocksPerBuffer) * m_blockSize + pos2;
+    return IntBuffers.range(b1, o1, length).equals(IntBuffers.range(b2, o2, length));
+  }
+
+  @Override
+  public boolean memEquals(int pointer, int srcPos, int data[], int data_pos, int length) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert srcPos + length <= m_blockSize : "overflow";
+
+    IntBuffer buffer = m_buffer[pointer / m_maxBlocksPerBuffer];
+    int p = (pointer % m_maxBlocksPerBuffer) * m_blockSize + srcPos;
+    return IntBuffers.range(buffer, p, length).equals(IntBuffer.wrap(data, data_pos, length));
+  }
+
+  @Override
+  public void memSet(int pointer, int srcPos, int length, int value) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert length <= m_blockSize : "length > m_blockSize";
+    assert srcPos + length <= m_blockSize : "overflow";
+
+    IntBuffer buffer = m_buffer[pointer / m_maxBlocksPerBuffer];
+    int p = (pointer % m_maxBlocksPerBuffer) * m_blockSize;
+    for (int i = srcPos; i < srcPos + length; i++) {
+      buffer.put(p + i, value);
+    }
+  }
+
+  @Override
+  public short getUpperShort(int pointer, int offset) {
+    return (short) (getInt(pointer, offset) >>> 16);
+  }
+
+  @Override
+  public short getLowerShort(int pointer, int offset) {
+    return (short) (getInt(pointer, offset));
+  }
+
+  @Override
+  public void setUpperShort(int pointer, int offset, int s) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert offset >= 0 : "Negative offset " + offset;
+    assert offset < m_blockSize : String.format("offset >= m_blockSize : %d >= %d", offset, m_blockSize);
+
+    IntBuffer buffer = m_buffer[pointer / m_maxBlocksPerBuffer];
+    int off = (pointer % m_maxBlocksPerBuffer) * m_blockSize + offset;
+    int lower = buffer.get(off) & 0x0000ffff;
+    buffer.put(off, (s << 16) | lower);
+  }
+
+  @Override
+  public void setLowerShort(int pointer, int offset, int s) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert offset >= 0 : "Negative offset " + offset;
+    assert offset < m_blockSize : String.format("offset >= m_blockSize : %d >= %d", offset, m_blockSize);
+
+    IntBuffer buffer = m_buffer[pointer / m_maxBlocksPerBuffer];
+    int off = (pointer % m_maxBlocksPerBuffer) * m_blockSize + offset;
+    int upper = buffer.get(off) & 0xffff0000;
+    buffer.put(off, upper | (s & 0x0000ffff));
+  }
+
+  @Override
+  public int getInt(int pointer, int offset_in_data) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert offset_in_data >= 0 : "Negative offset_in_data " + offset_in_data;
+    assert offset_in_data < m_blockSize : String.format("offset_in_data >= m_blockSize : %d >= %d",
+        offset_in_data, m_blockSize);
+    int buffer_num = pointer / m_maxBlocksPerBuffer;
+    int buffer_pointer = pointer % m_maxBlocksPerBuffer;
+    return m_buffer[buffer_num].get(buffer_pointer * m_blockSize + offset_in_data);
+  }
+
+  @Override
+  public void setInt(int pointer, int offset_in_data, int data) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert offset_in_data >= 0 : "Negative offset_in_data " + offset_in_data;
+    assert offset_in_data < m_blockSize : String.format("offset_in_data >= m_blockSize : %d >= %d",
+        offset_in_data, m_blockSize);
+    int buffer_num = pointer / m_maxBlocksPerBuffer;
+    int buffer_pointer = pointer % m_maxBlocksPerBuffer;
+    m_buffer[buffer_num].put(buffer_pointer * m_blockSize + offset_in_data, data);
+  }
+
+  @Override
+  public void setInts(int pointer, int dst_offset_in_record,
+      int src_data[], int src_pos, int length) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert src_pos >= 0 : "Negative src_pos";
+    assert src_pos + length <= src_data.length : String.format(
+        "src_pos + length > src_data.length : %d + %d > %d", src_pos, length, src_data.length);
+    assert dst_offset_in_record + length <= m_blockSize : String.format(
+        "dst_offset_in_record + length > m_blockSize   : %d + %d >= %d", dst_offset_in_record,
+        length, m_blockSize);
+
+    IntBuffer buffer = m_buffer[pointer / m_maxBlocksPerBuffer];
+    int off = (pointer % m_maxBlocksPerBuffer) * m_blockSize + dst_offset_in_record;
+    IntBuffers.put(buffer, off, src_data, src_pos, length);
+  }
+
+  @Override
+  public void getInts(int pointer, int src_offset_in_record,
+      int dst_data[], int dst_pos, int length) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert src_offset_in_record >= 0 : String.format("src_offset_in_record < 0 : %d < 0",
+        src_offset_in_record);
+    assert src_offset_in_record < m_blockSize : String.format(
+        "src_offset_in_record >= m_blockSize : %d >= %d", src_offset_in_record, m_blockSize);
+    assert dst_pos >= 0 : String.format("dst_pos < 0 : %d", dst_pos);
+    assert dst_pos + length <= dst_data.length : String.format(
+        "dst_pos + length > dst_data.length : %d + %d >= %d", dst_pos, length, dst_data.length);
+
+    IntBuffer buffer = m_buffer[pointer / m_maxBlocksPerBuffer];
+    int off = (pointer % m_maxBlocksPerBuffer) * m_blockSize + src_offset_in_record;
+    IntBuffers.get(buffer, off, dst_data, dst_pos, length);
+  }
+
+  @Override
+  public void getBuffer(int pointer, int src_offset_in_record, IBuffer dst, int length) {
+    getInts(pointer, src_offset_in_record, dst.array(), 0, length);
+    dst.setUsed(length);
+  }
+
+  @Override
+  public long getLong(int pointer, int offset_in_data) {
+    int ilower = getInt(pointer, offset_in_data + 1);
+    int iupper = getInt(pointer, offset_in_data);
+    long lower = 0x00000000FFFFFFFFL & ilower;
+    long upper = ((long) iupper) << 32;
+    long ret = upper | lower;
+    return ret;
+  }
+
+  @Override
+  public void setLong(int pointer, int offset_in_data, long data) {
+    // upper int
+    setInt(pointer, offset_in_data, (int) (data >> 32));
+    // lower int
+    setInt(pointer, offset_in_data + 1, (int) (data));
+  }
+
+  /**
+   * @return the number of free blocks
+   */
+  @Override
+  public int freeBlocks() {
+    return m_header.get(HEADER_FREE_OFFSET) + m_header.get(HEADER_MAX_CAPACITY_OFFSET)
+        - m_header.get(HEADER_WATERMARK_OFFSET);
+  }
+
+  /**
+   * @return the total block capacity for this allocator
+   */
+  @Override
+  public int maxBlocks() {
+    return m_header.get(HEADER_MAX_CAPACITY_OFFSET) - m_reservedBlocks; // block 0 is reserved
+  }
+
+  /**
+   * @return number of used blocks
+   */
+  @Override
+  public int usedBlocks() {
+    return maxBlocks() - freeBlocks();
+  }
+
+  /**
+   * @return the fixed block size for this allocator
+   */
+  @Override
+  public int blockSize() {
+    return m_blockSize;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder s = new StringBuilder();
+    try {
+      int maxCapacity = m_header.get(HEADER_MAX_CAPACITY_OFFSET);
+      s.append(String.format(
+          "MappedBlockAllocator (%s) %s/%s records of %d ints used, total ints allocated %d",
+          m_file, usedBlocks(), maxBlocks(), m_blockSize, (long) maxCapacity * m_blockSize));
+      if (m_debug) {
+        s.append('\n');
+        for (int i = m_reservedBlocks; i < maxCapacity; i++) {
+          s.append('(');
+          for (int j = 0; j < m_blockSize; j++) {
+            s.append(getInt(i, j));
+            if (j != m_blockSize - 1) {
+              s.append(',');
+            }
+          }
+          s.append(')');
+          if (i != maxCapacity - 1) {
+            s.append(',');
+          }
+        }
+      }
+    } catch (RuntimeException e) {
+      s.append(" :: Exception inToString() " + e.getClass().getName() + " : " + e.getMessage());
+    }
+    return s.toString();
+  }
+
+  private int next(int pointer) {
+    return getInt(pointer, 0);
+  }
+
+  private void set_next(int pointer, int next) {
+    setInt(pointer, 0, next);
+  }
+
+  @Override
+  public void clear() {
+    m_header.put(HEADER_HEAD_OFFSET, -1);
+    m_header.put(HEADER_WATERMARK_OFFSET, m_reservedBlocks);
+    m_header.put(HEADER_FREE_OFFSET, 0);
+    m_header.put(HEADER_ROOT_OFFSET, -1);
+  }
+
+  /**
+   * Sets the allocator growth factor, it is stored in the file header and
+   * restored when the file is re-opened.
+   *
+   * @param d new growth factor, 0 to disable growth (default)
+   */
+  @Override
+  public void setGrowthFactor(double d) {
+    m_growthFactor = d;
+    long bits = Double.doubleToLongBits(d);
+    m_header.put(HEADER_GROWTH_FACTOR_OFFSET, (int) (bits >> 32));
+    m_header.put(HEADER_GROWTH_FACTOR_OFFSET + 1, (int) bits);
+  }
+
+  /**
+   * @return the current list growth factor
+   */
+  @Override
+  public double getGrowthFactor() {
+    return m_growthFactor;
+  }
+
+  @Override
+  public boolean isDebug() {
+    return m_debug;
+  }
+
+  @Override
+  public void setDebug(boolean debug) {
+    m_debug = debug;
+  }
+
+  public MemInitializer getInitializer() {
+    return m_initializer;
+  }
+
+  @Override
+  public void setInitializer(MemInitializer initializer) {
+    m_initializer = initializer;
+  }
+
+  @Override
+  public void initialize(int pointer) {
+    m_initializer.initialize(this, pointer, m_blockSize);
+  }
+
+  /**
+   * @return the number of bytes mapped by this allocator. Note that this memory
+   *         is not part of the java heap.
+   */
+  @Override
+  public long computeMemoryUsage() {
+    long mem = 0;
+    for (IntBuffer buffer : m_buffer) {
+      mem += buffer.capacity();
+    }
+    return mem * 4;
+  }
+
+  @Override
+  public int maximumCapacityFor(int pointer) {
+    return m_blockSize;
+  }
+
+  @Override
+  public float getFloat(int pointer, int offset) {
+    return Float.intBitsToFloat(getInt(pointer, offset));
+  }
+
+  @Override
+  public void setFloat(int pointer, int offset, float f) {
+    setInt(pointer, offset, Float.floatToIntBits(f));
+  }
+
+  @Override
+  public double getDouble(int pointer, int offset_in_data) {
+    return Double.longBitsToDouble(getLong(pointer, offset_in_data));
+  }
+
+  @Override
+  public void setDouble(int pointer, int offset_in_data, double data) {
+    setLong(pointer, offset_in_data, Double.doubleToLongBits(data));
+  }
+
+  @Override
+  public void setChars(int pointer, int dst_offset, char[] src_data, int src_pos, int num_chars) {
+    if (num_chars == 0) {
+      return;
+    }
+    int numInts = 1 + (num_chars - 1) / 2; // ceil(num_chars/2)
+    for (int i = dst_offset, src_index = src_pos, num_copied = 0; i < dst_offset + numInts; i++, src_index += 2) {
+      setUpperShort(pointer, i, src_data[src_index]);
+      num_copied++;
+      if (num_copied < num_chars) {
+        setLowerShort(pointer, i, src_data[src_index + 1]);
+        num_copied++;
+      }
+    }
+  }
+
+  @Override
+  public void getChars(int pointer, int src_offset, char[] dst_data, int dst_pos, int num_chars) {
+    if (num_chars == 0) {
+      return;
+    }
+
+    int numInts = 1 + (num_chars - 1) / 2; // ceil(length/2)
+    for (int i = src_offset, dst_index = dst_pos, num_copied = 0; i < src_offset + numInts; i++, dst_index += 2) {
+      dst_data[dst_index] = (char) getUpperShort(pointer, i);
+      num_copied++;
+      if (num_copied < num_chars) {
+        dst_data[dst_index + 1] = (char) getLowerShort(pointer, i);
+        num_copied++;
+      }
+    }
+  }
+
+  @Override
+  public byte getByte(int pointer, int byte_offset) {
+    return PackedBytes.getByte(this, pointer, byte_offset);
+  }
+
+  @Override
+  public void setByte(int pointer, int byte_offset, int b) {
+    PackedBytes.setByte(this, pointer, byte_offset, b);
+  }
+
+  @Override
+  public void setBytes(int pointer, int dst_offset, byte[] src_data, int src_pos, int num_bytes) {
+    PackedBytes.setBytes(this, pointer, dst_offset, src_data, src_pos, num_bytes);
+  }
+
+  @Override
+  public void getBytes(int pointer, int src_offset, byte[] dst_data, int dst_pos, int num_bytes) {
+    PackedBytes.getBytes(this, pointer, src_offset, dst_data, dst_pos, num_bytes);
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.memory.block;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits bulk memory work (allocating and filling arrays and buffers) over
+ * several threads, so that zeroing and page faulting large allocators scales
+ * with the number of cores.
+ *
+ * Work is cut into tasks, each thread of a short lived pool takes the next task
+ * until all are done. The calling thread waits for all the tasks, and the
+ * first failure is rethrown.
+ */
+final class Parallel {
+
+  /**
+   * Maximum number of threads used by allocator constructors to allocate their
+   * arrays
+   */
+  static final int DEFAULT_THREADS;
+  static {
+    String threads = System.getProperty("banana.parallelism",
+        String.valueOf(Runtime.getRuntime().availableProcessors()));
+    DEFAULT_THREADS = Integer.parseInt(threads);
+  }
+
+  // number of ints filled by a single task
+  private static final int CHUNK_SIZE = 1 << 20;
+
+  // smaller allocations are not worth starting threads for
+  private static final long MIN_INTS_PER_THREAD = 1 << 24;
+
+  /**
+   * @return the number of threads worth using to allocate numInts ints, at
+   *         most DEFAULT_THREADS
+   */
+  static int threadsFor(long numInts) {
+    return (int) Math.max(1, Math.min(DEFAULT_THREADS, numInts / MIN_INTS_PER_THREAD));
+  }
+
+  interface Task {
+    void run(int task);
+  }
+
+  private Parallel() {
+  }
+
+  /**
+   * Runs task for 0..count-1 on up to numThreads threads, and returns once all
+   * are done. runs on the calling thread if numThreads or count is 1.
+   */
+  static void forEach(final int count, int numThreads, final Task task) {
+    numThreads = Math.min(numThreads, count);
+    if (numThreads <= 1) {
+      for (int i = 0; i < count; i++) {
+        task.run(i);
+      }
+      return;
+    }
+
+    final AtomicInteger next = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<?>> futures = new ArrayList<Future<?>>(numThreads);
+      for (int t = 0; t < numThreads; t++) {
+        futures.add(executor.submit(new Runnable() {
+          @Override
+          public void run() {
+            int i;
+            while ((i = next.getAndIncrement()) < count) {
+              task.run(i);
+            }
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          // stop the other threads from taking new tasks
+          next.set(count);
+          Throwable cause = e.getCause();
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          }
+          if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+          throw new RuntimeException(cause);
+        }
+      }
+    } catch (InterruptedException e) {
+      next.set(count);
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for parallel tasks", e);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Sets every int of arrays to value
+   */
+  static void fill(final int arrays[][], final int value, int numThreads) {
+    final int chunks[] = new int[arrays.length + 1];
+    for (int i = 0; i < arrays.length; i++) {
+      int length = arrays[i] == null ? 0 : arrays[i].length;
+      chunks[i + 1] = chunks[i] + (length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    }
+
+    forEach(chunks[arrays.length], numThreads, new Task() {
+      @Override
+      public void run(int task) {
+        int arr = arrayFor(chunks, task);
+        int array[] = arrays[arr];
+        int from = (task - chunks[arr]) * CHUNK_SIZE;
+        Arrays.fill(array, from, Math.min(array.length, from + CHUNK_SIZE), value);
+      }
+    });
+  }
+
+  /**
+   * Sets every int of buffers to value
+   */
+  static void fill(final IntBuffer buffers[], final int value, int numThreads) {
+    final int chunks[] = new int[buffers.length + 1];
+    for (int i = 0; i < buffers.length; i++) {
+      int length = buffers[i] == null ? 0 : buffers[i].capacity();
+      chunks[i + 1] = chunks[i] + (length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    }
+
+    forEach(chunks[buffers.length], numThreads, new Task() {
+      @Override
+      public void run(int task) {
+        int buf = arrayFor(chunks, task);
+        IntBuffer buffer = buffers[buf];
+        int from = (task - chunks[buf]) * CHUNK_SIZE;
+        int to = Math.min(buffer.capacity(), from + CHUNK_SIZE);
+        for (int i = from; i < to; i++) {
+          buffer.put(i, value);
+        }
+      }
+    });
+  }
+
+  /**
+   * @return the array holding the chunk, chunks[i] is the first chunk of array
+   *         i
+   */
+  private static int arrayFor(int chunks[], int chunk) {
+    int arr = Arrays.binarySearch(chunks, chunk);
+    if (arr < 0) {
+      return -arr - 2;
+    }
+    // skip empty arrays starting at the same chunk
+    while (chunks[arr + 1] == chunk) {
+      arr++;
+    }
+    return arr;
+  }
+}
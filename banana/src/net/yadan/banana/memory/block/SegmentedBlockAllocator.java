@@ -0,0 +1,822 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.memory.block;
+
+import java.util.Arrays;
+
+import net.yadan.banana.memory.BulkMemInitializer;
+import net.yadan.banana.memory.IBlockAllocator;
+import net.yadan.banana.memory.IBuffer;
+import net.yadan.banana.memory.MemInitializer;
+import net.yadan.banana.memory.OutOfMemoryException;
+import net.yadan.banana.memory.PackedBytes;
+import net.yadan.banana.memory.RelocationListener;
+import net.yadan.banana.memory.initializers.PrototypeInitializer;
+
+
+/**
+ * A fixed size block allocator that stores its blocks in fixed size segments.
+ *
+ * Each segment holds a power of two number of blocks, so a pointer is split
+ * into a segment number and a block index inside the segment with a shift and
+ * a mask.
+ *
+ * Unlike {@link BlockAllocator}, growing never copies existing data: growth
+ * only raises the capacity limit, and segments are allocated one at a time as
+ * the allocation watermark reaches them. The cost of growth is therefore
+ * bounded by the size of a single segment, and existing pointers remain valid.
+ *
+ * A segment that extends past the capacity is only allocated up to the
+ * capacity, so an allocator smaller than one segment does not reserve a full
+ * segment. Growth extends that segment if it was allocated.
+ */
+public class SegmentedBlockAllocator implements IBlockAllocator {
+
+  private static final int DEFAULT_BLOCKS_PER_SEGMENT;
+  static {
+    String blocks = System.getProperty("SegmentedBlockAllocator.BLOCKS_PER_SEGMENT",
+        String.valueOf(1 << 16));
+    DEFAULT_BLOCKS_PER_SEGMENT = Integer.parseInt(blocks);
+  }
+
+  private static final int MAX_INTS_PER_SEGMENT = Integer.MAX_VALUE - 8;
+
+  protected final int m_blockSize;
+
+  private int m_watermark;
+  private int m_free;
+  private int m_head;
+
+  int m_segments[][];
+
+  private int m_maxCapacity;
+
+  private MemInitializer m_initializer;
+
+  // m_initializer if it can initialize runs of blocks, null otherwise
+  private BulkMemInitializer m_bulkInitializer;
+
+  // true if m_bulkInitializer only produces zeros
+  private boolean m_zeroOnGrow;
+
+  // blocks at or above this mark were never handed out since their memory was
+  // allocated, so they are still zero
+  private int m_zeroMark;
+
+  private boolean m_debug;
+
+  private double m_growthFactor;
+
+  private final int m_segmentShift;
+
+  private final int m_segmentMask;
+
+  private int m_reservedBlocks;
+
+  /**
+   * @param maxBlocks number of blocks to reserve space for
+   * @param blockSize record size in ints.
+   */
+  public SegmentedBlockAllocator(int maxBlocks, int blockSize) {
+    this(maxBlocks, blockSize, null);
+  }
+
+  /**
+   * @param maxBlocks number of records to reserve space for
+   * @param blockSize record size in ints.
+   * @param initializer a callback to initialize newly allocated records
+   */
+  public SegmentedBlockAllocator(int maxBlocks, int blockSize, MemInitializer initializer) {
+    this(maxBlocks, blockSize, 0, initializer);
+  }
+
+  /**
+   * @param maxBlocks number of records to reserve space for
+   * @param blockSize record size in ints.
+   * @param growthFactor determines by how much to grow buffer when it runs out
+   *          of memory. 0 to disable growth
+   */
+  public SegmentedBlockAllocator(int maxBlocks, int blockSize, double growthFactor) {
+    this(maxBlocks, blockSize, growthFactor, null);
+  }
+
+  /**
+   * @param maxBlocks number of records to reserve space for
+   * @param blockSize record size in ints.
+   * @param growthFactor determines by how much to grow buffer when it runs out
+   *          of memory. 0 to disable growth
+   * @param initializer a callback to initialize newly allocated records
+   */
+  public SegmentedBlockAllocator(int maxBlocks, int blockSize, double growthFactor,
+      MemInitializer initializer) {
+    this(maxBlocks, blockSize, DEFAULT_BLOCKS_PER_SEGMENT, growthFactor, initializer);
+  }
+
+  /**
+   * @param maxBlocks number of records to reserve space for
+   * @param blockSize record size in ints.
+   * @param blocksPerSegment number of blocks in each segment, rounded up to the
+   *          next power of two
+   * @param growthFactor determines by how much to grow buffer when it runs out
+   *          of memory. 0 to disable growth
+   * @param initializer a callback to initialize newly allocated records
+   */
+  public SegmentedBlockAllocator(int maxBlocks, int blockSize, int blocksPerSegment,
+      double growthFactor, MemInitializer initializer) {
+    m_reservedBlocks = 1;
+    m_zeroMark = m_reservedBlocks;
+    m_blockSize = blockSize;
+    m_growthFactor = growthFactor;
+    if (initializer == null) {
+      initializer = new PrototypeInitializer(blockSize);
+    }
+    m_debug = false;
+    m_initializer = initializer;
+    updateBulkInitializer();
+
+    if (maxBlocks < 1)
+      throw new IllegalArgumentException("maxBlocks " + maxBlocks + " < 1");
+    if (blocksPerSegment < 1)
+      throw new IllegalArgumentException("blocksPerSegment " + blocksPerSegment + " < 1");
+    if (blockSize > MAX_INTS_PER_SEGMENT)
+      throw new IllegalArgumentException("blockSize " + blockSize + " > " + MAX_INTS_PER_SEGMENT);
+
+    int shift = 32 - Integer.numberOfLeadingZeros(blocksPerSegment - 1);
+    while (shift > 0 && ((long) m_blockSize << shift) > MAX_INTS_PER_SEGMENT) {
+      shift--;
+    }
+    m_segmentShift = shift;
+    m_segmentMask = (1 << shift) - 1;
+
+    // block 0 is reserved
+    long size = m_reservedBlocks + (long) maxBlocks;
+    if (size > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Attempted to allocate " + size
+          + " blocks, which is greated than Integer.MAX_VALUE (" + Integer.MAX_VALUE + ")");
+    }
+    m_maxCapacity = (int) size;
+
+    m_segments = new int[1 + ((m_maxCapacity - 1) >>> m_segmentShift)][];
+    // the first segment holds the reserved block
+    m_segments[0] = newSegment(0);
+
+    clear();
+  }
+
+  /**
+   * Allocates a single block and returns a pointer to that block
+   *
+   * @return pointer to newly allocated block
+   *
+   * @throws net.yadan.banana.memory.OutOfMemoryException : if there are 0 free blocks
+   */
+  @Override
+  public int malloc() throws OutOfMemoryException {
+    if (m_head == -1) {
+      if (m_watermark == m_maxCapacity) {
+        if (m_growthFactor == 0) {
+          throw new OutOfMemoryException("Out of memory (" + maxBlocks() + "/" + usedBlocks()
+              + " blocks used)");
+        } else {
+          increaseSize();
+          return malloc();
+        }
+      } else {
+        int segment = m_watermark >>> m_segmentShift;
+        if (m_segments[segment] == null) {
+          m_segments[segment] = newSegment(segment);
+        }
+        m_head = m_watermark;
+        set_next(m_head, -1);
+        m_watermark++;
+      }
+    } else {
+      m_free--;
+    }
+    int oldHead = m_head;
+    m_head = next(oldHead);
+    initializeBlock(oldHead);
+    return oldHead;
+  }
+
+  /**
+   * Allocates count blocks. free blocks are reused first, the rest are taken
+   * from the watermark as a single run.
+   *
+   * @throws OutOfMemoryException : if growth is disabled and there are less
+   *           than count free blocks
+   */
+  @Override
+  public void malloc(int count, int out[]) throws OutOfMemoryException {
+    assert count >= 0 : "Negative count " + count;
+    assert count <= out.length : "count > out.length : " + count + " > " + out.length;
+    if (count > freeBlocks()) {
+      if (m_growthFactor == 0) {
+        throw new OutOfMemoryException("Out of memory, requested " + count + " blocks ("
+            + maxBlocks() + "/" + usedBlocks() + " blocks used)");
+      }
+      while (count > freeBlocks()) {
+        increaseSize();
+      }
+    }
+
+    int n = 0;
+    while (n < count && m_head != -1) {
+      out[n++] = m_head;
+      m_head = next(m_head);
+    }
+    m_free -= n;
+    int reused = n;
+    int first = m_watermark;
+    if (n < count) {
+      m_watermark += count - n;
+      for (int p = first; n < count; p++) {
+        out[n++] = p;
+      }
+      for (int s = (m_watermark - 1) >>> m_segmentShift; s >= 0 && m_segments[s] == null; s--) {
+        m_segments[s] = newSegment(s);
+      }
+    }
+
+    for (int i = 0; i < reused; i++) {
+      initializeBlock(out[i]);
+    }
+    initializeRun(first, m_watermark);
+  }
+
+  @Override
+  public void memCopy(int srcPtr, int srcPos, int dstPtr, int dstPos, int length) {
+    assert srcPtr >= 0 : "Negative pointer : " + srcPtr;
+    assert dstPtr >= 0 : "Negative pointer : " + srcPtr;
+    assert length <= m_blockSize : "length > m_blockSize";
+    assert srcPos + length <= m_blockSize : "src overflow";
+    assert dstPos + length <= m_blockSize : "dst overflow";
+
+    System.arraycopy(m_segments[srcPtr >>> m_segmentShift], (srcPtr & m_segmentMask) * m_blockSize
+        + srcPos, m_segments[dstPtr >>> m_segmentShift], (dstPtr & m_segmentMask) * m_blockSize
+        + dstPos, length);
+  }
+
+  @Override
+  public boolean memEquals(int ptr1, int pos1, int ptr2, int pos2, int length) {
+    assert ptr1 >= 0 : "Negative pointer : " + ptr1;
+    assert ptr2 >= 0 : "Negative pointer : " + ptr2;
+    assert pos1 + length <= m_blockSize : "overflow";
+    assert pos2 + length <= m_blockSize : "overflow";
+
+    int a1[] = m_segments[ptr1 >>> m_segmentShift];
+    int a2[] = m_segments[ptr2 >>> m_segmentShift];
+    int o1 = (ptr1 & m_segmentMask) * m_blockSize + pos1;
+    int o2 = (ptr2 & m_segmentMask) * m_blockSize + pos2;
+    for (int i = 0; i < length; i++) {
+      if (a1[o1 + i] != a2[o2 + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean memEquals(int pointer, int srcPos, int data[], int data_pos, int length) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert srcPos + length <= m_blockSize : "overflow";
+
+    int array[] = m_segments[pointer >>> m_segmentShift];
+    int p = (pointer & m_segmentMask) * m_blockSize + srcPos;
+    for (int i = 0; i < length; i++) {
+      if (array[p + i] != data[data_pos + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void memSet(int pointer, int srcPos, int length, int value) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert length <= m_blockSize : "length > m_blockSize";
+    assert srcPos + length <= m_blockSize : "overflow";
+
+    int segment[] = m_segments[pointer >>> m_segmentShift];
+    int p = (pointer & m_segmentMask) * m_blockSize;
+    for (int i = srcPos; i < srcPos + length; i++) {
+      segment[p + i] = value;
+    }
+  }
+
+  /**
+   * @return size in ints of the part of the segment that is below the current
+   *         capacity
+   */
+  private int segmentLength(int segment) {
+    long blocks = Math.min(m_segmentMask + 1L, m_maxCapacity - ((long) segment << m_segmentShift));
+    return (int) blocks * m_blockSize;
+  }
+
+  private int[] newSegment(int segment) {
+    return new int[segmentLength(segment)];
+  }
+
+  /**
+   * Raises the capacity limit. only the segment directory and the segment
+   * holding the old capacity limit are copied, other segments are allocated by
+   * malloc() when the watermark reaches them.
+   */
+  private void increaseSize() {
+    int currentMaxBlocks = maxBlocks();
+    long new_max_capacity = m_reservedBlocks
+        + Math.max(currentMaxBlocks + 1, (long) (currentMaxBlocks * m_growthFactor));
+    if (new_max_capacity > Integer.MAX_VALUE) {
+      new_max_capacity = Integer.MAX_VALUE;
+      if (new_max_capacity == m_maxCapacity) {
+        throw new OutOfMemoryException("Out of memory, reached maximum capacity of "
+            + Integer.MAX_VALUE + " blocks");
+      }
+    }
+
+    int num_segments = 1 + (int) ((new_max_capacity - 1) >>> m_segmentShift);
+    if (num_segments > m_segments.length) {
+      int segments[][] = new int[num_segments][];
+      System.arraycopy(m_segments, 0, segments, 0, m_segments.length);
+      m_segments = segments;
+    }
+
+    int last = (m_maxCapacity - 1) >>> m_segmentShift;
+    m_maxCapacity = (int) new_max_capacity;
+    if (m_segments[last] != null) {
+      int length = segmentLength(last);
+      if (m_segments[last].length < length) {
+        m_segments[last] = Arrays.copyOf(m_segments[last], length);
+      }
+    }
+  }
+
+  @Override
+  public void free(int pointer) {
+    assert pointer != 0 : "pointer 0 should not be freed";
+    assert pointer != -1 : "pointer -1 should not be freed";
+    set_next(pointer, m_head);
+    m_head = pointer;
+    m_free++;
+  }
+
+  @Override
+  public void free(int pointers[], int offset, int length) {
+    if (length == 0) {
+      return;
+    }
+    int last = offset + length - 1;
+    for (int i = offset; i < last; i++) {
+      assert pointers[i] != 0 : "pointer 0 should not be freed";
+      assert pointers[i] != -1 : "pointer -1 should not be freed";
+      set_next(pointers[i], pointers[i + 1]);
+    }
+    assert pointers[last] != 0 : "pointer 0 should not be freed";
+    assert pointers[last] != -1 : "pointer -1 should not be freed";
+    set_next(pointers[last], m_head);
+    m_head = pointers[offset];
+    m_free += length;
+  }
+
+  /**
+   * Moves the used blocks below the watermark. if growth is enabled segments
+   * beyond the used blocks are released.
+   */
+  @Override
+  public void compact(RelocationListener listener) {
+    m_watermark = BlockCompactor.compact(this, m_head, m_watermark, m_reservedBlocks, listener);
+    m_head = -1;
+    m_free = 0;
+
+    if (m_growthFactor != 0) {
+      int newMaxCapacity = Math.max(m_watermark, m_reservedBlocks + 1);
+      if (newMaxCapacity < m_maxCapacity) {
+        int num_segments = 1 + ((newMaxCapacity - 1) >>> m_segmentShift);
+        int segments[][] = new int[num_segments][];
+        System.arraycopy(m_segments, 0, segments, 0, num_segments);
+        m_segments = segments;
+        m_maxCapacity = newMaxCapacity;
+        // released segments are allocated again, zeroed, when needed
+        m_zeroMark = (int) Math.min(m_zeroMark, (long) num_segments << m_segmentShift);
+      }
+    }
+  }
+
+  @Override
+  public short getUpperShort(int pointer, int offset) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert offset >= 0 : "Negative offset_in_data " + offset;
+    assert offset < m_blockSize : String.format("offset >= m_blockSize : %d >= %d", offset, m_blockSize);
+
+    return (short) (m_segments[pointer >>> m_segmentShift][(pointer & m_segmentMask) * m_blockSize
+        + offset] >>> 16);
+  }
+
+  @Override
+  public short getLowerShort(int pointer, int offset) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert offset >= 0 : "Negative offset_in_data " + offset;
+    assert offset < m_blockSize : String.format("offset >= m_blockSize : %d >= %d", offset, m_blockSize);
+
+    return (short) (m_segments[pointer >>> m_segmentShift][(pointer & m_segmentMask) * m_blockSize
+        + offset]);
+  }
+
+  @Override
+  public void setUpperShort(int pointer, int offset, int s) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert offset >= 0 : "Negative offset " + offset;
+    assert offset < m_blockSize : String.format("offset >= m_blockSize : %d >= %d", offset, m_blockSize);
+
+    int segment[] = m_segments[pointer >>> m_segmentShift];
+    int off = (pointer & m_segmentMask) * m_blockSize + offset;
+    int lower = segment[off] & 0x0000ffff;
+    segment[off] = (s << 16) | lower;
+  }
+
+  @Override
+  public void setLowerShort(int pointer, int offset, int s) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert offset >= 0 : "Negative offset " + offset;
+    assert offset < m_blockSize : String.format("offset >= m_blockSize : %d >= %d", offset, m_blockSize);
+
+    int segment[] = m_segments[pointer >>> m_segmentShift];
+    int off = (pointer & m_segmentMask) * m_blockSize + offset;
+    int upper = segment[off] & 0xffff0000;
+    segment[off] = upper | (s & 0x0000ffff);
+  }
+
+  @Override
+  public int getInt(int pointer, int offset_in_data) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert offset_in_data >= 0 : "Negative offset_in_data " + offset_in_data;
+    assert offset_in_data < m_blockSize : String.format("offset_in_data >= m_blockSize : %d >= %d",
+        offset_in_data, m_blockSize);
+    return m_segments[pointer >>> m_segmentShift][(pointer & m_segmentMask) * m_blockSize
+        + offset_in_data];
+  }
+
+  @Override
+  public void setInt(int pointer, int offset_in_data, int data) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert offset_in_data >= 0 : "Negative offset_in_data " + offset_in_data;
+    assert offset_in_data < m_blockSize : String.format("offset_in_data >= m_blockSize : %d >= %d",
+        offset_in_data, m_blockSize);
+    m_segments[pointer >>> m_segmentShift][(pointer & m_segmentMask) * m_blockSize + offset_in_data] = data;
+  }
+
+  @Override
+  public void setInts(int pointer, int dst_offset_in_record,
+      int src_data[], int src_pos, int length) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert src_pos >= 0 : "Negative src_pos";
+    assert src_pos + length <= src_data.length : String.format(
+        "src_pos + length > src_data.length : %d + %d > %d", src_pos, length, src_data.length);
+    assert dst_offset_in_record + length <= m_blockSize : String.format(
+        "dst_offset_in_record + length > m_blockSize   : %d + %d >= %d", dst_offset_in_record,
+        length, m_blockSize);
+
+    System.arraycopy(src_data, src_pos, m_segments[pointer >>> m_segmentShift],
+        (pointer & m_segmentMask) * m_blockSize + dst_offset_in_record, length);
+  }
+
+  @Override
+  public void getInts(int pointer, int src_offset_in_record,
+      int dst_data[], int dst_pos, int length) {
+    assert pointer >= 0 : "Negative pointer : " + pointer;
+    assert src_offset_in_record >= 0 : String.format("src_offset_in_record < 0 : %d < 0",
+        src_offset_in_record);
+    assert src_offset_in_record < m_blockSize : String.format(
+        "src_offset_in_record >= m_blockSize : %d >= %d", src_offset_in_record, m_blockSize);
+    assert dst_pos >= 0 : String.format("dst_pos < 0 : %d", dst_pos);
+    assert dst_pos + length <= dst_data.length : String.format(
+        "dst_pos + length > dst_data.length : %d + %d >= %d", dst_pos, length, dst_data.length);
+
+    System.arraycopy(m_segments[pointer >>> m_segmentShift], (pointer & m_segmentMask)
+        * m_blockSize + src_offset_in_record, dst_data, dst_pos, length);
+  }
+
+  @Override
+  public void getBuffer(int pointer, int src_offset_in_record, IBuffer dst, int length) {
+    getInts(pointer, src_offset_in_record, dst.array(), 0, length);
+    dst.setUsed(length);
+  }
+
+  @Override
+  public long getLong(int pointer, int offset_in_data) {
+    int ilower = getInt(pointer, offset_in_data + 1);
+    int iupper = getInt(pointer, offset_in_data);
+    long lower = 0x00000000FFFFFFFFL & ilower;
+    long upper = ((long) iupper) << 32;
+    long ret = upper | lower;
+    return ret;
+  }
+
+  @Override
+  public void setLong(int pointer, int offset_in_data, long data) {
+    // upper int
+    setInt(pointer, offset_in_data, (int) (data >> 32));
+    // lower int
+    setInt(pointer, offset_in_data + 1, (int) (data));
+  }
+
+  /**
+   * @return the number of free blocks
+   */
+  @Override
+  public int freeBlocks() {
+    return m_free + m_maxCapacity - m_watermark;
+  }
+
+  /**
+   * @return the total block capacity for this allocator
+   */
+  @Override
+  public int maxBlocks() {
+    return m_maxCapacity - m_reservedBlocks; // block 0 is reserved
+  }
+
+  /**
+   * @return number of used blocks
+   */
+  @Override
+  public int usedBlocks() {
+    return maxBlocks() - freeBlocks();
+  }
+
+  /**
+   * @return the fixed block size for this allocator
+   */
+  @Override
+  public int blockSize() {
+    return m_blockSize;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder s = new StringBuilder();
+    try {
+      s.append(String.format(
+          "SegmentedBlockAllocator %s/%s records of %d ints used, total ints allocated %d",
+          usedBlocks(), maxBlocks(), m_blockSize, (long) m_maxCapacity * m_blockSize));
+      if (m_debug) {
+        s.append('\n');
+        // segments above the watermark may not be allocated yet
+        for (int i = m_reservedBlocks; i < m_watermark; i++) {
+          s.append('(');
+          for (int j = 0; j < m_blockSize; j++) {
+            s.append(getInt(i, j));
+            if (j != m_blockSize - 1) {
+              s.append(',');
+            }
+          }
+          s.append(')');
+          if (i != m_watermark - 1) {
+            s.append(',');
+          }
+        }
+      }
+    } catch (RuntimeException e) {
+      s.append(" :: Exception inToString() " + e.getClass().getName() + " : " + e.getMessage());
+    }
+    return s.toString();
+  }
+
+  private int next(int pointer) {
+    return getInt(pointer, 0);
+  }
+
+  private void set_next(int pointer, int next) {
+    setInt(pointer, 0, next);
+  }
+
+  /**
+   * Initializes a block taken by malloc. blocks that were never handed out are
+   * left alone if the initializer only produces zeros.
+   */
+  private void initializeBlock(int pointer) {
+    if (pointer >= m_zeroMark) {
+      m_zeroMark = pointer + 1;
+      if (m_zeroOnGrow) {
+        set_next(pointer, 0);
+        return;
+      }
+    }
+    set_next(pointer, -1);
+    m_initializer.initialize(this, pointer, m_blockSize);
+  }
+
+  /**
+   * Initializes the run of blocks [from, to) taken from the watermark, in bulk
+   * if the initializer supports it.
+   */
+  private void initializeRun(int from, int to) {
+    int dirty = to;
+    if (m_zeroOnGrow) {
+      dirty = Math.min(to, Math.max(from, m_zeroMark));
+      for (int p = dirty; p < to; p++) {
+        set_next(p, 0);
+      }
+    }
+    if (m_bulkInitializer != null) {
+      for (int p = from; p < dirty;) {
+        int index = p & m_segmentMask;
+        int n = Math.min(dirty - p, m_segmentMask + 1 - index);
+        m_bulkInitializer.initialize(m_segments[p >>> m_segmentShift], index * m_blockSize,
+            (index + n) * m_blockSize, m_blockSize);
+        p += n;
+      }
+    } else {
+      for (int p = from; p < dirty; p++) {
+        set_next(p, -1);
+        m_initializer.initialize(this, p, m_blockSize);
+      }
+    }
+    m_zeroMark = Math.max(m_zeroMark, to);
+  }
+
+  private void updateBulkInitializer() {
+    if (m_initializer instanceof BulkMemInitializer) {
+      m_bulkInitializer = (BulkMemInitializer) m_initializer;
+    } else {
+      m_bulkInitializer = null;
+    }
+    m_zeroOnGrow = m_bulkInitializer != null && m_bulkInitializer.isZero();
+  }
+
+  @Override
+  public void clear() {
+    m_head = -1;
+    m_watermark = m_reservedBlocks;
+    m_free = 0;
+    set_next(0, -1);
+  }
+
+  /**
+   * Clears the allocator and sets every int of its memory to value, splitting
+   * the work over numThreads threads. Segments that were not allocated yet are
+   * allocated, so this touches all the memory up front. With a
+   * NullInitializer it replaces the per malloc initialization as long as freed
+   * blocks are not reused.
+   *
+   * @param value value to set
+   * @param numThreads number of threads to use
+   */
+  public void clear(int value, int numThreads) {
+    final int segments[][] = m_segments;
+    Parallel.forEach(segments.length, numThreads, new Parallel.Task() {
+      @Override
+      public void run(int i) {
+        if (segments[i] == null) {
+          segments[i] = newSegment(i);
+        }
+      }
+    });
+    m_zeroMark = value == 0 ? m_reservedBlocks : m_maxCapacity;
+    Parallel.fill(segments, value, numThreads);
+    clear();
+  }
+
+  /**
+   * @return the number of blocks in each segment, always a power of two
+   */
+  public int getBlocksPerSegment() {
+    return m_segmentMask + 1;
+  }
+
+  /**
+   * Sets the allocator growth factor.
+   *
+   * @param d new growth factor, 0 to disable growth (default)
+   */
+  @Override
+  public void setGrowthFactor(double d) {
+    m_growthFactor = d;
+  }
+
+  /**
+   * @return the current list growth factor
+   */
+  @Override
+  public double getGrowthFactor() {
+    return m_growthFactor;
+  }
+
+  @Override
+  public boolean isDebug() {
+    return m_debug;
+  }
+
+  @Override
+  public void setDebug(boolean debug) {
+    m_debug = debug;
+  }
+
+  public MemInitializer getInitializer() {
+    return m_initializer;
+  }
+
+  @Override
+  public void setInitializer(MemInitializer initializer) {
+    m_initializer = initializer;
+    updateBulkInitializer();
+  }
+
+  @Override
+  public void initialize(int pointer) {
+    m_initializer.initialize(this, pointer, m_blockSize);
+  }
+
+  @Override
+  public long computeMemoryUsage() {
+    long mem = 0;
+    for (int segment[] : m_segments) {
+      if (segment != null) {
+        mem += segment.length;
+      }
+    }
+    return mem * 4;
+  }
+
+  @Override
+  public int maximumCapacityFor(int pointer) {
+    return m_blockSize;
+  }
+
+  @Override
+  public float getFloat(int pointer, int offset) {
+    return Float.intBitsToFloat(getInt(pointer, offset));
+  }
+
+  @Override
+  public void setFloat(int pointer, int offset, float f) {
+    setInt(pointer, offset, Float.floatToIntBits(f));
+  }
+
+  @Override
+  public double getDouble(int pointer, int offset_in_data) {
+    return Double.longBitsToDouble(getLong(pointer, offset_in_data));
+  }
+
+  @Override
+  public void setDouble(int pointer, int offset_in_data, double data) {
+    setLong(pointer, offset_in_data, Double.doubleToLongBits(data));
+  }
+
+  @Override
+  public void setChars(int pointer, int dst_offset, char[] src_data, int src_pos, int num_chars) {
+    if (num_chars == 0) {
+      return;
+    }
+    int numInts = 1 + (num_chars - 1) / 2; // ceil(num_chars/2)
+    for (int i = dst_offset, src_index = src_pos, num_copied = 0; i < dst_offset + numInts; i++, src_index += 2) {
+      setUpperShort(pointer, i, src_data[src_index]);
+      num_copied++;
+      if (num_copied < num_chars) {
+        setLowerShort(pointer, i, src_data[src_index + 1]);
+        num_copied++;
+      }
+    }
+  }
+
+  @Override
+  public void getChars(int pointer, int src_offset, char[] dst_data, int dst_pos, int num_chars) {
+    if (num_chars == 0) {
+      return;
+    }
+
+    int numInts = 1 + (num_chars - 1) / 2; // ceil(length/2)
+    for (int i = src_offset, dst_index = dst_pos, num_copied = 0; i < src_offset + numInts; i++, dst_index += 2) {
+      dst_data[dst_index] = (char) getUpperShort(pointer, i);
+      num_copied++;
+      if (num_copied < num_chars) {
+        dst_data[dst_index + 1] = (char) getLowerShort(pointer, i);
+        num_copied++;
+      }
+    }
+  }
+
+  @Override
+  public byte getByte(int pointer, int byte_offset) {
+    return PackedBytes.getByte(this, pointer, byte_offset);
+  }
+
+  @Override
+  public void setByte(int pointer, int byte_offset, int b) {
+    PackedBytes.setByte(this, pointer, byte_offset, b);
+  }
+
+  @Override
+  public void setBytes(int pointer, int dst_offset, byte[] src_data, int src_pos, int num_bytes) {
+    PackedBytes.setBytes(this, pointer, dst_offset, src_data, src_pos, num_bytes);
+  }
+
+  @Override
+  public void getBytes(int pointer, int src_offset, byte[] dst_data, int dst_pos, int num_bytes) {
+    PackedBytes.getBytes(this, pointer, src_offset, dst_data, dst_pos, num_bytes);
+  }
+}
@@ -0,0 +1,501 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.memory.block;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import net.yadan.banana.memory.IBlockAllocator;
+import net.yadan.banana.memory.IBuffer;
+import net.yadan.banana.memory.MemInitializer;
+import net.yadan.banana.memory.OutOfMemoryException;
+import net.yadan.banana.memory.RelocationListener;
+
+
+/**
+ * A block allocator front-end that lets multiple threads allocate and free
+ * blocks concurrently.
+ *
+ * Each thread keeps a small private cache of free blocks. malloc() and free()
+ * only touch the calling thread cache, which is refilled from and spilled back
+ * to the shared allocator in batches while holding a lock. Data access methods
+ * go directly to the shared allocator without locking, so blocks owned by
+ * different threads can be accessed concurrently.
+ *
+ * Limitations:
+ * <ul>
+ * <li>The shared allocator must not move its storage while other threads
+ * access it. Use a non-growing allocator, or one that grows without copying
+ * such as {@link SegmentedBlockAllocator}.</li>
+ * <li>Blocks cached by a thread are not available to other threads. A thread
+ * that is done allocating should call {@link #flush()} to return them. The
+ * caches of threads that died are reclaimed when a new thread starts using the
+ * allocator, when the shared allocator runs out of blocks and by
+ * {@link #cachedBlocks()}.</li>
+ * <li>cachedBlocks(), usedBlocks() and freeBlocks() only see the cache
+ * changes other threads made up to their last refill or spill, they are exact
+ * when no other thread is allocating or freeing blocks.</li>
+ * </ul>
+ */
+public class ThreadCachingBlockAllocator implements IBlockAllocator {
+
+  private static final int DEFAULT_CACHE_SIZE = 64;
+
+  private final IBlockAllocator m_shared;
+
+  private final Object m_lock = new Object();
+
+  private final int m_cacheSize;
+
+  private final ThreadLocal<Cache> m_cache;
+
+  // all the thread caches, used to compute the number of cached blocks and to
+  // reclaim the caches of dead threads
+  private final List<Cache> m_caches;
+
+  // incremented by clear(), caches from an older generation are discarded
+  private volatile int m_generation;
+
+  private final class Cache {
+    final int m_blocks[] = new int[m_cacheSize];
+    // blocks in [0, m_fresh) came from the shared allocator and are already
+    // initialized
+    int m_fresh;
+    // only written by the owner, other threads see it as of the last refill or
+    // spill, which happen under m_lock
+    int m_count;
+    int m_generation = ThreadCachingBlockAllocator.this.m_generation;
+    // does not keep a dead thread from being collected
+    final WeakReference<Thread> m_owner = new WeakReference<Thread>(Thread.currentThread());
+  }
+
+  /**
+   * @param shared the allocator blocks are taken from
+   */
+  public ThreadCachingBlockAllocator(IBlockAllocator shared) {
+    this(shared, DEFAULT_CACHE_SIZE);
+  }
+
+  /**
+   * @param shared the allocator blocks are taken from
+   * @param cacheSize maximum number of free blocks each thread may cache. the
+   *          cache is refilled and spilled in batches of half that size.
+   */
+  public ThreadCachingBlockAllocator(IBlockAllocator shared, int cacheSize) {
+    if (cacheSize < 2)
+      throw new IllegalArgumentException("cacheSize " + cacheSize + " < 2");
+    m_shared = shared;
+    m_cacheSize = cacheSize;
+    m_caches = new ArrayList<Cache>();
+    m_cache = new ThreadLocal<Cache>() {
+      @Override
+      protected Cache initialValue() {
+        Cache cache = new Cache();
+        synchronized (m_lock) {
+          reclaimDeadCaches();
+          m_caches.add(cache);
+        }
+        return cache;
+      }
+    };
+  }
+
+  /**
+   * Returns the blocks cached by threads that died to the shared allocator and
+   * forgets their caches. Called while holding m_lock.
+   *
+   * @return true if blocks were returned
+   */
+  private boolean reclaimDeadCaches() {
+    boolean reclaimed = false;
+    Iterator<Cache> it = m_caches.iterator();
+    while (it.hasNext()) {
+      Cache cache = it.next();
+      Thread owner = cache.m_owner.get();
+      if (owner == null || !owner.isAlive()) {
+        if (cache.m_generation == m_generation) {
+          m_shared.free(cache.m_blocks, 0, cache.m_count);
+          reclaimed |= cache.m_count > 0;
+        }
+        it.remove();
+      }
+    }
+    return reclaimed;
+  }
+
+  private Cache cache() {
+    Cache cache = m_cache.get();
+    if (cache.m_generation != m_generation) {
+      // blocks were reclaimed by clear()
+      cache.m_count = 0;
+      cache.m_fresh = 0;
+      cache.m_generation = m_generation;
+    }
+    return cache;
+  }
+
+  @Override
+  public int malloc() throws OutOfMemoryException {
+    Cache cache = cache();
+    if (cache.m_count == 0) {
+      refill(cache);
+    }
+    int count = cache.m_count - 1;
+    int pointer = cache.m_blocks[count];
+    cache.m_count = count;
+    if (count < cache.m_fresh) {
+      cache.m_fresh = count;
+    } else {
+      m_shared.initialize(pointer);
+    }
+    return pointer;
+  }
+
+  /**
+   * Allocates count blocks from the calling thread cache, refilling it as
+   * needed. if the allocation fails the blocks allocated so far are freed.
+   */
+  @Override
+  public void malloc(int count, int out[]) throws OutOfMemoryException {
+    assert count <= out.length : "count > out.length : " + count + " > " + out.length;
+    int n = 0;
+    try {
+      for (; n < count; n++) {
+        out[n] = malloc();
+      }
+    } catch (OutOfMemoryException e) {
+      free(out, 0, n);
+      throw e;
+    }
+  }
+
+  private void refill(Cache cache) {
+    int batch = m_cacheSize / 2;
+    synchronized (m_lock) {
+      int count;
+      try {
+        count = take(cache.m_blocks, batch);
+      } catch (OutOfMemoryException e) {
+        // blocks may be stranded in the caches of dead threads
+        if (!reclaimDeadCaches()) {
+          throw e;
+        }
+        count = take(cache.m_blocks, batch);
+      }
+      cache.m_fresh = count;
+      cache.m_count = count;
+    }
+  }
+
+  /**
+   * Takes up to batch blocks from the shared allocator with a single bulk
+   * malloc, settling for the blocks it has left if it can not grow. Called
+   * while holding m_lock.
+   *
+   * @return the number of blocks taken, at least one
+   * @throws OutOfMemoryException if the shared allocator has no free blocks
+   *           and can not grow
+   */
+  private int take(int blocks[], int batch) {
+    int count = Math.min(batch, m_shared.freeBlocks());
+    if (count < batch && m_shared.getGrowthFactor() != 0) {
+      try {
+        m_shared.malloc(batch, blocks);
+        return batch;
+      } catch (OutOfMemoryException e) {
+        if (count == 0) {
+          throw e;
+        }
+        // growth failed, settle for the free blocks
+      }
+    }
+    // throws if there are no free blocks
+    count = Math.max(count, 1);
+    m_shared.malloc(count, blocks);
+    return count;
+  }
+
+  @Override
+  public void free(int pointer) {
+    assert pointer != 0 : "pointer 0 should not be freed";
+    assert pointer != -1 : "pointer -1 should not be freed";
+    Cache cache = cache();
+    if (cache.m_count == m_cacheSize) {
+      spill(cache, m_cacheSize / 2);
+    }
+    cache.m_blocks[cache.m_count] = pointer;
+    cache.m_count = cache.m_count + 1;
+  }
+
+  @Override
+  public void free(int pointers[], int offset, int length) {
+    for (int i = offset; i < offset + length; i++) {
+      free(pointers[i]);
+    }
+  }
+
+  /**
+   * Not supported, blocks cached by other threads can not be moved.
+   */
+  @Override
+  public void compact(RelocationListener listener) {
+    throw new UnsupportedOperationException(
+        "ThreadCachingBlockAllocator does not support compaction");
+  }
+
+  private void spill(Cache cache, int keep) {
+    int count = cache.m_count;
+    synchronized (m_lock) {
+      m_shared.free(cache.m_blocks, keep, count - keep);
+      cache.m_count = keep;
+    }
+    cache.m_fresh = Math.min(cache.m_fresh, keep);
+  }
+
+  /**
+   * Returns all the blocks cached by the calling thread to the shared
+   * allocator. should be called by threads that are done allocating.
+   */
+  public void flush() {
+    Cache cache = cache();
+    spill(cache, 0);
+  }
+
+  /**
+   * @return the shared allocator
+   */
+  public IBlockAllocator getShared() {
+    return m_shared;
+  }
+
+  /**
+   * @return number of free blocks held in thread caches. exact for the cache
+   *         of the calling thread, the caches of other threads are counted as
+   *         of their last refill or spill
+   */
+  public int cachedBlocks() {
+    int cached = 0;
+    int generation = m_generation;
+    synchronized (m_lock) {
+      reclaimDeadCaches();
+      for (Cache cache : m_caches) {
+        if (cache.m_generation == generation) {
+          cached += cache.m_count;
+        }
+      }
+    }
+    return cached;
+  }
+
+  @Override
+  public void clear() {
+    synchronized (m_lock) {
+      m_shared.clear();
+      m_generation++;
+    }
+  }
+
+  @Override
+  public int freeBlocks() {
+    return maxBlocks() - usedBlocks();
+  }
+
+  @Override
+  public int maxBlocks() {
+    return m_shared.maxBlocks();
+  }
+
+  @Override
+  public int usedBlocks() {
+    synchronized (m_lock) {
+      return m_shared.usedBlocks() - cachedBlocks();
+    }
+  }
+
+  @Override
+  public int blockSize() {
+    return m_shared.blockSize();
+  }
+
+  @Override
+  public void setGrowthFactor(double d) {
+    synchronized (m_lock) {
+      m_shared.setGrowthFactor(d);
+    }
+  }
+
+  @Override
+  public double getGrowthFactor() {
+    return m_shared.getGrowthFactor();
+  }
+
+  @Override
+  public boolean isDebug() {
+    return m_shared.isDebug();
+  }
+
+  @Override
+  public void setDebug(boolean debug) {
+    m_shared.setDebug(debug);
+  }
+
+  @Override
+  public void setInitializer(MemInitializer initializer) {
+    synchronized (m_lock) {
+      m_shared.setInitializer(initializer);
+    }
+  }
+
+  @Override
+  public void initialize(int pointer) {
+    m_shared.initialize(pointer);
+  }
+
+  @Override
+  public long computeMemoryUsage() {
+    return m_shared.computeMemoryUsage();
+  }
+
+  @Override
+  public int maximumCapacityFor(int pointer) {
+    return m_shared.maximumCapacityFor(pointer);
+  }
+
+  @Override
+  public void memCopy(int srcPtr, int srcPos, int dstPtr, int dstPos, int length) {
+    m_shared.memCopy(srcPtr, srcPos, dstPtr, dstPos, length);
+  }
+
+  @Override
+  public boolean memEquals(int ptr1, int pos1, int ptr2, int pos2, int length) {
+    return m_shared.memEquals(ptr1, pos1, ptr2, pos2, length);
+  }
+
+  @Override
+  public boolean memEquals(int pointer, int srcPos, int data[], int data_pos, int length) {
+    return m_shared.memEquals(pointer, srcPos, data, data_pos, length);
+  }
+
+  @Override
+  public void memSet(int pointer, int srcPos, int length, int value) {
+    m_shared.memSet(pointer, srcPos, length, value);
+  }
+
+  @Override
+  public int getInt(int pointer, int offset_in_data) {
+    return m_shared.getInt(pointer, offset_in_data);
+  }
+
+  @Override
+  public void setInt(int pointer, int offset_in_data, int data) {
+    m_shared.setInt(pointer, offset_in_data, data);
+  }
+
+  @Override
+  public void setInts(int pointer, int dst_offset_in_record, int[] src_data, int src_pos,
+      int length) {
+    m_shared.setInts(pointer, dst_offset_in_record, src_data, src_pos, length);
+  }
+
+  @Override
+  public void getInts(int pointer, int src_offset_in_record, int[] dst_data, int dst_pos,
+      int length) {
+    m_shared.getInts(pointer, src_offset_in_record, dst_data, dst_pos, length);
+  }
+
+  @Override
+  public void getBuffer(int pointer, int src_offset_in_record, IBuffer dst, int length) {
+    m_shared.getBuffer(pointer, src_offset_in_record, dst, length);
+  }
+
+  @Override
+  public short getUpperShort(int pointer, int offset) {
+    return m_shared.getUpperShort(pointer, offset);
+  }
+
+  @Override
+  public short getLowerShort(int pointer, int offset) {
+    return m_shared.getLowerShort(pointer, offset);
+  }
+
+  @Override
+  public void setUpperShort(int pointer, int offset, int s) {
+    m_shared.setUpperShort(pointer, offset, s);
+  }
+
+  @Override
+  public void setLowerShort(int pointer, int offset, int s) {
+    m_shared.setLowerShort(pointer, offset, s);
+  }
+
+  @Override
+  public long getLong(int pointer, int offset_in_data) {
+    return m_shared.getLong(pointer, offset_in_data);
+  }
+
+  @Override
+  public void setLong(int pointer, int offset_in_data, long data) {
+    m_shared.setLong(pointer, offset_in_data, data);
+  }
+
+  @Override
+  public float getFloat(int pointer, int offset) {
+    return m_shared.getFloat(pointer, offset);
+  }
+
+  @Override
+  public void setFloat(int pointer, int offset, float f) {
+    m_shared.setFloat(pointer, offset, f);
+  }
+
+  @Override
+  public double getDouble(int pointer, int offset_in_data) {
+    return m_shared.getDouble(pointer, offset_in_data);
+  }
+
+  @Override
+  public void setDouble(int pointer, int offset_in_data, double data) {
+    m_shared.setDouble(pointer, offset_in_data, data);
+  }
+
+  @Override
+  public void setChars(int pointer, int dst_offset, char[] src_data, int src_pos, int num_chars) {
+    m_shared.setChars(pointer, dst_offset, src_data, src_pos, num_chars);
+  }
+
+  @Override
+  public void getChars(int pointer, int src_offset, char[] dst_data, int dst_pos, int num_chars) {
+    m_shared.getChars(pointer, src_offset, dst_data, dst_pos, num_chars);
+  }
+
+  @Override
+  public byte getByte(int pointer, int byte_offset) {
+    return m_shared.getByte(pointer, byte_offset);
+  }
+
+  @Override
+  public void setByte(int pointer, int byte_offset, int b) {
+    m_shared.setByte(pointer, byte_offset, b);
+  }
+
+  @Override
+  public void setBytes(int pointer, int dst_offset, byte[] src_data, int src_pos, int num_bytes) {
+    m_shared.setBytes(pointer, dst_offset, src_data, src_pos, num_bytes);
+  }
+
+  @Override
+  public void getBytes(int pointer, int src_offset, byte[] dst_data, int dst_pos, int num_bytes) {
+    m_shared.getBytes(pointer, src_offset, dst_data, dst_pos, num_bytes);
+  }
+
+  @Override
+  public String toString() {
+    return "ThreadCachingBlockAllocator (" + cachedBlocks() + " cached) over " + m_shared;
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.memory.growth;
+
+import net.yadan.banana.memory.GrowthPolicy;
+import net.yadan.banana.memory.OutOfMemoryException;
+
+/**
+ * Grows geometrically by a factor, optionally switching to fixed size steps
+ * once the structure is large, and never past a hard byte cap.
+ *
+ * With heap checking enabled, an allocation larger than the heap that is
+ * currently free (including heap the JVM may still claim up to -Xmx) is
+ * refused with an {@link OutOfMemoryException} before anything is copied,
+ * instead of failing with an OutOfMemoryError halfway through. The check is
+ * conservative: garbage that was not collected yet counts as used.
+ */
+public class BoundedGrowthPolicy implements GrowthPolicy {
+
+  private final double m_factor;
+
+  private long m_linearThreshold;
+  private long m_linearStep;
+  private long m_maxBytes;
+  private boolean m_checkHeap;
+
+  /**
+   * @param factor geometric growth factor, > 1
+   */
+  public BoundedGrowthPolicy(double factor) {
+    if (!(factor > 1))
+      throw new IllegalArgumentException("Growth factor " + factor + " should be > 1");
+    m_factor = factor;
+    m_linearThreshold = Long.MAX_VALUE;
+    m_linearStep = 0;
+    m_maxBytes = Long.MAX_VALUE;
+    m_checkHeap = false;
+  }
+
+  /**
+   * Switches to linear growth once the structure reaches threshold bytes
+   *
+   * @param threshold size in bytes from which to grow linearly
+   * @param step number of bytes to grow by each time
+   */
+  public void setLinearGrowth(long threshold, long step) {
+    if (step <= 0)
+      throw new IllegalArgumentException("Linear growth step " + step + " <= 0");
+    m_linearThreshold = threshold;
+    m_linearStep = step;
+  }
+
+  /**
+   * @param maxBytes the structure never grows beyond this number of bytes
+   */
+  public void setMaxBytes(long maxBytes) {
+    m_maxBytes = maxBytes;
+  }
+
+  public long getMaxBytes() {
+    return m_maxBytes;
+  }
+
+  /**
+   * @param checkHeap true to refuse growth that does not fit in the free heap
+   */
+  public void setCheckHeap(boolean checkHeap) {
+    m_checkHeap = checkHeap;
+  }
+
+  public boolean isCheckHeap() {
+    return m_checkHeap;
+  }
+
+  @Override
+  public long grow(long capacity, long minCapacity, long unitSize) {
+    long newCapacity;
+    if (capacity * unitSize < m_linearThreshold) {
+      newCapacity = Math.max(capacity + 1, (long) (capacity * m_factor));
+    } else {
+      newCapacity = capacity + Math.max(1, m_linearStep / unitSize);
+    }
+    newCapacity = Math.max(newCapacity, minCapacity);
+
+    long maxCapacity = m_maxBytes / unitSize;
+    if (newCapacity > maxCapacity) {
+      if (minCapacity > maxCapacity) {
+        throw new OutOfMemoryException("Growing to " + minCapacity + " units of " + unitSize
+            + " bytes exceeds the limit of " + m_maxBytes + " bytes");
+      }
+      newCapacity = maxCapacity;
+    }
+    return newCapacity;
+  }
+
+  @Override
+  public void checkAllocation(long bytes) {
+    if (m_checkHeap) {
+      Runtime rt = Runtime.getRuntime();
+      long available = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+      if (bytes > available) {
+        throw new OutOfMemoryException("Growth requires " + bytes + " bytes but only "
+            + available + " bytes of heap are available");
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "BoundedGrowthPolicy factor " + m_factor + ", linear from " + m_linearThreshold
+        + " by " + m_linearStep + ", max " + m_maxBytes + " bytes";
+  }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.memory.growth;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.yadan.banana.ICollection;
+import net.yadan.banana.memory.GrowthPolicy;
+import net.yadan.banana.memory.IAllocator;
+import net.yadan.banana.memory.OutOfMemoryException;
+
+/**
+ * A memory budget shared by several collections and allocators.
+ *
+ * Members register with the budget, and structures that should respect it
+ * grow through a policy returned by {@link #newPolicy(GrowthPolicy)}. Before
+ * each growth the budget sums the current memory usage of all the members. If
+ * the growth would take the total over the budget it is refused with an
+ * {@link OutOfMemoryException}, and evictable members (caches such as
+ * {@link net.yadan.banana.utils.LRU}) are asked to release the missing memory,
+ * in registration order.
+ *
+ * Growth happens on whichever thread uses the growing structure, while the
+ * members are typically not thread safe and owned by other threads. So the
+ * budget never evicts by itself: it only records the request, and each
+ * evictable member releases the memory on its own thread, on its next
+ * operation. By default the growth that asked for the eviction is refused and
+ * succeeds when it is retried after that. With {@link #setMaxWait(long)} the
+ * growth is delayed instead, until the members released enough memory or the
+ * wait times out. Waiting only helps when the evictable members are used by
+ * other threads than the growing one.
+ *
+ * The allocation is counted in full, as the old memory of the grown structure
+ * is only released after it was copied.
+ */
+public class MemoryBudget {
+
+  /**
+   * Something that uses memory counted against the budget
+   */
+  public interface Member {
+    public long computeMemoryUsage();
+  }
+
+  /**
+   * A member that can give memory back when the budget runs out, typically by
+   * evicting cached items
+   */
+  public interface Evictable extends Member {
+
+    /**
+     * Asks the member to release memory the next time it is used. Called by
+     * the budget from any thread, so it must be thread safe and should not
+     * modify the member.
+     *
+     * @param budget the budget asking, which the member can check with
+     *          {@link MemoryBudget#hasRoom(long)} before growing back
+     * @param bytes number of bytes the budget is short of
+     */
+    public void requestEviction(MemoryBudget budget, long bytes);
+  }
+
+  // interval between checks while waiting for members to evict
+  private static final long WAIT_INTERVAL_MILLIS = 10;
+
+  private final long m_maxBytes;
+
+  private long m_maxWaitMillis;
+
+  // largest allocation refused since the last one that fit. members growing
+  // back after an eviction leave room for it, so the retry is not starved
+  private long m_pendingBytes;
+
+  private List<Member> m_members;
+
+  // keys of m_members, to unregister collections and allocators
+  private List<Object> m_keys;
+
+  public MemoryBudget(long maxBytes) {
+    if (maxBytes <= 0)
+      throw new IllegalArgumentException("maxBytes " + maxBytes + " <= 0");
+    m_maxBytes = maxBytes;
+    m_members = new ArrayList<Member>();
+    m_keys = new ArrayList<Object>();
+  }
+
+  public synchronized void register(Member member) {
+    m_members.add(member);
+    m_keys.add(member);
+  }
+
+  public synchronized void register(final ICollection collection) {
+    m_members.add(new Member() {
+      @Override
+      public long computeMemoryUsage() {
+        return collection.computeMemoryUsage();
+      }
+    });
+    m_keys.add(collection);
+  }
+
+  public synchronized void register(final IAllocator allocator) {
+    m_members.add(new Member() {
+      @Override
+      public long computeMemoryUsage() {
+        return allocator.computeMemoryUsage();
+      }
+    });
+    m_keys.add(allocator);
+  }
+
+  /**
+   * @param member a member, collection or allocator previously registered
+   * @return true if it was registered
+   */
+  public synchronized boolean unregister(Object member) {
+    for (int i = 0; i < m_keys.size(); i++) {
+      if (m_keys.get(i) == member) {
+        m_keys.remove(i);
+        m_members.remove(i);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return a growth policy that grows like policy as long as the budget allows
+   */
+  public GrowthPolicy newPolicy(final GrowthPolicy policy) {
+    return new GrowthPolicy() {
+      @Override
+      public long grow(long capacity, long minCapacity, long unitSize) {
+        return policy.grow(capacity, minCapacity, unitSize);
+      }
+
+      @Override
+      public void checkAllocation(long bytes) {
+        policy.checkAllocation(bytes);
+        reserve(bytes);
+      }
+    };
+  }
+
+  /**
+   * Sets how long {@link #reserve(long)} waits for the evictable members to
+   * release memory before refusing an allocation.
+   *
+   * @param millis maximum wait in milliseconds, 0 to refuse right away (default)
+   */
+  public synchronized void setMaxWait(long millis) {
+    if (millis < 0)
+      throw new IllegalArgumentException("millis " + millis + " < 0");
+    m_maxWaitMillis = millis;
+  }
+
+  public synchronized long getMaxWait() {
+    return m_maxWaitMillis;
+  }
+
+  /**
+   * Checks that an allocation of bytes fits in the budget. If it does not, the
+   * evictable members are asked to release the missing memory, spread over
+   * them in registration order, and the allocation waits up to the maximum
+   * wait for them to do so.
+   *
+   * @throws OutOfMemoryException if the allocation does not fit in the budget
+   */
+  public synchronized void reserve(long bytes) throws OutOfMemoryException {
+    long used = computeMemoryUsage();
+    if (used + bytes <= m_maxBytes) {
+      m_pendingBytes = 0;
+      return;
+    }
+    m_pendingBytes = Math.max(m_pendingBytes, bytes);
+    long missing = used + bytes - m_maxBytes;
+    for (int i = 0; i < m_members.size() && missing > 0; i++) {
+      Member member = m_members.get(i);
+      if (member instanceof Evictable) {
+        long share = Math.min(missing, member.computeMemoryUsage());
+        ((Evictable) member).requestEviction(this, share);
+        missing -= share;
+      }
+    }
+
+    long deadline = System.currentTimeMillis() + m_maxWaitMillis;
+    long remaining = m_maxWaitMillis;
+    boolean interrupted = false;
+    while (remaining > 0) {
+      try {
+        // releases the budget while the members evict
+        wait(Math.min(remaining, WAIT_INTERVAL_MILLIS));
+      } catch (InterruptedException e) {
+        interrupted = true;
+        break;
+      }
+      used = computeMemoryUsage();
+      if (used + bytes <= m_maxBytes) {
+        m_pendingBytes = 0;
+        return;
+      }
+      remaining = deadline - System.currentTimeMillis();
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    throw new OutOfMemoryException("Allocating " + bytes + " bytes exceeds the memory budget ("
+        + used + "/" + m_maxBytes + " bytes used)");
+  }
+
+  /**
+   * @return true if bytes more would fit in the budget, next to the last
+   *         allocation that was refused until one fits. Does not ask members to
+   *         evict
+   */
+  public synchronized boolean hasRoom(long bytes) {
+    return computeMemoryUsage() + m_pendingBytes + bytes <= m_maxBytes;
+  }
+
+  /**
+   * @return the total memory usage of all the members
+   */
+  public synchronized long computeMemoryUsage() {
+    long used = 0;
+    for (Member member : m_members) {
+      used += member.computeMemoryUsage();
+    }
+    return used;
+  }
+
+  public long getMaxBytes() {
+    return m_maxBytes;
+  }
+
+  @Override
+  public String toString() {
+    return "MemoryBudget " + computeMemoryUsage() + "/" + m_maxBytes + " bytes, "
+        + m_members.size() + " members";
+  }
+}
@@ -6,10 +6,12 @@
  */
 package net.yadan.banana.memory.initializers;
 
+import java.util.Arrays;
+
+import net.yadan.banana.memory.BulkMemInitializer;
 import net.yadan.banana.memory.IPrimitiveAccess;
-import net.yadan.banana.memory.MemInitializer;
 
-public class MemSetInitializer implements MemInitializer {
+public class MemSetInitializer implements BulkMemInitializer {
 
   private int m_val;
 
@@ -24,6 +26,16 @@ public class MemSetInitializer implements MemInitializer {
     }
   }
 
+  @Override
+  public void initialize(int array[], int from, int to, int blockSize) {
+    Arrays.fill(array, from, to, m_val);
+  }
+
+  @Override
+  public boolean isZero() {
+    return m_val == 0;
+  }
+
   @Override
   public String toString() {
     return MemSetInitializer.class.getSimpleName() + " ("+m_val+")";
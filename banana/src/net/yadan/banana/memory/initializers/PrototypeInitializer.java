@@ -6,12 +6,14 @@
  */
 package net.yadan.banana.memory.initializers;
 
+import net.yadan.banana.memory.BulkMemInitializer;
 import net.yadan.banana.memory.IPrimitiveAccess;
-import net.yadan.banana.memory.MemInitializer;
 
-public class PrototypeInitializer implements MemInitializer {
+public class PrototypeInitializer implements BulkMemInitializer {
   int prototype[];
 
+  private boolean m_zero;
+
   public PrototypeInitializer(int recordSize) {
     this(new int[recordSize]);
 
@@ -20,10 +22,29 @@ public class PrototypeInitializer implements MemInitializer {
   public PrototypeInitializer(int prototype_[]) {
     prototype = new int[prototype_.length];
     System.arraycopy(prototype_, 0, prototype, 0, prototype_.length);
+    m_zero = true;
+    for (int v : prototype) {
+      if (v != 0) {
+        m_zero = false;
+        break;
+      }
+    }
   }
 
   @Override
   public void initialize(IPrimitiveAccess mem, int pointer, int blockSize) {
     mem.setInts(pointer, 0, prototype, 0, prototype.length);
   }
+
+  @Override
+  public void initialize(int array[], int from, int to, int blockSize) {
+    for (int p = from; p < to; p += blockSize) {
+      System.arraycopy(prototype, 0, array, p, prototype.length);
+    }
+  }
+
+  @Override
+  public boolean isZero() {
+    return m_zero;
+  }
 }
@@ -0,0 +1,610 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.memory.malloc;
+
+import java.util.Arrays;
+
+import net.yadan.banana.memory.IBlockAllocator;
+import net.yadan.banana.memory.IBuffer;
+import net.yadan.banana.memory.ICursor;
+import net.yadan.banana.memory.IMemAllocator;
+import net.yadan.banana.memory.MemInitializer;
+import net.yadan.banana.memory.OutOfMemoryException;
+import net.yadan.banana.memory.PackedBytes;
+import net.yadan.banana.memory.PrimitiveAccessCursor;
+import net.yadan.banana.memory.Relocation;
+import net.yadan.banana.memory.RelocationListener;
+
+/**
+ * A bump pointer allocator.
+ *
+ * Memory is carved sequentially out of fixed size chunks: malloc() only
+ * advances the current position, and free() does nothing. All the memory is
+ * reclaimed at once by {@link #reset()}, which takes constant time. This makes
+ * it a good fit for short lived data that is discarded together, such as
+ * per-document or per-request scratch collections.
+ *
+ * Each allocation is preceded by a single int holding its size, and never
+ * spans two chunks, so the largest supported allocation is one int less than
+ * the chunk size. In this allocator a block is a chunk: blockSize() is the
+ * chunk size and usedBlocks() is the number of chunks in use.
+ *
+ * Chunks are kept after reset() and reused by the next allocations. compact()
+ * releases the chunks beyond the current position when growth is enabled.
+ *
+ * Unless an initializer is set, allocated memory is zeroed.
+ */
+public class ArenaAllocator implements IMemAllocator {
+
+  private static final int DEFAULT_CHUNK_SIZE;
+  static {
+    String size = System.getProperty("ArenaAllocator.CHUNK_SIZE", String.valueOf(1 << 16));
+    DEFAULT_CHUNK_SIZE = Integer.parseInt(size);
+  }
+
+  private static final int SIZE_OFFSET = -1;
+  private static final int HEADER_SIZE = 1;
+
+  private int m_chunks[][];
+
+  private final int m_chunkSize;
+  private final int m_chunkShift;
+  private final int m_chunkMask;
+
+  // index of the chunk allocations are taken from, -1 if nothing is allocated
+  private int m_chunk;
+  // next free offset in the current chunk
+  private int m_offset;
+
+  private int m_maxChunks;
+
+  private double m_growthFactor;
+
+  private MemInitializer m_initializer;
+
+  private boolean m_debug;
+
+  /**
+   * @param maxChunks number of chunks to reserve space for
+   */
+  public ArenaAllocator(int maxChunks) {
+    this(maxChunks, DEFAULT_CHUNK_SIZE, 0);
+  }
+
+  /**
+   * @param maxChunks number of chunks to reserve space for
+   * @param chunkSize chunk size in ints, rounded up to the next power of two
+   */
+  public ArenaAllocator(int maxChunks, int chunkSize) {
+    this(maxChunks, chunkSize, 0);
+  }
+
+  /**
+   * @param maxChunks number of chunks to reserve space for
+   * @param chunkSize chunk size in ints, rounded up to the next power of two
+   * @param growthFactor determines by how much to grow the number of chunks
+   *          when it runs out of memory. 0 to disable growth
+   */
+  public ArenaAllocator(int maxChunks, int chunkSize, double growthFactor) {
+    if (maxChunks < 1)
+      throw new IllegalArgumentException("maxChunks " + maxChunks + " < 1");
+    if (chunkSize < 2)
+      throw new IllegalArgumentException("chunkSize " + chunkSize + " < 2");
+    if (chunkSize > 1 << 30)
+      throw new IllegalArgumentException("chunkSize " + chunkSize + " > " + (1 << 30));
+
+    m_chunkShift = 32 - Integer.numberOfLeadingZeros(chunkSize - 1);
+    m_chunkSize = 1 << m_chunkShift;
+    m_chunkMask = m_chunkSize - 1;
+    if (maxChunks > maxChunksLimit()) {
+      throw new IllegalArgumentException("Attempted to allocate " + maxChunks
+          + " chunks, which is greater than the maximum of " + maxChunksLimit() + " chunks of "
+          + m_chunkSize + " ints");
+    }
+
+    m_maxChunks = maxChunks;
+    m_chunks = new int[maxChunks][];
+    m_growthFactor = growthFactor;
+    m_debug = false;
+    reset();
+  }
+
+  // pointers are chunk << shift | offset, and must stay positive
+  private int maxChunksLimit() {
+    return 1 << (31 - m_chunkShift);
+  }
+
+  /**
+   * Reclaims all the allocated memory in constant time. all previously
+   * allocated pointers should no longer be used after this is called.
+   */
+  public void reset() {
+    m_chunk = -1;
+    m_offset = m_chunkSize;
+  }
+
+  @Override
+  public void clear() {
+    reset();
+  }
+
+  @Override
+  public int malloc(int size) throws OutOfMemoryException {
+    if (size < 0) {
+      throw new IllegalArgumentException("malloc size must be non-negative");
+    }
+    int required = size + HEADER_SIZE;
+    if (required > m_chunkSize) {
+      throw new IllegalArgumentException("Requested an allocation of unsupported size " + size
+          + ", max " + (m_chunkSize - HEADER_SIZE));
+    }
+
+    if (m_offset + required > m_chunkSize) {
+      nextChunk();
+    }
+    int chunk[] = m_chunks[m_chunk];
+    int start = m_offset + HEADER_SIZE;
+    chunk[m_offset] = size;
+    m_offset += required;
+
+    int pointer = (m_chunk << m_chunkShift) | start;
+    if (m_initializer == null) {
+      Arrays.fill(chunk, start, start + size, 0);
+    } else {
+      m_initializer.initialize(this, pointer, size);
+    }
+    return pointer;
+  }
+
+  @Override
+  public void malloc(int size, int count, int out[]) throws OutOfMemoryException {
+    assert count <= out.length : "count > out.length : " + count + " > " + out.length;
+    for (int i = 0; i < count; i++) {
+      out[i] = malloc(size);
+    }
+  }
+
+  private void nextChunk() {
+    if (m_chunk + 1 == m_maxChunks) {
+      if (m_growthFactor == 0) {
+        throw new OutOfMemoryException("Out of memory (" + maxBlocks() + "/" + usedBlocks()
+            + " chunks used)");
+      }
+      increaseSize();
+    }
+
+    m_chunk++;
+    if (m_chunks[m_chunk] == null) {
+      m_chunks[m_chunk] = new int[m_chunkSize];
+    }
+    m_offset = 0;
+  }
+
+  /**
+   * Raises the chunks limit. only the chunks directory is copied, chunks are
+   * allocated when the allocation reaches them.
+   */
+  private void increaseSize() {
+    long new_max_chunks = Math.max(m_maxChunks + 1, (long) (m_maxChunks * m_growthFactor));
+    if (new_max_chunks > maxChunksLimit()) {
+      new_max_chunks = maxChunksLimit();
+      if (new_max_chunks == m_maxChunks) {
+        throw new OutOfMemoryException("Out of memory, reached maximum capacity of "
+            + m_maxChunks + " chunks");
+      }
+    }
+
+    m_chunks = Arrays.copyOf(m_chunks, (int) new_max_chunks);
+    m_maxChunks = (int) new_max_chunks;
+  }
+
+  /**
+   * Memory is only reclaimed by {@link #reset()}, this does nothing.
+   */
+  @Override
+  public void free(int pointer) {
+    assert pointer != 0 : "Invalid pointer " + pointer;
+    assert pointer != -1 : "Invalid pointer " + pointer;
+  }
+
+  /**
+   * Memory is only reclaimed by {@link #reset()}, this does nothing.
+   */
+  @Override
+  public void free(int pointers[], int offset, int length) {
+  }
+
+  /**
+   * The most recent allocation is resized in place if it fits in the current
+   * chunk. Any other allocation is copied to a new one, and its memory is
+   * reclaimed only by {@link #reset()}.
+   */
+  @Override
+  public int realloc(int pointer, int size) {
+    assert pointer != 0 : "Invalid pointer " + pointer;
+    assert pointer != -1 : "Invalid pointer " + pointer;
+    if (size < 0) {
+      throw new IllegalArgumentException("malloc size must be non-negative");
+    }
+
+    int chunk[] = m_chunks[pointer >>> m_chunkShift];
+    int start = pointer & m_chunkMask;
+    int oldSize = chunk[start + SIZE_OFFSET];
+    boolean last = pointer >>> m_chunkShift == m_chunk && start + oldSize == m_offset;
+    if (last && start + size <= m_chunkSize && (m_initializer == null || size <= oldSize)) {
+      chunk[start + SIZE_OFFSET] = size;
+      m_offset = start + size;
+      if (size > oldSize) {
+        Arrays.fill(chunk, start + oldSize, start + size, 0);
+      }
+      return pointer;
+    }
+
+    int newPointer = malloc(size);
+    System.arraycopy(chunk, start, m_chunks[newPointer >>> m_chunkShift],
+        newPointer & m_chunkMask, Math.min(oldSize, size));
+    return newPointer;
+  }
+
+  /**
+   * Allocations never move. when growth is enabled, chunks beyond the current
+   * one that are kept for reuse after {@link #reset()} are released.
+   */
+  @Override
+  public void compact(RelocationListener listener) {
+    if (m_growthFactor != 0) {
+      for (int i = m_chunk + 1; i < m_maxChunks; i++) {
+        m_chunks[i] = null;
+      }
+    }
+  }
+
+  @Override
+  public int relocate(int pointer, Relocation relocation) {
+    return pointer;
+  }
+
+  /**
+   * @return the size in ints of the chunks memory is allocated from
+   */
+  @Override
+  public int blockSize() {
+    return m_chunkSize;
+  }
+
+  /**
+   * @return the number of chunks in use
+   */
+  @Override
+  public int usedBlocks() {
+    return m_chunk + 1;
+  }
+
+  /**
+   * @return the maximum number of chunks currently available
+   */
+  @Override
+  public int maxBlocks() {
+    return m_maxChunks;
+  }
+
+  @Override
+  public int freeBlocks() {
+    return maxBlocks() - usedBlocks();
+  }
+
+  @Override
+  public long computeMemoryUsage() {
+    long mem = 4 * (long) m_chunks.length;
+    for (int i = 0; i < m_chunks.length; i++) {
+      if (m_chunks[i] != null) {
+        mem += 4 * (long) m_chunkSize;
+      }
+    }
+    return mem;
+  }
+
+  @Override
+  public int computeMemoryUsageFor(int size) {
+    return 4 * (size + HEADER_SIZE);
+  }
+
+  @Override
+  public IBlockAllocator getBlocks() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void memCopy(int srcPtr, int srcPos, int dstPtr, int dstPos, int length) {
+    memMove(srcPtr, srcPos, dstPtr, dstPos, length);
+  }
+
+  @Override
+  public void memMove(int srcPtr, int srcPos, int dstPtr, int dstPos, int length) {
+    assert srcPos + length <= maximumCapacityFor(srcPtr) : "src overflow";
+    assert dstPos + length <= maximumCapacityFor(dstPtr) : "dst overflow";
+    System.arraycopy(m_chunks[srcPtr >>> m_chunkShift], (srcPtr & m_chunkMask) + srcPos,
+        m_chunks[dstPtr >>> m_chunkShift], (dstPtr & m_chunkMask) + dstPos, length);
+  }
+
+  /**
+   * Allocations never span chunks, so the data is passed to dst straight from
+   * the chunk.
+   */
+  @Override
+  public void memCopy(int srcPtr, int srcPos, IMemAllocator dst, int dstPtr, int dstPos,
+      int length) {
+    assert srcPos + length <= maximumCapacityFor(srcPtr) : "src overflow";
+    dst.setInts(dstPtr, dstPos, m_chunks[srcPtr >>> m_chunkShift], (srcPtr & m_chunkMask)
+        + srcPos, length);
+  }
+
+  @Override
+  public boolean memEquals(int ptr1, int pos1, int ptr2, int pos2, int length) {
+    assert pos1 + length <= maximumCapacityFor(ptr1) : "overflow";
+    assert pos2 + length <= maximumCapacityFor(ptr2) : "overflow";
+    int c1[] = m_chunks[ptr1 >>> m_chunkShift];
+    int c2[] = m_chunks[ptr2 >>> m_chunkShift];
+    int o1 = (ptr1 & m_chunkMask) + pos1;
+    int o2 = (ptr2 & m_chunkMask) + pos2;
+    for (int i = 0; i < length; i++) {
+      if (c1[o1 + i] != c2[o2 + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean memEquals(int pointer, int srcPos, int data[], int data_pos, int length) {
+    assert srcPos + length <= maximumCapacityFor(pointer) : "overflow";
+    int chunk[] = m_chunks[pointer >>> m_chunkShift];
+    int p = (pointer & m_chunkMask) + srcPos;
+    for (int i = 0; i < length; i++) {
+      if (chunk[p + i] != data[data_pos + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public ICursor createCursor() {
+    return new PrimitiveAccessCursor(this);
+  }
+
+  @Override
+  public void setGrowthFactor(double d) {
+    m_growthFactor = d;
+  }
+
+  @Override
+  public double getGrowthFactor() {
+    return m_growthFactor;
+  }
+
+  @Override
+  public boolean isDebug() {
+    return m_debug;
+  }
+
+  @Override
+  public void setDebug(boolean debug) {
+    m_debug = debug;
+  }
+
+  /**
+   * @param initializer initializer for new allocations, null to zero them
+   */
+  @Override
+  public void setInitializer(MemInitializer initializer) {
+    m_initializer = initializer;
+  }
+
+  @Override
+  public void initialize(int pointer) {
+    int size = maximumCapacityFor(pointer);
+    if (m_initializer == null) {
+      memSet(pointer, 0, size, 0);
+    } else {
+      m_initializer.initialize(this, pointer, size);
+    }
+  }
+
+  @Override
+  public int maximumCapacityFor(int pointer) {
+    return m_chunks[pointer >>> m_chunkShift][(pointer & m_chunkMask) + SIZE_OFFSET];
+  }
+
+  @Override
+  public String pointerDebugString(int pointer) {
+    int size = maximumCapacityFor(pointer);
+    StringBuilder sb = new StringBuilder();
+    sb.append("[");
+    for (int i = 0; i < size; i++) {
+      sb.append(getInt(pointer, i));
+      if (i + 1 < size) {
+        sb.append(",");
+      }
+    }
+    sb.append("]");
+    return "Arena pointer " + pointer + " " + sb.toString();
+  }
+
+  @Override
+  public void memSet(int pointer, int srcPos, int length, int value) {
+    assert pointer > 0 : "Invalid pointer : " + pointer;
+    assert srcPos + length <= maximumCapacityFor(pointer) : "overflow";
+    int p = (pointer & m_chunkMask) + srcPos;
+    Arrays.fill(m_chunks[pointer >>> m_chunkShift], p, p + length, value);
+  }
+
+  @Override
+  public int getInt(int pointer, int offset_in_data) {
+    assert pointer > 0 : "Invalid pointer : " + pointer;
+    assert offset_in_data >= 0 : "Negative offset_in_data " + offset_in_data;
+    assert offset_in_data < maximumCapacityFor(pointer) : String.format(
+        "offset_in_data >= size : %d >= %d", offset_in_data, maximumCapacityFor(pointer));
+    return m_chunks[pointer >>> m_chunkShift][(pointer & m_chunkMask) + offset_in_data];
+  }
+
+  @Override
+  public void setInt(int pointer, int offset_in_data, int data) {
+    assert pointer > 0 : "Invalid pointer : " + pointer;
+    assert offset_in_data >= 0 : "Negative offset_in_data " + offset_in_data;
+    assert offset_in_data < maximumCapacityFor(pointer) : String.format(
+        "offset_in_data >= size : %d >= %d", offset_in_data, maximumCapacityFor(pointer));
+    m_chunks[pointer >>> m_chunkShift][(pointer & m_chunkMask) + offset_in_data] = data;
+  }
+
+  @Override
+  public void setInts(int pointer, int dst_offset_in_record, int src_data[], int src_pos,
+      int length) {
+    assert pointer > 0 : "Invalid pointer : " + pointer;
+    assert dst_offset_in_record + length <= maximumCapacityFor(pointer) : String.format(
+        "dst_offset_in_record + length > size : %d + %d > %d", dst_offset_in_record, length,
+        maximumCapacityFor(pointer));
+    System.arraycopy(src_data, src_pos, m_chunks[pointer >>> m_chunkShift],
+        (pointer & m_chunkMask) + dst_offset_in_record, length);
+  }
+
+  @Override
+  public void getInts(int pointer, int src_offset_in_record, int dst_data[], int dst_pos,
+      int length) {
+    assert pointer > 0 : "Invalid pointer : " + pointer;
+    assert src_offset_in_record + length <= maximumCapacityFor(pointer) : String.format(
+        "src_offset_in_record + length > size : %d + %d > %d", src_offset_in_record, length,
+        maximumCapacityFor(pointer));
+    System.arraycopy(m_chunks[pointer >>> m_chunkShift], (pointer & m_chunkMask)
+        + src_offset_in_record, dst_data, dst_pos, length);
+  }
+
+  @Override
+  public void getBuffer(int pointer, int src_offset_in_record, IBuffer dst, int length) {
+    getInts(pointer, src_offset_in_record, dst.array(), 0, length);
+    dst.setUsed(length);
+  }
+
+  @Override
+  public short getUpperShort(int pointer, int offset) {
+    return (short) (getInt(pointer, offset) >>> 16);
+  }
+
+  @Override
+  public short getLowerShort(int pointer, int offset) {
+    return (short) (getInt(pointer, offset));
+  }
+
+  @Override
+  public void setUpperShort(int pointer, int offset, int s) {
+    int lower = getInt(pointer, offset) & 0x0000ffff;
+    setInt(pointer, offset, (s << 16) | lower);
+  }
+
+  @Override
+  public void setLowerShort(int pointer, int offset, int s) {
+    int upper = getInt(pointer, offset) & 0xffff0000;
+    setInt(pointer, offset, upper | (s & 0x0000ffff));
+  }
+
+  @Override
+  public long getLong(int pointer, int offset_in_data) {
+    int ilower = getInt(pointer, offset_in_data + 1);
+    int iupper = getInt(pointer, offset_in_data);
+    long lower = 0x00000000FFFFFFFFL & ilower;
+    long upper = ((long) iupper) << 32;
+    return upper | lower;
+  }
+
+  @Override
+  public void setLong(int pointer, int offset_in_data, long data) {
+    // upper int
+    setInt(pointer, offset_in_data, (int) (data >> 32));
+    // lower int
+    setInt(pointer, offset_in_data + 1, (int) (data));
+  }
+
+  @Override
+  public float getFloat(int pointer, int offset) {
+    return Float.intBitsToFloat(getInt(pointer, offset));
+  }
+
+  @Override
+  public void setFloat(int pointer, int offset, float f) {
+    setInt(pointer, offset, Float.floatToIntBits(f));
+  }
+
+  @Override
+  public double getDouble(int pointer, int offset_in_data) {
+    return Double.longBitsToDouble(getLong(pointer, offset_in_data));
+  }
+
+  @Override
+  public void setDouble(int pointer, int offset_in_data, double data) {
+    setLong(pointer, offset_in_data, Double.doubleToLongBits(data));
+  }
+
+  @Override
+  public void setChars(int pointer, int dst_offset, char[] src_data, int src_pos, int num_chars) {
+    if (num_chars == 0) {
+      return;
+    }
+    int numInts = 1 + (num_chars - 1) / 2; // ceil(num_chars/2)
+    for (int i = dst_offset, src_index = src_pos, num_copied = 0; i < dst_offset + numInts; i++, src_index += 2) {
+      char c1 = src_data[src_index];
+      setUpperShort(pointer, i, c1);
+      num_copied++;
+      if (num_copied < num_chars) {
+        char c2 = src_data[src_index + 1];
+        setLowerShort(pointer, i, c2);
+        num_copied++;
+      }
+    }
+  }
+
+  @Override
+  public void getChars(int pointer, int src_offset, char[] dst_data, int dst_pos, int num_chars) {
+    if (num_chars == 0) {
+      return;
+    }
+    int numInts = 1 + (num_chars - 1) / 2; // ceil(length/2)
+    for (int i = src_offset, dst_index = dst_pos, num_copied = 0; i < src_offset + numInts; i++, dst_index += 2) {
+      dst_data[dst_index] = (char) getUpperShort(pointer, i);
+      num_copied++;
+      if (num_copied < num_chars) {
+        dst_data[dst_index + 1] = (char) getLowerShort(pointer, i);
+        num_copied++;
+      }
+    }
+  }
+
+  @Override
+  public byte getByte(int pointer, int byte_offset) {
+    return PackedBytes.getByte(this, pointer, byte_offset);
+  }
+
+  @Override
+  public void setByte(int pointer, int byte_offset, int b) {
+    PackedBytes.setByte(this, pointer, byte_offset, b);
+  }
+
+  @Override
+  public void setBytes(int pointer, int dst_offset, byte[] src_data, int src_pos, int num_bytes) {
+    PackedBytes.setBytes(this, pointer, dst_offset, src_data, src_pos, num_bytes);
+  }
+
+  @Override
+  public void getBytes(int pointer, int src_offset, byte[] dst_data, int dst_pos, int num_bytes) {
+    PackedBytes.getBytes(this, pointer, src_offset, dst_data, dst_pos, num_bytes);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("ArenaAllocator %d/%d chunks of %d ints used", usedBlocks(),
+        maxBlocks(), m_chunkSize);
+  }
+}
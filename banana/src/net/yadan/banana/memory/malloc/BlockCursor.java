@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.memory.malloc;
+
+import net.yadan.banana.memory.IBlockAllocator;
+import net.yadan.banana.memory.ICursor;
+import net.yadan.banana.memory.IPrimitiveAccess;
+
+/**
+ * Base cursor for allocators that spread an allocation over several blocks.
+ * The current data block is located once, and reads inside it go directly to
+ * the block allocator. Subclasses locate the block holding a position.
+ */
+abstract class BlockCursor implements ICursor {
+
+  protected final IBlockAllocator m_blocks;
+
+  protected int m_pointer;
+
+  private int m_position;
+
+  // current data block, -1 if not located yet
+  protected int m_block;
+  // range of positions held by the current block
+  protected int m_blockStart;
+  protected int m_blockEnd;
+  // offset inside the block of m_blockStart
+  protected int m_blockOffset;
+
+  BlockCursor(IBlockAllocator blocks) {
+    m_blocks = blocks;
+    m_pointer = -1;
+    m_block = -1;
+  }
+
+  /**
+   * Locates the block holding position, setting m_block, m_blockStart,
+   * m_blockEnd and m_blockOffset.
+   */
+  protected abstract void locate(int position);
+
+  /**
+   * Makes sure the current block holds position.
+   */
+  final void at(int position) {
+    if (position >= m_blockEnd || position < m_blockStart) {
+      locate(position);
+    }
+  }
+
+  /**
+   * @return offset inside the current block of position
+   */
+  final int offsetOf(int position) {
+    return m_blockOffset + position - m_blockStart;
+  }
+
+  /**
+   * Copies length ints between two allocations of the same block allocator,
+   * one block run at a time. Overlapping ranges are supported, the copy is
+   * done backwards if the destination is after the source.
+   */
+  static void copy(BlockCursor src, int srcPos, BlockCursor dst, int dstPos, int length) {
+    assert src.m_blocks == dst.m_blocks : "Cursors of different block allocators";
+    IBlockAllocator blocks = src.m_blocks;
+    if (src.m_pointer == dst.m_pointer && srcPos < dstPos && dstPos < srcPos + length) {
+      int srcEnd = srcPos + length;
+      int dstEnd = dstPos + length;
+      while (length > 0) {
+        src.at(srcEnd - 1);
+        dst.at(dstEnd - 1);
+        int n = Math.min(length, Math.min(srcEnd - src.m_blockStart, dstEnd - dst.m_blockStart));
+        blocks.memCopy(src.m_block, src.offsetOf(srcEnd - n), dst.m_block,
+            dst.offsetOf(dstEnd - n), n);
+        srcEnd -= n;
+        dstEnd -= n;
+        length -= n;
+      }
+    } else {
+      while (length > 0) {
+        src.at(srcPos);
+        dst.at(dstPos);
+        int n = Math.min(length, Math.min(src.m_blockEnd - srcPos, dst.m_blockEnd - dstPos));
+        blocks.memCopy(src.m_block, src.offsetOf(srcPos), dst.m_block, dst.offsetOf(dstPos), n);
+        srcPos += n;
+        dstPos += n;
+        length -= n;
+      }
+    }
+  }
+
+  /**
+   * Copies length ints to another allocator, staging one block run at a time
+   * through buffer.
+   */
+  static void copy(BlockCursor src, int srcPos, IPrimitiveAccess dst, int dstPtr, int dstPos,
+      int length, int buffer[]) {
+    while (length > 0) {
+      src.at(srcPos);
+      int n = Math.min(length, Math.min(src.m_blockEnd - srcPos, buffer.length));
+      src.m_blocks.getInts(src.m_block, src.offsetOf(srcPos), buffer, 0, n);
+      dst.setInts(dstPtr, dstPos, buffer, 0, n);
+      srcPos += n;
+      dstPos += n;
+      length -= n;
+    }
+  }
+
+  /**
+   * Compares length ints of two allocations of the same block allocator, one
+   * block run at a time.
+   */
+  static boolean equals(BlockCursor c1, int pos1, BlockCursor c2, int pos2, int length) {
+    assert c1.m_blocks == c2.m_blocks : "Cursors of different block allocators";
+    while (length > 0) {
+      c1.at(pos1);
+      c2.at(pos2);
+      int n = Math.min(length, Math.min(c1.m_blockEnd - pos1, c2.m_blockEnd - pos2));
+      if (!c1.m_blocks.memEquals(c1.m_block, c1.offsetOf(pos1), c2.m_block, c2.offsetOf(pos2), n)) {
+        return false;
+      }
+      pos1 += n;
+      pos2 += n;
+      length -= n;
+    }
+    return true;
+  }
+
+  /**
+   * Copies bytes into an allocation, one block run at a time.
+   */
+  static void setBytes(BlockCursor c, int pos, byte src_data[], int src_pos, int num_bytes) {
+    while (num_bytes > 0) {
+      c.at(pos);
+      int n = Math.min(num_bytes, (c.m_blockEnd - pos) << 2);
+      c.m_blocks.setBytes(c.m_block, c.offsetOf(pos), src_data, src_pos, n);
+      pos += n >> 2;
+      src_pos += n;
+      num_bytes -= n;
+    }
+  }
+
+  /**
+   * Copies bytes out of an allocation, one block run at a time.
+   */
+  static void getBytes(BlockCursor c, int pos, byte dst_data[], int dst_pos, int num_bytes) {
+    while (num_bytes > 0) {
+      c.at(pos);
+      int n = Math.min(num_bytes, (c.m_blockEnd - pos) << 2);
+      c.m_blocks.getBytes(c.m_block, c.offsetOf(pos), dst_data, dst_pos, n);
+      pos += n >> 2;
+      dst_pos += n;
+      num_bytes -= n;
+    }
+  }
+
+  @Override
+  public void open(int pointer) {
+    assert pointer != 0 : "Invalid pointer " + pointer;
+    assert pointer != -1 : "Invalid pointer " + pointer;
+    m_pointer = pointer;
+    m_position = 0;
+    m_block = -1;
+    m_blockStart = 0;
+    m_blockEnd = 0;
+  }
+
+  @Override
+  public int pointer() {
+    return m_pointer;
+  }
+
+  @Override
+  public void seek(int offset) {
+    assert offset >= 0 : "Negative offset " + offset;
+    m_position = offset;
+  }
+
+  @Override
+  public int position() {
+    return m_position;
+  }
+
+  @Override
+  public int nextInt() {
+    int position = m_position;
+    at(position);
+    m_position = position + 1;
+    return m_blocks.getInt(m_block, offsetOf(position));
+  }
+
+  @Override
+  public long nextLong() {
+    int iupper = nextInt();
+    int ilower = nextInt();
+    return ((long) iupper) << 32 | (0x00000000FFFFFFFFL & ilower);
+  }
+
+  @Override
+  public float nextFloat() {
+    return Float.intBitsToFloat(nextInt());
+  }
+
+  @Override
+  public double nextDouble() {
+    return Double.longBitsToDouble(nextLong());
+  }
+
+  @Override
+  public void nextInts(int dst_data[], int dst_pos, int length) {
+    while (length > 0) {
+      at(m_position);
+      int n = Math.min(length, m_blockEnd - m_position);
+      m_blocks.getInts(m_block, offsetOf(m_position), dst_data, dst_pos, n);
+      m_position += n;
+      dst_pos += n;
+      length -= n;
+    }
+  }
+
+  @Override
+  public void nextChars(char dst_data[], int dst_pos, int num_chars) {
+    for (int i = 0; i < num_chars; i += 2) {
+      int v = nextInt();
+      dst_data[dst_pos + i] = (char) (v >>> 16);
+      if (i + 1 < num_chars) {
+        dst_data[dst_pos + i + 1] = (char) v;
+      }
+    }
+  }
+}
@@ -8,10 +8,14 @@ package net.yadan.banana.memory.malloc;
 
 import net.yadan.banana.memory.IBlockAllocator;
 import net.yadan.banana.memory.IBuffer;
+import net.yadan.banana.memory.ICursor;
 import net.yadan.banana.memory.IMemAllocator;
 import net.yadan.banana.memory.MemInitializer;
 import net.yadan.banana.memory.OutOfBoundsAccess;
 import net.yadan.banana.memory.OutOfMemoryException;
+import net.yadan.banana.memory.PackedBytes;
+import net.yadan.banana.memory.Relocation;
+import net.yadan.banana.memory.RelocationListener;
 import net.yadan.banana.memory.block.BlockAllocator;
 
 
@@ -63,6 +67,31 @@ public class ChainedAllocator implements IMemAllocator {
     }
   }
 
+  /**
+   * Single block allocations are taken from the block allocator in one batch.
+   * if the allocation fails the pointers allocated so far are freed.
+   */
+  @Override
+  public void malloc(int size, int count, int out[]) throws OutOfMemoryException {
+    if (size < 0) {
+      throw new IllegalArgumentException("malloc size must be non-negative");
+    }
+
+    if (size <= m_blockSize) {
+      m_blocks.malloc(count, out);
+    } else {
+      int n = 0;
+      try {
+        for (; n < count; n++) {
+          out[n] = malloc(size);
+        }
+      } catch (OutOfMemoryException e) {
+        free(out, 0, n);
+        throw e;
+      }
+    }
+  }
+
   private int multiBlockMalloc(int size) {
     int dataSize = m_blockSize - DATA_OFFSET;
     int remains = size - dataSize;
@@ -186,6 +215,24 @@ public class ChainedAllocator implements IMemAllocator {
     }
   }
 
+  /**
+   * Runs of single block pointers are returned to the block allocator in one
+   * batch.
+   */
+  @Override
+  public void free(int pointers[], int offset, int length) {
+    int end = offset + length;
+    int run = offset;
+    for (int i = offset; i < end; i++) {
+      if (pointers[i] < 0) {
+        m_blocks.free(pointers, run, i - run);
+        free(pointers[i]);
+        run = i + 1;
+      }
+    }
+    m_blocks.free(pointers, run, end - run);
+  }
+
   @Override
   public final void setInt(int pointer, int offset_in_data, int data) {
     assert pointer != 0 : "Invalid pointer " + pointer;
@@ -452,6 +499,122 @@ public class ChainedAllocator implements IMemAllocator {
     return m_blocks.toString();
   }
 
+  @Override
+  public void memCopy(int srcPtr, int srcPos, int dstPtr, int dstPos, int length) {
+    assert srcPtr != dstPtr || srcPos + length <= dstPos || dstPos + length <= srcPos :
+        "Overlapping copy, use memMove";
+    memMove(srcPtr, srcPos, dstPtr, dstPos, length);
+  }
+
+  @Override
+  public void memMove(int srcPtr, int srcPos, int dstPtr, int dstPos, int length) {
+    assert srcPos + length <= maximumCapacityFor(srcPtr) : "src overflow";
+    assert dstPos + length <= maximumCapacityFor(dstPtr) : "dst overflow";
+    Cursor src = cursor(srcPtr);
+    Cursor dst = cursor(dstPtr);
+    BlockCursor.copy(src, srcPos, dst, dstPos, length);
+  }
+
+  @Override
+  public void memCopy(int srcPtr, int srcPos, IMemAllocator dst, int dstPtr, int dstPos,
+      int length) {
+    if (dst == this) {
+      memMove(srcPtr, srcPos, dstPtr, dstPos, length);
+    } else {
+      assert srcPos + length <= maximumCapacityFor(srcPtr) : "src overflow";
+      int buffer[] = new int[Math.min(length, m_blockSize)];
+      BlockCursor.copy(cursor(srcPtr), srcPos, dst, dstPtr, dstPos, length, buffer);
+    }
+  }
+
+  @Override
+  public boolean memEquals(int ptr1, int pos1, int ptr2, int pos2, int length) {
+    assert pos1 + length <= maximumCapacityFor(ptr1) : "overflow";
+    assert pos2 + length <= maximumCapacityFor(ptr2) : "overflow";
+    return BlockCursor.equals(cursor(ptr1), pos1, cursor(ptr2), pos2, length);
+  }
+
+  @Override
+  public boolean memEquals(int pointer, int srcPos, int data[], int data_pos, int length) {
+    assert srcPos + length <= maximumCapacityFor(pointer) : "overflow";
+    if (pointer >= 0) {
+      return m_blocks.memEquals(pointer, srcPos, data, data_pos, length);
+    }
+    int dataSize = m_blockSize - DATA_OFFSET;
+    int block = ~pointer;
+    while (srcPos >= dataSize) {
+      block = m_blocks.getInt(block, NEXT_OFFSET);
+      srcPos -= dataSize;
+    }
+    while (length > 0) {
+      int n = Math.min(length, dataSize - srcPos);
+      if (!m_blocks.memEquals(block, DATA_OFFSET + srcPos, data, data_pos, n)) {
+        return false;
+      }
+      data_pos += n;
+      length -= n;
+      srcPos = 0;
+      if (length > 0) {
+        block = m_blocks.getInt(block, NEXT_OFFSET);
+      }
+    }
+    return true;
+  }
+
+  // a new cursor for each call keeps reads free of shared state, so they are
+  // reentrant and can run on several threads at once
+  private Cursor cursor(int pointer) {
+    Cursor cursor = new Cursor();
+    cursor.open(pointer);
+    return cursor;
+  }
+
+  @Override
+  public ICursor createCursor() {
+    return new Cursor();
+  }
+
+  /**
+   * Follows the chain from the current block when reading forward, so a full
+   * scan walks the chain once.
+   */
+  private class Cursor extends BlockCursor {
+
+    Cursor() {
+      super(ChainedAllocator.this.m_blocks);
+    }
+
+    @Override
+    protected void locate(int position) {
+      if (m_pointer >= 0) {
+        assert position < m_blockSize : String.format("position >= capacity : %d >= %d",
+            position, m_blockSize);
+        m_block = m_pointer;
+        m_blockStart = 0;
+        m_blockEnd = m_blockSize;
+        m_blockOffset = 0;
+        return;
+      }
+
+      int dataSize = m_blockSize - DATA_OFFSET;
+      int block = m_block;
+      int start = m_blockStart;
+      if (block == -1 || position < start) {
+        block = ~m_pointer;
+        start = 0;
+      }
+      while (position >= start + dataSize) {
+        block = m_blocks.getInt(block, NEXT_OFFSET);
+        assert block != -1 : "position " + position + " is beyond the allocation";
+        start += dataSize;
+      }
+      m_block = block;
+      m_blockStart = start;
+      m_blockEnd = start + dataSize;
+      m_blockOffset = DATA_OFFSET;
+    }
+  }
+
   @Override
   public int maximumCapacityFor(int pointer) {
     int capacity = 0;
@@ -480,6 +643,31 @@ public class ChainedAllocator implements IMemAllocator {
     return m_blocks.getGrowthFactor();
   }
 
+  @Override
+  public void compact(RelocationListener listener) {
+    m_blocks.compact(listener);
+  }
+
+  @Override
+  public int relocate(int pointer, Relocation relocation) {
+    assert pointer != 0 : "Invalid pointer " + pointer;
+    assert pointer != -1 : "Invalid pointer " + pointer;
+    if (pointer < 0) {
+      int head = relocation.translate(~pointer);
+      int link = head;
+      int next = m_blocks.getInt(link, NEXT_OFFSET);
+      while (next != -1) {
+        next = relocation.translate(next);
+        m_blocks.setInt(link, NEXT_OFFSET, next);
+        link = next;
+        next = m_blocks.getInt(link, NEXT_OFFSET);
+      }
+      return ~head;
+    } else {
+      return relocation.translate(pointer);
+    }
+  }
+
   @Override
   public IBlockAllocator getBlocks() {
     return m_blocks;
@@ -720,4 +908,28 @@ public class ChainedAllocator implements IMemAllocator {
       m_blocks.getChars(pointer, src_offset_in_record, dst_data, dst_pos, num_chars);
     }
   }
+
+  @Override
+  public byte getByte(int pointer, int byte_offset) {
+    return PackedBytes.getByte(this, pointer, byte_offset);
+  }
+
+  @Override
+  public void setByte(int pointer, int byte_offset, int b) {
+    PackedBytes.setByte(this, pointer, byte_offset, b);
+  }
+
+  @Override
+  public void setBytes(int pointer, int dst_offset, byte[] src_data, int src_pos, int num_bytes) {
+    assert pointer != 0 : "Invalid pointer " + pointer;
+    assert pointer != -1 : "Invalid pointer " + pointer;
+    BlockCursor.setBytes(cursor(pointer), dst_offset, src_data, src_pos, num_bytes);
+  }
+
+  @Override
+  public void getBytes(int pointer, int src_offset, byte[] dst_data, int dst_pos, int num_bytes) {
+    assert pointer != 0 : "Invalid pointer " + pointer;
+    assert pointer != -1 : "Invalid pointer " + pointer;
+    BlockCursor.getBytes(cursor(pointer), src_offset, dst_data, dst_pos, num_bytes);
+  }
 }
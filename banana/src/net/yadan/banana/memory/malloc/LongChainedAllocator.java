@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) 2013 Omry Yadan <omry@yadan.net>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.memory.malloc;
+
+import net.yadan.banana.memory.ILongBlockAllocator;
+import net.yadan.banana.memory.ILongMemAllocator;
+import net.yadan.banana.memory.OutOfBoundsAccess;
+import net.yadan.banana.memory.OutOfMemoryException;
+import net.yadan.banana.memory.block.LongBlockAllocator;
+
+/**
+ * The 64 bit pointer counterpart of {@link ChainedAllocator}.
+ *
+ * Allocations that fit in a single block are a single block pointer.
+ * Larger allocations are a chain of blocks linked by a long next pointer in
+ * the first two ints of each block, and are referenced by ~head.
+ */
+public class LongChainedAllocator implements ILongMemAllocator {
+
+  private static final int NEXT_OFFSET = 0;
+  private static final int DATA_OFFSET = 2;
+
+  private ILongBlockAllocator m_blocks;
+  private int m_blockSize;
+
+  public LongChainedAllocator(long maxBlocks, int blockSize) {
+    this(maxBlocks, blockSize, 0);
+  }
+
+  public LongChainedAllocator(long maxBlocks, int blockSize, double growthFactor) {
+    this(new LongBlockAllocator(maxBlocks, blockSize, growthFactor));
+  }
+
+  public LongChainedAllocator(ILongBlockAllocator blocks) {
+    if (blocks.blockSize() <= DATA_OFFSET) {
+      throw new IllegalArgumentException("Minimum block size is " + (DATA_OFFSET + 1));
+    }
+    m_blocks = blocks;
+    m_blockSize = blocks.blockSize();
+  }
+
+  @Override
+  public long malloc(int size) throws OutOfMemoryException {
+    if (size < 0) {
+      throw new IllegalArgumentException("malloc size must be non-negative");
+    }
+
+    if (size <= m_blockSize) {
+      return m_blocks.malloc();
+    } else {
+      return ~multiBlockMalloc(size);
+    }
+  }
+
+  private long multiBlockMalloc(int size) {
+    int dataSize = m_blockSize - DATA_OFFSET;
+    int remains = size - dataSize;
+    long head = m_blocks.malloc();
+    m_blocks.setLong(head, NEXT_OFFSET, -1);
+
+    long link = head;
+    try {
+      while (remains > 0) {
+        long next = m_blocks.malloc();
+        m_blocks.setLong(next, NEXT_OFFSET, -1);
+        m_blocks.setLong(link, NEXT_OFFSET, next);
+        link = next;
+        remains -= dataSize;
+      }
+    } catch (OutOfMemoryException e) {
+      free(~head);
+      throw e;
+    }
+
+    return head;
+  }
+
+  /**
+   * A chain that stays a chain is extended or trimmed in place. Otherwise a
+   * new pointer of the new size is allocated and the data that fits is copied
+   * into it.
+   */
+  @Override
+  public long realloc(long pointer, int newSize) {
+    assert pointer != 0 : "Invalid pointer " + pointer;
+    assert pointer != -1 : "Invalid pointer " + pointer;
+    if (newSize < 0) {
+      throw new IllegalArgumentException("malloc size must be non-negative");
+    }
+
+    if (pointer >= 0 && newSize <= m_blockSize) {
+      return pointer;
+    }
+
+    if (pointer < 0 && newSize > m_blockSize) {
+      int numBlocks = 1 + (newSize - 1) / (m_blockSize - DATA_OFFSET); // ceil(a/b)
+      long last = ~pointer;
+      long next = m_blocks.getLong(last, NEXT_OFFSET);
+      int n = 1;
+      while (next != -1 && n < numBlocks) {
+        last = next;
+        next = m_blocks.getLong(last, NEXT_OFFSET);
+        n++;
+      }
+
+      if (n < numBlocks) {
+        long link = last;
+        try {
+          for (; n < numBlocks; n++) {
+            long block = m_blocks.malloc();
+            m_blocks.setLong(block, NEXT_OFFSET, -1);
+            m_blocks.setLong(link, NEXT_OFFSET, block);
+            link = block;
+          }
+        } catch (OutOfMemoryException e) {
+          next = m_blocks.getLong(last, NEXT_OFFSET);
+          m_blocks.setLong(last, NEXT_OFFSET, -1);
+          while (next != -1) {
+            long f = m_blocks.getLong(next, NEXT_OFFSET);
+            m_blocks.free(next);
+            next = f;
+          }
+          throw e;
+        }
+      } else {
+        // free remains if any
+        m_blocks.setLong(last, NEXT_OFFSET, -1);
+        while (next != -1) {
+          long f = m_blocks.getLong(next, NEXT_OFFSET);
+          m_blocks.free(next);
+          next = f;
+        }
+      }
+      return pointer;
+    }
+
+    long p = malloc(newSize);
+    int length = Math.min(maximumCapacityFor(pointer), maximumCapacityFor(p));
+    int buffer[] = new int[Math.min(length, m_blockSize)];
+    for (int pos = 0; pos < length; pos += buffer.length) {
+      int n = Math.min(buffer.length, length - pos);
+      getInts(pointer, pos, buffer, 0, n);
+      setInts(p, pos, buffer, 0, n);
+    }
+    free(pointer);
+    return p;
+  }
+
+  @Override
+  public void free(long pointer) {
+    assert pointer != 0 : "Invalid pointer " + pointer;
+    assert pointer != -1 : "Invalid pointer " + pointer;
+    if (pointer < 0) {
+      long directPointer = ~pointer;
+      long next;
+      do {
+        next = m_blocks.getLong(directPointer, NEXT_OFFSET);
+        m_blocks.free(directPointer);
+        directPointer = next;
+      } while (next != -1);
+    } else {
+      m_blocks.free(pointer);
+    }
+  }
+
+  // this is super ugly, but since nothing here is thread safe anyway it's okay.
+  private int retOffset;
+
+  /**
+   * Returns the block of a multi block pointer holding offset, and sets
+   * retOffset to the offset of the int inside that block
+   */
+  private long getDataBlockPointerFor(long pointer, int offset) {
+    assert pointer < 0;
+
+    int dataSize = m_blockSize - DATA_OFFSET;
+    long current = ~pointer;
+    while (offset >= dataSize) {
+      current = m_blocks.getLong(current, NEXT_OFFSET);
+      if (current == -1) {
+        throw new OutOfBoundsAccess("Accessing pointer beyond allocation size");
+      }
+      offset -= dataSize;
+    }
+    retOffset = DATA_OFFSET + offset;
+    return current;
+  }
+
+  @Override
+  public int getInt(long pointer, int offset_in_data) {
+    assert pointer != 0 : "Invalid pointer " + pointer;
+    assert pointer != -1 : "Invalid pointer " + pointer;
+    if (pointer < 0) {
+      pointer = getDataBlockPointerFor(pointer, offset_in_data);
+      offset_in_data = retOffset;
+    }
+    return m_blocks.getInt(pointer, offset_in_data);
+  }
+
+  @Override
+  public void setInt(long pointer, int offset_in_data, int data) {
+    assert pointer != 0 : "Invalid pointer " + pointer;
+    assert pointer != -1 : "Invalid pointer " + pointer;
+    if (pointer < 0) {
+      pointer = getDataBlockPointerFor(pointer, offset_in_data);
+      offset_in_data = retOffset;
+    }
+    m_blocks.setInt(pointer, offset_in_data, data);
+  }
+
+  @Override
+  public long getLong(long pointer, int offset_in_data) {
+    assert pointer != 0 : "Invalid pointer " + pointer;
+    assert pointer != -1 : "Invalid pointer " + pointer;
+    if (pointer < 0) {
+      int ilower = getInt(pointer, offset_in_data + 1);
+      int iupper = getInt(pointer, offset_in_data);
+      long lower = 0x00000000FFFFFFFFL & ilower;
+      long upper = ((long) iupper) << 32;
+      return upper | lower;
+    } else {
+      return m_blocks.getLong(pointer, offset_in_data);
+    }
+  }
+
+  @Override
+  public void setLong(long pointer, int offset_in_data, long data) {
+    assert pointer != 0 : "Invalid pointer " + pointer;
+    assert pointer != -1 : "Invalid pointer " + pointer;
+    if (pointer < 0) {
+      setInt(pointer, offset_in_data, (int) (data >>> 32));
+      setInt(pointer, offset_in_data + 1, (int) (data));
+    } else {
+      m_blocks.setLong(pointer, offset_in_data, data);
+    }
+  }
+
+  @Override
+  public float getFloat(long pointer, int offset) {
+    return Float.intBitsToFloat(getInt(pointer, offset));
+  }
+
+  @Override
+  public void setFloat(long pointer, int offset, float f) {
+    setInt(pointer, offset, Float.floatToIntBits(f));
+  }
+
+  @Override
+  public double getDouble(long pointer, int offset_in_data) {
+    return Double.longBitsToDouble(getLong(pointer, offset_in_data));
+  }
+
+  @Override
+  public void setDouble(long pointer, int offset_in_data, double data) {
+    setLong(pointer, offset_in_data, Double.doubleToLongBits(data));
+  }
+
+  @Override
+  public void setInts(long pointer, int dst_offset_in_record, int src_data[], int src_pos,
+      int length) {
+    assert pointer != 0 : "Invalid pointer " + pointer;
+    assert pointer != -1 : "Invalid pointer " + pointer;
+    if (pointer < 0) {
+      int dataSize = m_blockSize - DATA_OFFSET;
+      long current = getDataBlockPointerFor(pointer, dst_offset_in_record);
+      int offset = retOffset;
+      while (length > 0) {
+        if (current == -1) {
+          throw new OutOfBoundsAccess("Accessing pointer beyond allocation size");
+        }
+        int n = Math.min(length, DATA_OFFSET + dataSize - offset);
+        m_blocks.setInts(current, offset, src_data, src_pos, n);
+        src_pos += n;
+        length -= n;
+        offset = DATA_OFFSET;
+        current = m_blocks.getLong(current, NEXT_OFFSET);
+      }
+    } else {
+      m_blocks.setInts(pointer, dst_offset_in_record, src_data, src_pos, length);
+    }
+  }
+
+  @Override
+  public void getInts(long pointer, int src_offset_in_record, int dst_data[], int dst_pos,
+      int length) {
+    assert pointer != 0 : "Invalid pointer " + pointer;
+    assert pointer != -1 : "Invalid pointer " + pointer;
+    if (pointer < 0) {
+      int dataSize = m_blockSize - DATA_OFFSET;
+      long current = getDataBlockPointerFor(pointer, src_offset_in_record);
+      int offset = retOffset;
+      while (length > 0) {
+        if (current == -1) {
+          throw new OutOfBoundsAccess("Accessing pointer beyond allocation size");
+        }
+        int n = Math.min(length, DATA_OFFSET + dataSize - offset);
+        m_blocks.getInts(current, offset, dst_data, dst_pos, n);
+        dst_pos += n;
+        length -= n;
+        offset = DATA_OFFSET;
+        current = m_blocks.getLong(current, NEXT_OFFSET);
+      }
+    } else {
+      m_blocks.getInts(pointer, src_offset_in_record, dst_data, dst_pos, length);
+    }
+  }
+
+  @Override
+  public void memSet(long pointer, int srcPos, int length, int value) {
+    assert pointer != 0 : "Invalid pointer " + pointer;
+    assert pointer != -1 : "Invalid pointer " + pointer;
+    if (pointer < 0) {
+      int dataSize = m_blockSize - DATA_OFFSET;
+      long current = getDataBlockPointerFor(pointer, srcPos);
+      int offset = retOffset;
+      while (length > 0) {
+        if (current == -1) {
+          throw new OutOfBoundsAccess("Accessing pointer beyond allocation size");
+        }
+        int n = Math.min(length, DATA_OFFSET + dataSize - offset);
+        m_blocks.memSet(current, offset, n, value);
+        length -= n;
+        offset = DATA_OFFSET;
+        current = m_blocks.getLong(current, NEXT_OFFSET);
+      }
+    } else {
+      m_blocks.memSet(pointer, srcPos, length, value);
+    }
+  }
+
+  @Override
+  public int maximumCapacityFor(long pointer) {
+    int capacity = 0;
+    if (pointer < 0) {
+      long directPointer = ~pointer;
+      long next;
+      do {
+        next = m_blocks.getLong(directPointer, NEXT_OFFSET);
+        capacity += (m_blockSize - DATA_OFFSET);
+        directPointer = next;
+      } while (next != -1);
+    } else {
+      capacity = m_blockSize;
+    }
+    return capacity;
+  }
+
+  @Override
+  public int blockSize() {
+    return m_blocks.blockSize();
+  }
+
+  @Override
+  public boolean isDebug() {
+    return m_blocks.isDebug();
+  }
+
+  @Override
+  public void setDebug(boolean debug) {
+    m_blocks.setDebug(debug);
+  }
+
+  @Override
+  public long usedBlocks() {
+    return m_blocks.usedBlocks();
+  }
+
+  @Override
+  public long maxBlocks() {
+    return m_blocks.maxBlocks();
+  }
+
+  @Override
+  public long freeBlocks() {
+    return m_blocks.freeBlocks();
+  }
+
+  @Override
+  public void clear() {
+    m_blocks.clear();
+  }
+
+  @Override
+  public long computeMemoryUsage() {
+    return m_blocks.computeMemoryUsage();
+  }
+
+  @Override
+  public void setGrowthFactor(double d) {
+    m_blocks.setGrowthFactor(d);
+  }
+
+  @Override
+  public double getGrowthFactor() {
+    return m_blocks.getGrowthFactor();
+  }
+
+  @Override
+  public ILongBlockAllocator getBlocks() {
+    return m_blocks;
+  }
+
+  @Override
+  public String toString() {
+    return m_blocks.toString();
+  }
+}
@@ -10,51 +10,106 @@ import java.util.Arrays;
 
 import net.yadan.banana.memory.IBlockAllocator;
 import net.yadan.banana.memory.IBuffer;
+import net.yadan.banana.memory.ICursor;
 import net.yadan.banana.memory.IMemAllocator;
 import net.yadan.banana.memory.MemInitializer;
+import net.yadan.banana.memory.PackedBytes;
+import net.yadan.banana.memory.PrimitiveAccessCursor;
+import net.yadan.banana.memory.Relocation;
+import net.yadan.banana.memory.RelocationListener;
 import net.yadan.banana.memory.block.BlockAllocator;
 
 /**
  * Variable length int's allocator.
- * 
+ *
+ * Allocations are served by one fixed size block allocator per size class,
+ * the smallest class that fits the requested size is used. Size classes up to
+ * {@link #LOOKUP_TABLE_LIMIT} are found with a lookup table.
+ *
+ * To tune the size classes to the actual allocations, turn on
+ * {@link #setRecordSizes(boolean)}, run a representative load and call
+ * {@link #suggestSizes(int)} or {@link #rebalance(int)}.
+ *
  * @author omry
  * @created May 2, 2013
  */
 public class MultiSizeAllocator implements IMemAllocator {
 
+  /**
+   * Sizes up to this limit are mapped to their size class with a lookup
+   * table, larger sizes use a binary search.
+   */
+  public static final int LOOKUP_TABLE_LIMIT = 4096;
+
   private int[] m_sizes;
 
+  // size class index by requested size
+  private int[] m_sizeClass;
+
   private IBlockAllocator m_allocators[];
 
   private int m_reservedBits;
   private int m_allocationBits;
   private int m_maxAllocationPointer;
 
+  private final int m_numInitialBlocks;
+
+  private MemInitializer m_initializer;
+
+  // number of allocations by requested size, null if not recording
+  private long m_histogram[];
+
   public MultiSizeAllocator(int numInitialBlocks, int sizes[]) {
     this(numInitialBlocks, sizes, 0);
   }
 
   public MultiSizeAllocator(int numInitialBlocks, int sizes[], double growthFactor) {
-    m_sizes = new int[sizes.length];
-    System.arraycopy(sizes, 0, m_sizes, 0, sizes.length);
+    m_numInitialBlocks = numInitialBlocks;
+    init(sizes, growthFactor, false);
+  }
+
+  private void init(int sizes[], double growthFactor, boolean debug) {
     // if you don't have two sizes just use IntAllocator
-    if (m_sizes.length < 2)
+    if (sizes.length < 2)
       throw new IllegalArgumentException("Need at least two sizes");
 
-    Arrays.sort(sizes);
-    m_allocators = new IBlockAllocator[sizes.length];
-    for (int i = 0; i < sizes.length; i++) {
-      m_allocators[i] = new BlockAllocator(numInitialBlocks, sizes[i], growthFactor);
+    m_sizes = new int[sizes.length];
+    System.arraycopy(sizes, 0, m_sizes, 0, sizes.length);
+    Arrays.sort(m_sizes);
+    m_allocators = new IBlockAllocator[m_sizes.length];
+    for (int i = 0; i < m_sizes.length; i++) {
+      m_allocators[i] = new BlockAllocator(m_numInitialBlocks, m_sizes[i], growthFactor,
+          m_initializer);
+      m_allocators[i].setDebug(debug);
     }
 
-    m_reservedBits = (int) Math.ceil(Math.log(sizes.length) / Math.log(2));
+    m_reservedBits = (int) Math.ceil(Math.log(m_sizes.length) / Math.log(2));
     m_allocationBits = 32 - m_reservedBits;
     m_maxAllocationPointer = (int) Math.pow(2, m_allocationBits);
+
+    int maxSize = m_sizes[m_sizes.length - 1];
+    m_sizeClass = new int[Math.min(maxSize, LOOKUP_TABLE_LIMIT) + 1];
+    for (int size = 0, idx = 0; size < m_sizeClass.length; size++) {
+      while (m_sizes[idx] < size) {
+        idx++;
+      }
+      m_sizeClass[size] = idx;
+    }
+
+    if (m_histogram != null) {
+      m_histogram = new long[maxSize + 1];
+    }
   }
 
   @Override
   public int malloc(int size) {
+    if (size < 0) {
+      throw new IllegalArgumentException("malloc size must be non-negative");
+    }
     int idx = findAllocatorFor(size);
+    if (m_histogram != null) {
+      m_histogram[size]++;
+    }
     IBlockAllocator alloc = m_allocators[idx];
     int pointer = alloc.malloc();
     if (pointer > m_maxAllocationPointer) {
@@ -64,6 +119,26 @@ public class MultiSizeAllocator implements IMemAllocator {
     return encodePointer(idx, pointer);
   }
 
+  @Override
+  public void malloc(int size, int count, int out[]) {
+    if (size < 0) {
+      throw new IllegalArgumentException("malloc size must be non-negative");
+    }
+    int idx = findAllocatorFor(size);
+    if (m_histogram != null) {
+      m_histogram[size] += count;
+    }
+    m_allocators[idx].malloc(count, out);
+    for (int i = 0; i < count; i++) {
+      if (out[i] > m_maxAllocationPointer) {
+        m_allocators[idx].free(out, i, count - i);
+        free(out, 0, i);
+        throw new IllegalStateException("Pointer value too large");
+      }
+      out[i] = encodePointer(idx, out[i]);
+    }
+  }
+
   final int encodePointer(int idx, int pointer) {
     return idx << m_allocationBits | pointer;
   }
@@ -75,6 +150,13 @@ public class MultiSizeAllocator implements IMemAllocator {
     m_allocators[idx].free(pointer);
   }
 
+  @Override
+  public void free(int pointers[], int offset, int length) {
+    for (int i = offset; i < offset + length; i++) {
+      free(pointers[i]);
+    }
+  }
+
   @Override
   public int getInt(int pointer, int offset_in_data) {
     int idx = getSizeIndex(pointer);
@@ -138,6 +220,10 @@ public class MultiSizeAllocator implements IMemAllocator {
   }
 
   int findAllocatorFor(int size) {
+    if (size >= 0 && size < m_sizeClass.length) {
+      return m_sizeClass[size];
+    }
+
     int i = Arrays.binarySearch(m_sizes, size);
     if (i == -(m_sizes.length + 1)) {
       throw new IllegalArgumentException("Requested an allocation of unsupported size " + size + ", max "
@@ -151,6 +237,135 @@ public class MultiSizeAllocator implements IMemAllocator {
 
   }
 
+  /**
+   * @return a copy of the size classes, in ascending order
+   */
+  public int[] getSizes() {
+    return Arrays.copyOf(m_sizes, m_sizes.length);
+  }
+
+  /**
+   * Turns recording of the requested allocation sizes on or off. turning it on
+   * starts a new histogram.
+   */
+  public void setRecordSizes(boolean record) {
+    m_histogram = record ? new long[m_sizes[m_sizes.length - 1] + 1] : null;
+  }
+
+  public boolean isRecordingSizes() {
+    return m_histogram != null;
+  }
+
+  /**
+   * @return a copy of the recorded histogram, the number of allocations of
+   *         each size from 0 up to the largest size class
+   * @throws IllegalStateException if sizes are not being recorded
+   */
+  public long[] getSizeHistogram() {
+    if (m_histogram == null) {
+      throw new IllegalStateException("Not recording sizes");
+    }
+    return Arrays.copyOf(m_histogram, m_histogram.length);
+  }
+
+  /**
+   * Suggests size classes for the recorded histogram, see
+   * {@link #suggestSizes(long[], int)}.
+   */
+  public int[] suggestSizes(int numClasses) {
+    return suggestSizes(getSizeHistogram(), numClasses);
+  }
+
+  /**
+   * Replaces the size classes with the ones suggested for the recorded
+   * histogram. The allocator must be empty, pointers encode their size class
+   * and can not survive the change. The histogram is restarted.
+   *
+   * @param numClasses maximum number of size classes
+   * @throws IllegalStateException if the allocator is not empty or sizes are
+   *           not being recorded
+   */
+  public void rebalance(int numClasses) {
+    if (usedBlocks() != 0) {
+      throw new IllegalStateException("Can not rebalance size classes with " + usedBlocks()
+          + " blocks in use");
+    }
+    init(suggestSizes(numClasses), getGrowthFactor(), isDebug());
+  }
+
+  /**
+   * Computes the size classes that minimize the memory wasted by rounding the
+   * allocations in the histogram up to their size class. The largest size
+   * class is always histogram.length - 1, so every size the histogram covers
+   * is still supported. If no smaller size was recorded the other class is
+   * size 1, so there are always at least two classes.
+   *
+   * @param histogram number of allocations of each size
+   * @param numClasses maximum number of size classes, at least 2
+   * @return size classes in ascending order
+   */
+  public static int[] suggestSizes(long histogram[], int numClasses) {
+    if (numClasses < 2)
+      throw new IllegalArgumentException("numClasses " + numClasses + " < 2");
+    int maxSize = histogram.length - 1;
+    if (maxSize < 2)
+      throw new IllegalArgumentException("histogram should cover at least size 2");
+
+    // candidate classes are the recorded sizes and the max size
+    int numCandidates = 0;
+    int candidates[] = new int[histogram.length];
+    for (int size = 1; size < maxSize; size++) {
+      if (histogram[size] != 0) {
+        candidates[numCandidates++] = size;
+      }
+    }
+    if (numCandidates == 0) {
+      // nothing below the max size was recorded, an unused class costs nothing
+      candidates[numCandidates++] = 1;
+    }
+    candidates[numCandidates++] = maxSize;
+
+    // prefix sums of counts and of count * size, for the cost of a range
+    long counts[] = new long[histogram.length + 1];
+    long weights[] = new long[histogram.length + 1];
+    for (int size = 0; size < histogram.length; size++) {
+      counts[size + 1] = counts[size] + histogram[size];
+      weights[size + 1] = weights[size] + histogram[size] * size;
+    }
+
+    // cost[k][j] : least waste when class k is candidates[j]
+    int k = Math.min(numClasses, numCandidates);
+    long cost[][] = new long[k][numCandidates];
+    int prev[][] = new int[k][numCandidates];
+    for (int j = 0; j < numCandidates; j++) {
+      cost[0][j] = waste(counts, weights, -1, candidates[j]);
+    }
+    for (int c = 1; c < k; c++) {
+      for (int j = 0; j < numCandidates; j++) {
+        cost[c][j] = Long.MAX_VALUE;
+        for (int i = c - 1; i < j; i++) {
+          long total = cost[c - 1][i] + waste(counts, weights, candidates[i], candidates[j]);
+          if (total < cost[c][j]) {
+            cost[c][j] = total;
+            prev[c][j] = i;
+          }
+        }
+      }
+    }
+
+    int sizes[] = new int[k];
+    for (int c = k - 1, j = numCandidates - 1; c >= 0; c--) {
+      sizes[c] = candidates[j];
+      j = prev[c][j];
+    }
+    return sizes;
+  }
+
+  // waste of allocating the sizes in (from, to] in blocks of size to
+  private static long waste(long counts[], long weights[], int from, int to) {
+    return to * (counts[to + 1] - counts[from + 1]) - (weights[to + 1] - weights[from + 1]);
+  }
+
   @Override
   public int computeMemoryUsageFor(int size) {
     return m_allocators[findAllocatorFor(size)].blockSize();
@@ -170,6 +385,7 @@ public class MultiSizeAllocator implements IMemAllocator {
 
   @Override
   public void setInitializer(MemInitializer initializer) {
+    m_initializer = initializer;
     for (IBlockAllocator allocator : m_allocators) {
       allocator.setInitializer(initializer);
     }
@@ -241,10 +457,113 @@ public class MultiSizeAllocator implements IMemAllocator {
     return m_allocators[idx].blockSize();
   }
 
+  /**
+   * Returns the same pointer if the new size fits in the same size class,
+   * otherwise moves the data to an allocation of the new size class.
+   */
   @Override
   public int realloc(int pointer, int size) {
-    // TODO
-    throw new UnsupportedOperationException();
+    assert pointer != 0 : "Invalid pointer " + pointer;
+    assert pointer != -1 : "Invalid pointer " + pointer;
+    if (size < 0) {
+      throw new IllegalArgumentException("malloc size must be non-negative");
+    }
+    int idx = getSizeIndex(pointer);
+    if (findAllocatorFor(size) == idx) {
+      return pointer;
+    }
+    int newPointer = malloc(size);
+    memCopy(pointer, 0, newPointer, 0,
+        Math.min(maximumCapacityFor(pointer), maximumCapacityFor(newPointer)));
+    free(pointer);
+    return newPointer;
+  }
+
+  /**
+   * Allocations of the same size class are copied directly between blocks,
+   * allocations of different size classes are staged through a temporary
+   * array.
+   */
+  @Override
+  public void memCopy(int srcPtr, int srcPos, int dstPtr, int dstPos, int length) {
+    int srcIdx = getSizeIndex(srcPtr);
+    int dstIdx = getSizeIndex(dstPtr);
+    if (srcIdx == dstIdx) {
+      m_allocators[srcIdx].memCopy(extractPointer(srcPtr), srcPos, extractPointer(dstPtr), dstPos,
+          length);
+    } else {
+      int buffer[] = new int[length];
+      m_allocators[srcIdx].getInts(extractPointer(srcPtr), srcPos, buffer, 0, length);
+      m_allocators[dstIdx].setInts(extractPointer(dstPtr), dstPos, buffer, 0, length);
+    }
+  }
+
+  /**
+   * Same as memCopy, every allocation is in a single block.
+   */
+  @Override
+  public void memMove(int srcPtr, int srcPos, int dstPtr, int dstPos, int length) {
+    memCopy(srcPtr, srcPos, dstPtr, dstPos, length);
+  }
+
+  @Override
+  public void memCopy(int srcPtr, int srcPos, IMemAllocator dst, int dstPtr, int dstPos,
+      int length) {
+    if (dst == this) {
+      memCopy(srcPtr, srcPos, dstPtr, dstPos, length);
+    } else {
+      int buffer[] = new int[length];
+      getInts(srcPtr, srcPos, buffer, 0, length);
+      dst.setInts(dstPtr, dstPos, buffer, 0, length);
+    }
+  }
+
+  @Override
+  public boolean memEquals(int ptr1, int pos1, int ptr2, int pos2, int length) {
+    int idx1 = getSizeIndex(ptr1);
+    int idx2 = getSizeIndex(ptr2);
+    if (idx1 == idx2) {
+      return m_allocators[idx1].memEquals(extractPointer(ptr1), pos1, extractPointer(ptr2), pos2,
+          length);
+    }
+    IBlockAllocator a1 = m_allocators[idx1];
+    IBlockAllocator a2 = m_allocators[idx2];
+    ptr1 = extractPointer(ptr1);
+    ptr2 = extractPointer(ptr2);
+    for (int i = 0; i < length; i++) {
+      if (a1.getInt(ptr1, pos1 + i) != a2.getInt(ptr2, pos2 + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean memEquals(int pointer, int srcPos, int data[], int data_pos, int length) {
+    int idx = getSizeIndex(pointer);
+    return m_allocators[idx].memEquals(extractPointer(pointer), srcPos, data, data_pos, length);
+  }
+
+  /**
+   * Compacts each of the size allocators. pointers reported to the listener
+   * are encoded with their size index, like the pointers returned by malloc.
+   */
+  @Override
+  public void compact(final RelocationListener listener) {
+    for (int i = 0; i < m_allocators.length; i++) {
+      final int idx = i;
+      m_allocators[i].compact(listener == null ? null : new RelocationListener() {
+        @Override
+        public void relocated(int oldPointer, int newPointer) {
+          listener.relocated(encodePointer(idx, oldPointer), encodePointer(idx, newPointer));
+        }
+      });
+    }
+  }
+
+  @Override
+  public int relocate(int pointer, Relocation relocation) {
+    return relocation.translate(pointer);
   }
 
   @Override
@@ -252,6 +571,11 @@ public class MultiSizeAllocator implements IMemAllocator {
     throw new UnsupportedOperationException();
   }
 
+  @Override
+  public ICursor createCursor() {
+    return new PrimitiveAccessCursor(this);
+  }
+
   @Override
   public String pointerDebugString(int pointer) {
     int idx = getSizeIndex(pointer);
@@ -344,4 +668,24 @@ public class MultiSizeAllocator implements IMemAllocator {
     pointer = extractPointer(pointer);
     m_allocators[idx].getChars(pointer, src_offset, dst_data, dst_pos, num_chars);
   }
+
+  @Override
+  public byte getByte(int pointer, int byte_offset) {
+    return PackedBytes.getByte(this, pointer, byte_offset);
+  }
+
+  @Override
+  public void setByte(int pointer, int byte_offset, int b) {
+    PackedBytes.setByte(this, pointer, byte_offset, b);
+  }
+
+  @Override
+  public void setBytes(int pointer, int dst_offset, byte[] src_data, int src_pos, int num_bytes) {
+    PackedBytes.setBytes(this, pointer, dst_offset, src_data, src_pos, num_bytes);
+  }
+
+  @Override
+  public void getBytes(int pointer, int src_offset, byte[] dst_data, int dst_pos, int num_bytes) {
+    PackedBytes.getBytes(this, pointer, src_offset, dst_data, dst_pos, num_bytes);
+  }
 }
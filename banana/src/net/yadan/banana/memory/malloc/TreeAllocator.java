@@ -11,9 +11,13 @@ import java.util.Queue;
 
 import net.yadan.banana.memory.IBlockAllocator;
 import net.yadan.banana.memory.IBuffer;
+import net.yadan.banana.memory.ICursor;
 import net.yadan.banana.memory.IMemAllocator;
 import net.yadan.banana.memory.MemInitializer;
 import net.yadan.banana.memory.OutOfMemoryException;
+import net.yadan.banana.memory.PackedBytes;
+import net.yadan.banana.memory.Relocation;
+import net.yadan.banana.memory.RelocationListener;
 import net.yadan.banana.memory.block.BlockAllocator;
 
 
@@ -67,6 +71,31 @@ public class TreeAllocator implements IMemAllocator {
     }
   }
 
+  /**
+   * Single block allocations are taken from the block allocator in one batch.
+   * if the allocation fails the pointers allocated so far are freed.
+   */
+  @Override
+  public void malloc(int size, int count, int out[]) throws OutOfMemoryException {
+    if (size < 0) {
+      throw new IllegalArgumentException("malloc size must be non-negative");
+    }
+
+    if (size <= m_blockSize) {
+      m_blocks.malloc(count, out);
+    } else {
+      int n = 0;
+      try {
+        for (; n < count; n++) {
+          out[n] = malloc(size);
+        }
+      } catch (OutOfMemoryException e) {
+        free(out, 0, n);
+        throw e;
+      }
+    }
+  }
+
   private int multiBlockMalloc(int size) {
     int indexPointer = m_blocks.malloc();
     try {
@@ -348,6 +377,24 @@ public class TreeAllocator implements IMemAllocator {
     }
   }
 
+  /**
+   * Runs of single block pointers are returned to the block allocator in one
+   * batch.
+   */
+  @Override
+  public void free(int pointers[], int offset, int length) {
+    int end = offset + length;
+    int run = offset;
+    for (int i = offset; i < end; i++) {
+      if (pointers[i] < 0) {
+        m_blocks.free(pointers, run, i - run);
+        free(pointers[i]);
+        run = i + 1;
+      }
+    }
+    m_blocks.free(pointers, run, end - run);
+  }
+
   @Override
   public short getUpperShort(int pointer, int offset) {
     if (pointer < 0) {
@@ -452,10 +499,10 @@ public class TreeAllocator implements IMemAllocator {
 
       int left_to_copy = length;
       int dst_offset = dst_offset_in_record;
-      for (int src_offset = src_pos; src_offset < length;) {
+      for (int src_offset = 0; src_offset < length;) {
         int this_copy_length;
         if (dst_offset % m_blockSize != 0) {
-          this_copy_length = m_blockSize - dst_offset % m_blockSize;
+          this_copy_length = Math.min(left_to_copy, m_blockSize - dst_offset % m_blockSize);
         } else {
           if (left_to_copy > m_blockSize) {
             this_copy_length = m_blockSize;
@@ -513,7 +560,7 @@ public class TreeAllocator implements IMemAllocator {
               * m_blockSize);
 
       int chars_left_to_copy = num_chars;
-      for (int src_offset_chars = src_char_pos; src_offset_chars < num_chars;) {
+      for (int src_offset_chars = 0; src_offset_chars < num_chars;) {
 
         int num_ints_to_copy;
         if (dst_int_offset % m_blockSize != 0) {
@@ -575,7 +622,7 @@ public class TreeAllocator implements IMemAllocator {
           "dst_pos + num_ints > memSize : %d + %d < %d", dst_char_pos, num_ints, numBlocks * m_blockSize);
 
       int chars_left_to_copy = num_chars;
-      for (int dst_offset_chars = dst_char_pos; dst_offset_chars < num_chars;) {
+      for (int dst_offset_chars = 0; dst_offset_chars < num_chars;) {
         int num_ints_to_copy;
         if (src_int_offset % m_blockSize != 0) {
           num_ints_to_copy = m_blockSize - src_int_offset % m_blockSize;
@@ -617,6 +664,30 @@ public class TreeAllocator implements IMemAllocator {
     }
   }
 
+  @Override
+  public byte getByte(int pointer, int byte_offset) {
+    return PackedBytes.getByte(this, pointer, byte_offset);
+  }
+
+  @Override
+  public void setByte(int pointer, int byte_offset, int b) {
+    PackedBytes.setByte(this, pointer, byte_offset, b);
+  }
+
+  @Override
+  public void setBytes(int pointer, int dst_offset, byte[] src_data, int src_pos, int num_bytes) {
+    assert pointer != 0 : "Invalid pointer " + pointer;
+    assert pointer != -1 : "Invalid pointer " + pointer;
+    BlockCursor.setBytes(cursor(pointer), dst_offset, src_data, src_pos, num_bytes);
+  }
+
+  @Override
+  public void getBytes(int pointer, int src_offset, byte[] dst_data, int dst_pos, int num_bytes) {
+    assert pointer != 0 : "Invalid pointer " + pointer;
+    assert pointer != -1 : "Invalid pointer " + pointer;
+    BlockCursor.getBytes(cursor(pointer), src_offset, dst_data, dst_pos, num_bytes);
+  }
+
   @Override
   public void memSet(int pointer, int src_pos, int length, int value) {
     assert pointer != 0 : "Invalid pointer " + pointer;
@@ -684,10 +755,10 @@ public class TreeAllocator implements IMemAllocator {
 
       int left_to_copy = length;
       int src_offset = src_offset_in_record;
-      for (int dst_offset = dst_pos; dst_offset < length;) {
+      for (int dst_offset = 0; dst_offset < length;) {
         int this_copy_length;
         if (src_offset % m_blockSize != 0) {
-          this_copy_length = m_blockSize - src_offset % m_blockSize;
+          this_copy_length = Math.min(left_to_copy, m_blockSize - src_offset % m_blockSize);
         } else {
           if (left_to_copy > m_blockSize) {
             this_copy_length = m_blockSize;
@@ -874,6 +945,102 @@ public class TreeAllocator implements IMemAllocator {
     return m_blocks.computeMemoryUsage();
   }
 
+  @Override
+  public void memCopy(int srcPtr, int srcPos, int dstPtr, int dstPos, int length) {
+    assert srcPtr != dstPtr || srcPos + length <= dstPos || dstPos + length <= srcPos :
+        "Overlapping copy, use memMove";
+    memMove(srcPtr, srcPos, dstPtr, dstPos, length);
+  }
+
+  @Override
+  public void memMove(int srcPtr, int srcPos, int dstPtr, int dstPos, int length) {
+    assert srcPos + length <= maximumCapacityFor(srcPtr) : "src overflow";
+    assert dstPos + length <= maximumCapacityFor(dstPtr) : "dst overflow";
+    Cursor src = cursor(srcPtr);
+    Cursor dst = cursor(dstPtr);
+    BlockCursor.copy(src, srcPos, dst, dstPos, length);
+  }
+
+  @Override
+  public void memCopy(int srcPtr, int srcPos, IMemAllocator dst, int dstPtr, int dstPos,
+      int length) {
+    if (dst == this) {
+      memMove(srcPtr, srcPos, dstPtr, dstPos, length);
+    } else {
+      assert srcPos + length <= maximumCapacityFor(srcPtr) : "src overflow";
+      int buffer[] = new int[Math.min(length, m_blockSize)];
+      BlockCursor.copy(cursor(srcPtr), srcPos, dst, dstPtr, dstPos, length, buffer);
+    }
+  }
+
+  @Override
+  public boolean memEquals(int ptr1, int pos1, int ptr2, int pos2, int length) {
+    assert pos1 + length <= maximumCapacityFor(ptr1) : "overflow";
+    assert pos2 + length <= maximumCapacityFor(ptr2) : "overflow";
+    return BlockCursor.equals(cursor(ptr1), pos1, cursor(ptr2), pos2, length);
+  }
+
+  @Override
+  public boolean memEquals(int pointer, int srcPos, int data[], int data_pos, int length) {
+    assert srcPos + length <= maximumCapacityFor(pointer) : "overflow";
+    if (pointer >= 0) {
+      return m_blocks.memEquals(pointer, srcPos, data, data_pos, length);
+    }
+    // data blocks hold consecutive ranges of m_blockSize ints
+    while (length > 0) {
+      int offset = srcPos % m_blockSize;
+      int n = Math.min(length, m_blockSize - offset);
+      int block = findPointerForOffset(pointer, srcPos - offset);
+      if (!m_blocks.memEquals(block, offset, data, data_pos, n)) {
+        return false;
+      }
+      srcPos += n;
+      data_pos += n;
+      length -= n;
+    }
+    return true;
+  }
+
+  // a new cursor for each call keeps reads free of shared state, so they are
+  // reentrant and can run on several threads at once
+  private Cursor cursor(int pointer) {
+    Cursor cursor = new Cursor();
+    cursor.open(pointer);
+    return cursor;
+  }
+
+  @Override
+  public ICursor createCursor() {
+    return new Cursor();
+  }
+
+  /**
+   * Locates each data block once with an index descent, instead of once for
+   * every read.
+   */
+  private class Cursor extends BlockCursor {
+
+    Cursor() {
+      super(TreeAllocator.this.m_blocks);
+    }
+
+    @Override
+    protected void locate(int position) {
+      assert position < maximumCapacityFor(m_pointer) : String.format(
+          "position >= capacity : %d >= %d", position, maximumCapacityFor(m_pointer));
+      if (m_pointer >= 0) {
+        m_block = m_pointer;
+        m_blockStart = 0;
+      } else {
+        // data blocks hold consecutive ranges of m_blockSize ints
+        m_blockStart = position - position % m_blockSize;
+        m_block = findPointerForOffset(m_pointer, m_blockStart);
+      }
+      m_blockEnd = m_blockStart + m_blockSize;
+      m_blockOffset = 0;
+    }
+  }
+
   @Override
   public int maximumCapacityFor(int pointer) {
     int capacity = 0;
@@ -900,6 +1067,31 @@ public class TreeAllocator implements IMemAllocator {
     return m_blocks.toString();
   }
 
+  @Override
+  public void compact(RelocationListener listener) {
+    m_blocks.compact(listener);
+  }
+
+  @Override
+  public int relocate(int pointer, Relocation relocation) {
+    assert pointer != 0 : "Invalid pointer " + pointer;
+    assert pointer != -1 : "Invalid pointer " + pointer;
+    if (pointer < 0) {
+      int indexPointer = relocation.translate(~pointer);
+      int nb = m_blocks.getInt(indexPointer, INDEX_NUM_BLOCKS_OFFSET);
+      int memSize = nb * m_blockSize;
+      int maxCapacityFor = maximumCapacityForNumBlocks(nb) / m_indexBlockCapacity;
+      int numBlocks = 1 + ((memSize - 1) / maxCapacityFor); // ceil(a/b)
+      for (int i = 0; i < numBlocks; i++) {
+        int p = m_blocks.getInt(indexPointer, i + INDEX_DATA_OFFSET);
+        m_blocks.setInt(indexPointer, i + INDEX_DATA_OFFSET, relocate(p, relocation));
+      }
+      return ~indexPointer;
+    } else {
+      return relocation.translate(pointer);
+    }
+  }
+
   @Override
   public IBlockAllocator getBlocks() {
     return m_blocks;
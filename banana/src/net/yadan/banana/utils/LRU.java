@@ -6,16 +6,32 @@
  */
 package net.yadan.banana.utils;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import net.yadan.banana.list.DoubleLinkedList;
 import net.yadan.banana.map.HashMap;
 import net.yadan.banana.map.IHashMap;
+import net.yadan.banana.memory.IBlockAllocator;
+import net.yadan.banana.memory.block.BigBlockAllocator;
+import net.yadan.banana.memory.block.BlockAllocator;
+import net.yadan.banana.memory.growth.BoundedGrowthPolicy;
+import net.yadan.banana.memory.growth.MemoryBudget;
+import net.yadan.banana.memory.malloc.ChainedAllocator;
+import net.yadan.banana.memory.malloc.TreeAllocator;
 
 
 /**
  * LRU (Least Recently Used) cache This cache supports various data types, see
  * {@link DataType}
+ *
+ * The LRU can be registered with a {@link MemoryBudget}. When the budget runs
+ * out it asks the LRU to release memory, and the next operation on the LRU
+ * evicts items accordingly, on the thread using the LRU. The evicted items
+ * lower a limit below the capacity, which keeps the LRU from taking the memory
+ * back right away. Once the LRU is full at that limit, it checks every so often
+ * whether the budget has room and raises the limit back towards the capacity.
  */
-public class LRU {
+public class LRU implements MemoryBudget.Evictable {
 
   /**
    * Specifies what kind of data this LRU should support:
@@ -50,6 +66,26 @@ public class LRU {
 
   private final int m_maxCapacity;
 
+  // capacity set by the user, at most m_maxCapacity
+  private int m_capacity;
+
+  // number of items kept, at most m_capacity. lowered by evictions
+  private int m_limit;
+
+  // limit the memory of the map and the list to the current limit, they only
+  // grow back after memory was released by compact()
+  private BoundedGrowthPolicy m_mapPolicy;
+  private BoundedGrowthPolicy m_listPolicy;
+
+  // bytes a memory budget asked to release, 0 if none
+  private final AtomicLong m_evictionRequest = new AtomicLong();
+
+  // the budget that last asked for an eviction, checked before raising m_limit
+  private volatile MemoryBudget m_budget;
+
+  // additions at the limit until the budget is checked again
+  private int m_regrowCountdown;
+
   private static int LIST_NODE_OFFSET = 0;
   private static int DATA_OFFSET = 1;
   private final DataType m_type;
@@ -66,12 +102,22 @@ public class LRU {
   public LRU(int maxCapacity, DataType type) {
     m_type = type;
     m_mapRecordSize = recordSize(type);
-    m_lruMap = new HashMap(maxCapacity + 1, m_mapRecordSize, 0, 1.0);
-    m_lruMap.setGrowthFactor(0);
     m_maxCapacity = maxCapacity;
+    m_capacity = maxCapacity;
+    m_limit = maxCapacity;
     m_listRecordSize = 2;
+    m_mapPolicy = new BoundedGrowthPolicy(2.0);
+    m_listPolicy = new BoundedGrowthPolicy(2.0);
+    updateGrowthLimits();
 
-    m_lruList = new DoubleLinkedList(maxCapacity + 1, m_listRecordSize, 0);
+    IBlockAllocator mapBlocks = createBlocks(maxCapacity + 1, HashMap.RESERVED_SIZE
+        + m_mapRecordSize, m_mapPolicy);
+    m_lruMap = new HashMap(new TreeAllocator(mapBlocks), maxCapacity + 1, 1.0);
+    m_lruMap.setGrowthFactor(0);
+
+    IBlockAllocator listBlocks = createBlocks(maxCapacity + 1, DoubleLinkedList.RESERVED_SIZE
+        + m_listRecordSize, m_listPolicy);
+    m_lruList = new DoubleLinkedList(new ChainedAllocator(listBlocks));
     if (m_type == DataType.OBJECT) {
       m_freeListRecordSize = 1;
       m_data = new Object[maxCapacity + 1];
@@ -181,6 +227,7 @@ public class LRU {
   }
 
   private void add(long id, Object data, long longdata, int intdata, Callback callback) {
+    evictRequested();
     int node = m_lruMap.findRecord(id);
     if (node != -1) {
       if (m_type == DataType.OBJECT) {
@@ -221,9 +268,19 @@ public class LRU {
       } else if (m_type == DataType.LONG) {
         m_lruMap.setLong(newNode, DATA_OFFSET, longdata);
       }
+
+      if (m_lruList.size() > m_limit && m_limit < m_capacity) {
+        regrow();
+      }
     }
 
-    while (m_lruList.size() > m_maxCapacity) {
+    evictOverflow(callback);
+
+    assert m_lruMap.size() == m_lruList.size() : "Inconsistent map and list sizes";
+  }
+
+  private void evictOverflow(Callback callback) {
+    while (m_lruList.size() > m_limit) {
       // remove least recently used
       long idd = m_lruList.getLong(m_lruList.getHead(), 0);
       m_lruList.removeHead();
@@ -245,8 +302,6 @@ public class LRU {
         callback.keyEvicted(evictedId, evictedData);
       }
     }
-
-    assert m_lruMap.size() == m_lruList.size() : "Inconsistent map and list sizes";
   }
 
   /**
@@ -258,6 +313,7 @@ public class LRU {
    */
   public void setInt(long key, int value) {
     assertDataType(DataType.INT);
+    evictRequested();
     int n = m_lruMap.findRecord(key);
     if (n != -1) {
       m_lruMap.setInt(n, DATA_OFFSET, value);
@@ -273,6 +329,7 @@ public class LRU {
    */
   public void setLong(long key, long value) {
     assertDataType(DataType.LONG);
+    evictRequested();
     int n = m_lruMap.findRecord(key);
     if (n != -1) {
       m_lruMap.setLong(n, DATA_OFFSET, value);
@@ -289,6 +346,7 @@ public class LRU {
    */
   public int getInt(long id) throws IllegalArgumentException {
     assertDataType(DataType.INT);
+    evictRequested();
     int node = m_lruMap.findRecord(id);
     if (node != -1) {
       return m_lruMap.getInt(node, DATA_OFFSET);
@@ -307,6 +365,7 @@ public class LRU {
    */
   public long getLong(long id) throws IllegalArgumentException {
     assertDataType(DataType.LONG);
+    evictRequested();
     int node = m_lruMap.findRecord(id);
     if (node != -1) {
       return m_lruMap.getLong(node, DATA_OFFSET);
@@ -324,6 +383,7 @@ public class LRU {
    */
   public Object get(long id) {
     assertDataType(DataType.OBJECT);
+    evictRequested();
     int node = m_lruMap.findRecord(id);
     if (node != -1) {
       int index = m_lruMap.getInt(node, DATA_OFFSET);
@@ -344,6 +404,7 @@ public class LRU {
    * @return true if the id exists in the LRU
    */
   public boolean exists(long id) {
+    evictRequested();
     return m_lruMap.containsKey(id);
   }
 
@@ -382,11 +443,146 @@ public class LRU {
     data = " with int data support";
       break;
     }
-    return "LRU : " + size() + "/" + m_maxCapacity + data;
+    return "LRU : " + size() + "/" + m_capacity + data;
   }
 
   public int capacity() {
-    return m_maxCapacity;
+    return m_capacity;
+  }
+
+  /**
+   * Changes the capacity of this LRU, up to the capacity it was created with.
+   * Lowering the capacity evicts the least recently used items without
+   * notifying a callback, and releases their memory. Also lifts the limit set
+   * by {@link #evict(long)}.
+   *
+   * @param capacity new capacity
+   */
+  public void setCapacity(int capacity) {
+    if (capacity < 0 || capacity > m_maxCapacity)
+      throw new IllegalArgumentException("capacity " + capacity + " not in [0," + m_maxCapacity
+          + "]");
+    m_capacity = capacity;
+    setLimit(capacity);
+  }
+
+  /**
+   * @return number of items the LRU keeps, lower than the capacity after
+   *         evictions until memory is available again
+   */
+  public int limit() {
+    return m_limit;
+  }
+
+  private void setLimit(int limit) {
+    m_limit = limit;
+    evictOverflow(null);
+    updateGrowthLimits();
+    compact();
+  }
+
+  /**
+   * Asks the LRU to release bytes on its next operation, see
+   * {@link #evict(long)}. Can be called from any thread.
+   */
+  @Override
+  public void requestEviction(MemoryBudget budget, long bytes) {
+    m_budget = budget;
+    while (true) {
+      long requested = m_evictionRequest.get();
+      if (bytes <= requested || m_evictionRequest.compareAndSet(requested, bytes)) {
+        return;
+      }
+    }
+  }
+
+  private void evictRequested() {
+    if (m_evictionRequest.get() != 0) {
+      evict(m_evictionRequest.getAndSet(0));
+    }
+  }
+
+  /**
+   * Evicts the least recently used items, without notifying a callback, and
+   * releases their memory. At least an eighth of the items is evicted, so the
+   * compaction that releases the memory is amortized over many items. The
+   * limit is lowered to the remaining items and raised back once the budget
+   * that requested the eviction has room, or by {@link #setCapacity(int)}.
+   *
+   * @return number of bytes released
+   */
+  public long evict(long bytes) {
+    long items = (bytes + itemSize() - 1) / itemSize();
+    long size = size();
+    items = Math.max(items, (size + 7) / 8);
+    long before = computeMemoryUsage();
+    setLimit((int) Math.max(0, Math.min(m_limit, size) - items));
+    return before - computeMemoryUsage();
+  }
+
+  /**
+   * Raises the limit by an eighth if the budget has room for the items. Called
+   * when an addition goes over the limit, the budget is only checked once
+   * every eighth of the limit such additions.
+   */
+  private void regrow() {
+    MemoryBudget budget = m_budget;
+    if (budget == null || --m_regrowCountdown > 0) {
+      return;
+    }
+    int step = Math.max(1, m_limit / 8);
+    m_regrowCountdown = step;
+    int items = Math.min(step, m_capacity - m_limit);
+    if (budget.hasRoom(items * itemSize())) {
+      m_limit += items;
+      updateGrowthLimits();
+    }
+  }
+
+  private long itemSize() {
+    return 4L * (HashMap.RESERVED_SIZE + m_mapRecordSize + DoubleLinkedList.RESERVED_SIZE
+        + m_listRecordSize);
+  }
+
+  /**
+   * @return the number of bytes this LRU is using
+   */
+  @Override
+  public long computeMemoryUsage() {
+    long ret = m_lruMap.computeMemoryUsage() + m_lruList.computeMemoryUsage();
+    if (m_type == DataType.OBJECT) {
+      ret += 8L * m_data.length + m_freeList.computeMemoryUsage();
+    }
+    return ret;
+  }
+
+  private void compact() {
+    m_lruMap.compact();
+    m_lruList.compact();
+    // list links were moved, point the map records to their new location
+    for (int n = m_lruList.getHead(); n != -1; n = m_lruList.getNext(n)) {
+      int node = m_lruMap.findRecord(m_lruList.getLong(n, 0));
+      m_lruMap.setInt(node, LIST_NODE_OFFSET, n);
+    }
+  }
+
+  private void updateGrowthLimits() {
+    // limit + 1 items while adding, and the reserved block
+    long blocks = m_limit + 2L;
+    m_mapPolicy.setMaxBytes(4 * blocks * (HashMap.RESERVED_SIZE + m_mapRecordSize));
+    m_listPolicy.setMaxBytes(4 * blocks * (DoubleLinkedList.RESERVED_SIZE + m_listRecordSize));
+  }
+
+  private static IBlockAllocator createBlocks(int maxBlocks, int blockSize,
+      BoundedGrowthPolicy policy) {
+    if ((long) maxBlocks * blockSize > Integer.MAX_VALUE) {
+      BigBlockAllocator blocks = new BigBlockAllocator(maxBlocks, blockSize, 0);
+      blocks.setGrowthPolicy(policy);
+      return blocks;
+    }
+    BlockAllocator blocks = new BlockAllocator(maxBlocks, blockSize, 0);
+    blocks.setGrowthPolicy(policy);
+    return blocks;
   }
 
   public interface Callback {
@@ -12,6 +12,7 @@ import net.yadan.banana.map.VarKeyHashMap;
 import net.yadan.banana.memory.Buffer;
 import net.yadan.banana.memory.IBuffer;
 import net.yadan.banana.memory.IMemAllocator;
+import net.yadan.banana.memory.malloc.ArenaAllocator;
 import net.yadan.banana.memory.malloc.MultiSizeAllocator;
 import net.yadan.banana.memory.malloc.TreeAllocator;
 
@@ -24,6 +25,8 @@ public class TextIndex {
   public static final int DOC_LIST_ALLOCATION_SIZE_OFFSET = 0;
   public static final int DOC_LIST_SIZE_OFFSET = 1;
   private static final int DOC_LIST_DATA_OFFSET = 2;
+  private static final int DOCUMENT_WORDS_CAPACITY = 1024;
+  private static final int DOCUMENT_MEMORY_CHUNK_SIZE = 4096;
   // private static double DOC_LIST_GROWTH_FACTOR = 1.2;
 
   private int MAX_WORD_LENGTH = 30;
@@ -36,7 +39,11 @@ public class TextIndex {
   IBuffer m_keyBuffer;
   private IVarKeyHashMap m_word2DocList;
   private IVarKeyHashMap m_currentDocumentWords; // TODO: should be a Set
+  // holds the keys and records of m_currentDocumentWords, reset per document
+  private ArenaAllocator m_currentDocumentMemory;
   private IVarKeyHashMap m_stopWords; // TODO: should be a Set
+  // keys are stored as UTF-8 instead of two chars per int
+  private boolean m_utf8Keys;
 
   // stats
   private long m_numDocumentsIndexed = 0;
@@ -44,6 +51,15 @@ public class TextIndex {
   private long m_totalIndexedTextSize = 0;
 
   public TextIndex(int initialWordsCapacity, int maxWordLength) {
+    this(initialWordsCapacity, maxWordLength, false);
+  }
+
+  /**
+   * @param utf8Keys if true, words are stored as UTF-8 bytes packed four per
+   *          int, which takes about half the memory for mostly ASCII text
+   */
+  public TextIndex(int initialWordsCapacity, int maxWordLength, boolean utf8Keys) {
+    m_utf8Keys = utf8Keys;
     m_wordBuf = new char[MAX_WORD_LENGTH];
     m_wordLength = 0;
     m_textOffset = 0;
@@ -52,12 +68,15 @@ public class TextIndex {
     IMemAllocator keys = new MultiSizeAllocator(1024, new int[] { 1, 2, 4, 8, 16, 32 }, 1.5);
     m_word2DocList = new VarKeyHashMap(docListsMemory, keys, initialWordsCapacity, 0.75);
     m_keyBuffer = new Buffer(50);
-    m_currentDocumentWords = new VarKeyHashMap(docListsMemory, keys, initialWordsCapacity, 0.75);
+    m_currentDocumentMemory = new ArenaAllocator(4, DOCUMENT_MEMORY_CHUNK_SIZE, 2.0);
+    m_currentDocumentWords = new VarKeyHashMap(m_currentDocumentMemory, m_currentDocumentMemory,
+        DOCUMENT_WORDS_CAPACITY, 0.75);
     m_stopWords = new VarKeyHashMap(docListsMemory, keys, 100, 0.75);
   }
 
   public int index(int documentId, String text, char seps[]) {
-    m_currentDocumentWords.clear();
+    m_currentDocumentWords.reset();
+    m_currentDocumentMemory.reset();
     m_numDocumentsIndexed++;
     m_totalIndexedTextSize += text.length();
     int length = text.length();
@@ -70,9 +89,7 @@ public class TextIndex {
         try {
           numWords++;
           m_numWordsTokenized++;
-          m_keyBuffer.reset();
-          // m_keyBuffer.appendInt(m_wordLength);
-          m_keyBuffer.appendChars(m_wordBuf, 0, m_wordLength);
+          setKey(m_wordBuf, m_wordLength);
 
           if (m_stopWords.containsKey(m_keyBuffer)) {
             continue;
@@ -123,9 +140,8 @@ public class TextIndex {
 //  int EMPTY[] = new int[0];
 
   public int[] find(String word) {
-    m_keyBuffer.reset();
-    // m_keyBuffer.appendInt(word.length());
-    m_keyBuffer.appendChars(word.toLowerCase().toCharArray());
+    char chars[] = word.toLowerCase().toCharArray();
+    setKey(chars, chars.length);
     int docListRecord = m_word2DocList.findRecord(m_keyBuffer);
     if (docListRecord == -1) {
       return new int[0];
@@ -142,6 +158,22 @@ public class TextIndex {
     return m_word2DocList.size();
   }
 
+  private void setKey(char word[], int length) {
+    m_keyBuffer.reset();
+    if (m_utf8Keys) {
+      m_keyBuffer.appendUtf8(word, 0, length);
+    } else {
+      m_keyBuffer.appendChars(word, 0, length);
+    }
+  }
+
+  /**
+   * @return true if words are stored as UTF-8
+   */
+  public boolean isUtf8Keys() {
+    return m_utf8Keys;
+  }
+
   private void nextWord(char line[], int length, char[] seps) {
     m_wordLength = 0;
     while (m_textOffset < length) {
@@ -195,8 +227,8 @@ public class TextIndex {
   }
 
   public void addStopWord(String word) {
-    m_keyBuffer.reset();
-    m_keyBuffer.appendChars(word.toLowerCase().toCharArray());
+    char chars[] = word.toLowerCase().toCharArray();
+    setKey(chars, chars.length);
     m_stopWords.createRecord(m_keyBuffer, 0);
   }
 
@@ -8,7 +8,8 @@ import org.junit.runners.Suite.SuiteClasses;
 @RunWith(Suite.class)
 @SuiteClasses({
   LinkedListTest.class,
-  DoubleLinkedListTest.class
+  DoubleLinkedListTest.class,
+  LongLinkedListTest.class
 })
 //@formatter:on
 public class AllTests {
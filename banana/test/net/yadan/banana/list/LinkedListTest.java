@@ -2,6 +2,7 @@ package net.yadan.banana.list;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import net.yadan.banana.memory.Buffer;
 import net.yadan.banana.memory.IBuffer;
@@ -273,4 +274,56 @@ public class LinkedListTest {
     assertEquals(0, list.size());
     assertEquals(0, list.getAllocator().usedBlocks());
   }
+
+  @Test
+  public void testCompact() {
+    ILinkedList list = createList(10, 3, 2.0);
+    testCompact(list, new int[] { 3 });
+  }
+
+  @Test
+  public void testCompactMultiSize() {
+    ILinkedList list = createList(10, new int[] { 2, 4 }, 2.0);
+    testCompact(list, new int[] { 2, 4 });
+  }
+
+  private void testCompact(ILinkedList list, int sizes[]) {
+    int links[] = new int[100];
+    for (int i = 0; i < links.length; i++) {
+      links[i] = list.appendTail(sizes[i % sizes.length]);
+      list.setInt(links[i], 0, i);
+    }
+    for (int i = 0; i < links.length; i++) {
+      if (i % 4 != 0) {
+        list.remove(links[i]);
+      }
+    }
+
+    int maxBlocks = list.getAllocator().maxBlocks();
+    list.compact();
+    assertEquals(25, list.size());
+    assertTrue(list.getAllocator().maxBlocks() < maxBlocks);
+
+    int n = list.getHead();
+    for (int i = 0; i < links.length; i += 4) {
+      assertEquals(i, list.getInt(n, 0));
+      if (i + 4 >= links.length) {
+        assertEquals(n, list.getTail());
+      }
+      n = list.getNext(n);
+    }
+    assertEquals(-1, n);
+
+    // list is still usable after compaction
+    int head = list.insertHead(sizes[0]);
+    list.setInt(head, 0, -1);
+    int tail = list.appendTail(sizes[0]);
+    list.setInt(tail, 0, -2);
+    assertEquals(27, list.size());
+    assertEquals(-1, list.getInt(list.getHead(), 0));
+    assertEquals(-2, list.getInt(list.getTail(), 0));
+
+    list.clear();
+    assertEquals(0, list.getAllocator().usedBlocks());
+  }
 }
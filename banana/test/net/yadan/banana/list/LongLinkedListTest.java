@@ -0,0 +1,88 @@
+package net.yadan.banana.list;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LongLinkedListTest {
+
+  @Test
+  public void testInsertHead() {
+    LongLinkedList list = new LongLinkedList(2, 2, 0);
+    assertEquals(-1, list.getHead());
+    long link = list.insertHead(2);
+    list.setLong(link, 0, Long.MAX_VALUE);
+    assertEquals(link, list.getHead());
+    assertEquals(link, list.getTail());
+    assertEquals(Long.MAX_VALUE, list.getLong(link, 0));
+    assertEquals(1, list.size());
+  }
+
+  @Test
+  public void testAppendTailAndRemoveHead() {
+    LongLinkedList list = new LongLinkedList(10, 1, 0);
+    for (int i = 0; i < 5; i++) {
+      long link = list.appendTail(1);
+      list.setInt(link, 0, i);
+    }
+    assertEquals(5, list.size());
+    int i = 0;
+    for (long n = list.getHead(); n != -1; n = list.getNext(n)) {
+      assertEquals(i++, list.getInt(n, 0));
+    }
+    assertEquals(4, list.getInt(list.getTail(), 0));
+
+    list.removeHead();
+    assertEquals(1, list.getInt(list.getHead(), 0));
+    while (!list.isEmpty()) {
+      list.removeHead();
+    }
+    assertEquals(-1, list.getHead());
+    assertEquals(-1, list.getTail());
+    assertEquals(0, list.getAllocator().usedBlocks());
+  }
+
+  @Test
+  public void testInsertAndRemove() {
+    LongLinkedList list = new LongLinkedList(10, 1, 0);
+    long l1 = list.insert(1, -1);
+    list.setInt(l1, 0, 1);
+    long l3 = list.insert(1, l1);
+    list.setInt(l3, 0, 3);
+    long l2 = list.insert(1, l1);
+    list.setInt(l2, 0, 2);
+    assertEquals(l1, list.getHead());
+    assertEquals(l2, list.getNext(l1));
+    assertEquals(l3, list.getNext(l2));
+    assertEquals(l3, list.getTail());
+
+    list.remove(l3);
+    assertEquals(l2, list.getTail());
+    assertEquals(-1, list.getNext(l2));
+    list.remove(l1);
+    assertEquals(l2, list.getHead());
+    list.remove(l2);
+    assertTrue(list.isEmpty());
+    assertEquals(-1, list.getTail());
+  }
+
+  @Test
+  public void testMultiBlockLinks() {
+    LongLinkedList list = new LongLinkedList(10, 2, 2.0);
+    long link = list.appendTail(10);
+    assertTrue(list.maximumCapacityFor(link) >= 10);
+    int data[] = new int[10];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = i + 1;
+    }
+    list.setInts(link, 0, data, 0, 10);
+    int res[] = new int[10];
+    list.getInts(link, 0, res, 0, 10);
+    for (int i = 0; i < data.length; i++) {
+      assertEquals(data[i], res[i]);
+    }
+    list.clear();
+    assertEquals(0, list.getAllocator().usedBlocks());
+  }
+}
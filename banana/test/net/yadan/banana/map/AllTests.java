@@ -8,7 +8,12 @@ import org.junit.runners.Suite.SuiteClasses;
 @RunWith(Suite.class)
 @SuiteClasses({
   HashMapTest.class,
+  HashStrategyTest.class,
+  OpenHashMapTest.class,
+  StripedHashMapTest.class,
+  SingleWriterHashMapTest.class,
   VarKeyHashMapTest.class,
+  LongHashMapTest.class,
 })
 //@formatter:on
 public class AllTests {
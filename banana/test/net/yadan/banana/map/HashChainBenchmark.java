@@ -0,0 +1,94 @@
+package net.yadan.banana.map;
+
+import java.util.Random;
+
+import net.yadan.banana.map.hash.MurmurHashStrategy;
+import net.yadan.banana.map.hash.SimpleHashStrategy;
+
+/**
+ * Compares hash strategies and table indexing on key patterns that tend to
+ * cluster: prints the chain length distribution of the final table and the
+ * time to insert and look up all the keys.
+ */
+public class HashChainBenchmark {
+
+  private static final int NUM_KEYS = 1000000;
+
+  public static void main(String[] args) {
+    Random rand = new Random(0);
+    long random[] = new long[NUM_KEYS];
+    for (int i = 0; i < NUM_KEYS; i++) {
+      random[i] = rand.nextLong();
+    }
+
+    // @formatter:off
+    Object patterns[][] = {
+        { "sequential", keys(1) },
+        { "stride 16", keys(16) },
+        { "stride 1024", keys(1024) },
+        { "stride 2^32", keys(1L << 32) },
+        { "random", random },
+    };
+    // @formatter:on
+
+    for (Object pattern[] : patterns) {
+      long keys[] = (long[]) pattern[1];
+      System.out.println(pattern[0] + ":");
+      run("  simple, modulo ", new SimpleHashStrategy(), false, keys);
+      run("  simple, pow2   ", new SimpleHashStrategy(), true, keys);
+      run("  murmur, modulo ", new MurmurHashStrategy(), false, keys);
+      run("  murmur, pow2   ", new MurmurHashStrategy(), true, keys);
+    }
+  }
+
+  private static long[] keys(long stride) {
+    long keys[] = new long[NUM_KEYS];
+    for (int i = 0; i < NUM_KEYS; i++) {
+      keys[i] = i * stride;
+    }
+    return keys;
+  }
+
+  private static void run(String name, LongHashStrategy strategy, boolean powerOfTwo, long keys[]) {
+    System.gc();
+    long t = System.currentTimeMillis();
+    HashMap map = new HashMap(NUM_KEYS, 1, 2.0, 0.75);
+    map.setHashStrategy(strategy);
+    map.setPowerOfTwoCapacity(powerOfTwo);
+    for (long key : keys) {
+      map.createRecord(key, 1);
+    }
+    for (long key : keys) {
+      if (map.findRecord(key) == -1) {
+        throw new IllegalStateException("Missing key " + key);
+      }
+    }
+    long e = System.currentTimeMillis() - t;
+
+    // replay the keys into the buckets of the final table
+    int capacity = map.getCapacity();
+    int chains[] = new int[capacity];
+    for (long key : keys) {
+      int h = strategy.hash(key);
+      chains[powerOfTwo ? h & (capacity - 1) : (h & Integer.MAX_VALUE) % capacity]++;
+    }
+
+    int histogram[] = new int[9];
+    int max = 0;
+    long probes = 0;
+    for (int c : chains) {
+      histogram[Math.min(c, histogram.length - 1)]++;
+      max = Math.max(max, c);
+      probes += (long) c * (c + 1) / 2;
+    }
+
+    StringBuilder s = new StringBuilder();
+    for (int i = 0; i < histogram.length; i++) {
+      s.append(i == histogram.length - 1 ? " " + i + "+:" : " " + i + ":");
+      s.append(String.format("%.1f%%", 100.0 * histogram[i] / capacity));
+    }
+    System.out.println(String.format(
+        "%s capacity %d, max chain %d, avg probes %.2f, %d ms, chains%s", name, capacity, max,
+        probes / (double) keys.length, e, s));
+  }
+}
@@ -3,9 +3,13 @@ package net.yadan.banana.map;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import net.yadan.banana.DebugLevel;
+import net.yadan.banana.map.hash.SimpleHashStrategy;
 import net.yadan.banana.memory.IMemAllocator;
+import net.yadan.banana.memory.growth.BoundedGrowthPolicy;
 import net.yadan.banana.memory.initializers.MemSetInitializer;
+import net.yadan.banana.memory.malloc.ArenaAllocator;
 import net.yadan.banana.memory.malloc.ChainedAllocator;
 
 import org.junit.Test;
@@ -214,4 +218,188 @@ public class HashMapTest {
     int r = h.createRecord(1000, size);
     h.setInts(r, 0, new int[size], 0, size);
   }
+
+  @Test
+  public void testCompact() {
+    IHashMap h = create(10, 1.0);
+    for (int i = 1; i <= 1000; i++) {
+      // every 7th record spans multiple blocks
+      int size = i % 7 == 0 ? BLOCK_SIZE * 3 : BLOCK_SIZE;
+      int r = h.createRecord(i, size);
+      h.setLong(r, 0, i * 3);
+      h.setLong(r, size - 2, -i);
+    }
+    for (int i = 1; i <= 1000; i++) {
+      if (i % 10 != 0) {
+        h.remove(i);
+      }
+    }
+
+    long before = h.computeMemoryUsage();
+    h.compact();
+    assertTrue(h.computeMemoryUsage() < before);
+    assertEquals(100, h.size());
+
+    for (int i = 1; i <= 1000; i++) {
+      int r = h.findRecord(i);
+      if (i % 10 == 0) {
+        int size = i % 7 == 0 ? BLOCK_SIZE * 3 : BLOCK_SIZE;
+        assertEquals(i * 3, h.getLong(r, 0));
+        assertEquals(-i, h.getLong(r, size - 2));
+      } else {
+        assertEquals(-1, r);
+      }
+    }
+
+    // map is still usable after compaction
+    for (int i = 1; i <= 1000; i++) {
+      if (i % 10 != 0) {
+        h.setLong(h.createRecord(i, BLOCK_SIZE), 0, i * 3);
+      }
+    }
+    for (int i = 1; i <= 1000; i++) {
+      assertEquals(i * 3, h.getLong(h.findRecord(i), 0));
+    }
+  }
+
+  @Test
+  public void testReset() {
+    ArenaAllocator arena = new ArenaAllocator(1, 64, 2.0);
+    IHashMap h = new HashMap(arena, 10, 0.75);
+    for (int i = 0; i < 100; i++) {
+      h.setLong(h.createRecord(i, 2), 0, i * 3);
+    }
+    h.reset();
+    arena.reset();
+    assertEquals(0, h.size());
+    assertEquals(0, arena.usedBlocks());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(-1, h.findRecord(i));
+    }
+    h.setLong(h.createRecord(7, 2), 0, 21);
+    assertEquals(21, h.getLong(h.findRecord(7), 0));
+  }
+
+  @Test
+  public void testGrowthPolicy() {
+    HashMap h = (HashMap) create(4, 1.0);
+    h.setGrowthFactor(0);
+    BoundedGrowthPolicy policy = new BoundedGrowthPolicy(2.0);
+    policy.setMaxBytes(4 * 8);
+    h.setGrowthPolicy(policy);
+
+    for (int i = 0; i < 40; i++) {
+      h.createRecord(i, BLOCK_SIZE);
+      h.setInt(h.findRecord(i), 0, i);
+    }
+    // the table stops growing at the cap, records are still added
+    assertEquals(8, h.getCapacity());
+    assertEquals(40, h.size());
+    for (int i = 0; i < 40; i++) {
+      assertEquals(i, h.getInt(h.findRecord(i), 0));
+    }
+    h.clear();
+  }
+
+  @Test
+  public void testPowerOfTwoGrowthPolicy() {
+    HashMap h = new HashMap(new ChainedAllocator(100, HashMap.RESERVED_SIZE + BLOCK_SIZE, 2.0),
+        16, 0.75);
+    h.setPowerOfTwoCapacity(true);
+    BoundedGrowthPolicy policy = new BoundedGrowthPolicy(2.0);
+    policy.setMaxBytes(4 * 300);
+    h.setGrowthPolicy(policy);
+
+    for (int i = 0; i < 1000; i++) {
+      h.setInt(h.createRecord(i, BLOCK_SIZE), 0, i);
+      assertTrue(4L * h.getCapacity() <= policy.getMaxBytes());
+      assertEquals(1, Integer.bitCount(h.getCapacity()));
+    }
+    // 512 buckets would exceed the cap, the table stops at 256
+    assertEquals(256, h.getCapacity());
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(i, h.getInt(h.findRecord(i), 0));
+    }
+    h.clear();
+  }
+
+  @Test
+  public void testIncrementalResize() {
+    HashMap h = new HashMap(new ChainedAllocator(100, HashMap.RESERVED_SIZE + BLOCK_SIZE, 2.0),
+        16, 0.75);
+    h.setDebug(DebugLevel.DEBUG_STRUCTURE);
+    h.setIncrementalResize(1);
+    for (int i = 0; i < 13; i++) {
+      h.setInt(h.createRecord(i, BLOCK_SIZE), 0, i);
+    }
+    // the 13th record started the resize, one update only moves a few buckets
+    assertTrue(h.isResizing());
+    assertEquals(32, h.getCapacity());
+    assertTrue(h.toString().contains("old table"));
+    for (int i = 0; i < 13; i++) {
+      assertEquals(i, h.getInt(h.findRecord(i), 0));
+    }
+
+    for (int i = 13; i < 500; i++) {
+      h.setInt(h.createRecord(i, BLOCK_SIZE), 0, i);
+      if (i % 3 == 0) {
+        assertTrue(h.remove(i / 3));
+        assertFalse(h.remove(i / 3));
+        h.setInt(h.reallocRecord(i / 3 + 1, BLOCK_SIZE * 2), BLOCK_SIZE, i);
+      }
+      assertEquals(i, h.getInt(h.findRecord(i), 0));
+    }
+
+    final int count[] = new int[1];
+    h.visitRecords(new HashMapVisitorAdapter() {
+      @Override
+      public void visit(IHashMap map, long key, int record_id, long num, long total) {
+        assertEquals(key, map.getInt(record_id, 0));
+        count[0]++;
+      }
+    });
+    assertEquals(h.size(), count[0]);
+    for (int i = 0; i < 500; i++) {
+      boolean removed = i >= 15 / 3 && i <= 498 / 3;
+      assertEquals(!removed, h.containsKey(i));
+    }
+
+    h.clear();
+    assertFalse(h.isResizing());
+    assertEquals(0, h.size());
+    assertEquals(-1, h.findRecord(400));
+  }
+
+  @Test
+  public void testPowerOfTwoCapacity() {
+    HashMap h = new HashMap(new ChainedAllocator(100, HashMap.RESERVED_SIZE + BLOCK_SIZE, 2.0),
+        10, 0.75);
+    h.setPowerOfTwoCapacity(true);
+    assertEquals(16, h.getCapacity());
+    for (int i = 0; i < 1000; i++) {
+      h.setInt(h.createRecord(i * 1024L, BLOCK_SIZE), 0, i);
+      assertEquals(1, Integer.bitCount(h.getCapacity()));
+    }
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(i, h.getInt(h.findRecord(i * 1024L), 0));
+    }
+    assertEquals(-1, h.findRecord(1));
+
+    try {
+      h.setHashStrategy(new SimpleHashStrategy());
+      fail("Changed hash strategy of a non empty map");
+    } catch (IllegalStateException e) {
+    }
+
+    h.clear();
+    h.setPowerOfTwoCapacity(false);
+    h.setHashStrategy(new SimpleHashStrategy());
+    for (int i = 0; i < 1000; i++) {
+      h.setInt(h.createRecord(-i, BLOCK_SIZE), 0, i);
+    }
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(i, h.getInt(h.findRecord(-i), 0));
+    }
+    h.clear();
+  }
 }
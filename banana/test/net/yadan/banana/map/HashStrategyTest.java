@@ -0,0 +1,62 @@
+package net.yadan.banana.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import net.yadan.banana.map.hash.MurmurHashStrategy;
+import net.yadan.banana.map.hash.SimpleHashStrategy;
+import net.yadan.banana.memory.Buffer;
+import net.yadan.banana.memory.IBuffer;
+
+import org.junit.Test;
+
+public class HashStrategyTest {
+
+  private static int maxBucket(LongHashStrategy strategy, long stride, int buckets) {
+    int counts[] = new int[buckets];
+    int max = 0;
+    for (long i = 0; i < buckets; i++) {
+      int b = strategy.hash(i * stride) & (buckets - 1);
+      max = Math.max(max, ++counts[b]);
+    }
+    return max;
+  }
+
+  @Test
+  public void testStridedKeysSpread() {
+    MurmurHashStrategy murmur = new MurmurHashStrategy();
+    long strides[] = { 1, 2, 1024, 1L << 32, 1L << 40 };
+    for (long stride : strides) {
+      assertTrue("stride " + stride, maxBucket(murmur, stride, 1024) <= 10);
+    }
+  }
+
+  @Test
+  public void testSimpleClusters() {
+    // keys sharing their low bits all land in the same power of two bucket
+    assertEquals(1024, maxBucket(new SimpleHashStrategy(), 1024, 1024));
+    assertEquals(1, maxBucket(new SimpleHashStrategy(), 1, 1024));
+  }
+
+  @Test
+  public void testEqualBuffersHashEqually() {
+    BufferHashStrategy strategies[] = { new MurmurHashStrategy(), new SimpleHashStrategy() };
+    for (BufferHashStrategy strategy : strategies) {
+      IBuffer b1 = new Buffer(6);
+      IBuffer b2 = new Buffer(40);
+      b1.appendChars("hello world".toCharArray());
+      b2.appendChars("hello world".toCharArray());
+      assertEquals(strategy.hash(b1), strategy.hash(b2));
+    }
+  }
+
+  @Test
+  public void testBufferHashDependsOnSize() {
+    MurmurHashStrategy murmur = new MurmurHashStrategy();
+    IBuffer b1 = new Buffer(4);
+    IBuffer b2 = new Buffer(4);
+    b1.appendInt(0);
+    b2.appendInt(0);
+    b2.appendInt(0);
+    assertTrue(murmur.hash(b1) != murmur.hash(b2));
+  }
+}
@@ -0,0 +1,108 @@
+package net.yadan.banana.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LongHashMapTest {
+
+  private static final int BLOCK_SIZE = 4;
+
+  private LongHashMap create(int initialCapacity, double loadFactor) {
+    return new LongHashMap(100, BLOCK_SIZE, 2.0, initialCapacity, loadFactor);
+  }
+
+  @Test
+  public void testCreateFind() {
+    LongHashMap h = create(10, 0.75);
+    for (long i = 0; i < 100; i++) {
+      long key = i * 0x100000001L - 50;
+      long r = h.createRecord(key, BLOCK_SIZE);
+      h.setLong(r, 0, key);
+      h.setInt(r, 2, (int) i);
+    }
+    assertEquals(100, h.size());
+    assertTrue(h.getCapacity() > 10);
+    for (long i = 0; i < 100; i++) {
+      long key = i * 0x100000001L - 50;
+      long r = h.findRecord(key);
+      assertTrue(r != -1);
+      assertEquals(key, h.getLong(r, 0));
+      assertEquals(i, h.getInt(r, 2));
+    }
+    assertFalse(h.containsKey(-51));
+  }
+
+  @Test
+  public void testReplace() {
+    LongHashMap h = create(10, 0.75);
+    long r = h.createRecord(5, BLOCK_SIZE);
+    h.setInt(r, 0, 42);
+    r = h.createRecord(5, BLOCK_SIZE);
+    assertEquals(1, h.size());
+    // record data is reset
+    assertEquals(0, h.getInt(r, 0));
+    assertEquals(r, h.findRecord(5));
+  }
+
+  @Test
+  public void testRemove() {
+    LongHashMap h = create(3, 1.0);
+    h.setGrowthFactor(0);
+    for (int i = 0; i < 10; i++) {
+      h.createRecord(i, BLOCK_SIZE);
+    }
+    assertEquals(3, h.getCapacity());
+    assertTrue(h.remove(3));
+    assertFalse(h.remove(3));
+    assertEquals(9, h.size());
+    assertFalse(h.containsKey(3));
+    for (int i = 0; i < 10; i++) {
+      assertEquals(i != 3, h.containsKey(i));
+    }
+    h.clear();
+    assertTrue(h.isEmpty());
+    assertEquals(0, h.getAllocator().usedBlocks());
+  }
+
+  @Test
+  public void testReallocRecord() {
+    LongHashMap h = create(10, 0.75);
+    long r = h.createRecord(1, 2);
+    h.setInt(r, 1, 7);
+    long r2 = h.reallocRecord(1, 20);
+    assertTrue(h.maximumCapacityFor(r2) >= 20);
+    assertEquals(7, h.getInt(r2, 1));
+    h.setInt(r2, 19, 8);
+    assertEquals(r2, h.findRecord(1));
+    assertEquals(8, h.getInt(h.findRecord(1), 19));
+    assertEquals(-1, h.reallocRecord(2, 20));
+  }
+
+  @Test
+  public void testVisitRecords() {
+    LongHashMap h = create(10, 0.75);
+    for (int i = 0; i < 20; i++) {
+      h.createRecord(i, BLOCK_SIZE);
+    }
+    final long sum[] = new long[1];
+    h.visitRecords(new LongHashMapVisitor() {
+      @Override
+      public void begin(LongHashMap map) {
+      }
+
+      @Override
+      public void visit(LongHashMap map, long key, long record_id, long num, long total) {
+        assertEquals(20, total);
+        sum[0] += key;
+      }
+
+      @Override
+      public void end(LongHashMap map) {
+      }
+    });
+    assertEquals(190, sum[0]);
+  }
+}
@@ -0,0 +1,126 @@
+package net.yadan.banana.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import net.yadan.banana.DebugLevel;
+import net.yadan.banana.memory.IMemAllocator;
+import net.yadan.banana.memory.OutOfMemoryException;
+import net.yadan.banana.memory.growth.BoundedGrowthPolicy;
+import net.yadan.banana.memory.initializers.MemSetInitializer;
+import net.yadan.banana.memory.malloc.ArenaAllocator;
+import net.yadan.banana.memory.malloc.ChainedAllocator;
+
+import org.junit.Test;
+
+
+public class OpenHashMapTest extends HashMapTest {
+
+  private static final int BLOCK_SIZE = 10;
+
+  @Override
+  protected IHashMap create(int initialCapacity, double loadFactor) {
+    IMemAllocator allocator = new ChainedAllocator(100, BLOCK_SIZE, 2.0);
+    allocator.setDebug(true);
+    allocator.setInitializer(new MemSetInitializer(-1));
+    OpenHashMap map = new OpenHashMap(allocator, initialCapacity, loadFactor);
+    map.setDebug(DebugLevel.DEBUG_STRUCTURE);
+    return map;
+  }
+
+  @Override
+  @Test
+  public void testReset() {
+    ArenaAllocator arena = new ArenaAllocator(1, 64, 2.0);
+    IHashMap h = new OpenHashMap(arena, 10, 0.75);
+    for (int i = 0; i < 100; i++) {
+      h.setLong(h.createRecord(i, 2), 0, i * 3);
+    }
+    h.reset();
+    arena.reset();
+    assertEquals(0, h.size());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(-1, h.findRecord(i));
+    }
+    h.setLong(h.createRecord(7, 2), 0, 21);
+    assertEquals(21, h.getLong(h.findRecord(7), 0));
+  }
+
+  @Override
+  @Test
+  public void testGrowthPolicy() {
+    OpenHashMap h = (OpenHashMap) create(4, 1.0);
+    h.setGrowthFactor(0);
+    BoundedGrowthPolicy policy = new BoundedGrowthPolicy(2.0);
+    policy.setMaxBytes(12 * 8);
+    h.setGrowthPolicy(policy);
+
+    for (int i = 0; i < 7; i++) {
+      h.createRecord(i, BLOCK_SIZE);
+      h.setInt(h.findRecord(i), 0, i);
+    }
+    assertEquals(8, h.getCapacity());
+    try {
+      h.createRecord(7, BLOCK_SIZE);
+      fail();
+    } catch (OutOfMemoryException e) {
+    }
+    assertEquals(7, h.size());
+    for (int i = 0; i < 7; i++) {
+      assertEquals(i, h.getInt(h.findRecord(i), 0));
+    }
+    h.clear();
+  }
+
+  @Test
+  public void testFullWithoutGrowth() {
+    IHashMap h = create(5, 1.0);
+    h.setGrowthFactor(0);
+    for (int i = 0; i < 4; i++) {
+      h.createRecord(i, BLOCK_SIZE);
+    }
+    // existing keys can still be recreated
+    h.createRecord(3, BLOCK_SIZE);
+    try {
+      h.createRecord(4, BLOCK_SIZE);
+      fail();
+    } catch (OutOfMemoryException e) {
+    }
+    assertEquals(4, h.size());
+  }
+
+  @Test
+  public void testRandomInsertRemove() {
+    IHashMap h = create(16, 0.9);
+    java.util.HashMap<Long, Integer> expected = new java.util.HashMap<Long, Integer>();
+    Random r = new Random(0);
+    for (int i = 0; i < 20000; i++) {
+      // small key range, so that probe runs collide and wrap around
+      long key = r.nextInt(200) - 100;
+      if (r.nextBoolean()) {
+        h.setInt(h.createRecord(key, 1), 0, i);
+        expected.put(key, i);
+      } else {
+        assertEquals(expected.remove(key) != null, h.remove(key));
+      }
+      assertEquals(expected.size(), h.size());
+    }
+
+    for (long key = -100; key < 100; key++) {
+      int n = h.findRecord(key);
+      if (expected.containsKey(key)) {
+        assertTrue(n != -1);
+        assertEquals((int) expected.get(key), h.getInt(n, 0));
+      } else {
+        assertEquals(-1, n);
+      }
+    }
+    h.clear();
+    assertFalse(h.containsKey(0));
+    assertEquals(0, h.getAllocator().usedBlocks());
+  }
+}
@@ -0,0 +1,208 @@
+package net.yadan.banana.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.yadan.banana.DebugLevel;
+import net.yadan.banana.memory.Buffer;
+import net.yadan.banana.memory.IBuffer;
+import net.yadan.banana.memory.IMemAllocator;
+import net.yadan.banana.memory.initializers.MemSetInitializer;
+import net.yadan.banana.memory.malloc.ChainedAllocator;
+
+import org.junit.Test;
+
+
+public class SingleWriterHashMapTest extends HashMapTest {
+
+  private static final int BLOCK_SIZE = 10;
+
+  @Override
+  protected IHashMap create(int initialCapacity, double loadFactor) {
+    IMemAllocator allocator = new ChainedAllocator(100, HashMap.RESERVED_SIZE + BLOCK_SIZE, 2.0);
+    allocator.setDebug(true);
+    allocator.setInitializer(new MemSetInitializer(-1));
+    SingleWriterHashMap map = new SingleWriterHashMap(allocator, initialCapacity, loadFactor);
+    map.setDebug(DebugLevel.DEBUG_STRUCTURE);
+    return map;
+  }
+
+  @Test
+  public void testDeferredReclamation() {
+    SingleWriterHashMap h = (SingleWriterHashMap) create(10, 0.75);
+    IMemAllocator mem = h.getAllocator();
+    h.setLong(h.createRecord(1, BLOCK_SIZE), 0, 100);
+    h.setLong(h.createRecord(2, BLOCK_SIZE), 0, 200);
+
+    int reader = h.registerReader();
+    h.beginRead(reader);
+    int r1 = h.findRecord(1);
+    int r2 = h.findRecord(2);
+    assertTrue(h.remove(1));
+    assertTrue(h.reallocRecord(2, BLOCK_SIZE * 2) != r2);
+
+    // the reader still sees the records it found
+    assertEquals(100, h.getLong(r1, 0));
+    assertEquals(200, h.getLong(r2, 0));
+    assertEquals(2, h.retiredRecords());
+    assertEquals(-1, h.findRecord(1));
+    assertEquals(200, h.getLong(h.findRecord(2), 0));
+    h.endRead(reader);
+
+    h.reclaim();
+    assertEquals(0, h.retiredRecords());
+    assertEquals(1, h.size());
+
+    // records removed while no reader is reading are freed right away
+    h.remove(2);
+    assertEquals(0, h.retiredRecords());
+    assertEquals(0, mem.usedBlocks());
+    h.unregisterReader(reader);
+  }
+
+  @Test
+  public void testUnpinnedReader() throws InterruptedException {
+    final SingleWriterHashMap h = (SingleWriterHashMap) create(10, 0.75);
+    h.setLong(h.createRecord(1, BLOCK_SIZE), 0, 100);
+    final CountDownLatch found = new CountDownLatch(1);
+    final CountDownLatch replaced = new CountDownLatch(1);
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+    Thread reader = new Thread() {
+      @Override
+      public void run() {
+        int reader = h.registerReader();
+        try {
+          try {
+            h.findRecord(1);
+            fail("Looked up a record without a pin");
+          } catch (IllegalStateException e) {
+          }
+          assertTrue(h.containsKey(1));
+
+          h.beginRead(reader);
+          int r = h.findRecord(1);
+          found.countDown();
+          replaced.await();
+          // the block of the removed record was not reused for the new one
+          assertEquals(100, h.getLong(r, 0));
+          h.endRead(reader);
+        } catch (Throwable e) {
+          error.set(e);
+        } finally {
+          found.countDown();
+          h.unregisterReader(reader);
+        }
+      }
+    };
+    reader.start();
+
+    found.await();
+    assertTrue(h.remove(1));
+    h.setLong(h.createRecord(2, BLOCK_SIZE), 0, 200);
+    replaced.countDown();
+    reader.join();
+    if (error.get() != null) {
+      throw new AssertionError(error.get());
+    }
+
+    assertEquals(1, h.retiredRecords());
+    h.reclaim();
+    assertEquals(0, h.retiredRecords());
+    assertEquals(200, h.getLong(h.findRecord(2), 0));
+  }
+
+  @Test(timeout = 10000, expected = IllegalStateException.class)
+  public void testChainCycle() {
+    // a single chain, as a torn read could see it while the writer relinks it
+    SingleWriterHashMap h = (SingleWriterHashMap) create(1, 10);
+    int r = h.createRecord(1, BLOCK_SIZE);
+    h.getAllocator().setInt(r, 0, r);
+    h.findRecord(2);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testTooManyReaders() {
+    SingleWriterHashMap h = new SingleWriterHashMap(10, BLOCK_SIZE, 2.0, 0.75, 2);
+    h.registerReader();
+    h.registerReader();
+    h.registerReader();
+  }
+
+  @Test
+  public void testConcurrentReaders() throws InterruptedException {
+    final SingleWriterHashMap h = new SingleWriterHashMap(16, 4, 2.0, 0.75);
+    final int numKeys = 2000;
+    final AtomicBoolean done = new AtomicBoolean();
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+    Thread readers[] = new Thread[4];
+    for (int t = 0; t < readers.length; t++) {
+      readers[t] = new Thread() {
+        @Override
+        public void run() {
+          int reader = h.registerReader();
+          int data[] = new int[3];
+          byte bytes[] = new byte[4];
+          try {
+            long key = 0;
+            while (!done.get()) {
+              key = (key + 7) % numKeys;
+              h.beginRead(reader);
+              int r = h.findRecord(key);
+              if (r != -1) {
+                // every record holds its key, a value and its negation
+                h.getInts(r, 0, data, 0, data.length);
+                assertEquals(key, data[0]);
+                assertEquals(-data[1], data[2]);
+                // reads through the allocator cursors
+                h.getBytes(r, 0, bytes, 0, bytes.length);
+                assertEquals(key, (bytes[0] & 0xff) << 24 | (bytes[1] & 0xff) << 16
+                    | (bytes[2] & 0xff) << 8 | (bytes[3] & 0xff));
+              }
+              h.endRead(reader);
+            }
+          } catch (Throwable e) {
+            error.set(e);
+          } finally {
+            h.unregisterReader(reader);
+          }
+        }
+      };
+      readers[t].start();
+    }
+
+    IBuffer data = new Buffer(3);
+    for (int i = 0; i < 200000 && error.get() == null; i++) {
+      long key = (i * 31L) % numKeys;
+      data.reset();
+      data.appendInt((int) key);
+      data.appendInt(i);
+      data.appendInt(-i);
+      if (i % 5 == 4) {
+        h.remove(key);
+      } else if (h.findRecord(key) == -1) {
+        // a single update, readers never see the record empty
+        h.createRecord(key, data);
+      } else {
+        int r = h.reallocRecord(key, 3 + i % 3);
+        h.setInts(r, 0, data.array(), 0, data.size());
+      }
+    }
+    done.set(true);
+    for (Thread reader : readers) {
+      reader.join();
+    }
+
+    if (error.get() != null) {
+      throw new AssertionError(error.get());
+    }
+    h.reclaim();
+    assertEquals(0, h.retiredRecords());
+  }
+}
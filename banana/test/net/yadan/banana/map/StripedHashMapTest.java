@@ -0,0 +1,204 @@
+package net.yadan.banana.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+
+import net.yadan.banana.DebugLevel;
+import net.yadan.banana.memory.IMemAllocator;
+import net.yadan.banana.memory.initializers.MemSetInitializer;
+import net.yadan.banana.memory.malloc.ChainedAllocator;
+
+import org.junit.Test;
+
+
+public class StripedHashMapTest extends HashMapTest {
+
+  private static final int BLOCK_SIZE = 10;
+  private static final int NUM_STRIPES = 4;
+
+  @Override
+  protected IHashMap create(int initialCapacity, double loadFactor) {
+    IHashMap stripes[] = new IHashMap[NUM_STRIPES];
+    for (int i = 0; i < stripes.length; i++) {
+      IMemAllocator allocator = new ChainedAllocator(100, HashMap.RESERVED_SIZE + BLOCK_SIZE, 2.0);
+      allocator.setDebug(true);
+      allocator.setInitializer(new MemSetInitializer(-1));
+      stripes[i] = new HashMap(allocator, Math.max(1, initialCapacity / NUM_STRIPES), loadFactor);
+    }
+    StripedHashMap map = new StripedHashMap(stripes);
+    map.setDebug(DebugLevel.DEBUG_STRUCTURE);
+    return map;
+  }
+
+  @Override
+  @Test
+  public void testHashMapIntFloat() {
+    IHashMap h = create(10, 0.75f);
+    // the capacity is split between the stripes
+    assertEquals(NUM_STRIPES * (10 / NUM_STRIPES), h.getCapacity());
+    assertEquals(0.75f, h.getLoadFactor(), Float.MIN_VALUE);
+  }
+
+  @Override
+  @Test
+  public void testPutRecordWithSameKey() {
+    StripedHashMap h = (StripedHashMap) create(10, 0.75f);
+    IMemAllocator mem = h.getAllocator(h.getStripe(1000));
+    mem.setInitializer(new MemSetInitializer(0));
+    int pointer1 = h.createRecord(1000, BLOCK_SIZE);
+    assertEquals(pointer1, h.findRecord(1000));
+    assertEquals(1, mem.usedBlocks());
+
+    h.setInt(pointer1, 0, 19);
+    int pointer2 = h.createRecord(1000, BLOCK_SIZE);
+    assertEquals(0, h.getInt(pointer2, 0));
+    assertEquals(pointer2, h.findRecord(1000));
+    assertEquals(1, mem.usedBlocks());
+    assertEquals(1, h.size());
+  }
+
+  @Override
+  @Test
+  public void testGrowthPolicy() {
+    // growth policies are set on the stripes
+  }
+
+  @Test
+  public void testStripes() {
+    StripedHashMap h = new StripedHashMap(3, 100, BLOCK_SIZE, 2.0, 0.75);
+    assertEquals(4, h.getNumStripes());
+    int counts[] = new int[h.getNumStripes()];
+    for (int i = 0; i < 1000; i++) {
+      int r = h.createRecord(i, BLOCK_SIZE);
+      h.setLong(r, 0, i);
+      counts[h.getStripe(i)]++;
+      // the record id remembers the stripe
+      assertEquals(i, h.getLong(h.findRecord(i), 0));
+    }
+    for (int count : counts) {
+      assertTrue(count > 150);
+    }
+    assertEquals(1000, h.size());
+    assertTrue(h.getCapacity() >= 1000);
+    h.clear();
+    assertTrue(h.isEmpty());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testStripesNotPowerOfTwo() {
+    new StripedHashMap(new IHashMap[3]);
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testGetAllocator() {
+    create(10, 0.75).getAllocator();
+  }
+
+  @Test
+  public void testConcurrentUpdates() throws InterruptedException {
+    final StripedHashMap h = new StripedHashMap(8, 16, 2, 2.0, 0.75);
+    final int numThreads = 8;
+    final int keysPerThread = 5000;
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    Thread threads[] = new Thread[numThreads];
+    for (int t = 0; t < numThreads; t++) {
+      final int id = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int round = 0; round < 3; round++) {
+              for (int i = 0; i < keysPerThread; i++) {
+                long key = (long) i * numThreads + id;
+                int r = h.createRecord(key, 2);
+                h.setLong(r, 0, key * 3 + round);
+              }
+              for (int i = 0; i < keysPerThread; i++) {
+                long key = (long) i * numThreads + id;
+                assertEquals(key * 3 + round, h.getLong(h.findRecord(key), 0));
+                if (i % 2 == 1) {
+                  assertTrue(h.remove(key));
+                }
+              }
+            }
+          } catch (Throwable e) {
+            error.set(e);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    if (error.get() != null) {
+      throw new AssertionError(error.get());
+    }
+    assertEquals(numThreads * keysPerThread / 2, h.size());
+    for (long key = 0; key < numThreads * keysPerThread; key++) {
+      boolean odd = (key / numThreads) % 2 == 1;
+      assertFalse(odd == h.containsKey(key));
+    }
+  }
+
+  @Test
+  public void testConcurrentRecordReads() throws InterruptedException {
+    // records larger than a block use index blocks in the tree allocator
+    final StripedHashMap h = new StripedHashMap(1, 1000, 8, 2.0, 0.75);
+    final int numThreads = 4;
+    final int size = 40;
+    for (int t = 0; t < numThreads; t++) {
+      int r = h.createRecord(t, size);
+      for (int i = 0; i < size; i++) {
+        h.setInt(r, i, t * 1000 + i);
+      }
+    }
+
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    Thread threads[] = new Thread[numThreads];
+    for (int t = 0; t < numThreads; t++) {
+      final int id = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            byte bytes[] = new byte[size * 4];
+            int ints[] = new int[size];
+            for (int n = 0; n < 20000; n++) {
+              Lock lock = h.getLock(id).readLock();
+              lock.lock();
+              try {
+                int r = h.findRecord(id);
+                h.getBytes(r, 0, bytes, 0, bytes.length);
+                h.getInts(r, 0, ints, 0, size);
+              } finally {
+                lock.unlock();
+              }
+              for (int i = 0; i < size; i++) {
+                int expected = id * 1000 + i;
+                assertEquals(expected, ints[i]);
+                assertEquals(expected, (bytes[4 * i] & 0xff) << 24 | (bytes[4 * i + 1] & 0xff) << 16
+                    | (bytes[4 * i + 2] & 0xff) << 8 | (bytes[4 * i + 3] & 0xff));
+              }
+            }
+          } catch (Throwable e) {
+            error.set(e);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    if (error.get() != null) {
+      throw new AssertionError(error.get());
+    }
+  }
+}
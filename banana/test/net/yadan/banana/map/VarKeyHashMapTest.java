@@ -4,12 +4,18 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicReference;
+
 import net.yadan.banana.DebugLevel;
+import net.yadan.banana.map.hash.SimpleHashStrategy;
 import net.yadan.banana.memory.Buffer;
 import net.yadan.banana.memory.IBuffer;
 import net.yadan.banana.memory.IMemAllocator;
 import net.yadan.banana.memory.OutOfMemoryException;
+import net.yadan.banana.memory.growth.BoundedGrowthPolicy;
 import net.yadan.banana.memory.initializers.MemSetInitializer;
+import net.yadan.banana.memory.malloc.ArenaAllocator;
 import net.yadan.banana.memory.malloc.ChainedAllocator;
 
 import org.junit.Test;
@@ -35,6 +41,52 @@ public class VarKeyHashMapTest {
     return map;
   }
 
+  @Test
+  public void testConcurrentLookups() throws InterruptedException {
+    final IVarKeyHashMap h = create(16, 4.0);
+    final int numKeys = 100;
+    // keys span several blocks of the keys allocator
+    final String prefix = "a key long enough to be chained over blocks ";
+    IBuffer key = new Buffer(32);
+    for (int i = 0; i < numKeys; i++) {
+      key.reset();
+      key.appendChars((prefix + i).toCharArray());
+      h.setInt(h.createRecord(key, 1), 0, i);
+    }
+
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    Thread threads[] = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            IBuffer keys[] = new IBuffer[numKeys];
+            for (int i = 0; i < numKeys; i++) {
+              keys[i] = new Buffer(32);
+              keys[i].appendChars((prefix + i).toCharArray());
+            }
+            for (int n = 0; n < 1000; n++) {
+              for (int i = 0; i < numKeys; i++) {
+                assertEquals(i, h.getInt(h.findRecord(keys[i]), 0));
+              }
+            }
+          } catch (Throwable e) {
+            error.set(e);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    if (error.get() != null) {
+      throw new AssertionError(error.get());
+    }
+  }
+
   @Test
   public void testHashMapIntFloat() {
     IVarKeyHashMap h = create(10, 0.75f);
@@ -341,4 +393,165 @@ public class VarKeyHashMapTest {
       }
     });
   }
+
+  @Test
+  public void testResetWithArena() {
+    ArenaAllocator arena = new ArenaAllocator(1, 64, 2.0);
+    IVarKeyHashMap h = new VarKeyHashMap(arena, arena, 10, 0.75);
+    IBuffer key = new Buffer(10);
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < 50; i++) {
+        key.reset();
+        key.appendChars((PREFIX + i).toCharArray());
+        h.setInt(h.createRecord(key, 1), 0, round * 100 + i);
+      }
+      assertEquals(50, h.size());
+      for (int i = 0; i < 50; i++) {
+        key.reset();
+        key.appendChars((PREFIX + i).toCharArray());
+        assertEquals(round * 100 + i, h.getInt(h.findRecord(key), 0));
+      }
+      h.reset();
+      arena.reset();
+      assertEquals(0, h.size());
+      assertEquals(-1, h.findRecord(key));
+    }
+  }
+
+  @Test
+  public void testUtf8Keys() {
+    IVarKeyHashMap h = create(10, 0.75);
+    IBuffer key = new Buffer(10);
+    for (int i = 0; i < 20; i++) {
+      char chars[] = (PREFIX + "\u00e9" + i).toCharArray();
+      key.reset();
+      key.appendUtf8(chars, 0, chars.length);
+      int r = h.createRecord(key, 1);
+      h.setInt(r, 0, i);
+    }
+
+    for (int i = 0; i < 20; i++) {
+      char chars[] = (PREFIX + "\u00e9" + i).toCharArray();
+      key.reset();
+      key.appendUtf8(chars, 0, chars.length);
+      assertEquals(i, h.getInt(h.findRecord(key), 0));
+    }
+
+    h.visitRecords(new VarKeyHashMapVisitorAdapter() {
+      IBuffer m_key = new Buffer(10);
+
+      @Override
+      public void visit(IVarKeyHashMap map, int keyPtr, int valuePtr, long num, long total) {
+        map.getKeyData(keyPtr, m_key);
+        char chars[] = new char[m_key.size() * 4];
+        String s = new String(chars, 0, m_key.getUtf8(chars, 0));
+        assertEquals(PREFIX + "\u00e9" + map.getInt(valuePtr, 0), s);
+      }
+    });
+    h.clear();
+  }
+
+  @Test
+  public void testIncrementalResize() {
+    IMemAllocator valuesAllocator = new ChainedAllocator(100, VarKeyHashMap.RESERVED_SIZE
+        + BLOCK_SIZE, 2.0);
+    IMemAllocator keysAllocator = new ChainedAllocator(100, BLOCK_SIZE, 2.0);
+    VarKeyHashMap h = new VarKeyHashMap(valuesAllocator, keysAllocator, 16, 0.75);
+    h.setDebug(DebugLevel.DEBUG_STRUCTURE);
+    h.setIncrementalResize(1);
+    IBuffer key = new Buffer(10);
+    for (int i = 0; i < 13; i++) {
+      key.reset();
+      key.appendChars((PREFIX + i).toCharArray());
+      h.setInt(h.createRecord(key, 1), 0, i);
+    }
+    assertTrue(h.isResizing());
+    assertTrue(h.toString().contains("old table"));
+
+    for (int i = 13; i < 300; i++) {
+      key.reset();
+      key.appendChars((PREFIX + i).toCharArray());
+      h.setInt(h.createRecord(key, 1), 0, i);
+      if (i % 2 == 0) {
+        key.reset();
+        key.appendChars((PREFIX + i / 2).toCharArray());
+        assertTrue(h.remove(key));
+      }
+      for (int j = i / 2 + 1; j <= i; j++) {
+        key.reset();
+        key.appendChars((PREFIX + j).toCharArray());
+        assertEquals(j, h.getInt(h.findRecord(key), 0));
+      }
+    }
+    // keys 7 to 149 were removed
+    assertEquals(300 - 143, h.size());
+
+    h.clear();
+    assertFalse(h.isResizing());
+    assertEquals(0, h.size());
+    assertEquals(0, valuesAllocator.usedBlocks());
+    assertEquals(0, keysAllocator.usedBlocks());
+  }
+
+  @Test
+  public void testPowerOfTwoGrowthPolicy() {
+    IMemAllocator valuesAllocator = new ChainedAllocator(100, VarKeyHashMap.RESERVED_SIZE
+        + BLOCK_SIZE, 2.0);
+    IMemAllocator keysAllocator = new ChainedAllocator(100, BLOCK_SIZE, 2.0);
+    VarKeyHashMap h = new VarKeyHashMap(valuesAllocator, keysAllocator, 16, 0.75);
+    h.setPowerOfTwoCapacity(true);
+    BoundedGrowthPolicy policy = new BoundedGrowthPolicy(2.0);
+    policy.setMaxBytes(4 * 300);
+    h.setGrowthPolicy(policy);
+
+    IBuffer key = new Buffer(10);
+    for (int i = 0; i < 500; i++) {
+      key.reset();
+      key.appendChars((PREFIX + i).toCharArray());
+      h.setInt(h.createRecord(key, 1), 0, i);
+      assertTrue(4L * h.getCapacity() <= policy.getMaxBytes());
+      assertEquals(1, Integer.bitCount(h.getCapacity()));
+    }
+    // 512 buckets would exceed the cap, the table stops at 256
+    assertEquals(256, h.getCapacity());
+    for (int i = 0; i < 500; i++) {
+      key.reset();
+      key.appendChars((PREFIX + i).toCharArray());
+      assertEquals(i, h.getInt(h.findRecord(key), 0));
+    }
+    h.clear();
+  }
+
+  @Test
+  public void testPowerOfTwoCapacity() {
+    IMemAllocator valuesAllocator = new ChainedAllocator(100, VarKeyHashMap.RESERVED_SIZE
+        + BLOCK_SIZE, 2.0);
+    IMemAllocator keysAllocator = new ChainedAllocator(100, BLOCK_SIZE, 2.0);
+    VarKeyHashMap h = new VarKeyHashMap(valuesAllocator, keysAllocator, 10, 0.75);
+    h.setPowerOfTwoCapacity(true);
+    assertEquals(16, h.getCapacity());
+    IBuffer key = new Buffer(10);
+    for (int i = 0; i < 200; i++) {
+      key.reset();
+      key.appendChars((PREFIX + i).toCharArray());
+      h.setInt(h.createRecord(key, 1), 0, i);
+      assertEquals(1, Integer.bitCount(h.getCapacity()));
+    }
+    for (int i = 0; i < 200; i++) {
+      key.reset();
+      key.appendChars((PREFIX + i).toCharArray());
+      assertEquals(i, h.getInt(h.findRecord(key), 0));
+    }
+
+    try {
+      h.setHashStrategy(new SimpleHashStrategy());
+      fail("Changed hash strategy of a non empty map");
+    } catch (IllegalStateException e) {
+    }
+    h.clear();
+    h.setHashStrategy(new SimpleHashStrategy());
+    h.setInt(h.createRecord(key, 1), 0, 7);
+    assertEquals(7, h.getInt(h.findRecord(key), 0));
+    h.clear();
+  }
 }
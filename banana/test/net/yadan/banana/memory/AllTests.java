@@ -9,6 +9,8 @@ import org.junit.runners.Suite.SuiteClasses;
 @SuiteClasses({
   net.yadan.banana.memory.block.AllTests.class,
   net.yadan.banana.memory.malloc.AllTests.class,
+  net.yadan.banana.memory.growth.BoundedGrowthPolicyTest.class,
+  net.yadan.banana.memory.growth.MemoryBudgetTest.class,
   BufferTest.class,
 })
 //@formatter:on
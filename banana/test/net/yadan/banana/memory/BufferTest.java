@@ -2,6 +2,12 @@ package net.yadan.banana.memory;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+
+import net.yadan.banana.memory.malloc.TreeAllocator;
 
 import org.junit.Test;
 
@@ -275,4 +281,73 @@ public class BufferTest {
     assertEquals(999, b.getInt(0));
   }
 
+  @Test
+  public void testEqualsMemory() {
+    IMemAllocator mem = new TreeAllocator(10, 3);
+    int p = mem.malloc(8);
+    for (int i = 0; i < 8; i++) {
+      mem.setInt(p, i, i);
+    }
+    IBuffer b = create(10);
+    b.appendInts(new int[] { 2, 3, 4, 5, 6 });
+    assertTrue(b.equals(mem, p, 2, 5));
+    assertFalse(b.equals(mem, p, 1, 5));
+    assertFalse(b.equals(mem, p, 2, 4));
+    b.setInt(4, -1);
+    assertFalse(b.equals(mem, p, 2, 5));
+    mem.free(p);
+  }
+
+  @Test
+  public void testBytes() {
+    IBuffer b = create(1);
+    b.appendInt(7);
+    b.appendBytes(new byte[] { 1, 2, 3, 4, 5 }, 0, 5);
+    assertEquals(3, b.size());
+    assertEquals(0x01020304, b.getInt(1));
+    assertEquals(0x05000000, b.getInt(2));
+    byte out[] = new byte[5];
+    b.getBytes(1, out, 0, 5);
+    assertArrayEquals(new byte[] { 1, 2, 3, 4, 5 }, out);
+  }
+
+  @Test
+  public void testUtf8() {
+    String s = "abc\u00e9\u65e5\ud834\udd1e!";
+    IBuffer b = create(1);
+    int numBytes = b.appendUtf8(s.toCharArray(), 0, s.length());
+    assertEquals(s.getBytes(Charset.forName("UTF-8")).length, numBytes);
+    assertEquals(4, b.size());
+    byte bytes[] = new byte[numBytes];
+    b.getBytes(0, bytes, 0, numBytes);
+    assertArrayEquals(s.getBytes(Charset.forName("UTF-8")), bytes);
+
+    char chars[] = new char[b.size() * 4];
+    int numChars = b.getUtf8(chars, 0);
+    assertEquals(s, new String(chars, 0, numChars));
+  }
+
+  @Test
+  public void testUtf8Ascii() {
+    String s = "hello world";
+    IBuffer b = create(1);
+    b.appendUtf8(s.toCharArray(), 0, s.length());
+    // half the ints of appendChars
+    assertEquals(3, b.size());
+    char chars[] = new char[b.size() * 4];
+    assertEquals(s, new String(chars, 0, b.getUtf8(chars, 0)));
+  }
+
+  @Test
+  public void testUtf8Nul() {
+    String s = "ab\u0000";
+    IBuffer b1 = create(1);
+    b1.appendUtf8("ab".toCharArray(), 0, 2);
+    IBuffer b2 = create(1);
+    // U+0000 takes two bytes, it is not mistaken for padding
+    assertEquals(4, b2.appendUtf8(s.toCharArray(), 0, s.length()));
+    assertFalse(b1.equals(b2));
+    char chars[] = new char[b2.size() * 4];
+    assertEquals(s, new String(chars, 0, b2.getUtf8(chars, 0)));
+  }
 }
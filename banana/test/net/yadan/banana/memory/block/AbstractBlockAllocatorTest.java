@@ -2,11 +2,14 @@ package net.yadan.banana.memory.block;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import junit.framework.TestSuite;
 import net.yadan.banana.memory.IBlockAllocator;
 import net.yadan.banana.memory.MemInitializer;
 import net.yadan.banana.memory.OutOfMemoryException;
+import net.yadan.banana.memory.Relocation;
 import net.yadan.banana.memory.initializers.MemSetInitializer;
 import net.yadan.banana.memory.initializers.PrototypeInitializer;
 
@@ -23,6 +26,21 @@ public abstract class AbstractBlockAllocatorTest extends TestSuite {
 
   public abstract IBlockAllocator create(int numBlocks, int blockSize, double growthFactor, MemInitializer initializer);
 
+  /**
+   * @return false if the allocator throws UnsupportedOperationException from
+   *         compact()
+   */
+  protected boolean supportsCompaction() {
+    return true;
+  }
+
+  /**
+   * @return false if the allocator keeps its memory after compaction
+   */
+  protected boolean compactionReleasesMemory() {
+    return supportsCompaction();
+  }
+
   @After
   public void postTest() {
     if (a != null) {
@@ -384,6 +402,46 @@ public abstract class AbstractBlockAllocatorTest extends TestSuite {
     a.free(p2);
   }
 
+  @Test
+  public void testBytes() {
+    a = create(3, 5, 0, null);
+    int p = a.malloc();
+    a.memSet(p, 0, 5, 0);
+    byte src[] = { 1, 2, 3, 4, 5, 6, (byte) 0xf7 };
+    a.setBytes(p, 1, src, 0, src.length);
+    assertEquals(0x01020304, a.getInt(p, 1));
+    assertEquals(0x0506f700, a.getInt(p, 2));
+    assertEquals((byte) 0xf7, a.getByte(p, 10));
+
+    a.setByte(p, 11, -1);
+    assertEquals(0x0506f7ff, a.getInt(p, 2));
+    byte dst[] = new byte[6];
+    a.getBytes(p, 1, dst, 1, 5);
+    assertArrayEquals(new byte[] { 0, 1, 2, 3, 4, 5 }, dst);
+    a.free(p);
+  }
+
+  @Test
+  public void testMemEquals() {
+    a = create(3, 5, 0, null);
+
+    int p1 = a.malloc();
+    int p2 = a.malloc();
+    a.setInts(p1, 0, new int[] { 1, 2, 3, 4, 5 }, 0, 5);
+    a.setInts(p2, 0, new int[] { 9, 1, 2, 3, 4 }, 0, 5);
+
+    assertTrue(a.memEquals(p1, 0, p2, 1, 4));
+    assertTrue(a.memEquals(p1, 2, p2, 3, 2));
+    assertTrue(a.memEquals(p1, 0, p1, 0, 5));
+    assertFalse(a.memEquals(p1, 0, p2, 0, 4));
+
+    assertTrue(a.memEquals(p2, 1, new int[] { 0, 1, 2, 3 }, 1, 3));
+    assertFalse(a.memEquals(p2, 1, new int[] { 1, 2, 4 }, 0, 3));
+
+    a.free(p1);
+    a.free(p2);
+  }
+
   @Test
   public void testMemCopy_same_offset() {
     a = create(2, 5, 0, null);
@@ -428,6 +486,26 @@ public abstract class AbstractBlockAllocatorTest extends TestSuite {
     a.free(p2);
   }
 
+  @Test
+  public void testMemCopy_overlapping() {
+    a = create(1, 5, 0, null);
+
+    int[] data = new int[] { 1, 2, 3, 4, 5 };
+    int[] out = new int[5];
+
+    int p = a.malloc();
+    a.setInts(p, 0, data, 0, a.blockSize());
+    a.memCopy(p, 0, p, 1, a.blockSize() - 1);
+    a.getInts(p, 0, out, 0, a.blockSize());
+    assertArrayEquals(new int[] { 1, 1, 2, 3, 4 }, out);
+
+    a.memCopy(p, 1, p, 0, a.blockSize() - 1);
+    a.getInts(p, 0, out, 0, a.blockSize());
+    assertArrayEquals(new int[] { 1, 2, 3, 4, 4 }, out);
+
+    a.free(p);
+  }
+
   @Test
   public void testMemSet_fullblock() {
     a = create(2, 5, 0, null);
@@ -558,4 +636,276 @@ public abstract class AbstractBlockAllocatorTest extends TestSuite {
 
     a.clear();
   }
+
+  @Test
+  public void testCompact() {
+    if (!supportsCompaction()) {
+      return;
+    }
+
+    a = create(10, 3, 2.0, null);
+    int pointers[] = new int[50];
+    for (int i = 0; i < pointers.length; i++) {
+      pointers[i] = a.malloc();
+      a.setInt(pointers[i], 0, i);
+      a.setInt(pointers[i], 2, -i);
+    }
+    int kept = 0;
+    for (int i = 0; i < pointers.length; i++) {
+      if (i % 3 == 0) {
+        kept++;
+      } else {
+        a.free(pointers[i]);
+      }
+    }
+
+    Relocation relocation = new Relocation();
+    a.compact(relocation);
+    assertEquals(kept, a.usedBlocks());
+    assertTrue(a.maxBlocks() >= kept);
+    for (int i = 0; i < pointers.length; i += 3) {
+      int p = relocation.translate(pointers[i]);
+      assertTrue("Block " + p + " is above the used blocks", p >= 1 && p <= kept);
+      assertEquals(i, a.getInt(p, 0));
+      assertEquals(-i, a.getInt(p, 2));
+      pointers[i] = p;
+    }
+
+    // allocation continues right after the used blocks
+    int p = a.malloc();
+    assertEquals(kept + 1, p);
+    a.free(p);
+
+    for (int i = 0; i < pointers.length; i += 3) {
+      a.free(pointers[i]);
+    }
+  }
+
+  @Test
+  public void testCompactReleasesMemory() {
+    if (!compactionReleasesMemory()) {
+      return;
+    }
+
+    a = create(10, 2, 2.0, null);
+    int pointers[] = new int[100];
+    for (int i = 0; i < pointers.length; i++) {
+      pointers[i] = a.malloc();
+      a.setLong(pointers[i], 0, i);
+    }
+    // keep the last few blocks, which are the ones that have to move
+    int first_kept = pointers.length - 5;
+    for (int i = 0; i < first_kept; i++) {
+      a.free(pointers[i]);
+    }
+
+    long before = a.computeMemoryUsage();
+    Relocation relocation = new Relocation();
+    a.compact(relocation);
+    assertEquals(5, relocation.size());
+    assertEquals(5, a.usedBlocks());
+    assertEquals(5, a.maxBlocks());
+    assertTrue(a.computeMemoryUsage() < before);
+
+    for (int i = first_kept; i < pointers.length; i++) {
+      pointers[i] = relocation.translate(pointers[i]);
+      assertEquals(i, a.getLong(pointers[i], 0));
+    }
+
+    // grows back as needed
+    for (int i = 0; i < first_kept; i++) {
+      pointers[i] = a.malloc();
+    }
+    for (int i = 0; i < pointers.length; i++) {
+      a.free(pointers[i]);
+    }
+  }
+
+  @Test
+  public void testCompactWithoutGrowthKeepsCapacity() {
+    if (!supportsCompaction()) {
+      return;
+    }
+
+    a = create(20, 2, 0, null);
+    int pointers[] = new int[10];
+    for (int i = 0; i < pointers.length; i++) {
+      pointers[i] = a.malloc();
+    }
+    for (int i = 0; i < pointers.length; i += 2) {
+      a.free(pointers[i]);
+    }
+    Relocation relocation = new Relocation();
+    a.compact(relocation);
+    assertEquals(20, a.maxBlocks());
+    assertEquals(5, a.usedBlocks());
+    for (int i = 1; i < pointers.length; i += 2) {
+      a.free(relocation.translate(pointers[i]));
+    }
+  }
+
+  @Test
+  public void testBulkMalloc() {
+    int[] prototype = new int[] { 1, 2, 3 };
+    a = create(10, 3, 0, new PrototypeInitializer(prototype));
+    int single[] = new int[4];
+    for (int i = 0; i < single.length; i++) {
+      single[i] = a.malloc();
+    }
+    a.free(single[1]);
+    a.free(single[2]);
+
+    // two blocks from the free list, the rest from the watermark
+    int pointers[] = new int[6];
+    a.malloc(pointers.length, pointers);
+    assertEquals(8, a.usedBlocks());
+    assertEquals(single[2], pointers[0]);
+    assertEquals(single[1], pointers[1]);
+    for (int i = 0; i < pointers.length; i++) {
+      int[] data = new int[3];
+      a.getInts(pointers[i], 0, data, 0, 3);
+      assertArrayEquals(prototype, data);
+      for (int j = 0; j < i; j++) {
+        assertTrue(pointers[i] != pointers[j]);
+      }
+      assertTrue(pointers[i] != single[0] && pointers[i] != single[3]);
+    }
+
+    a.free(pointers, 0, pointers.length);
+    a.free(single[0]);
+    a.free(single[3]);
+  }
+
+  @Test
+  public void testBulkMallocZero() {
+    a = create(2, 1);
+    a.malloc(0, new int[0]);
+    assertEquals(0, a.usedBlocks());
+    a.free(new int[0], 0, 0);
+    assertEquals(0, a.usedBlocks());
+  }
+
+  @Test
+  public void testBulkMallocGrowth() {
+    a = create(2, 2, 2.0, null);
+    int pointers[] = new int[11];
+    a.malloc(pointers.length, pointers);
+    assertEquals(11, a.usedBlocks());
+    assertTrue(a.maxBlocks() >= 11);
+    for (int i = 0; i < pointers.length; i++) {
+      a.setLong(pointers[i], 0, i);
+    }
+    for (int i = 0; i < pointers.length; i++) {
+      assertEquals(i, a.getLong(pointers[i], 0));
+    }
+    a.free(pointers, 0, pointers.length);
+  }
+
+  @Test
+  public void testBulkMallocOutOfMemory() {
+    a = create(5, 2);
+    int p = a.malloc();
+    int pointers[] = new int[5];
+    try {
+      a.malloc(5, pointers);
+      fail();
+    } catch (OutOfMemoryException e) {
+    }
+    assertEquals(1, a.usedBlocks());
+    a.malloc(4, pointers);
+    assertEquals(5, a.usedBlocks());
+    a.free(pointers, 0, 4);
+    a.free(p);
+  }
+
+  @Test
+  public void testBulkFree() {
+    a = create(10, 2);
+    int pointers[] = new int[10];
+    for (int i = 0; i < pointers.length; i++) {
+      pointers[i] = a.malloc();
+    }
+    a.free(pointers, 2, 5);
+    assertEquals(5, a.usedBlocks());
+    assertEquals(5, a.freeBlocks());
+
+    // freed blocks are reused
+    int reused[] = new int[5];
+    a.malloc(reused.length, reused);
+    assertEquals(10, a.usedBlocks());
+    for (int i = 0; i < reused.length; i++) {
+      boolean found = false;
+      for (int j = 2; j < 7; j++) {
+        found |= reused[i] == pointers[j];
+      }
+      assertTrue(found);
+    }
+    a.free(reused, 0, reused.length);
+    a.free(pointers, 0, 2);
+    a.free(pointers, 7, 3);
+  }
+
+  @Test
+  public void testZeroInitializer() {
+    a = create(4, 3, 2.0, new MemSetInitializer(0));
+    int pointers[] = new int[4];
+    for (int i = 0; i < pointers.length; i++) {
+      pointers[i] = a.malloc();
+      a.memSet(pointers[i], 0, 3, -1);
+    }
+    a.free(pointers[1]);
+    a.free(pointers[2]);
+
+    // reused blocks are initialized, fresh blocks from growth are zero
+    int batch[] = new int[6];
+    a.malloc(batch.length, batch);
+    int single = a.malloc();
+    for (int p : batch) {
+      for (int j = 0; j < 3; j++) {
+        assertEquals(0, a.getInt(p, j));
+      }
+      a.memSet(p, 0, 3, -1);
+    }
+    for (int j = 0; j < 3; j++) {
+      assertEquals(0, a.getInt(single, j));
+    }
+    a.free(batch, 0, batch.length);
+    a.free(single);
+    a.free(pointers[0]);
+    a.free(pointers[3]);
+
+    // blocks handed out before clear() are initialized again
+    a.clear();
+    int p1 = a.malloc();
+    a.malloc(batch.length, batch);
+    for (int j = 0; j < 3; j++) {
+      assertEquals(0, a.getInt(p1, j));
+    }
+    for (int p : batch) {
+      for (int j = 0; j < 3; j++) {
+        assertEquals(0, a.getInt(p, j));
+      }
+    }
+    a.free(batch, 0, batch.length);
+    a.free(p1);
+  }
+
+  @Test
+  public void testBulkMallocAfterClear() {
+    int[] prototype = new int[] { 1, 2, 3 };
+    a = create(10, 3, 0, new PrototypeInitializer(prototype));
+    int pointers[] = new int[10];
+    a.malloc(pointers.length, pointers);
+    for (int p : pointers) {
+      a.memSet(p, 0, 3, -1);
+    }
+    a.clear();
+    a.malloc(pointers.length, pointers);
+    for (int p : pointers) {
+      int[] data = new int[3];
+      a.getInts(p, 0, data, 0, 3);
+      assertArrayEquals(prototype, data);
+    }
+    a.free(pointers, 0, pointers.length);
+  }
 }
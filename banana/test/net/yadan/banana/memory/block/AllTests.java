@@ -9,6 +9,16 @@ import org.junit.runners.Suite.SuiteClasses;
 @SuiteClasses({
   BlockAllocatorTest.class,
   BigBlockAllocatorTest.class,
+  BigBlockAllocatorPowerOfTwoTest.class,
+  ChunksTest.class,
+  ConcurrentBlockAllocatorTest.class,
+  DirectBlockAllocatorTest.class,
+  MappedBlockAllocatorTest.class,
+  SegmentedBlockAllocatorTest.class,
+  LongBlockAllocatorTest.class,
+  LongWordBlockAllocatorTest.class,
+  ParallelTest.class,
+  ThreadCachingBlockAllocatorTest.class,
 })
 //@formatter:on
 public class AllTests {
@@ -0,0 +1,36 @@
+package net.yadan.banana.memory.block;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import net.yadan.banana.memory.IBlockAllocator;
+import net.yadan.banana.memory.MemInitializer;
+
+import org.junit.Test;
+
+
+public class BigBlockAllocatorPowerOfTwoTest extends BigBlockAllocatorTest {
+
+  @Override
+  public IBlockAllocator create(int numBlocks, int blockSize, double growthFactor,
+      MemInitializer initializer) {
+
+    BigBlockAllocator m = new BigBlockAllocator(numBlocks, blockSize, growthFactor, initializer,
+        true);
+    m.setDebug(true);
+    return m;
+  };
+
+  @Test
+  public void testBlocksPerArrayRoundedDown() {
+    // MAX_INTS_PER_ARRAY is 20, 20 blocks of 1 int rounded down to 16 per array
+    BigBlockAllocator m = (BigBlockAllocator) create(40, 1, 0, null);
+    assertTrue(m.isPowerOfTwoArrays());
+    assertEquals(16, m.m_buffer[0].length);
+    assertEquals(16, m.m_buffer[1].length);
+    assertEquals(9, m.m_buffer[2].length);
+
+    // 20 / 3 = 6 blocks, rounded down to 4 per array
+    m = (BigBlockAllocator) create(10, 3, 0, null);
+    assertEquals(4 * 3, m.m_buffer[0].length);
+  }
+}
@@ -1,8 +1,12 @@
 package net.yadan.banana.memory.block;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 import net.yadan.banana.memory.IBlockAllocator;
 import net.yadan.banana.memory.MemInitializer;
+import net.yadan.banana.memory.OutOfMemoryException;
+import net.yadan.banana.memory.growth.BoundedGrowthPolicy;
+import net.yadan.banana.memory.initializers.NullInitializer;
 import net.yadan.banana.memory.initializers.MemSetInitializer;
 
 import org.junit.Test;
@@ -136,4 +140,43 @@ public class BigBlockAllocatorTest extends AbstractBlockAllocatorTest {
       a.free(pointers[i]);
     }
   }
+
+  @Test
+  public void testParallelClear() {
+    BigBlockAllocator a = new BigBlockAllocator(10, 3, 0, new NullInitializer());
+    a.malloc();
+    a.clear(-1, 4);
+    assertEquals(0, a.usedBlocks());
+    for (int i = 0; i < 10; i++) {
+      int p = a.malloc();
+      for (int j = 0; j < 3; j++) {
+        assertEquals(-1, a.getInt(p, j));
+      }
+    }
+  }
+
+  @Test
+  public void testGrowthPolicy() {
+    BigBlockAllocator a = new BigBlockAllocator(4, 2, 0, new NullInitializer());
+    BoundedGrowthPolicy policy = new BoundedGrowthPolicy(2.0);
+    policy.setLinearGrowth(80, 16);
+    policy.setMaxBytes(120);
+    a.setGrowthPolicy(policy);
+
+    int pointers[] = new int[14];
+    for (int i = 0; i < pointers.length; i++) {
+      pointers[i] = a.malloc();
+    }
+    // 5 -> 10 blocks geometric, 10 -> 12 -> 14 linear, capped at 15 blocks
+    // (block 0 included)
+    assertEquals(14, a.maxBlocks());
+    try {
+      a.malloc(2, new int[2]);
+      fail();
+    } catch (OutOfMemoryException e) {
+    }
+    assertEquals(14, a.maxBlocks());
+    assertEquals(14, a.usedBlocks());
+    a.free(pointers, 0, pointers.length);
+  }
 }
@@ -0,0 +1,67 @@
+package net.yadan.banana.memory.block;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+
+public class ChunksTest {
+
+  private static final Chunks.Factory<int[]> ARRAYS = new Chunks.Factory<int[]>() {
+    @Override
+    public int[] allocate(int numInts) {
+      return new int[numInts];
+    }
+
+    @Override
+    public int size(int[] array) {
+      return array.length;
+    }
+
+    @Override
+    public int[] resize(int[] array, int numInts) {
+      return Arrays.copyOf(array, numInts);
+    }
+  };
+
+  @Test
+  public void testSizes() {
+    assertArrayEquals(new int[] { 8, 8, 4 }, Chunks.sizes(10, 4, 2, "arrays"));
+    assertArrayEquals(new int[] { 8, 8 }, Chunks.sizes(8, 4, 2, "arrays"));
+    assertArrayEquals(new int[] { 2 }, Chunks.sizes(1, 4, 2, "arrays"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTooManyChunks() {
+    Chunks.sizes(Integer.MAX_VALUE * 2L + 1, 1, 1, "arrays");
+  }
+
+  @Test
+  public void testGrowKeepsFullChunks() {
+    int chunks[][] = { new int[8], new int[2] };
+    int full[] = chunks[0];
+    chunks[1][1] = 7;
+    int grown[][] = Chunks.resize(chunks, 11, 4, 2, ARRAYS);
+    assertEquals(3, grown.length);
+    assertSame(full, grown[0]);
+    assertEquals(8, grown[1].length);
+    assertEquals(7, grown[1][1]);
+    assertEquals(6, grown[2].length);
+  }
+
+  @Test
+  public void testShrinkTrimsLastChunk() {
+    int chunks[][] = { new int[8], new int[8], new int[8] };
+    int full[] = chunks[0];
+    chunks[1][3] = 5;
+    int trimmed[][] = Chunks.resize(chunks, 6, 4, 2, ARRAYS);
+    assertEquals(2, trimmed.length);
+    assertSame(full, trimmed[0]);
+    assertEquals(4, trimmed[1].length);
+    assertEquals(5, trimmed[1][3]);
+  }
+}
@@ -0,0 +1,115 @@
+package net.yadan.banana.memory.block;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.yadan.banana.memory.IBlockAllocator;
+import net.yadan.banana.memory.MemInitializer;
+
+import org.junit.Test;
+
+
+public class ConcurrentBlockAllocatorTest extends AbstractBlockAllocatorTest {
+  private static final int BLOCKS_PER_SEGMENT = 4;
+
+  @Override
+  public IBlockAllocator create(int numBlocks, int blockSize, double growthFactor,
+      MemInitializer initializer) {
+    ConcurrentBlockAllocator m = new ConcurrentBlockAllocator(numBlocks, blockSize,
+        BLOCKS_PER_SEGMENT, growthFactor, initializer);
+    m.setDebug(true);
+    return m;
+  };
+
+  @Test
+  public void testMultiSegmentIntAccess() {
+    a = create(60, 1, 2.0, null);
+    int pointers[] = new int[a.maxBlocks()];
+    for (int i = 0; i < a.maxBlocks(); i++) {
+      int p = a.malloc();
+      pointers[i] = p;
+      a.setInt(p, 0, i);
+    }
+
+    for (int i = 0; i < a.maxBlocks(); i++) {
+      assertEquals(i, a.getInt(pointers[i], 0));
+      a.free(pointers[i]);
+    }
+  }
+
+  @Test
+  public void testConcurrentMallocFree() throws InterruptedException {
+    stress(new ConcurrentBlockAllocator(8 * 100, 2, BLOCKS_PER_SEGMENT, 0, null), 8, 100, 20000);
+  }
+
+  @Test
+  public void testConcurrentGrowth() throws InterruptedException {
+    stress(new ConcurrentBlockAllocator(1, 2, BLOCKS_PER_SEGMENT, 1.5, null), 8, 100, 20000);
+  }
+
+  /**
+   * Each thread keeps blocksPerThread blocks allocated, replacing them in a
+   * loop. every block is tagged with its owner to detect blocks that are
+   * handed out twice.
+   */
+  private void stress(final ConcurrentBlockAllocator m, int numThreads,
+      final int blocksPerThread, final int iterations) throws InterruptedException {
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    final AtomicIntegerArray owners = new AtomicIntegerArray(numThreads * blocksPerThread + 1);
+    Thread threads[] = new Thread[numThreads];
+    for (int t = 0; t < numThreads; t++) {
+      final int id = t + 1;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            int pointers[] = new int[blocksPerThread];
+            for (int i = 0; i < iterations; i++) {
+              int slot = i % blocksPerThread;
+              if (i >= blocksPerThread) {
+                int p = pointers[slot];
+                assertEquals(id, m.getInt(p, 0));
+                assertEquals(i - blocksPerThread, m.getInt(p, 1));
+                assertTrue(owners.compareAndSet(p, id, 0));
+                m.free(p);
+              }
+              int p = m.malloc();
+              assertTrue("Block " + p + " handed out twice", owners.compareAndSet(p, 0, id));
+              m.setInt(p, 0, id);
+              m.setInt(p, 1, i);
+              pointers[slot] = p;
+            }
+            for (int i = 0; i < blocksPerThread; i++) {
+              owners.set(pointers[i], 0);
+              m.free(pointers[i]);
+            }
+          } catch (Throwable e) {
+            error.set(e);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    if (error.get() != null) {
+      throw new AssertionError(error.get());
+    }
+    assertEquals(0, m.usedBlocks());
+  }
+
+  @Override
+  protected boolean supportsCompaction() {
+    return false;
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testCompactUnsupported() {
+    create(10, 2, 0, null).compact(null);
+  }
+}
@@ -0,0 +1,129 @@
+package net.yadan.banana.memory.block;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import net.yadan.banana.memory.IBlockAllocator;
+import net.yadan.banana.memory.IMemAllocator;
+import net.yadan.banana.memory.MemInitializer;
+import net.yadan.banana.memory.initializers.NullInitializer;
+import net.yadan.banana.memory.malloc.TreeAllocator;
+
+import org.junit.Test;
+
+
+public class DirectBlockAllocatorTest extends AbstractBlockAllocatorTest {
+  private static final int MAX_INTS_PER_BUFFER = 20;
+
+  static {
+    System.setProperty("DirectBlockAllocator.MAX_INTS_PER_BUFFER", "" + MAX_INTS_PER_BUFFER);
+  }
+
+  @Override
+  public IBlockAllocator create(int numBlocks, int blockSize, double growthFactor,
+      MemInitializer initializer) {
+    DirectBlockAllocator m = new DirectBlockAllocator(numBlocks, blockSize, growthFactor, initializer);
+    m.setDebug(true);
+    return m;
+  };
+
+  @Test
+  public void testGrowthOverBuffers() {
+    int initialMax = 12;
+    int pointers[] = new int[initialMax];
+    a = create(initialMax, 1, 2.0, null);
+    assertEquals(4 * (initialMax + 1), a.computeMemoryUsage());
+
+    for (int i = 0; i < initialMax; i++) {
+      int p = a.malloc();
+      a.setInt(p, 0, i);
+      pointers[i] = p;
+    }
+
+    a.malloc(); // grow * 2
+
+    assertEquals(initialMax * 2, a.maxBlocks());
+    assertEquals(initialMax + 1, a.usedBlocks());
+    // + 1 for reserved block
+    assertEquals(4 * (a.maxBlocks() + 1), a.computeMemoryUsage());
+
+    for (int i = 0; i < initialMax; i++) {
+      assertEquals(i, a.getInt(pointers[i], 0));
+    }
+
+    a.clear();
+  }
+
+  @Test
+  public void testBulkAccess() {
+    a = create(10, 5, 2.0, null);
+    int p1 = a.malloc();
+    int p2 = a.malloc();
+    a.memSet(p1, 0, 5, 7);
+    a.memSet(p2, 1, 3, 8);
+    a.memSet(p2, 0, 1, 7);
+    for (int i = 0; i < 5; i++) {
+      assertEquals(7, a.getInt(p1, i));
+    }
+    assertEquals(8, a.getInt(p2, 3));
+    assertEquals(7, a.getInt(p2, 0));
+
+    for (int i = 0; i < 5; i++) {
+      a.setInt(p1, i, i);
+    }
+    // overlapping copies within a block, in both directions
+    a.memCopy(p1, 0, p1, 1, 4);
+    assertTrue(a.memEquals(p1, 1, new int[] { 0, 1, 2, 3 }, 0, 4));
+    a.memCopy(p1, 1, p1, 0, 4);
+    assertTrue(a.memEquals(p1, 0, new int[] { 0, 1, 2, 3, 3 }, 0, 5));
+    a.memCopy(p1, 0, p2, 0, 5);
+    assertTrue(a.memEquals(p1, 0, p2, 0, 5));
+    assertFalse(a.memEquals(p1, 0, p2, 1, 4));
+    a.free(p1);
+    a.free(p2);
+  }
+
+  @Test
+  public void testMultiBufferIntAccess() {
+    a = create(60, 1, 2.0, null);
+    int pointers[] = new int[a.maxBlocks()];
+    for (int i = 0; i < a.maxBlocks(); i++) {
+      int p = a.malloc();
+      pointers[i] = p;
+      a.setInt(p, 0, i);
+      assertEquals(i, a.getInt(p, 0));
+    }
+
+    for (int i = 0; i < a.maxBlocks(); i++) {
+      a.free(pointers[i]);
+    }
+  }
+
+  @Test
+  public void testAsTreeAllocatorBlocks() {
+    a = create(10, 4, 2.0, null);
+    IMemAllocator mem = new TreeAllocator(a);
+    int p = mem.malloc(50);
+    for (int i = 0; i < 50; i++) {
+      mem.setInt(p, i, i * 3);
+    }
+    for (int i = 0; i < 50; i++) {
+      assertEquals(i * 3, mem.getInt(p, i));
+    }
+    mem.free(p);
+  }
+
+  @Test
+  public void testParallelClear() {
+    DirectBlockAllocator a = new DirectBlockAllocator(10, 3, 0, new NullInitializer());
+    a.malloc();
+    a.clear(-1, 4);
+    assertEquals(0, a.usedBlocks());
+    for (int i = 0; i < 10; i++) {
+      int p = a.malloc();
+      for (int j = 0; j < 3; j++) {
+        assertEquals(-1, a.getInt(p, j));
+      }
+    }
+  }
+}
@@ -0,0 +1,155 @@
+package net.yadan.banana.memory.block;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import net.yadan.banana.memory.OutOfMemoryException;
+
+import org.junit.Test;
+
+public class LongBlockAllocatorTest {
+
+  private static final int BLOCKS_PER_SEGMENT = 4;
+
+  private LongBlockAllocator create(long numBlocks, int blockSize, double growthFactor,
+      boolean direct) {
+    LongBlockAllocator a = new LongBlockAllocator(numBlocks, blockSize, BLOCKS_PER_SEGMENT,
+        growthFactor, direct);
+    a.setDebug(true);
+    return a;
+  }
+
+  @Test
+  public void testMallocFree() {
+    for (boolean direct : new boolean[] { false, true }) {
+      LongBlockAllocator a = create(10, 4, 0, direct);
+      assertEquals(direct, a.isDirect());
+      long pointers[] = new long[10];
+      for (int i = 0; i < pointers.length; i++) {
+        pointers[i] = a.malloc();
+        a.setLong(pointers[i], 0, Long.MAX_VALUE - i);
+        a.setInt(pointers[i], 2, i);
+        a.setFloat(pointers[i], 3, i / 2f);
+      }
+      assertEquals(10, a.usedBlocks());
+      assertEquals(0, a.freeBlocks());
+      for (int i = 0; i < pointers.length; i++) {
+        assertEquals(Long.MAX_VALUE - i, a.getLong(pointers[i], 0));
+        assertEquals(i, a.getInt(pointers[i], 2));
+        assertEquals(i / 2f, a.getFloat(pointers[i], 3), 0);
+      }
+
+      try {
+        a.malloc();
+        fail();
+      } catch (OutOfMemoryException e) {
+      }
+
+      a.free(pointers[3]);
+      assertEquals(9, a.usedBlocks());
+      long p = a.malloc();
+      assertEquals(pointers[3], p);
+      // reused blocks are zeroed
+      for (int i = 0; i < 4; i++) {
+        assertEquals(0, a.getInt(p, i));
+      }
+    }
+  }
+
+  @Test
+  public void testMinimumBlockSize() {
+    try {
+      new LongBlockAllocator(10, 1);
+      fail();
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  @Test
+  public void testGrowth() {
+    LongBlockAllocator a = create(3, 2, 2.0, false);
+    long pointers[] = new long[100];
+    for (int i = 0; i < pointers.length; i++) {
+      pointers[i] = a.malloc();
+      a.setLong(pointers[i], 0, i);
+    }
+    assertEquals(100, a.usedBlocks());
+    assertTrue(a.maxBlocks() >= 100);
+    for (int i = 0; i < pointers.length; i++) {
+      assertEquals(i, a.getLong(pointers[i], 0));
+    }
+  }
+
+  @Test
+  public void testSegmentsAllocatedOnDemand() {
+    LongBlockAllocator a = create(20, 2, 0, false);
+    // only the first segment, which holds the reserved block
+    assertEquals(4 * 2 * BLOCKS_PER_SEGMENT, a.computeMemoryUsage());
+    for (int i = 0; i < BLOCKS_PER_SEGMENT; i++) {
+      a.malloc();
+    }
+    assertEquals(2 * 4 * 2 * BLOCKS_PER_SEGMENT, a.computeMemoryUsage());
+  }
+
+  @Test
+  public void testCapacityBeyondIntRange() {
+    long maxBlocks = 3L << 31;
+    LongBlockAllocator a = new LongBlockAllocator(maxBlocks, 2, 1 << 16, 0, false);
+    assertEquals(maxBlocks, a.maxBlocks());
+    assertEquals(maxBlocks, a.freeBlocks());
+    long p = a.malloc();
+    a.setLong(p, 0, 42);
+    assertEquals(42, a.getLong(p, 0));
+    assertEquals(maxBlocks - 1, a.freeBlocks());
+  }
+
+  @Test
+  public void testInts() {
+    for (boolean direct : new boolean[] { false, true }) {
+      LongBlockAllocator a = create(4, 5, 0, direct);
+      long p = a.malloc();
+      a.setInts(p, 1, new int[] { 9, 1, 2, 3, 9 }, 1, 3);
+      int res[] = new int[5];
+      a.getInts(p, 0, res, 1, 4);
+      assertEquals(0, res[1]);
+      assertEquals(1, res[2]);
+      assertEquals(2, res[3]);
+      assertEquals(3, res[4]);
+    }
+  }
+
+  @Test
+  public void testMemCopyAndMemSet() {
+    LongBlockAllocator a = create(4, 6, 0, false);
+    long p1 = a.malloc();
+    long p2 = a.malloc();
+    for (int i = 0; i < 6; i++) {
+      a.setInt(p1, i, i + 1);
+    }
+    a.memCopy(p1, 0, p2, 1, 5);
+    for (int i = 0; i < 5; i++) {
+      assertEquals(i + 1, a.getInt(p2, i + 1));
+    }
+    // overlapping
+    a.memCopy(p1, 0, p1, 1, 5);
+    assertEquals(1, a.getInt(p1, 0));
+    for (int i = 1; i < 6; i++) {
+      assertEquals(i, a.getInt(p1, i));
+    }
+    a.memSet(p1, 2, 3, -1);
+    assertEquals(1, a.getInt(p1, 1));
+    assertEquals(-1, a.getInt(p1, 2));
+    assertEquals(-1, a.getInt(p1, 4));
+    assertEquals(5, a.getInt(p1, 5));
+  }
+
+  @Test
+  public void testClear() {
+    LongBlockAllocator a = create(4, 2, 0, false);
+    a.malloc();
+    a.malloc();
+    a.clear();
+    assertEquals(0, a.usedBlocks());
+    assertEquals(4, a.freeBlocks());
+  }
+}
@@ -0,0 +1,77 @@
+package net.yadan.banana.memory.block;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import net.yadan.banana.memory.IBlockAllocator;
+import net.yadan.banana.memory.MemInitializer;
+
+import org.junit.Test;
+
+
+public class LongWordBlockAllocatorTest extends AbstractBlockAllocatorTest {
+  @Override
+  public IBlockAllocator create(int numBlocks, int blockSize, double growthFactor,
+      MemInitializer initializer) {
+    LongWordBlockAllocator m = new LongWordBlockAllocator(numBlocks, blockSize, growthFactor,
+        initializer);
+    m.setDebug(true);
+    return m;
+  };
+
+  @Test
+  public void testLongsAndIntViews() {
+    LongWordBlockAllocator a = new LongWordBlockAllocator(4, 5);
+    int p = a.malloc();
+    a.setLong(p, 0, 0x0102030405060708L);
+    a.setLong(p, 3, 0x1112131415161718L);
+    a.setInt(p, 2, 0x21222324);
+    assertEquals(0x0102030405060708L, a.getLong(p, 0));
+    assertEquals(0x01020304, a.getInt(p, 0));
+    assertEquals(0x05060708, a.getInt(p, 1));
+    assertEquals(0x21222324, a.getInt(p, 2));
+    assertEquals(0x11121314, a.getInt(p, 3));
+    assertEquals(0x15161718, a.getInt(p, 4));
+    assertEquals(0x0506070821222324L, a.getLong(p, 1));
+    assertEquals(0x2122232411121314L, a.getLong(p, 2));
+    assertEquals(0x1112131415161718L, a.getLong(p, 3));
+
+    a.setDouble(p, 0, Math.PI);
+    a.setDouble(p, 3, Math.E);
+    assertEquals(Math.PI, a.getDouble(p, 0), 0);
+    assertEquals(Math.E, a.getDouble(p, 3), 0);
+    assertEquals(0x21222324, a.getInt(p, 2));
+    a.free(p);
+  }
+
+  @Test
+  public void testUnalignedCopyAndSet() {
+    LongWordBlockAllocator a = new LongWordBlockAllocator(4, 7);
+    int p1 = a.malloc();
+    int p2 = a.malloc();
+    int data[] = new int[] { 1, 2, 3, 4, 5, 6, 7 };
+    a.setInts(p1, 0, data, 0, 7);
+    a.memSet(p2, 0, 7, 0);
+    a.setInts(p2, 1, data, 2, 5);
+    int out[] = new int[7];
+    a.getInts(p2, 0, out, 0, 7);
+    assertArrayEquals(new int[] { 0, 3, 4, 5, 6, 7, 0 }, out);
+    assertTrue(a.memEquals(p1, 2, p2, 1, 5));
+    assertFalse(a.memEquals(p1, 0, p2, 0, 2));
+
+    // overlapping copy within a block
+    a.memCopy(p1, 0, p1, 1, 6);
+    a.getInts(p1, 0, out, 0, 7);
+    assertArrayEquals(new int[] { 1, 1, 2, 3, 4, 5, 6 }, out);
+    a.memCopy(p1, 2, p1, 0, 4);
+    a.getInts(p1, 0, out, 0, 7);
+    assertArrayEquals(new int[] { 2, 3, 4, 5, 4, 5, 6 }, out);
+
+    a.memSet(p1, 1, 5, -1);
+    a.getInts(p1, 0, out, 0, 7);
+    assertArrayEquals(new int[] { 2, -1, -1, -1, -1, -1, 6 }, out);
+    a.free(p1);
+    a.free(p2);
+  }
+}
@@ -0,0 +1,216 @@
+package net.yadan.banana.memory.block;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.yadan.banana.map.HashMap;
+import net.yadan.banana.map.VarKeyHashMap;
+import net.yadan.banana.map.hash.SimpleHashStrategy;
+import net.yadan.banana.memory.Buffer;
+import net.yadan.banana.memory.IBlockAllocator;
+import net.yadan.banana.memory.IBuffer;
+import net.yadan.banana.memory.MemInitializer;
+import net.yadan.banana.memory.malloc.TreeAllocator;
+
+import org.junit.Test;
+
+
+public class MappedBlockAllocatorTest extends AbstractBlockAllocatorTest {
+  private static final int MAX_INTS_PER_BUFFER = 20;
+
+  static {
+    System.setProperty("MappedBlockAllocator.MAX_INTS_PER_BUFFER", "" + MAX_INTS_PER_BUFFER);
+  }
+
+  private static File tempFile() {
+    try {
+      File file = File.createTempFile("banana", ".blocks");
+      file.deleteOnExit();
+      return file;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public IBlockAllocator create(int numBlocks, int blockSize, double growthFactor,
+      MemInitializer initializer) {
+    try {
+      MappedBlockAllocator m = new MappedBlockAllocator(tempFile(), numBlocks, blockSize,
+          growthFactor, initializer);
+      m.setDebug(true);
+      return m;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  };
+
+  @Test
+  public void testGrowthOverBuffers() {
+    int initialMax = 12;
+    int pointers[] = new int[initialMax];
+    a = create(initialMax, 1, 2.0, null);
+    assertEquals(4 * (initialMax + 1), a.computeMemoryUsage());
+
+    for (int i = 0; i < initialMax; i++) {
+      int p = a.malloc();
+      a.setInt(p, 0, i);
+      pointers[i] = p;
+    }
+
+    a.malloc(); // grow * 2
+
+    assertEquals(initialMax * 2, a.maxBlocks());
+    assertEquals(initialMax + 1, a.usedBlocks());
+    // + 1 for reserved block
+    assertEquals(4 * (a.maxBlocks() + 1), a.computeMemoryUsage());
+
+    for (int i = 0; i < initialMax; i++) {
+      assertEquals(i, a.getInt(pointers[i], 0));
+    }
+
+    a.clear();
+  }
+
+  @Test
+  public void testReopen() throws IOException {
+    File file = tempFile();
+    MappedBlockAllocator m = new MappedBlockAllocator(file, 10, 3, 2.0, null);
+    int pointers[] = new int[30];
+    for (int i = 0; i < pointers.length; i++) {
+      pointers[i] = m.malloc();
+      m.setInt(pointers[i], 0, i);
+      m.setLong(pointers[i], 1, i * 1000L);
+    }
+    // leave a few blocks in the free list
+    m.free(pointers[3]);
+    m.free(pointers[7]);
+    int used = m.usedBlocks();
+    int max = m.maxBlocks();
+    m.close();
+
+    m = new MappedBlockAllocator(file, 1, 3, 2.0, null);
+    assertEquals(used, m.usedBlocks());
+    assertEquals(max, m.maxBlocks());
+    for (int i = 0; i < pointers.length; i++) {
+      if (i == 3 || i == 7) {
+        continue;
+      }
+      assertEquals(i, m.getInt(pointers[i], 0));
+      assertEquals(i * 1000L, m.getLong(pointers[i], 1));
+    }
+
+    // free list survived
+    assertEquals(pointers[7], m.malloc());
+    assertEquals(pointers[3], m.malloc());
+    m.close();
+  }
+
+  @Test
+  public void testReopenKeepsGrowthFactor() throws IOException {
+    File file = tempFile();
+    MappedBlockAllocator m = new MappedBlockAllocator(file, 2, 3, 1.5, null);
+    m.close();
+    m = new MappedBlockAllocator(file, 2, 3);
+    assertEquals(1.5, m.getGrowthFactor(), 0);
+    m.setGrowthFactor(0);
+    m.close();
+    m = new MappedBlockAllocator(file, 2, 3, 2.0, null);
+    assertEquals(0, m.getGrowthFactor(), 0);
+    m.close();
+  }
+
+  @Test
+  public void testReopenBlockSizeMismatch() throws IOException {
+    File file = tempFile();
+    MappedBlockAllocator m = new MappedBlockAllocator(file, 10, 3);
+    m.close();
+    try {
+      new MappedBlockAllocator(file, 10, 4);
+      fail();
+    } catch (IOException e) {
+    }
+  }
+
+  @Test
+  public void testReopenHashMap() throws IOException {
+    File file = tempFile();
+    MappedBlockAllocator m = new MappedBlockAllocator(file, 10, 8, 2.0, null);
+    assertEquals(-1, m.getRoot());
+    HashMap h = new HashMap(new TreeAllocator(m), 10, 0.75);
+    h.setPowerOfTwoCapacity(true);
+    h.setIncrementalResize(1);
+    for (int i = 0; i < 500; i++) {
+      h.setLong(h.createRecord(i * 7L, 2), 0, i);
+    }
+    h.remove(14);
+    m.setRoot(h.store());
+    int used = m.usedBlocks();
+    m.close();
+
+    m = new MappedBlockAllocator(file, 1, 8, 2.0, null);
+    h = new HashMap(new TreeAllocator(m), m.getRoot());
+    assertEquals(499, h.size());
+    assertTrue(h.isPowerOfTwoCapacity());
+    assertEquals(-1, h.findRecord(14));
+    for (int i = 0; i < 500; i++) {
+      if (i != 2) {
+        assertEquals(i, h.getLong(h.findRecord(i * 7L), 0));
+      }
+    }
+    // the saved state was freed
+    assertTrue(m.usedBlocks() < used);
+    h.setLong(h.createRecord(-1, 2), 0, 42);
+    assertEquals(42, h.getLong(h.findRecord(-1), 0));
+    m.close();
+  }
+
+  @Test
+  public void testReopenVarKeyHashMap() throws IOException {
+    File values = tempFile();
+    File keys = tempFile();
+    MappedBlockAllocator vm = new MappedBlockAllocator(values, 10, 8, 2.0, null);
+    MappedBlockAllocator km = new MappedBlockAllocator(keys, 10, 8, 2.0, null);
+    VarKeyHashMap h = new VarKeyHashMap(new TreeAllocator(vm), new TreeAllocator(km), 10, 0.75);
+    IBuffer key = new Buffer(10);
+    for (int i = 0; i < 200; i++) {
+      key.reset();
+      key.appendChars(("key " + i).toCharArray());
+      h.setInt(h.createRecord(key, 1), 0, i);
+    }
+    vm.setRoot(h.store());
+    vm.close();
+    km.close();
+
+    vm = new MappedBlockAllocator(values, 1, 8, 2.0, null);
+    km = new MappedBlockAllocator(keys, 1, 8, 2.0, null);
+    h = new VarKeyHashMap(new TreeAllocator(vm), new TreeAllocator(km), vm.getRoot());
+    assertEquals(200, h.size());
+    for (int i = 0; i < 200; i++) {
+      key.reset();
+      key.appendChars(("key " + i).toCharArray());
+      assertEquals(i, h.getInt(h.findRecord(key), 0));
+    }
+    vm.close();
+    km.close();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testReopenWithOtherHashStrategy() throws IOException {
+    MappedBlockAllocator m = new MappedBlockAllocator(tempFile(), 10, 8, 2.0, null);
+    HashMap h = new HashMap(new TreeAllocator(m), 10, 0.75);
+    h.setHashStrategy(new SimpleHashStrategy());
+    h.createRecord(1, 2);
+    int root = h.store();
+    new HashMap(new TreeAllocator(m), root);
+  }
+
+  @Override
+  protected boolean compactionReleasesMemory() {
+    return false;
+  }
+}
@@ -0,0 +1,76 @@
+package net.yadan.banana.memory.block;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.IntBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ParallelTest {
+
+  @Test
+  public void testForEach() {
+    final AtomicInteger counts[] = new AtomicInteger[100];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = new AtomicInteger();
+    }
+    Parallel.forEach(counts.length, 4, new Parallel.Task() {
+      @Override
+      public void run(int task) {
+        counts[task].incrementAndGet();
+      }
+    });
+    for (int i = 0; i < counts.length; i++) {
+      assertEquals(1, counts[i].get());
+    }
+  }
+
+  @Test
+  public void testForEachRethrows() {
+    try {
+      Parallel.forEach(10, 4, new Parallel.Task() {
+        @Override
+        public void run(int task) {
+          if (task == 5) {
+            throw new IllegalStateException("task " + task);
+          }
+        }
+      });
+      fail();
+    } catch (IllegalStateException e) {
+      assertEquals("task 5", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testFillArrays() {
+    int sizes[] = { 3, 0, (1 << 20) + 5, 0, 0, 1 << 20, 7 };
+    int arrays[][] = new int[sizes.length + 1][];
+    for (int i = 0; i < sizes.length; i++) {
+      arrays[i] = new int[sizes[i]];
+    }
+    // a missing array is skipped
+    arrays[sizes.length] = null;
+
+    Parallel.fill(arrays, -1, 3);
+    for (int i = 0; i < sizes.length; i++) {
+      for (int j = 0; j < sizes[i]; j++) {
+        assertEquals(-1, arrays[i][j]);
+      }
+    }
+  }
+
+  @Test
+  public void testFillBuffers() {
+    IntBuffer buffers[] = { IntBuffer.allocate((1 << 20) + 1), IntBuffer.allocate(0),
+        IntBuffer.allocate(10) };
+    Parallel.fill(buffers, 7, 2);
+    for (IntBuffer buffer : buffers) {
+      for (int j = 0; j < buffer.capacity(); j++) {
+        assertEquals(7, buffer.get(j));
+      }
+    }
+  }
+}
@@ -0,0 +1,137 @@
+package net.yadan.banana.memory.block;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import net.yadan.banana.memory.IBlockAllocator;
+import net.yadan.banana.memory.MemInitializer;
+import net.yadan.banana.memory.initializers.NullInitializer;
+import net.yadan.banana.memory.initializers.MemSetInitializer;
+
+import org.junit.Test;
+
+
+public class SegmentedBlockAllocatorTest extends AbstractBlockAllocatorTest {
+  private static final int BLOCKS_PER_SEGMENT = 4;
+
+  @Override
+  public IBlockAllocator create(int numBlocks, int blockSize, double growthFactor,
+      MemInitializer initializer) {
+    SegmentedBlockAllocator m = new SegmentedBlockAllocator(numBlocks, blockSize,
+        BLOCKS_PER_SEGMENT, growthFactor, initializer);
+    m.setDebug(true);
+    return m;
+  };
+
+  @Test
+  public void testBlocksPerSegmentRounding() {
+    SegmentedBlockAllocator m = new SegmentedBlockAllocator(10, 2, 5, 0, null);
+    assertEquals(8, m.getBlocksPerSegment());
+    m = new SegmentedBlockAllocator(10, 2, 1, 0, null);
+    assertEquals(1, m.getBlocksPerSegment());
+  }
+
+  @Test
+  public void testSegmentsAllocatedOnDemand() {
+    a = create(20, 2, 0, null);
+    // only the first segment, which holds the reserved block
+    assertEquals(4 * 2 * BLOCKS_PER_SEGMENT, a.computeMemoryUsage());
+    int pointers[] = new int[BLOCKS_PER_SEGMENT];
+    for (int i = 0; i < BLOCKS_PER_SEGMENT; i++) {
+      pointers[i] = a.malloc();
+    }
+    assertEquals(2 * 4 * 2 * BLOCKS_PER_SEGMENT, a.computeMemoryUsage());
+    for (int i = 0; i < BLOCKS_PER_SEGMENT; i++) {
+      a.free(pointers[i]);
+    }
+  }
+
+  @Test
+  public void testSmallAllocatorDoesNotReserveFullSegment() {
+    SegmentedBlockAllocator a = new SegmentedBlockAllocator(10, 2, 1 << 16, 0, null);
+    // 10 blocks and the reserved block
+    assertEquals(4 * 2 * 11, a.computeMemoryUsage());
+  }
+
+  @Test
+  public void testGrowthExtendsPartialSegment() {
+    a = create(2, 2, 2.0, null);
+    // the reserved block and 2 blocks
+    assertEquals(4 * 2 * 3, a.computeMemoryUsage());
+    int p1 = a.malloc();
+    int p2 = a.malloc();
+    a.setLong(p1, 0, 1);
+    a.setLong(p2, 0, 2);
+
+    int p3 = a.malloc(); // grow to 4 blocks, filling the first segment
+    a.setLong(p3, 0, 3);
+    assertEquals(4 * 2 * BLOCKS_PER_SEGMENT, a.computeMemoryUsage());
+    assertEquals(1, a.getLong(p1, 0));
+    assertEquals(2, a.getLong(p2, 0));
+    assertEquals(3, a.getLong(p3, 0));
+    a.free(p1);
+    a.free(p2);
+    a.free(p3);
+  }
+
+  @Test
+  public void testGrowthDoesNotCopy() {
+    int initialMax = 10;
+    int pointers[] = new int[initialMax];
+    double growthFactor = 2.0;
+
+    a = create(initialMax, 2, growthFactor, new MemSetInitializer(-1));
+    for (int i = 0; i < initialMax; i++) {
+      int p = a.malloc();
+      a.setLong(p, 0, i);
+      pointers[i] = p;
+    }
+
+    int firstSegment[] = ((SegmentedBlockAllocator) a).m_segments[0];
+    assertEquals(0, a.freeBlocks());
+
+    a.malloc(); // grow
+
+    assertSame(firstSegment, ((SegmentedBlockAllocator) a).m_segments[0]);
+    assertEquals((int) (initialMax * growthFactor), a.maxBlocks());
+    assertEquals(initialMax + 1, a.usedBlocks());
+    assertEquals(a.maxBlocks() - a.usedBlocks(), a.freeBlocks());
+
+    for (int i = 0; i < initialMax; i++) {
+      assertEquals(i, a.getLong(pointers[i], 0));
+    }
+
+    a.clear();
+  }
+
+  @Test
+  public void testMultiSegmentIntAccess() {
+    a = create(60, 1, 2.0, null);
+    int pointers[] = new int[a.maxBlocks()];
+    for (int i = 0; i < a.maxBlocks(); i++) {
+      int p = a.malloc();
+      pointers[i] = p;
+      a.setInt(p, 0, i);
+      assertEquals(i, a.getInt(p, 0));
+    }
+
+    for (int i = 0; i < a.maxBlocks(); i++) {
+      assertEquals(i, a.getInt(pointers[i], 0));
+      a.free(pointers[i]);
+    }
+  }
+
+  @Test
+  public void testParallelClear() {
+    SegmentedBlockAllocator a = new SegmentedBlockAllocator(10, 3, BLOCKS_PER_SEGMENT, 0,
+        new NullInitializer());
+    a.malloc();
+    a.clear(-1, 4);
+    assertEquals(0, a.usedBlocks());
+    for (int i = 0; i < 10; i++) {
+      int p = a.malloc();
+      for (int j = 0; j < 3; j++) {
+        assertEquals(-1, a.getInt(p, j));
+      }
+    }
+  }
+}
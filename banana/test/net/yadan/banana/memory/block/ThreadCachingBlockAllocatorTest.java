@@ -0,0 +1,215 @@
+package net.yadan.banana.memory.block;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.yadan.banana.memory.IBlockAllocator;
+import net.yadan.banana.memory.MemInitializer;
+import net.yadan.banana.memory.OutOfMemoryException;
+
+import org.junit.Test;
+
+
+public class ThreadCachingBlockAllocatorTest extends AbstractBlockAllocatorTest {
+
+  @Override
+  public IBlockAllocator create(int numBlocks, int blockSize, double growthFactor,
+      MemInitializer initializer) {
+    BlockAllocator shared = new BlockAllocator(numBlocks, blockSize, growthFactor, initializer);
+    shared.setDebug(true);
+    return new ThreadCachingBlockAllocator(shared, 4);
+  };
+
+  @Test
+  public void testFreedBlocksAreCached() {
+    ThreadCachingBlockAllocator m = new ThreadCachingBlockAllocator(new BlockAllocator(100, 2), 8);
+    a = m;
+    int p = m.malloc();
+    assertEquals(1, m.usedBlocks());
+    // first refill takes half a cache
+    assertEquals(3, m.cachedBlocks());
+    m.free(p);
+    assertEquals(0, m.usedBlocks());
+    assertEquals(4, m.cachedBlocks());
+    assertEquals(p, m.malloc());
+    m.free(p);
+
+    m.flush();
+    assertEquals(0, m.cachedBlocks());
+    assertEquals(0, m.getShared().usedBlocks());
+  }
+
+  @Test
+  public void testSpill() {
+    ThreadCachingBlockAllocator m = new ThreadCachingBlockAllocator(new BlockAllocator(100, 2), 8);
+    a = m;
+    int pointers[] = new int[20];
+    for (int i = 0; i < pointers.length; i++) {
+      pointers[i] = m.malloc();
+    }
+    for (int i = 0; i < pointers.length; i++) {
+      m.free(pointers[i]);
+      assertTrue(m.cachedBlocks() <= 8);
+    }
+    assertEquals(0, m.usedBlocks());
+  }
+
+  @Test
+  public void testRefillAndSpillInBatches() {
+    // the shared allocator is only used in batches
+    BlockAllocator shared = new BlockAllocator(100, 2) {
+      @Override
+      public int malloc() {
+        throw new AssertionError("single block malloc");
+      }
+
+      @Override
+      public void free(int pointer) {
+        throw new AssertionError("single block free");
+      }
+    };
+    ThreadCachingBlockAllocator m = new ThreadCachingBlockAllocator(shared, 8);
+    int pointers[] = new int[20];
+    for (int i = 0; i < pointers.length; i++) {
+      pointers[i] = m.malloc();
+    }
+    assertEquals(20, shared.usedBlocks());
+    for (int i = 0; i < pointers.length; i++) {
+      m.free(pointers[i]);
+    }
+    m.flush();
+    assertEquals(0, shared.usedBlocks());
+  }
+
+  @Test
+  public void testPartialRefill() {
+    ThreadCachingBlockAllocator m = new ThreadCachingBlockAllocator(new BlockAllocator(6, 2), 8);
+    for (int i = 0; i < 6; i++) {
+      m.malloc();
+    }
+    // the second refill only found 2 blocks
+    assertEquals(6, m.usedBlocks());
+    assertEquals(0, m.cachedBlocks());
+    try {
+      m.malloc();
+      fail();
+    } catch (OutOfMemoryException e) {
+    }
+  }
+
+  @Test
+  public void testClearDiscardsCaches() {
+    ThreadCachingBlockAllocator m = new ThreadCachingBlockAllocator(new BlockAllocator(10, 2), 8);
+    m.malloc();
+    assertEquals(3, m.cachedBlocks());
+    m.clear();
+    assertEquals(0, m.cachedBlocks());
+    assertEquals(0, m.usedBlocks());
+    assertEquals(10, m.freeBlocks());
+  }
+
+  @Test
+  public void testConcurrentMallocFree() throws InterruptedException {
+    final int numThreads = 4;
+    final int iterations = 20000;
+    final int blocksPerThread = 50;
+    final ThreadCachingBlockAllocator m = new ThreadCachingBlockAllocator(new BlockAllocator(
+        numThreads * (blocksPerThread + 64), 2), 64);
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    Thread threads[] = new Thread[numThreads];
+    for (int t = 0; t < numThreads; t++) {
+      final int id = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            int pointers[] = new int[blocksPerThread];
+            for (int i = 0; i < iterations; i++) {
+              int slot = i % blocksPerThread;
+              if (i >= blocksPerThread) {
+                int p = pointers[slot];
+                assertEquals(id, m.getInt(p, 0));
+                assertEquals(i - blocksPerThread, m.getInt(p, 1));
+                m.free(p);
+              }
+              int p = m.malloc();
+              m.setInt(p, 0, id);
+              m.setInt(p, 1, i);
+              pointers[slot] = p;
+            }
+            for (int i = 0; i < blocksPerThread; i++) {
+              m.free(pointers[i]);
+            }
+            m.flush();
+          } catch (Throwable e) {
+            error.set(e);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    if (error.get() != null) {
+      throw new AssertionError(error.get());
+    }
+    assertEquals(0, m.getShared().usedBlocks());
+  }
+
+  @Test
+  public void testDeadThreadCacheReclaimed() throws InterruptedException {
+    final ThreadCachingBlockAllocator m = new ThreadCachingBlockAllocator(new BlockAllocator(8, 2),
+        8);
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        m.free(m.malloc());
+      }
+    };
+    thread.start();
+    thread.join();
+    // the dead thread cached 4 blocks without flushing
+    assertEquals(4, m.getShared().usedBlocks());
+
+    assertEquals(0, m.cachedBlocks());
+    assertEquals(0, m.getShared().usedBlocks());
+  }
+
+  @Test
+  public void testDeadThreadCacheReclaimedOnOutOfMemory() throws InterruptedException {
+    final ThreadCachingBlockAllocator m = new ThreadCachingBlockAllocator(new BlockAllocator(8, 2),
+        16);
+    m.malloc(); // registers this thread, caches 7 blocks
+    m.flush();
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        m.free(m.malloc());
+      }
+    };
+    thread.start();
+    thread.join();
+    assertEquals(8, m.getShared().usedBlocks());
+
+    // all remaining blocks are stranded in the dead thread's cache
+    for (int i = 0; i < 7; i++) {
+      m.malloc();
+    }
+    assertEquals(8, m.usedBlocks());
+  }
+
+  @Override
+  protected boolean supportsCompaction() {
+    return false;
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testCompactUnsupported() {
+    create(10, 2, 0, null).compact(null);
+  }
+}
@@ -0,0 +1,54 @@
+package net.yadan.banana.memory.growth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import net.yadan.banana.memory.OutOfMemoryException;
+
+import org.junit.Test;
+
+public class BoundedGrowthPolicyTest {
+
+  @Test
+  public void testGeometric() {
+    BoundedGrowthPolicy p = new BoundedGrowthPolicy(2.0);
+    assertEquals(20, p.grow(10, 11, 4));
+    assertEquals(2, p.grow(1, 2, 4));
+    assertEquals(100, p.grow(10, 100, 4));
+  }
+
+  @Test
+  public void testGeometricThenLinear() {
+    BoundedGrowthPolicy p = new BoundedGrowthPolicy(2.0);
+    p.setLinearGrowth(400, 40);
+    assertEquals(80, p.grow(40, 41, 4));
+    assertEquals(110, p.grow(100, 101, 4));
+    assertEquals(210, p.grow(200, 201, 4));
+    // step smaller than a unit still grows
+    assertEquals(201, p.grow(200, 201, 100));
+  }
+
+  @Test
+  public void testMaxBytes() {
+    BoundedGrowthPolicy p = new BoundedGrowthPolicy(2.0);
+    p.setMaxBytes(1000);
+    assertEquals(250, p.grow(200, 201, 4));
+    try {
+      p.grow(250, 251, 4);
+      fail();
+    } catch (OutOfMemoryException e) {
+    }
+  }
+
+  @Test
+  public void testCheckHeap() {
+    BoundedGrowthPolicy p = new BoundedGrowthPolicy(2.0);
+    p.checkAllocation(Long.MAX_VALUE);
+    p.setCheckHeap(true);
+    p.checkAllocation(1024);
+    try {
+      p.checkAllocation(Long.MAX_VALUE);
+      fail();
+    } catch (OutOfMemoryException e) {
+    }
+  }
+}
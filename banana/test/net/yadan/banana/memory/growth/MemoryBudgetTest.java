@@ -0,0 +1,219 @@
+package net.yadan.banana.memory.growth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.yadan.banana.memory.OutOfMemoryException;
+import net.yadan.banana.memory.block.BlockAllocator;
+import net.yadan.banana.utils.LRU;
+
+import org.junit.Test;
+
+public class MemoryBudgetTest {
+
+  @Test
+  public void testGrowthWithinBudget() {
+    MemoryBudget budget = new MemoryBudget(1000);
+    // 2 blocks of 10 ints
+    BlockAllocator a = new BlockAllocator(1, 10, 0);
+    a.setGrowthPolicy(budget.newPolicy(new BoundedGrowthPolicy(2.0)));
+    budget.register(a);
+    assertEquals(80, budget.computeMemoryUsage());
+
+    // grows to 4, 8 and 16 blocks (640 bytes) while the old buffer is alive
+    for (int i = 0; i < 15; i++) {
+      a.malloc();
+    }
+    assertEquals(640, budget.computeMemoryUsage());
+    try {
+      a.malloc();
+      fail();
+    } catch (OutOfMemoryException e) {
+    }
+    assertEquals(640, a.computeMemoryUsage());
+
+    assertTrue(budget.unregister(a));
+    assertEquals(0, budget.computeMemoryUsage());
+  }
+
+  @Test
+  public void testEvictsToMakeRoom() {
+    LRU lru = new LRU(100, LRU.DataType.LONG);
+    for (int i = 0; i < 100; i++) {
+      lru.addLong(i, i);
+    }
+    long lruUsage = lru.computeMemoryUsage();
+
+    MemoryBudget budget = new MemoryBudget(lruUsage + 1000);
+    budget.register(lru);
+    BlockAllocator a = new BlockAllocator(1, 10, 0);
+    a.setGrowthPolicy(budget.newPolicy(new BoundedGrowthPolicy(2.0)));
+    budget.register(a);
+
+    int allocated = 0;
+    try {
+      for (; allocated < 31; allocated++) {
+        a.malloc();
+      }
+      fail();
+    } catch (OutOfMemoryException e) {
+    }
+    // growing to 32 blocks does not fit next to the full LRU, which only
+    // releases memory on its next operation
+    assertEquals(100, lru.size());
+    assertTrue(lru.exists(99));
+    assertTrue(lru.size() < 100);
+
+    for (; allocated < 31; allocated++) {
+      a.malloc();
+    }
+    assertTrue(budget.computeMemoryUsage() <= budget.getMaxBytes());
+  }
+
+  @Test
+  public void testMembersOfOtherThreads() throws InterruptedException {
+    final LRU lru = new LRU(1000, LRU.DataType.LONG);
+    for (int i = 0; i < 1000; i++) {
+      lru.addLong(i, i);
+    }
+    MemoryBudget budget = new MemoryBudget(lru.computeMemoryUsage() + 1000);
+    budget.register(lru);
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    final AtomicBoolean done = new AtomicBoolean();
+
+    // the LRU is only used by its own thread, the budget never touches it
+    Thread owner = new Thread() {
+      @Override
+      public void run() {
+        try {
+          for (int i = 0; i < 200000; i++) {
+            long key = i % 3000;
+            lru.addLong(key, i);
+            assertEquals(i, lru.getLong(key));
+            assertTrue(lru.size() <= lru.capacity());
+          }
+        } catch (Throwable e) {
+          error.set(e);
+        } finally {
+          done.set(true);
+        }
+      }
+    };
+    owner.start();
+
+    BlockAllocator a = new BlockAllocator(1, 10, 0);
+    a.setGrowthPolicy(budget.newPolicy(new BoundedGrowthPolicy(2.0)));
+    budget.register(a);
+    int allocated = 0;
+    while (!done.get() && allocated < 100) {
+      try {
+        a.malloc();
+        allocated++;
+      } catch (OutOfMemoryException e) {
+        Thread.yield();
+      }
+    }
+    owner.join();
+    if (error.get() != null) {
+      throw new AssertionError(error.get());
+    }
+    assertEquals(1000, lru.capacity());
+    assertTrue(lru.limit() < 1000);
+  }
+
+  @Test(timeout = 10000)
+  public void testWaitsForEviction() throws InterruptedException {
+    final LRU lru = new LRU(100, LRU.DataType.LONG);
+    for (int i = 0; i < 100; i++) {
+      lru.addLong(i, i);
+    }
+    MemoryBudget budget = new MemoryBudget(lru.computeMemoryUsage() + 1000);
+    budget.setMaxWait(5000);
+    budget.register(lru);
+    final AtomicBoolean done = new AtomicBoolean();
+
+    // the LRU evicts on its own thread, while the growth waits for it
+    Thread owner = new Thread() {
+      @Override
+      public void run() {
+        while (!done.get()) {
+          lru.exists(99);
+          Thread.yield();
+        }
+      }
+    };
+    owner.start();
+
+    BlockAllocator a = new BlockAllocator(1, 10, 0);
+    a.setGrowthPolicy(budget.newPolicy(new BoundedGrowthPolicy(2.0)));
+    budget.register(a);
+    try {
+      // growing to 32 blocks does not fit next to the full LRU
+      for (int i = 0; i < 31; i++) {
+        a.malloc();
+      }
+    } finally {
+      done.set(true);
+      owner.join();
+    }
+    assertTrue(lru.size() < 100);
+    assertTrue(budget.computeMemoryUsage() <= budget.getMaxBytes());
+  }
+
+  @Test
+  public void testEvictedLRUGrowsBack() {
+    LRU lru = new LRU(100, LRU.DataType.LONG);
+    for (int i = 0; i < 100; i++) {
+      lru.addLong(i, i);
+    }
+    MemoryBudget budget = new MemoryBudget(lru.computeMemoryUsage() + 1000);
+    budget.register(lru);
+    BlockAllocator a = new BlockAllocator(1, 10, 0);
+    a.setGrowthPolicy(budget.newPolicy(new BoundedGrowthPolicy(2.0)));
+    budget.register(a);
+    int allocated = 0;
+    try {
+      for (; allocated < 31; allocated++) {
+        a.malloc();
+      }
+      fail();
+    } catch (OutOfMemoryException e) {
+    }
+    assertTrue(lru.exists(99));
+    assertTrue(lru.limit() < 100);
+    for (; allocated < 31; allocated++) {
+      a.malloc();
+    }
+
+    // the LRU only grows into the room left by the allocator
+    for (int i = 100; i < 300; i++) {
+      lru.addLong(i, i);
+    }
+    assertTrue(lru.limit() < 100);
+
+    // and grows back to its capacity once it has
+    budget.unregister(a);
+    for (int i = 300; i < 600; i++) {
+      lru.addLong(i, i);
+    }
+    assertEquals(100, lru.limit());
+    assertEquals(100, lru.size());
+  }
+
+  @Test
+  public void testRefusesWhenNothingToEvict() {
+    MemoryBudget budget = new MemoryBudget(100);
+    BlockAllocator a = new BlockAllocator(1, 10, 0);
+    budget.register(a);
+    try {
+      budget.reserve(100);
+      fail();
+    } catch (OutOfMemoryException e) {
+    }
+    budget.reserve(20);
+  }
+}
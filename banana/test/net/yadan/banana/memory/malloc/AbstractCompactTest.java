@@ -0,0 +1,88 @@
+package net.yadan.banana.memory.malloc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import net.yadan.banana.memory.IMemAllocator;
+import net.yadan.banana.memory.Relocation;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+@RunWith(value = Parameterized.class)
+public abstract class AbstractCompactTest {
+
+  protected IMemAllocator m;
+  protected int m_allocationSize;
+
+  public AbstractCompactTest(int numBlocks, int blockSize, int allocationSize) {
+    m_allocationSize = allocationSize;
+    m = create(numBlocks, blockSize);
+  }
+
+  /**
+   * @return an allocator with growth enabled
+   */
+  public abstract IMemAllocator create(int numBlocks, int blockSize);
+
+  @Parameters
+  public static Collection<Object[]> data() {
+    //@formatter:off
+    Object[][] data = new Object[][] {
+        { 10, 5, 5}, // normal non indexed block
+        { 10, 5, 10},// single index block
+        { 10, 5, 20},// single index block, full utilization
+        { 10, 3, 7},
+        { 10, 3, 60},
+    };
+    return Arrays.asList(data);
+  }
+  //@formatter:on
+
+  @After
+  public void postTest() {
+    if (m != null) {
+      assertEquals("Test leaks memory", 0, m.usedBlocks());
+    }
+    m = null;
+  }
+
+  @Test
+  public void testCompact() {
+    int pointers[] = new int[30];
+    for (int i = 0; i < pointers.length; i++) {
+      pointers[i] = m.malloc(m_allocationSize);
+      for (int j = 0; j < m_allocationSize; j++) {
+        m.setInt(pointers[i], j, i * 1000 + j);
+      }
+    }
+
+    int blocksPerAllocation = m.usedBlocks() / pointers.length;
+    for (int i = 0; i < pointers.length; i++) {
+      if (i % 3 != 0) {
+        m.free(pointers[i]);
+      }
+    }
+
+    Relocation relocation = new Relocation();
+    m.compact(relocation);
+    assertEquals(10 * blocksPerAllocation, m.usedBlocks());
+    assertEquals(10 * blocksPerAllocation, m.maxBlocks());
+
+    for (int i = 0; i < pointers.length; i += 3) {
+      pointers[i] = m.relocate(pointers[i], relocation);
+      for (int j = 0; j < m_allocationSize; j++) {
+        assertEquals(i * 1000 + j, m.getInt(pointers[i], j));
+      }
+    }
+
+    for (int i = 0; i < pointers.length; i += 3) {
+      m.free(pointers[i]);
+    }
+  }
+}
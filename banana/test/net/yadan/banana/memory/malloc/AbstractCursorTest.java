@@ -0,0 +1,170 @@
+package net.yadan.banana.memory.malloc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import net.yadan.banana.memory.ICursor;
+import net.yadan.banana.memory.IMemAllocator;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+@RunWith(value = Parameterized.class)
+public abstract class AbstractCursorTest {
+
+  protected IMemAllocator m;
+  protected int m_allocationSize;
+
+  public AbstractCursorTest(int numBlocks, int blockSize, int allocationSize) {
+    m_allocationSize = allocationSize;
+    m = create(numBlocks, blockSize);
+  }
+
+  public abstract IMemAllocator create(int numBlocks, int blockSize);
+
+  @Parameters
+  public static Collection<Object[]> data() {
+    //@formatter:off
+    Object[][] data = new Object[][] {
+        { 10, 5, 5}, // normal non indexed block
+        { 10, 5, 20},// single index block, full utilization
+        { 10, 3, 7},
+        { 50, 3, 60},
+    };
+    return Arrays.asList(data);
+  }
+  //@formatter:on
+
+  @After
+  public void postTest() {
+    if (m != null) {
+      assertEquals("Test leaks memory", 0, m.usedBlocks());
+    }
+    m = null;
+  }
+
+  private int allocate() {
+    int pointer = m.malloc(m_allocationSize);
+    for (int i = 0; i < m_allocationSize; i++) {
+      m.setInt(pointer, i, 1000 + i);
+    }
+    return pointer;
+  }
+
+  @Test
+  public void testNextInt() {
+    int pointer = allocate();
+    ICursor c = m.createCursor();
+    c.open(pointer);
+    assertEquals(pointer, c.pointer());
+    for (int i = 0; i < m_allocationSize; i++) {
+      assertEquals(i, c.position());
+      assertEquals(1000 + i, c.nextInt());
+    }
+    assertEquals(m_allocationSize, c.position());
+    m.free(pointer);
+  }
+
+  @Test
+  public void testNextInts() {
+    int pointer = allocate();
+    ICursor c = m.createCursor();
+    c.open(pointer);
+    int res[] = new int[m_allocationSize + 2];
+    c.nextInts(res, 1, 1);
+    c.nextInts(res, 2, m_allocationSize - 1);
+    for (int i = 0; i < m_allocationSize; i++) {
+      assertEquals(1000 + i, res[i + 1]);
+    }
+    assertEquals(0, res[0]);
+    assertEquals(0, res[m_allocationSize + 1]);
+    m.free(pointer);
+  }
+
+  @Test
+  public void testSeek() {
+    int pointer = allocate();
+    ICursor c = m.createCursor();
+    c.open(pointer);
+    for (int i = m_allocationSize - 1; i >= 0; i--) {
+      c.seek(i);
+      assertEquals(1000 + i, c.nextInt());
+    }
+    c.seek(m_allocationSize / 2);
+    assertEquals(1000 + m_allocationSize / 2, c.nextInt());
+    c.seek(m_allocationSize - 1);
+    assertEquals(1000 + m_allocationSize - 1, c.nextInt());
+    c.seek(0);
+    assertEquals(1000, c.nextInt());
+    m.free(pointer);
+  }
+
+  @Test
+  public void testNextLongAndDouble() {
+    int pointer = m.malloc(m_allocationSize);
+    int count = m_allocationSize / 2;
+    for (int i = 0; i < count; i++) {
+      m.setLong(pointer, i * 2, 1L << 40 | i);
+    }
+    ICursor c = m.createCursor();
+    c.open(pointer);
+    for (int i = 0; i < count; i++) {
+      assertEquals(1L << 40 | i, c.nextLong());
+    }
+
+    for (int i = 0; i < count; i++) {
+      m.setDouble(pointer, i * 2, i + 0.5);
+    }
+    c.seek(0);
+    for (int i = 0; i < count; i++) {
+      assertEquals(i + 0.5, c.nextDouble(), 0);
+    }
+
+    m.setFloat(pointer, 0, 3.5f);
+    c.seek(0);
+    assertEquals(3.5f, c.nextFloat(), 0);
+    m.free(pointer);
+  }
+
+  @Test
+  public void testNextChars() {
+    int pointer = m.malloc(m_allocationSize);
+    char chars[] = new char[m_allocationSize * 2 - 1];
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = (char) ('a' + i % 26);
+    }
+    m.setChars(pointer, 0, chars, 0, chars.length);
+    ICursor c = m.createCursor();
+    c.open(pointer);
+    char res[] = new char[chars.length];
+    c.nextChars(res, 0, res.length);
+    assertArrayEquals(chars, res);
+    m.free(pointer);
+  }
+
+  @Test
+  public void testReopen() {
+    int pointers[] = new int[3];
+    for (int i = 0; i < pointers.length; i++) {
+      pointers[i] = m.malloc(m_allocationSize);
+      m.memSet(pointers[i], 0, m_allocationSize, i);
+    }
+    ICursor c = m.createCursor();
+    for (int i = 0; i < pointers.length; i++) {
+      c.open(pointers[i]);
+      assertEquals(0, c.position());
+      for (int j = 0; j < m_allocationSize; j++) {
+        assertEquals(i, c.nextInt());
+      }
+    }
+    for (int i = 0; i < pointers.length; i++) {
+      m.free(pointers[i]);
+    }
+  }
+}
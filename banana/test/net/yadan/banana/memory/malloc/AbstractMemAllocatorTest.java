@@ -3,6 +3,7 @@ package net.yadan.banana.memory.malloc;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
 
 import java.util.Arrays;
 import java.util.Collection;
@@ -54,6 +55,52 @@ public abstract class AbstractMemAllocatorTest {
     m = null;
   }
 
+  @Test
+  public void testSetGetIntsArrayPositions() {
+    int p = m.malloc(m_allocationSize);
+    int src[] = new int[m_allocationSize + 3];
+    for (int i = 0; i < src.length; i++) {
+      src[i] = i;
+    }
+    int length = m_allocationSize - 1;
+    m.setInts(p, 1, src, 3, length);
+    int dst[] = new int[length + 2];
+    m.getInts(p, 1, dst, 2, length);
+    for (int i = 0; i < length; i++) {
+      assertEquals(3 + i, m.getInt(p, 1 + i));
+      assertEquals(3 + i, dst[2 + i]);
+    }
+    m.free(p);
+  }
+
+  @Test
+  public void testBytes() {
+    int p = m.malloc(m_allocationSize);
+    m.memSet(p, 0, m_allocationSize, 0);
+    int numBytes = m_allocationSize * 4 - 3;
+    byte src[] = new byte[numBytes + 1];
+    for (int i = 0; i < src.length; i++) {
+      src[i] = (byte) (i * 7 + 200);
+    }
+    m.setInt(p, m_allocationSize - 1, -1);
+    m.setBytes(p, 0, src, 1, numBytes);
+    byte dst[] = new byte[numBytes + 2];
+    m.getBytes(p, 0, dst, 2, numBytes);
+    for (int i = 0; i < numBytes; i++) {
+      assertEquals(src[i + 1], dst[i + 2]);
+      assertEquals(src[i + 1], m.getByte(p, i));
+    }
+    // bytes past the copied range are unchanged
+    assertEquals((byte) 0xff, m.getByte(p, numBytes));
+    assertEquals((byte) 0xff, m.getByte(p, numBytes + 2));
+
+    m.setByte(p, 5, 0x1ab);
+    assertEquals((byte) 0xab, m.getByte(p, 5));
+    assertEquals(src[5], m.getByte(p, 4));
+    assertEquals(src[7], m.getByte(p, 6));
+    m.free(p);
+  }
+
   @Test
   public void testUpperShort() {
     int p = m.malloc(m_allocationSize);
@@ -429,4 +476,34 @@ public abstract class AbstractMemAllocatorTest {
   public String toString() {
     return m.toString();
   }
+
+  @Test
+  public void testBulkMallocFree() {
+    int pointers[] = new int[3];
+    m.malloc(m_allocationSize, pointers.length, pointers);
+    int single = m.malloc(m_allocationSize);
+    for (int i = 0; i < pointers.length; i++) {
+      for (int j = 0; j < m_allocationSize; j++) {
+        m.setInt(pointers[i], j, i * 1000 + j);
+      }
+    }
+    for (int i = 0; i < pointers.length; i++) {
+      for (int j = 0; j < m_allocationSize; j++) {
+        assertEquals(i * 1000 + j, m.getInt(pointers[i], j));
+      }
+    }
+    m.free(pointers, 0, pointers.length);
+    m.free(single);
+  }
+
+  @Test
+  public void testBulkMallocOutOfMemory() {
+    int pointers[] = new int[m.maxBlocks() + 1];
+    try {
+      m.malloc(m_allocationSize, pointers.length, pointers);
+      fail();
+    } catch (OutOfMemoryException e) {
+    }
+    assertEquals(0, m.usedBlocks());
+  }
 }
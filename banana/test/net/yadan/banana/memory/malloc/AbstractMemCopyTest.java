@@ -0,0 +1,224 @@
+package net.yadan.banana.memory.malloc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.yadan.banana.memory.IMemAllocator;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+@RunWith(value = Parameterized.class)
+public abstract class AbstractMemCopyTest {
+
+  protected IMemAllocator m;
+  protected int m_allocationSize;
+
+  public AbstractMemCopyTest(int numBlocks, int blockSize, int allocationSize) {
+    m_allocationSize = allocationSize;
+    m = create(numBlocks, blockSize);
+  }
+
+  /**
+   * @return an allocator with growth enabled
+   */
+  public abstract IMemAllocator create(int numBlocks, int blockSize);
+
+  @Parameters
+  public static Collection<Object[]> data() {
+    //@formatter:off
+    Object[][] data = new Object[][] {
+        { 10, 5, 5}, // normal non indexed block
+        { 10, 5, 10},// single index block
+        { 10, 5, 20},// single index block, full utilization
+        { 10, 3, 7},
+        { 50, 3, 60},
+    };
+    return Arrays.asList(data);
+  }
+  //@formatter:on
+
+  @After
+  public void postTest() {
+    if (m != null) {
+      assertEquals("Test leaks memory", 0, m.usedBlocks());
+    }
+    m = null;
+  }
+
+  private int allocate(int base) {
+    int pointer = m.malloc(m_allocationSize);
+    for (int i = 0; i < m_allocationSize; i++) {
+      m.setInt(pointer, i, base + i);
+    }
+    return pointer;
+  }
+
+  @Test
+  public void testMemCopy() {
+    int p1 = allocate(100);
+    int p2 = allocate(0);
+    m.memCopy(p1, 0, p2, 0, m_allocationSize);
+    for (int i = 0; i < m_allocationSize; i++) {
+      assertEquals(100 + i, m.getInt(p2, i));
+    }
+    m.free(p1);
+    m.free(p2);
+  }
+
+  @Test
+  public void testMemCopyOffsets() {
+    int p1 = allocate(100);
+    int p2 = allocate(0);
+    int length = m_allocationSize - 2;
+    m.memCopy(p1, 2, p2, 1, length);
+    assertEquals(0, m.getInt(p2, 0));
+    for (int i = 0; i < length; i++) {
+      assertEquals(102 + i, m.getInt(p2, 1 + i));
+    }
+    assertEquals(m_allocationSize - 1, m.getInt(p2, m_allocationSize - 1));
+    m.free(p1);
+    m.free(p2);
+  }
+
+  @Test
+  public void testMemMoveForward() {
+    for (int shift = 1; shift < m_allocationSize; shift += 2) {
+      int p = allocate(0);
+      int length = m_allocationSize - shift;
+      m.memMove(p, 0, p, shift, length);
+      for (int i = 0; i < shift; i++) {
+        assertEquals(i, m.getInt(p, i));
+      }
+      for (int i = 0; i < length; i++) {
+        assertEquals(i, m.getInt(p, shift + i));
+      }
+      m.free(p);
+    }
+  }
+
+  @Test
+  public void testMemMoveBackward() {
+    for (int shift = 1; shift < m_allocationSize; shift += 2) {
+      int p = allocate(0);
+      int length = m_allocationSize - shift;
+      m.memMove(p, shift, p, 0, length);
+      for (int i = 0; i < length; i++) {
+        assertEquals(shift + i, m.getInt(p, i));
+      }
+      for (int i = length; i < m_allocationSize; i++) {
+        assertEquals(i, m.getInt(p, i));
+      }
+      m.free(p);
+    }
+  }
+
+  @Test
+  public void testMemCopyToOtherAllocator() {
+    int p1 = allocate(100);
+    ArenaAllocator arena = new ArenaAllocator(1, m_allocationSize + 1);
+    int p2 = arena.malloc(m_allocationSize);
+    m.memCopy(p1, 1, arena, p2, 0, m_allocationSize - 1);
+    for (int i = 0; i < m_allocationSize - 1; i++) {
+      assertEquals(101 + i, arena.getInt(p2, i));
+    }
+
+    m.memSet(p1, 0, m_allocationSize, 0);
+    arena.memCopy(p2, 0, m, p1, 1, m_allocationSize - 1);
+    for (int i = 0; i < m_allocationSize - 1; i++) {
+      assertEquals(101 + i, m.getInt(p1, 1 + i));
+    }
+    m.free(p1);
+  }
+
+  @Test
+  public void testMemEquals() {
+    int p1 = allocate(0);
+    int p2 = allocate(0);
+    int p3 = allocate(1);
+    assertTrue(m.memEquals(p1, 0, p2, 0, m_allocationSize));
+    assertTrue(m.memEquals(p1, 1, p3, 0, m_allocationSize - 1));
+    assertFalse(m.memEquals(p1, 0, p3, 0, m_allocationSize));
+    m.setInt(p2, m_allocationSize - 1, -1);
+    assertFalse(m.memEquals(p1, 0, p2, 0, m_allocationSize));
+    assertTrue(m.memEquals(p1, 0, p2, 0, m_allocationSize - 1));
+    m.free(p1);
+    m.free(p2);
+    m.free(p3);
+  }
+
+  @Test
+  public void testMemEqualsArray() {
+    int p = allocate(0);
+    int data[] = new int[m_allocationSize + 1];
+    for (int i = 0; i < m_allocationSize; i++) {
+      data[i + 1] = i;
+    }
+    assertTrue(m.memEquals(p, 0, data, 1, m_allocationSize));
+    assertTrue(m.memEquals(p, 1, data, 2, m_allocationSize - 1));
+    assertFalse(m.memEquals(p, 0, data, 0, m_allocationSize));
+    data[m_allocationSize] = -1;
+    assertFalse(m.memEquals(p, 0, data, 1, m_allocationSize));
+    m.free(p);
+  }
+
+  @Test
+  public void testConcurrentReads() throws InterruptedException {
+    final int numThreads = 2;
+    final int pointers[] = new int[numThreads];
+    final int copies[] = new int[numThreads];
+    for (int t = 0; t < numThreads; t++) {
+      pointers[t] = allocate(1000 * t);
+      copies[t] = allocate(1000 * t);
+    }
+
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    Thread threads[] = new Thread[numThreads];
+    for (int t = 0; t < numThreads; t++) {
+      final int id = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            int data[] = new int[m_allocationSize];
+            for (int i = 0; i < m_allocationSize; i++) {
+              data[i] = 1000 * id + i;
+            }
+            byte bytes[] = new byte[m_allocationSize * 4];
+            for (int i = 0; i < 20000; i++) {
+              assertTrue(m.memEquals(pointers[id], 0, copies[id], 0, m_allocationSize));
+              assertTrue(m.memEquals(pointers[id], 0, data, 0, m_allocationSize));
+              m.getBytes(pointers[id], 0, bytes, 0, bytes.length);
+              for (int j = 0; j < m_allocationSize; j++) {
+                assertEquals(data[j], (bytes[4 * j] & 0xff) << 24 | (bytes[4 * j + 1] & 0xff) << 16
+                    | (bytes[4 * j + 2] & 0xff) << 8 | (bytes[4 * j + 3] & 0xff));
+              }
+            }
+          } catch (Throwable e) {
+            error.set(e);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    if (error.get() != null) {
+      throw new AssertionError(error.get());
+    }
+    for (int t = 0; t < numThreads; t++) {
+      m.free(pointers[t]);
+      m.free(copies[t]);
+    }
+  }
+}
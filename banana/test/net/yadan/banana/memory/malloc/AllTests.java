@@ -10,6 +10,8 @@ import org.junit.runners.Suite.SuiteClasses;
     net.yadan.banana.memory.malloc.treeallocator.AllTests.class,
     net.yadan.banana.memory.malloc.chainedallocator.AllTests.class,
     MultiSizeAllocatorTest.class,
+    ArenaAllocatorTest.class,
+    LongChainedAllocatorTest.class,
 
 })
 //@formatter:on
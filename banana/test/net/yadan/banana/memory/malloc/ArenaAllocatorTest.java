@@ -0,0 +1,204 @@
+package net.yadan.banana.memory.malloc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import net.yadan.banana.memory.ICursor;
+import net.yadan.banana.memory.OutOfMemoryException;
+import net.yadan.banana.memory.initializers.MemSetInitializer;
+
+import org.junit.Test;
+
+public class ArenaAllocatorTest {
+
+  @Test
+  public void testMalloc() {
+    ArenaAllocator a = new ArenaAllocator(2, 16);
+    assertEquals(16, a.blockSize());
+    assertEquals(0, a.usedBlocks());
+    int p1 = a.malloc(5);
+    int p2 = a.malloc(5);
+    assertEquals(1, a.usedBlocks());
+    assertEquals(5, a.maximumCapacityFor(p1));
+    for (int i = 0; i < 5; i++) {
+      assertEquals(0, a.getInt(p1, i));
+      a.setInt(p1, i, i);
+      a.setInt(p2, i, -i);
+    }
+
+    // does not fit in the first chunk
+    int p3 = a.malloc(10);
+    assertEquals(2, a.usedBlocks());
+    a.setLong(p3, 8, Long.MAX_VALUE);
+    for (int i = 0; i < 5; i++) {
+      assertEquals(i, a.getInt(p1, i));
+      assertEquals(-i, a.getInt(p2, i));
+    }
+    assertEquals(Long.MAX_VALUE, a.getLong(p3, 8));
+  }
+
+  @Test
+  public void testChunkSizeRounded() {
+    ArenaAllocator a = new ArenaAllocator(1, 10);
+    assertEquals(16, a.blockSize());
+  }
+
+  @Test
+  public void testUnsupportedSize() {
+    ArenaAllocator a = new ArenaAllocator(1, 16);
+    a.malloc(15);
+    try {
+      a.malloc(16);
+      fail();
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  @Test
+  public void testOutOfMemory() {
+    ArenaAllocator a = new ArenaAllocator(2, 16);
+    a.malloc(15);
+    a.malloc(15);
+    try {
+      a.malloc(1);
+      fail();
+    } catch (OutOfMemoryException e) {
+    }
+  }
+
+  @Test
+  public void testGrowth() {
+    ArenaAllocator a = new ArenaAllocator(1, 16, 2.0);
+    int pointers[] = new int[20];
+    for (int i = 0; i < pointers.length; i++) {
+      pointers[i] = a.malloc(7);
+      a.setInt(pointers[i], 6, i);
+    }
+    assertEquals(10, a.usedBlocks());
+    assertTrue(a.maxBlocks() >= 10);
+    for (int i = 0; i < pointers.length; i++) {
+      assertEquals(i, a.getInt(pointers[i], 6));
+    }
+  }
+
+  @Test
+  public void testReset() {
+    ArenaAllocator a = new ArenaAllocator(1, 16, 2.0);
+    int first = a.malloc(3);
+    a.setInt(first, 0, 42);
+    for (int i = 0; i < 10; i++) {
+      a.malloc(10);
+    }
+    long memory = a.computeMemoryUsage();
+    a.reset();
+    assertEquals(0, a.usedBlocks());
+
+    // memory is reused and zeroed
+    int p = a.malloc(3);
+    assertEquals(first, p);
+    assertEquals(0, a.getInt(p, 0));
+    for (int i = 0; i < 10; i++) {
+      a.malloc(10);
+    }
+    assertEquals(memory, a.computeMemoryUsage());
+
+    // compaction releases the chunks kept for reuse
+    a.reset();
+    a.malloc(3);
+    a.compact(null);
+    assertTrue(a.computeMemoryUsage() < memory);
+  }
+
+  @Test
+  public void testInitializer() {
+    ArenaAllocator a = new ArenaAllocator(1, 16);
+    a.setInitializer(new MemSetInitializer(-1));
+    int p = a.malloc(4);
+    for (int i = 0; i < 4; i++) {
+      assertEquals(-1, a.getInt(p, i));
+    }
+    a.setInt(p, 0, 7);
+    a.initialize(p);
+    assertEquals(-1, a.getInt(p, 0));
+  }
+
+  @Test
+  public void testReallocLastInPlace() {
+    ArenaAllocator a = new ArenaAllocator(1, 16);
+    int p = a.malloc(2);
+    a.setInt(p, 1, 5);
+    assertEquals(p, a.realloc(p, 6));
+    assertEquals(6, a.maximumCapacityFor(p));
+    assertEquals(5, a.getInt(p, 1));
+    assertEquals(0, a.getInt(p, 5));
+    assertEquals(p, a.realloc(p, 1));
+    assertEquals(1, a.maximumCapacityFor(p));
+  }
+
+  @Test
+  public void testReallocCopies() {
+    ArenaAllocator a = new ArenaAllocator(2, 16);
+    int p = a.malloc(4);
+    a.malloc(1);
+    for (int i = 0; i < 4; i++) {
+      a.setInt(p, i, i + 1);
+    }
+    int p2 = a.realloc(p, 8);
+    assertTrue(p != p2);
+    for (int i = 0; i < 4; i++) {
+      assertEquals(i + 1, a.getInt(p2, i));
+    }
+    for (int i = 4; i < 8; i++) {
+      assertEquals(0, a.getInt(p2, i));
+    }
+  }
+
+  @Test
+  public void testChars() {
+    ArenaAllocator a = new ArenaAllocator(1, 16);
+    char chars[] = "hello".toCharArray();
+    int p = a.malloc(3);
+    a.setChars(p, 0, chars, 0, chars.length);
+    char out[] = new char[chars.length];
+    a.getChars(p, 0, out, 0, out.length);
+    assertEquals("hello", new String(out));
+  }
+
+  @Test
+  public void testCursor() {
+    ArenaAllocator a = new ArenaAllocator(2, 16);
+    int p = a.malloc(6);
+    for (int i = 0; i < 6; i++) {
+      a.setInt(p, i, 10 + i);
+    }
+    ICursor c = a.createCursor();
+    c.open(p);
+    int res[] = new int[6];
+    c.nextInts(res, 0, 6);
+    for (int i = 0; i < 6; i++) {
+      assertEquals(10 + i, res[i]);
+    }
+    c.seek(2);
+    assertEquals(12, c.nextInt());
+  }
+
+  @Test
+  public void testMemCopyAndEquals() {
+    ArenaAllocator a = new ArenaAllocator(2, 16);
+    int p1 = a.malloc(8);
+    // in a different chunk
+    int p2 = a.malloc(8);
+    for (int i = 0; i < 8; i++) {
+      a.setInt(p1, i, i);
+    }
+    a.memCopy(p1, 0, p2, 0, 8);
+    assertTrue(a.memEquals(p1, 0, p2, 0, 8));
+    a.memMove(p2, 0, p2, 2, 6);
+    assertEquals(1, a.getInt(p2, 1));
+    assertEquals(0, a.getInt(p2, 2));
+    assertEquals(5, a.getInt(p2, 7));
+    assertFalse(a.memEquals(p1, 0, p2, 0, 8));
+    assertTrue(a.memEquals(p1, 0, p2, 2, 6));
+  }
+}
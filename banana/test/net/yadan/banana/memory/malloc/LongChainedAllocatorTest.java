@@ -0,0 +1,145 @@
+package net.yadan.banana.memory.malloc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import net.yadan.banana.memory.OutOfMemoryException;
+
+import org.junit.Test;
+
+public class LongChainedAllocatorTest {
+
+  @Test
+  public void testSingleBlock() {
+    LongChainedAllocator a = new LongChainedAllocator(10, 5);
+    long p = a.malloc(5);
+    assertTrue(p > 0);
+    assertEquals(5, a.maximumCapacityFor(p));
+    a.setLong(p, 0, Long.MIN_VALUE);
+    a.setDouble(p, 2, 1.5);
+    a.setInt(p, 4, 7);
+    assertEquals(Long.MIN_VALUE, a.getLong(p, 0));
+    assertEquals(1.5, a.getDouble(p, 2), 0);
+    assertEquals(7, a.getInt(p, 4));
+    assertEquals(1, a.usedBlocks());
+    a.free(p);
+    assertEquals(0, a.usedBlocks());
+  }
+
+  @Test
+  public void testMultiBlock() {
+    LongChainedAllocator a = new LongChainedAllocator(10, 5);
+    long p = a.malloc(10);
+    assertTrue(p < 0);
+    // 3 data ints per block
+    assertEquals(4, a.usedBlocks());
+    assertEquals(12, a.maximumCapacityFor(p));
+    for (int i = 0; i < 10; i++) {
+      a.setInt(p, i, i + 1);
+    }
+    // long spanning two blocks
+    a.setLong(p, 2, Long.MAX_VALUE);
+    assertEquals(Long.MAX_VALUE, a.getLong(p, 2));
+    a.setInt(p, 2, 3);
+    a.setInt(p, 3, 4);
+    for (int i = 0; i < 10; i++) {
+      assertEquals(i + 1, a.getInt(p, i));
+    }
+    a.free(p);
+    assertEquals(0, a.usedBlocks());
+  }
+
+  @Test
+  public void testInts() {
+    LongChainedAllocator a = new LongChainedAllocator(10, 5);
+    long p = a.malloc(12);
+    int data[] = new int[12];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = i * 10;
+    }
+    a.setInts(p, 1, data, 0, 11);
+    int res[] = new int[12];
+    a.getInts(p, 0, res, 0, 12);
+    assertEquals(0, res[0]);
+    for (int i = 1; i < 12; i++) {
+      assertEquals(data[i - 1], res[i]);
+    }
+    a.getInts(p, 4, res, 1, 5);
+    for (int i = 0; i < 5; i++) {
+      assertEquals(data[i + 3], res[i + 1]);
+    }
+
+    a.memSet(p, 2, 8, -1);
+    assertEquals(0, a.getInt(p, 1));
+    for (int i = 2; i < 10; i++) {
+      assertEquals(-1, a.getInt(p, i));
+    }
+    assertEquals(data[9], a.getInt(p, 10));
+  }
+
+  @Test
+  public void testRealloc() {
+    LongChainedAllocator a = new LongChainedAllocator(20, 5);
+    long p = a.malloc(4);
+    for (int i = 0; i < 4; i++) {
+      a.setInt(p, i, i + 1);
+    }
+    assertEquals(p, a.realloc(p, 5));
+
+    // single to multi block
+    long p2 = a.realloc(p, 8);
+    assertTrue(p2 < 0);
+    for (int i = 0; i < 4; i++) {
+      assertEquals(i + 1, a.getInt(p2, i));
+    }
+
+    // grows in place
+    assertEquals(p2, a.realloc(p2, 14));
+    assertEquals(15, a.maximumCapacityFor(p2));
+    assertEquals(5, a.usedBlocks());
+    assertEquals(4, a.getInt(p2, 3));
+
+    // shrinks in place
+    assertEquals(p2, a.realloc(p2, 7));
+    assertEquals(9, a.maximumCapacityFor(p2));
+    assertEquals(3, a.usedBlocks());
+
+    // back to a single block
+    long p3 = a.realloc(p2, 3);
+    assertTrue(p3 > 0);
+    assertEquals(1, a.usedBlocks());
+    for (int i = 0; i < 3; i++) {
+      assertEquals(i + 1, a.getInt(p3, i));
+    }
+  }
+
+  @Test
+  public void testOutOfMemory() {
+    LongChainedAllocator a = new LongChainedAllocator(3, 5);
+    a.malloc(3);
+    try {
+      a.malloc(7);
+      fail();
+    } catch (OutOfMemoryException e) {
+    }
+    // the partial chain is freed
+    assertEquals(1, a.usedBlocks());
+  }
+
+  @Test
+  public void testGrowth() {
+    LongChainedAllocator a = new LongChainedAllocator(2, 6, 2.0);
+    long pointers[] = new long[50];
+    for (int i = 0; i < pointers.length; i++) {
+      pointers[i] = a.malloc(i % 10);
+      if (i % 10 > 0) {
+        a.setInt(pointers[i], i % 10 - 1, i);
+      }
+    }
+    for (int i = 0; i < pointers.length; i++) {
+      if (i % 10 > 0) {
+        assertEquals(i, a.getInt(pointers[i], i % 10 - 1));
+      }
+    }
+  }
+}
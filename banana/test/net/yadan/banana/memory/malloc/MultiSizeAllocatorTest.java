@@ -2,7 +2,11 @@ package net.yadan.banana.memory.malloc;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.fail;
+import net.yadan.banana.memory.ICursor;
+import net.yadan.banana.memory.Relocation;
 import net.yadan.banana.memory.initializers.MemSetInitializer;
 
 import org.junit.Test;
@@ -148,4 +152,226 @@ public class MultiSizeAllocatorTest {
       a.free(p);
     }
   }
+
+  @Test
+  public void testCompact() {
+    MultiSizeAllocator a = new MultiSizeAllocator(5, new int[] { 2, 4 }, 2.0);
+    int pointers[] = new int[40];
+    for (int i = 0; i < pointers.length; i++) {
+      pointers[i] = a.malloc(i % 2 == 0 ? 2 : 4);
+      a.setInt(pointers[i], 1, i);
+    }
+    for (int i = 0; i < pointers.length; i++) {
+      if (i % 5 != 0) {
+        a.free(pointers[i]);
+      }
+    }
+
+    Relocation relocation = new Relocation();
+    a.compact(relocation);
+    assertEquals(8, a.usedBlocks());
+    for (int i = 0; i < pointers.length; i += 5) {
+      int p = a.relocate(pointers[i], relocation);
+      assertEquals(a.getSizeIndex(pointers[i]), a.getSizeIndex(p));
+      assertEquals(i, a.getInt(p, 1));
+      a.free(p);
+    }
+    assertEquals(0, a.usedBlocks());
+  }
+
+  @Test
+  public void testFindAllocatorUnsortedSizes() {
+    MultiSizeAllocator m = new MultiSizeAllocator(10, new int[] { 20, 5, 10 }, 2.0);
+    assertArrayEquals(new int[] { 5, 10, 20 }, m.getSizes());
+    assertEquals(0, m.findAllocatorFor(5));
+    assertEquals(1, m.findAllocatorFor(6));
+    assertEquals(2, m.findAllocatorFor(20));
+  }
+
+  @Test
+  public void testFindAllocatorBeyondLookupTable() {
+    int large = MultiSizeAllocator.LOOKUP_TABLE_LIMIT + 100;
+    MultiSizeAllocator m = new MultiSizeAllocator(10, new int[] { 10, large }, 2.0);
+    assertEquals(0, m.findAllocatorFor(0));
+    assertEquals(0, m.findAllocatorFor(10));
+    assertEquals(1, m.findAllocatorFor(11));
+    assertEquals(1, m.findAllocatorFor(MultiSizeAllocator.LOOKUP_TABLE_LIMIT));
+    assertEquals(1, m.findAllocatorFor(MultiSizeAllocator.LOOKUP_TABLE_LIMIT + 1));
+    assertEquals(1, m.findAllocatorFor(large));
+    try {
+      m.findAllocatorFor(large + 1);
+      fail();
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  @Test
+  public void testSuggestSizes() {
+    long histogram[] = new long[11];
+    histogram[3] = 100;
+    histogram[4] = 1;
+    histogram[7] = 50;
+    histogram[8] = 50;
+    // 3 is the most popular size, 7 shares a class with 8
+    assertArrayEquals(new int[] { 3, 8, 10 }, MultiSizeAllocator.suggestSizes(histogram, 3));
+    // every recorded size gets its own class
+    assertArrayEquals(new int[] { 3, 4, 7, 8, 10 },
+        MultiSizeAllocator.suggestSizes(histogram, 10));
+    assertArrayEquals(new int[] { 3, 10 }, MultiSizeAllocator.suggestSizes(histogram, 2));
+  }
+
+  @Test
+  public void testRecordSizes() {
+    MultiSizeAllocator a = new MultiSizeAllocator(10, new int[] { 4, 8 }, 2.0);
+    assertFalse(a.isRecordingSizes());
+    a.setRecordSizes(true);
+    int pointers[] = new int[3];
+    a.malloc(2, pointers.length, pointers);
+    a.free(pointers, 0, pointers.length);
+    a.free(a.malloc(5));
+
+    long histogram[] = a.getSizeHistogram();
+    assertEquals(9, histogram.length);
+    assertEquals(3, histogram[2]);
+    assertEquals(1, histogram[5]);
+  }
+
+  @Test
+  public void testNegativeSize() {
+    MultiSizeAllocator a = new MultiSizeAllocator(10, new int[] { 4, 8 }, 2.0);
+    for (boolean record : new boolean[] { false, true }) {
+      a.setRecordSizes(record);
+      try {
+        a.malloc(-1);
+        fail();
+      } catch (IllegalArgumentException e) {
+      }
+      try {
+        a.malloc(-1, 2, new int[2]);
+        fail();
+      } catch (IllegalArgumentException e) {
+      }
+    }
+    assertEquals(0, a.usedBlocks());
+  }
+
+  @Test
+  public void testRebalance() {
+    MultiSizeAllocator a = new MultiSizeAllocator(10, new int[] { 10, 20, 40 }, 2.0);
+    a.setRecordSizes(true);
+    for (int i = 0; i < 100; i++) {
+      a.free(a.malloc(3));
+      a.free(a.malloc(13));
+    }
+    a.rebalance(3);
+    assertArrayEquals(new int[] { 3, 13, 40 }, a.getSizes());
+    assertEquals(3, a.computeMemoryUsageFor(2));
+
+    int p = a.malloc(40);
+    a.setInt(p, 39, 7);
+    assertEquals(7, a.getInt(p, 39));
+    try {
+      a.rebalance(3);
+      fail();
+    } catch (IllegalStateException e) {
+    }
+    a.free(p);
+  }
+
+  @Test
+  public void testSuggestSizesWithoutData() {
+    assertArrayEquals(new int[] { 1, 10 }, MultiSizeAllocator.suggestSizes(new long[11], 3));
+    long histogram[] = new long[11];
+    histogram[10] = 5;
+    assertArrayEquals(new int[] { 1, 10 }, MultiSizeAllocator.suggestSizes(histogram, 3));
+  }
+
+  @Test
+  public void testRebalanceWithoutData() {
+    MultiSizeAllocator a = new MultiSizeAllocator(10, new int[] { 4, 8 }, 2.0);
+    a.setRecordSizes(true);
+    a.rebalance(3);
+    assertArrayEquals(new int[] { 1, 8 }, a.getSizes());
+
+    // only the largest size was allocated
+    a.free(a.malloc(8));
+    a.rebalance(3);
+    assertArrayEquals(new int[] { 1, 8 }, a.getSizes());
+    int p = a.malloc(8);
+    a.setInt(p, 7, 7);
+    assertEquals(7, a.getInt(p, 7));
+    a.free(p);
+  }
+
+  @Test
+  public void testCursor() {
+    MultiSizeAllocator a = new MultiSizeAllocator(10, new int[] { 4, 8 }, 2.0);
+    int p1 = a.malloc(3);
+    int p2 = a.malloc(8);
+    for (int i = 0; i < 8; i++) {
+      a.setInt(p2, i, i);
+    }
+    a.setLong(p1, 1, Long.MIN_VALUE);
+    ICursor c = a.createCursor();
+    c.open(p2);
+    for (int i = 0; i < 8; i++) {
+      assertEquals(i, c.nextInt());
+    }
+    c.open(p1);
+    c.seek(1);
+    assertEquals(Long.MIN_VALUE, c.nextLong());
+    assertEquals(3, c.position());
+    a.free(p1);
+    a.free(p2);
+  }
+
+  @Test
+  public void testRealloc() {
+    MultiSizeAllocator a = new MultiSizeAllocator(10, new int[] { 4, 8 }, 2.0);
+    int p = a.malloc(3);
+    for (int i = 0; i < 4; i++) {
+      a.setInt(p, i, i + 1);
+    }
+    assertEquals(p, a.realloc(p, 4));
+
+    int p2 = a.realloc(p, 6);
+    assertEquals(8, a.maximumCapacityFor(p2));
+    for (int i = 0; i < 4; i++) {
+      assertEquals(i + 1, a.getInt(p2, i));
+    }
+    assertEquals(1, a.usedBlocks());
+
+    int p3 = a.realloc(p2, 2);
+    assertEquals(4, a.maximumCapacityFor(p3));
+    for (int i = 0; i < 4; i++) {
+      assertEquals(i + 1, a.getInt(p3, i));
+    }
+    a.free(p3);
+    assertEquals(0, a.usedBlocks());
+  }
+
+  @Test
+  public void testMemCopyAndEquals() {
+    MultiSizeAllocator a = new MultiSizeAllocator(10, new int[] { 4, 8 }, 2.0);
+    int small = a.malloc(4);
+    int large1 = a.malloc(8);
+    int large2 = a.malloc(8);
+    for (int i = 0; i < 8; i++) {
+      a.setInt(large1, i, i);
+    }
+
+    a.memCopy(large1, 4, small, 0, 4);
+    assertTrue(a.memEquals(large1, 4, small, 0, 4));
+    a.memCopy(large1, 0, large2, 0, 8);
+    assertTrue(a.memEquals(large1, 0, large2, 0, 8));
+    a.memMove(large2, 0, large2, 1, 7);
+    assertEquals(0, a.getInt(large2, 1));
+    assertEquals(6, a.getInt(large2, 7));
+    assertFalse(a.memEquals(large1, 0, large2, 0, 8));
+    assertFalse(a.memEquals(large1, 0, small, 0, 4));
+
+    a.free(small);
+    a.free(large1);
+    a.free(large2);
+  }
 }
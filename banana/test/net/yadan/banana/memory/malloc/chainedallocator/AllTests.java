@@ -12,6 +12,9 @@ import org.junit.runners.Suite.SuiteClasses;
   ChainedOOMTest.class,
   ChainedComputeMemoryUsageTest.class,
   ChainedReallocTest.class,
+  ChainedCompactTest.class,
+  ChainedCursorTest.class,
+  ChainedMemCopyTest.class,
   ChainedMemSetTest.class,
   ChainedCharsTest.class,
 })
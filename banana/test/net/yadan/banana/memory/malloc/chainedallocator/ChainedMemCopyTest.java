@@ -0,0 +1,20 @@
+package net.yadan.banana.memory.malloc.chainedallocator;
+
+import net.yadan.banana.memory.IMemAllocator;
+import net.yadan.banana.memory.malloc.AbstractMemCopyTest;
+import net.yadan.banana.memory.malloc.ChainedAllocator;
+
+
+public class ChainedMemCopyTest extends AbstractMemCopyTest {
+
+  public ChainedMemCopyTest(int numBlocks, int blockSize, int allocationSize) {
+    super(numBlocks, blockSize, allocationSize);
+  }
+
+  @Override
+  public IMemAllocator create(int numBlocks, int blockSize) {
+    ChainedAllocator m = new ChainedAllocator(numBlocks, blockSize, 2.0);
+    m.setDebug(true);
+    return m;
+  }
+}
@@ -11,6 +11,9 @@ import org.junit.runners.Suite.SuiteClasses;
   TreeOOMTest.class,
   TreeComputeMemoryUsageTest.class,
   TreeReallocTest.class,
+  TreeCompactTest.class,
+  TreeCursorTest.class,
+  TreeMemCopyTest.class,
   VarTests.class,
   TreeMemSetTest.class,
   TreeCharsTest.class,
@@ -0,0 +1,20 @@
+package net.yadan.banana.memory.malloc.treeallocator;
+
+import net.yadan.banana.memory.IMemAllocator;
+import net.yadan.banana.memory.malloc.AbstractMemCopyTest;
+import net.yadan.banana.memory.malloc.TreeAllocator;
+
+
+public class TreeMemCopyTest extends AbstractMemCopyTest {
+
+  public TreeMemCopyTest(int numBlocks, int blockSize, int allocationSize) {
+    super(numBlocks, blockSize, allocationSize);
+  }
+
+  @Override
+  public IMemAllocator create(int numBlocks, int blockSize) {
+    TreeAllocator m = new TreeAllocator(numBlocks, blockSize, 2.0);
+    m.setDebug(true);
+    return m;
+  }
+}
@@ -143,4 +143,101 @@ public class LRUTest {
     assertEquals(22, lru.getLong(2));
   }
 
+  @Test
+  public void testSetCapacity() {
+    for (LRU.DataType type : LRU.DataType.values()) {
+      LRU lru = new LRU(100, type);
+      for (int i = 0; i < 100; i++) {
+        add(lru, type, i);
+      }
+      long used = lru.computeMemoryUsage();
+      lru.setCapacity(10);
+      assertEquals(10, lru.capacity());
+      assertEquals(10, lru.size());
+      assertTrue(lru.computeMemoryUsage() < used);
+      for (int i = 0; i < 90; i++) {
+        assertFalse(lru.exists(i));
+      }
+      for (int i = 90; i < 100; i++) {
+        assertTrue(lru.exists(i));
+        assertData(lru, type, i);
+      }
+
+      // most recently used items stay after compaction
+      for (int i = 100; i < 105; i++) {
+        add(lru, type, i);
+      }
+      assertEquals(10, lru.size());
+      for (int i = 95; i < 105; i++) {
+        assertTrue(lru.exists(i));
+        assertData(lru, type, i);
+      }
+
+      lru.setCapacity(100);
+      for (int i = 200; i < 300; i++) {
+        add(lru, type, i);
+      }
+      assertEquals(100, lru.size());
+      assertEquals(used, lru.computeMemoryUsage());
+    }
+  }
+
+  @Test
+  public void testEvict() {
+    LRU lru = new LRU(100, LRU.DataType.LONG);
+    for (int i = 0; i < 100; i++) {
+      lru.addLong(i, i);
+    }
+    long released = lru.evict(1000);
+    assertTrue(released >= 1000);
+    // at least an eighth of the items
+    assertTrue(lru.size() <= 87);
+    assertEquals(lru.size(), lru.limit());
+    assertEquals(100, lru.capacity());
+    assertTrue(lru.exists(99));
+
+    // without a budget the limit stays until the capacity is set
+    for (int i = 100; i < 200; i++) {
+      lru.addLong(i, i);
+    }
+    assertEquals(lru.limit(), lru.size());
+    lru.setCapacity(100);
+    for (int i = 200; i < 300; i++) {
+      lru.addLong(i, i);
+    }
+    assertEquals(100, lru.size());
+  }
+
+  private void add(LRU lru, LRU.DataType type, int i) {
+    switch (type) {
+    case NONE:
+      lru.add(i);
+      break;
+    case OBJECT:
+      lru.add(i, "" + i);
+      break;
+    case LONG:
+      lru.addLong(i, i * 10L);
+      break;
+    case INT:
+      lru.addInt(i, i * 10);
+      break;
+    }
+  }
+
+  private void assertData(LRU lru, LRU.DataType type, int i) {
+    switch (type) {
+    case NONE:
+      break;
+    case OBJECT:
+      assertEquals("" + i, lru.get(i));
+      break;
+    case LONG:
+      assertEquals(i * 10L, lru.getLong(i));
+      break;
+    case INT:
+      assertEquals(i * 10, lru.getInt(i));
+      break;
+    }
+  }
 }
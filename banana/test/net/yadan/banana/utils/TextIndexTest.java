@@ -3,6 +3,7 @@ package net.yadan.banana.utils;
 import net.yadan.banana.DebugLevel;
 import net.yadan.banana.map.IVarKeyHashMap;
 import net.yadan.banana.map.VarKeyHashMapVisitor;
+import net.yadan.banana.map.VarKeyHashMapVisitorAdapter;
 import net.yadan.banana.memory.Buffer;
 import net.yadan.banana.memory.IBuffer;
 import net.yadan.banana.utils.TextIndex;
@@ -13,6 +14,7 @@ import org.junit.Test;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 
 public class TextIndexTest {
@@ -90,6 +92,37 @@ public class TextIndexTest {
 //    index.getWord2DocList().visitRecords(new KeyPrinter());
   }
 
+  @Test
+  public void testUtf8Keys() {
+    String text = "Caf\u00e9 na\u00efve \u65e5\u672c quick brown foxes jumping everywhere";
+    TextIndex chars = new TextIndex(100, 30);
+    TextIndex utf8 = new TextIndex(100, 30, true);
+    assertTrue(utf8.isUtf8Keys());
+    for (int i = 0; i < 3; i++) {
+      chars.index(i, text, SEPS);
+      utf8.index(i, text, SEPS);
+    }
+    assertEquals(chars.getNumWords(), utf8.getNumWords());
+    for (String word : text.split(" ")) {
+      assertArrayEquals(new int[] { 0, 1, 2 }, utf8.find(word));
+    }
+    assertEquals(0, utf8.find("caf").length);
+    assertTrue(keyInts(utf8) < keyInts(chars));
+  }
+
+  private static int keyInts(TextIndex index) {
+    final IBuffer key = new Buffer(10);
+    final int total[] = new int[1];
+    index.getWord2DocList().visitRecords(new VarKeyHashMapVisitorAdapter() {
+      @Override
+      public void visit(IVarKeyHashMap map, int keyPtr, int valuePtr, long num, long t) {
+        map.getKeyData(keyPtr, key);
+        total[0] += key.size();
+      }
+    });
+    return total[0];
+  }
+
   static final class KeyPrinter implements VarKeyHashMapVisitor {
     IBuffer m_tmpWord = new Buffer(10);
     @Override
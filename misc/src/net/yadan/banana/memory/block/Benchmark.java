@@ -24,10 +24,12 @@ public class Benchmark {
   int m_pointers[];
   IBlockAllocator m_blocks;
   IBlockAllocator m_bigBlocks;
+  IBlockAllocator m_bigBlocksPow2;
 
   public Benchmark(int maxBlocks, int blockSize) {
     m_blocks = new BlockAllocator(maxBlocks, blockSize);
     m_bigBlocks = new BigBlockAllocator(maxBlocks, blockSize);
+    m_bigBlocksPow2 = new BigBlockAllocator(maxBlocks, blockSize, 0, null, true);
     m_pointers = new int[maxBlocks];
     cleanup();
   }
@@ -51,6 +53,7 @@ public class Benchmark {
   public void cleanup() {
     m_blocks.clear();
     m_bigBlocks.clear();
+    m_bigBlocksPow2.clear();
     for (int i = 0; i < m_pointers.length; i++) {
       m_pointers[i] = -1;
     }
@@ -66,6 +69,11 @@ public class Benchmark {
     benchMallocFree(m_bigBlocks);
   }
 
+  @Test
+  public void benchMallocFree_BigBlocksAllocatorPow2() {
+    benchMallocFree(m_bigBlocksPow2);
+  }
+
   @Test
   public void benchReadWrite_BlocksAllocator() {
     benchReadWrite(m_blocks);
@@ -76,6 +84,11 @@ public class Benchmark {
     benchReadWrite(m_bigBlocks);
   }
 
+  @Test
+  public void benchReadWrite_BigBlocksAllocatorPow2() {
+    benchReadWrite(m_bigBlocksPow2);
+  }
+
   public void benchMallocFree(IBlockAllocator blocks) {
     int iterations = 10000;
 
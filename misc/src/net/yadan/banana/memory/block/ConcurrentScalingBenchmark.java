@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) ${year} Omry Yadan <${email}>
+ * All rights reserved.
+ *
+ * See https://github.com/omry/banana/blob/master/BSD-LICENSE for licensing information
+ */
+package net.yadan.banana.memory.block;
+
+import java.util.concurrent.CountDownLatch;
+
+import net.yadan.banana.memory.IBlockAllocator;
+import net.yadan.utils.Util;
+
+/**
+ * Measures malloc/free throughput from 1 to N threads, comparing
+ * ConcurrentBlockAllocator and ThreadCachingBlockAllocator with a
+ * BlockAllocator guarded by a lock.
+ */
+public class ConcurrentScalingBenchmark {
+
+  private static final int OPS_PER_THREAD = 10 * 1000 * 1000;
+  private static final int BLOCKS_PER_THREAD = 1000;
+  private static final int BLOCK_SIZE = 4;
+
+  private interface Allocator {
+    int malloc();
+
+    void free(int pointer);
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    int maxThreads = Runtime.getRuntime().availableProcessors();
+    if (args.length > 0) {
+      maxThreads = Integer.parseInt(args[0]);
+    }
+
+    System.out.println("threads\tsynchronized\tconcurrent\tthread-caching (ops/sec)");
+    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+      int maxBlocks = threads * (BLOCKS_PER_THREAD + 1024);
+      long sync = run(threads, synchronizedAllocator(new BlockAllocator(maxBlocks, BLOCK_SIZE)));
+      long concurrent = run(threads,
+          allocator(new ConcurrentBlockAllocator(maxBlocks, BLOCK_SIZE)));
+      long caching = run(threads, allocator(new ThreadCachingBlockAllocator(new BlockAllocator(
+          maxBlocks, BLOCK_SIZE))));
+      System.out.println(threads + "\t" + Util.formatNum(sync) + "\t" + Util.formatNum(concurrent)
+          + "\t" + Util.formatNum(caching));
+    }
+  }
+
+  private static Allocator synchronizedAllocator(final IBlockAllocator blocks) {
+    return new Allocator() {
+      @Override
+      public synchronized int malloc() {
+        return blocks.malloc();
+      }
+
+      @Override
+      public synchronized void free(int pointer) {
+        blocks.free(pointer);
+      }
+    };
+  }
+
+  private static Allocator allocator(final IBlockAllocator blocks) {
+    return new Allocator() {
+      @Override
+      public int malloc() {
+        return blocks.malloc();
+      }
+
+      @Override
+      public void free(int pointer) {
+        blocks.free(pointer);
+      }
+    };
+  }
+
+  /**
+   * @return malloc+free pairs per second
+   */
+  private static long run(int numThreads, final Allocator allocator) throws InterruptedException {
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(numThreads);
+    for (int t = 0; t < numThreads; t++) {
+      new Thread() {
+        @Override
+        public void run() {
+          int pointers[] = new int[BLOCKS_PER_THREAD];
+          for (int i = 0; i < pointers.length; i++) {
+            pointers[i] = allocator.malloc();
+          }
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < OPS_PER_THREAD; i++) {
+            int slot = i % BLOCKS_PER_THREAD;
+            allocator.free(pointers[slot]);
+            pointers[slot] = allocator.malloc();
+          }
+          done.countDown();
+        }
+      }.start();
+    }
+
+    long startTime = System.nanoTime();
+    start.countDown();
+    done.await();
+    long elapsed = System.nanoTime() - startTime;
+    return (long) (numThreads * (double) OPS_PER_THREAD * 1e9 / elapsed);
+  }
+}